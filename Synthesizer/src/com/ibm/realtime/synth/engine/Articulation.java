@@ -34,6 +34,12 @@ public abstract class Articulation {
 	 */
 	protected double[] effectiveLinearVolume = new double[2];
 
+	/**
+	 * Buffer for the default implementation of process(FloatAudioBuffer),
+	 * allocated on demand.
+	 */
+	private AudioBuffer scratchBuffer;
+
 	/**
 	 * Should be called by the constructors of subclasses.
 	 * 
@@ -60,7 +66,16 @@ public abstract class Articulation {
 	 * 
 	 * @param time
 	 */
-	public abstract void calculate(AudioTime time);
+	public final void calculate(AudioTime time) {
+		calculate(time.getNanoTime());
+	}
+
+	/**
+	 * Calculate the new volumeFactor and sampleRateFactor.
+	 * 
+	 * @param nanoTime the current time in nanoseconds
+	 */
+	public abstract void calculate(long nanoTime);
 
 	/**
 	 * Apply further processing to the rendered buffer (like filters).
@@ -68,12 +83,44 @@ public abstract class Articulation {
 	 */
 	public abstract void process(AudioBuffer buffer);
 
+	/**
+	 * Apply further processing to the rendered float buffer (like filters).
+	 * The default implementation processes a double precision copy of the
+	 * buffer with process(AudioBuffer). Subclasses should override this
+	 * method to process the float samples directly.
+	 * 
+	 * @param buffer the sample buffer
+	 */
+	public void process(FloatAudioBuffer buffer) {
+		int count = buffer.getSampleCount();
+		if (scratchBuffer == null
+				|| scratchBuffer.getChannelCount() != buffer.getChannelCount()) {
+			scratchBuffer = new AudioBuffer(buffer.getChannelCount(), count,
+					buffer.getSampleRate());
+		} else {
+			scratchBuffer.changeSampleCount(count, false);
+			scratchBuffer.setSampleRate(buffer.getSampleRate());
+		}
+		buffer.copyTo(scratchBuffer);
+		process(scratchBuffer);
+		buffer.copyFrom(scratchBuffer);
+	}
+
 	/**
 	 * Must be called when releasing the note.
 	 * 
 	 * @param time
 	 */
-	public abstract void release(AudioTime time);
+	public final void release(AudioTime time) {
+		release(time.getNanoTime());
+	}
+
+	/**
+	 * Must be called when releasing the note.
+	 * 
+	 * @param nanoTime the release time in nanoseconds
+	 */
+	public abstract void release(long nanoTime);
 
 	/**
 	 * @return Returns the channel.
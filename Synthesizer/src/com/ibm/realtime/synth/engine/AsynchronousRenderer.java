@@ -3,12 +3,30 @@
  */
 package com.ibm.realtime.synth.engine;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import static com.ibm.realtime.synth.utils.Debug.*;
 
 /**
  * A class to maintain a pool of threads which continously render a set of
  * Renderables. For that to work, the method dispatch() must be called for every
  * block to be rendered.
+ * <p>
+ * <b>Scheduling:</b><br>
+ * The Renderables of a slice are distributed to one work deque per thread,
+ * plus one deque for the thread calling dispatch() (usually the audio pull
+ * thread), which takes part in rendering by calling participate(). The
+ * distribution uses the estimated cost of each Renderable, which is the
+ * render time of the previous slice: the most expensive Renderables are
+ * assigned first, each one to the deque with the lowest total cost so far.
+ * Each thread renders its own deque starting with the most expensive
+ * Renderable. Once its deque is empty, it steals the cheapest Renderables
+ * from the end of the other threads' deques. So no thread is idle while
+ * there is still work to do in the current slice.
+ * <p>
+ * The deques are lock-free: the front and end index of a deque are packed
+ * into one atomic long, so that the owner and the thieves claim elements with
+ * a single compare-and-set.
  * 
  * @author florian
  */
@@ -21,21 +39,6 @@ public class AsynchronousRenderer {
 	 */
 	private static final int RENDERTHREAD_PRIORITY = AudioPullThread.PULLTHREAD_PRIORITY;
 
-	/**
-	 * Flag: if <code>true</code>, each render thread is assigned a pre-set
-	 * range of Renderables that it alone will render. If <code>false</code>,
-	 * each thread will try to render all Renderables from the beginning, using
-	 * synchronization to prevent concurrent access to the renderables array.
-	 * <p>
-	 * Partitioning works in a way that the first thread will render the 0th,
-	 * Nth, (2*N)th, etc. element, the second thread elements 1, (N+1), (2N+1),
-	 * etc. where N is the number of threads. This is to insure that rendering
-	 * goes approximately in order of the Renderables array. This enables the
-	 * mixer to start mixing together the first Renderables while the rendering
-	 * threads are still busy with rendering the last Renderables.
-	 */
-	private static final boolean PARTITION_RENDERABLES = true;
-
 	/**
 	 * Flag: if <code>true</code>, the rendering threads will call
 	 * <code>wait()</code> to wait for the synchronized start of a new slice.
@@ -44,6 +47,18 @@ public class AsynchronousRenderer {
 	 */
 	private static final boolean USE_WAIT = true;
 
+	/**
+	 * The estimated render cost, in nanoseconds, of Renderables that have not
+	 * been rendered by this class yet.
+	 */
+	private static final long DEFAULT_RENDER_COST = 20000;
+
+	/**
+	 * The maximum number of Renderables per slice that are scheduled; the
+	 * remaining ones are rendered by the mixer.
+	 */
+	private static final int MAX_RENDERABLES = 1 << 16;
+
 	private volatile boolean started = false;
 
 	private static int defaultThreadCount;
@@ -69,15 +84,44 @@ public class AsynchronousRenderer {
 	private int threadCount;
 
 	/**
-	 * The time of the current or next block to be rendered.
+	 * The time of the current or next block to be rendered, in nanoseconds.
 	 */
-	private volatile AudioTime renderTime;
+	private volatile long renderTime;
 
 	/**
-	 * The array of Renderables that contain the most recent list of objects to
-	 * be rendered. Must never be null!
+	 * The number of the current slice, incremented for every slice after
+	 * renderTime is set. The rendering threads wait for a change of it.
 	 */
-	private volatile Renderable[] renderables = new Renderable[0];
+	private volatile long sliceNumber = 0;
+
+	/**
+	 * The work deques of the current slice: one for every rendering thread,
+	 * and the last one for the thread calling dispatch(). Must never be null!
+	 */
+	private volatile WorkDeque[] deques = new WorkDeque[0];
+
+	/**
+	 * Scratch array for sorting the Renderables by cost. Only accessed in
+	 * dispatch().
+	 */
+	private long[] sortKeys = new long[64];
+
+	/**
+	 * Scratch array for the estimated total cost per deque. Only accessed in
+	 * dispatch().
+	 */
+	private long[] dequeCosts = new long[0];
+
+	/**
+	 * The number of Renderables rendered by the thread calling
+	 * participate().
+	 */
+	private int callerRenderCount = 0;
+
+	/**
+	 * The total number of Renderables stolen from other threads' deques.
+	 */
+	private final AtomicLong stealCount = new AtomicLong();
 
 	/**
 	 * Default constructor: by default, assigns defaultThreadCount threads.
@@ -196,20 +240,300 @@ public class AsynchronousRenderer {
 		}
 	}
 
+	/**
+	 * @return the total number of Renderables that were stolen by a thread
+	 *         from another thread's deque
+	 */
+	public long getStealCount() {
+		return stealCount.get();
+	}
+
 	/**
 	 * Start a new slice in all threads
 	 */
-	public synchronized void dispatch(AudioTime time, Renderable[] renderables) {
-		this.renderTime = time;
-		this.renderables = renderables;
-		if (PARTITION_RENDERABLES) {
-			int threadCount = threads.length;
-			for (int i = 0; i < threadCount; i++) {
-				threads[i].nextSlice(i, threadCount);
+	public void dispatch(AudioTime time, Renderable[] renderables) {
+		int count = 0;
+		while (count < renderables.length && renderables[count] != null) {
+			count++;
+		}
+		dispatch(time.getNanoTime(), renderables, count);
+	}
+
+	/**
+	 * Start a new slice in all threads.
+	 * 
+	 * @see #dispatch(long, Renderable[], int)
+	 */
+	public void dispatch(AudioTime time, Renderable[] renderables, int count) {
+		dispatch(time.getNanoTime(), renderables, count);
+	}
+
+	/**
+	 * Start a new slice in all threads: distribute the first count elements
+	 * of renderables to the work deques, and wake up the threads. The
+	 * renderables array is not accessed anymore after this method returns,
+	 * so the caller may reuse it.
+	 */
+	public synchronized void dispatch(long nanoTime, Renderable[] renderables,
+			int count) {
+		if (count > MAX_RENDERABLES) {
+			count = MAX_RENDERABLES;
+		}
+		int threadCount = threads.length;
+		int dequeCount = threadCount + 1;
+		WorkDeque[] ds = deques;
+		if (ds.length != dequeCount) {
+			ds = new WorkDeque[dequeCount];
+			for (int i = 0; i < dequeCount; i++) {
+				ds[i] = new WorkDeque();
 			}
-		} else {
-			for (RenderingThread rt : threads) {
-				rt.nextSlice();
+			dequeCosts = new long[dequeCount];
+		}
+		// sort by estimated cost: the sort key is the cost in the upper bits
+		// and the index in the lower 16 bits
+		if (sortKeys.length < count) {
+			sortKeys = new long[count * 2];
+		}
+		for (int i = 0; i < count; i++) {
+			sortKeys[i] = (getCost(renderables[i]) << 16) | i;
+		}
+		java.util.Arrays.sort(sortKeys, 0, count);
+		// assign the most expensive Renderables first, each to the deque
+		// with the lowest total cost
+		for (int d = 0; d < dequeCount; d++) {
+			ds[d].clear(count);
+			dequeCosts[d] = 0;
+		}
+		for (int i = count - 1; i >= 0; i--) {
+			long key = sortKeys[i];
+			int minDeque = 0;
+			long minCost = dequeCosts[0];
+			for (int d = 1; d < dequeCount; d++) {
+				if (dequeCosts[d] < minCost) {
+					minCost = dequeCosts[d];
+					minDeque = d;
+				}
+			}
+			ds[minDeque].add(renderables[(int) (key & 0xFFFF)]);
+			dequeCosts[minDeque] = minCost + (key >>> 16);
+		}
+		// publish the new slice: the elements can only be claimed once the
+		// deques are published, i.e. after the new time is visible
+		deques = ds;
+		this.renderTime = nanoTime;
+		sliceNumber++;
+		for (int d = 0; d < dequeCount; d++) {
+			ds[d].publish();
+		}
+		for (int i = 0; i < threadCount; i++) {
+			threads[i].nextSlice();
+		}
+	}
+
+	/**
+	 * Render Renderables of the current slice in the calling thread, until
+	 * all deques are empty. This is meant to be called by the thread that
+	 * called dispatch(), right after dispatch(). It renders its own deque
+	 * first, and then steals from the rendering threads.
+	 */
+	public void participate() {
+		WorkDeque[] ds = deques;
+		if (ds.length == 0) {
+			return;
+		}
+		callerRenderCount += renderDeques(ds, ds.length - 1);
+	}
+
+	/**
+	 * Render the Renderables of the deques, starting with the deque
+	 * ownDeque. After that, steal from the other deques.
+	 * 
+	 * @return the number of actually rendered Renderables
+	 */
+	private final int renderDeques(WorkDeque[] ds, int ownDeque) {
+		int rendered = 0;
+		int dequeCount = ds.length;
+		Renderable r;
+		if (ownDeque < dequeCount) {
+			while ((r = ds[ownDeque].pop()) != null) {
+				if (render(r)) {
+					rendered++;
+				}
+			}
+		}
+		// steal from the other deques
+		for (int i = 1; i <= dequeCount; i++) {
+			WorkDeque victim = ds[(ownDeque + i) % dequeCount];
+			while ((r = victim.steal()) != null) {
+				stealCount.incrementAndGet();
+				if (render(r)) {
+					rendered++;
+				}
+			}
+		}
+		return rendered;
+	}
+
+	/**
+	 * Render r for the current render time, and update its cost estimate.
+	 */
+	private final boolean render(Renderable r) {
+		// read the render time after claiming r: it is at least as recent
+		// as the slice that r was claimed from
+		long time = renderTime;
+		if (r instanceof NoteInput) {
+			long start = System.nanoTime();
+			boolean result = r.render(time);
+			if (result) {
+				((NoteInput) r).renderCost = System.nanoTime() - start;
+			}
+			return result;
+		}
+		return r.render(time);
+	}
+
+	/**
+	 * @return the estimated render cost of r in nanoseconds, i.e. the render
+	 *         time of the previous slice
+	 */
+	private static final long getCost(Renderable r) {
+		long cost = DEFAULT_RENDER_COST;
+		if (r instanceof NoteInput) {
+			long c = ((NoteInput) r).renderCost;
+			if (c > 0) {
+				// clip so that the sort key does not overflow
+				cost = (c < (1L << 46)) ? c : (1L << 46);
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * A work deque of Renderables. It is filled by dispatch(), then the owner
+	 * takes elements from the front, and other threads steal elements from
+	 * the end. The deque objects are reused for every slice, so the slice's
+	 * epoch, the front index and the end index are packed into one atomic
+	 * long: the epoch in the upper 24 bits, then the front index and the end
+	 * index in 20 bits each.
+	 * <p>
+	 * An element is read before it is claimed, and the claim only succeeds if
+	 * the state, including the epoch, is unchanged. So a thread that is
+	 * preempted in pop() or steal() while dispatch() starts the next slice
+	 * fails to claim, and never returns an element of another slice.
+	 */
+	private static final class WorkDeque {
+		private static final int INDEX_BITS = 20;
+
+		private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+		private static final int EPOCH_SHIFT = 2 * INDEX_BITS;
+
+		private static final long EPOCH_MASK = (1L << (64 - EPOCH_SHIFT)) - 1;
+
+		private Renderable[] items = new Renderable[16];
+
+		/**
+		 * The number of elements added since the last clear()
+		 */
+		private int size;
+
+		/**
+		 * The epoch of the current slice. Only accessed by dispatch().
+		 */
+		private long epoch;
+
+		private final AtomicLong state = new AtomicLong();
+
+		private static long pack(long epoch, int front, int end) {
+			return (epoch << EPOCH_SHIFT) | (((long) front) << INDEX_BITS)
+					| end;
+		}
+
+		private static int front(long s) {
+			return (int) ((s >>> INDEX_BITS) & INDEX_MASK);
+		}
+
+		private static int end(long s) {
+			return (int) (s & INDEX_MASK);
+		}
+
+		/**
+		 * Empty this deque and prepare it for up to capacity elements. Must
+		 * only be called by dispatch().
+		 */
+		void clear(int capacity) {
+			// invalidate the elements of the previous slice. The atomic
+			// exchange orders the claims of the previous slice before the
+			// writes to items below.
+			epoch = (epoch + 1) & EPOCH_MASK;
+			state.getAndSet(pack(epoch, 0, 0));
+			if (items.length < capacity) {
+				// a preempted thread may still read the old array, it is
+				// not modified anymore
+				items = new Renderable[capacity * 2];
+			} else {
+				for (int i = 0; i < size; i++) {
+					items[i] = null;
+				}
+			}
+			size = 0;
+		}
+
+		/**
+		 * Add an element. Must only be called by dispatch().
+		 */
+		void add(Renderable r) {
+			items[size++] = r;
+		}
+
+		/**
+		 * Make the added elements available to the owner and the thieves.
+		 */
+		void publish() {
+			// the volatile write publishes the items
+			state.set(pack(epoch, 0, size));
+		}
+
+		/**
+		 * @return the first element, or null if this deque is empty
+		 */
+		Renderable pop() {
+			while (true) {
+				long s = state.get();
+				int front = front(s);
+				int end = end(s);
+				if (front >= end) {
+					return null;
+				}
+				Renderable r = items[front];
+				if (state.compareAndSet(s, (s & ~(INDEX_MASK << INDEX_BITS))
+						| (((long) (front + 1)) << INDEX_BITS))) {
+					if (r != null) {
+						return r;
+					}
+					// cannot happen for a published slot: skip it
+				}
+			}
+		}
+
+		/**
+		 * @return the last element, or null if this deque is empty
+		 */
+		Renderable steal() {
+			while (true) {
+				long s = state.get();
+				int front = front(s);
+				int end = end(s);
+				if (front >= end) {
+					return null;
+				}
+				Renderable r = items[end - 1];
+				if (state.compareAndSet(s, s - 1)) {
+					if (r != null) {
+						return r;
+					}
+					// cannot happen for a published slot: skip it
+				}
 			}
 		}
 	}
@@ -229,22 +553,10 @@ public class AsynchronousRenderer {
 		private int renderCount;
 
 		/**
-		 * For performance metrics, how many buffers were tried to be rendered,
-		 * but were already rendered
-		 */
-		private int renderMissCount;
-
-		/**
-		 * For partitioned rendering: the first element in renderables that is
-		 * to be rendered.
+		 * The index of this thread's deque
 		 */
-		private int partitionStart;
+		private int index;
 
-		/**
-		 * For partitioned rendering: how many elements to skip.
-		 */
-		private int partitionInc;
-		
 		private String name;
 
 		/**
@@ -256,7 +568,7 @@ public class AsynchronousRenderer {
 			running = true;
 			doStop = false;
 			renderCount = 0;
-			renderMissCount = 0;
+			index = threadNum;
 			name = "Rendering thread " + threadNum;
 			ThreadFactory.createThread(this, name, RENDERTHREAD_PRIORITY);
 		}
@@ -288,89 +600,13 @@ public class AsynchronousRenderer {
 		}
 
 		public synchronized void nextSlice() {
-			assert (!PARTITION_RENDERABLES);
-			if (USE_WAIT) {
-				this.notify();
-			}
-		}
-
-		public synchronized void nextSlice(int startIndex, int increment) {
-			assert (PARTITION_RENDERABLES);
-			this.partitionStart = startIndex;
-			this.partitionInc = increment;
 			if (USE_WAIT) {
 				this.notify();
 			}
 		}
 
-		/**
-		 * The method to actually call the render() method of all Renderables.
-		 * The method iterates from the first element to the last element. For
-		 * each element, it checks if it is non-null. If it is, the element is
-		 * stored locally and the entry in the array is set to null to prevent
-		 * other threads from trying to render it as well. Then it calls the
-		 * render() method of the Renderable.
-		 * <p>
-		 * It uses a local copy of renderables to be immune against intermittent
-		 * changes of the array instance. Access to the renderables array is
-		 * synchronized by the array instance.
-		 */
-		private final void render(AudioTime time, Renderable[] rs) {
-			int count = rs.length;
-			for (int i = 0; i < count; i++) {
-				if (time != renderTime) {
-					break;
-				}
-				// get the next Renderable
-				Renderable r;
-				synchronized (rs) {
-					r = rs[i];
-					if (r != null) {
-						rs[i] = null;
-					} else {
-						// this Renderable is already set to null by another
-						// rendering thread
-						continue;
-					}
-				}
-				// when we reach this point, r must be set to a non-null
-				// Renderable
-				if (r.render(time)) {
-					renderCount++;
-				} else {
-					renderMissCount++;
-				}
-			}
-		}
-
-		/**
-		 * The render method for partitioned rendering.
-		 * 
-		 * @see #render(AudioTime, Renderable[])
-		 */
-		private final void render(AudioTime time, Renderable[] rs, int start,
-				int inc) {
-			int count = rs.length;
-			for (int i = start; i < count; i += inc) {
-				// get the next Renderable. Don't need to synchronize, since
-				// the renderables are assigned
-				Renderable r = rs[i];
-				if (r == null || time != renderTime) {
-					// if r is null, we have reached the "empty" remainder
-					// of the array
-					break;
-				}
-				if (r.render(time)) {
-					renderCount++;
-				} else {
-					renderMissCount++;
-				}
-
-			}
-		}
-
 		public void run() {
-			AudioTime lastRenderTime = null;
+			long lastSlice = 0;
 			if (DEBUG_ASYNCH_RENDERER) {
 				debug("Start " + getName());
 			}
@@ -382,23 +618,19 @@ public class AsynchronousRenderer {
 					while (!doStop) {
 						if (USE_WAIT) {
 							synchronized (this) {
-								while (!doStop && lastRenderTime == renderTime) {
+								while (!doStop && lastSlice == sliceNumber) {
 									this.wait();
 								}
 							}
 						} else {
-							while (!doStop && lastRenderTime == renderTime) {
+							while (!doStop && lastSlice == sliceNumber) {
 								Thread.yield();
 							}
 						}
-						while (!doStop && lastRenderTime != renderTime) {
+						while (!doStop && lastSlice != sliceNumber) {
 							// TODO: TRACE: start render on thread (interval)
-							lastRenderTime = renderTime;
-							if (PARTITION_RENDERABLES) {
-								render(renderTime, renderables, partitionStart, partitionInc);
-							} else {
-								render(renderTime, renderables);
-							}
+							lastSlice = sliceNumber;
+							renderCount += renderDeques(deques, index);
 							// end interval
 						}
 					}
@@ -412,7 +644,8 @@ public class AsynchronousRenderer {
 			}
 			if (DEBUG_ASYNCH_RENDERER) {
 				debug("Exit " + getName() + ". Rendered " + renderCount
-						+ " blocks, renderMissCount=" + renderMissCount);
+						+ " blocks, stolen by all threads: " + getStealCount()
+						+ ", rendered by caller: " + callerRenderCount);
 			}
 		}
 		
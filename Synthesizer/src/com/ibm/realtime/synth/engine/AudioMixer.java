@@ -4,100 +4,337 @@
 package com.ibm.realtime.synth.engine;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.ibm.realtime.synth.utils.Debug.*;
 
 /**
  * An object that takes an arbitrary number of input audio streams and renders
  * them to the output buffer.
- * 
+ * <p>
+ * <b>Threading:</b><br>
+ * The list of active streams is a plain array that is owned by the thread
+ * that currently holds the mixer's ownership flag. Usually, this is the audio
+ * pull thread in read(). Taking the flag is a lock-free compare-and-set, so
+ * the pull thread never blocks on a monitor:
+ * <ul>
+ * <li>New streams are published by addAudioStream() through a lock-free
+ * single-producer queue, which is drained into the active array by the owner
+ * at the beginning of every slice.</li>
+ * <li>Streams that are done are compacted out of the active array in place
+ * by read(). They are handed to the maintenance thread (see service()) for
+ * being recycled, so that the pull thread does not need to take any locks
+ * for that.</li>
+ * <li>The other methods (removal, access to the list of streams) take the
+ * ownership flag, too. They are not used during regular playback. If the
+ * pull thread finds the flag taken by one of these methods, it spins until
+ * the method is done.</li>
+ * </ul>
+ * <p>
+ * If float rendering is enabled (usually by the Synthesizer), the mixer is
+ * read with 32-bit float buffers. Streams that do not implement
+ * FloatAudioInput are then rendered to a double precision scratch buffer and
+ * added to the float buffer.
+ *
  * @author florian
  */
-public class AudioMixer implements AudioInput, Serviceable {
+public class AudioMixer implements FloatAudioInput, Serviceable {
 
 	public static boolean DEBUG_MIXER = false;
 
 	/**
-	 * Collection of currently active input streams
+	 * The capacity of the queues for adding and retiring streams.
 	 */
-	private LinkedList<AudioInput> streams;
+	private static final int QUEUE_CAPACITY = 1024;
+
+	/**
+	 * The currently active input streams. Only accessed by the owner.
+	 */
+	private AudioInput[] streams = new AudioInput[64];
+
+	/**
+	 * The number of valid entries in streams.
+	 */
+	private volatile int streamCount = 0;
+
+	/**
+	 * New streams to be added to the active streams.
+	 */
+	private StreamQueue pending = new StreamQueue(QUEUE_CAPACITY);
+
+	/**
+	 * Streams removed by read() that still need to be recycled.
+	 */
+	private StreamQueue retired = new StreamQueue(QUEUE_CAPACITY);
+
+	/**
+	 * The ownership flag of the streams array.
+	 */
+	private AtomicBoolean owned = new AtomicBoolean(false);
+
+	/**
+	 * Lock for producers of the pending queue. Never used by read().
+	 */
+	private Object addLock = new Object();
+
+	/**
+	 * If true, this mixer should be read with the float read method.
+	 */
+	private volatile boolean floatRendering = false;
+
+	/**
+	 * Scratch buffer for streams that do not support float rendering. Only
+	 * accessed by the owner.
+	 */
+	private AudioBuffer scratchBuffer;
 
 	/**
 	 * Create an instance of a mixer
 	 */
 	public AudioMixer() {
-		streams = new LinkedList<AudioInput>();
+		// nothing to do
 	}
 
-	private AudioInput[] localStreams = new AudioInput[16];
+	/**
+	 * Acquire ownership of the streams array and add the pending streams.
+	 * Must be followed by release() in a finally block.
+	 */
+	private final void acquire() {
+		while (!owned.compareAndSet(false, true)) {
+			Thread.yield();
+		}
+		drainPending();
+	}
+
+	private final void release() {
+		owned.set(false);
+	}
 
 	/**
-	 * The actual mixing function type 1 (mix into the provided buffer)
+	 * Move the pending streams to the streams array. Must be called by the
+	 * owner.
+	 */
+	private final void drainPending() {
+		int count = streamCount;
+		AudioInput ai;
+		while ((ai = pending.poll()) != null) {
+			if (count == streams.length) {
+				// rare case: grow the array
+				AudioInput[] newStreams = new AudioInput[count * 2];
+				System.arraycopy(streams, 0, newStreams, 0, count);
+				streams = newStreams;
+			}
+			streams[count++] = ai;
+		}
+		streamCount = count;
+	}
+
+	/**
+	 * The actual mixing function type 1 (mix into the provided buffer). Streams
+	 * that are done after reading are removed.
 	 */
 	public void read(AudioTime time, AudioBuffer buffer, int offset, int count) {
-		// get a local copy of the input streams, so that we can call
-		// the potentially time-consuming rendering task unsynchronized
-		synchronized (streams) {
-			int size = streams.size();
-			if (localStreams.length < size) {
-				localStreams = new AudioInput[size + 8];
+		read(time.getNanoTime(), buffer, offset, count);
+	}
+
+	/**
+	 * The actual mixing function type 1, with the time in nanoseconds.
+	 */
+	public void read(long nanoTime, AudioBuffer buffer, int offset, int count) {
+		acquire();
+		try {
+			AudioInput[] localStreams = streams;
+			int size = streamCount;
+			int write = 0;
+			// read from all registered input streams
+			for (int i = 0; i < size; i++) {
+				AudioInput stream = localStreams[i];
+				// read from this source stream, it will add to
+				// the buffer
+				stream.read(nanoTime, buffer, offset, count);
+				// compact in place: drop the streams that are done
+				if (stream.done() && retire(stream)) {
+					continue;
+				}
+				localStreams[write++] = stream;
+			}
+			for (int i = write; i < size; i++) {
+				localStreams[i] = null;
+			}
+			streamCount = write;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * The float version of the mixing function type 1 (mix into the provided
+	 * buffer). Streams that are done after reading are removed.
+	 */
+	public void read(AudioTime time, FloatAudioBuffer buffer, int offset,
+			int count) {
+		read(time.getNanoTime(), buffer, offset, count);
+	}
+
+	/**
+	 * The float version of the mixing function type 1, with the time in
+	 * nanoseconds.
+	 */
+	public void read(long nanoTime, FloatAudioBuffer buffer, int offset,
+			int count) {
+		acquire();
+		try {
+			AudioInput[] localStreams = streams;
+			int size = streamCount;
+			int write = 0;
+			// read from all registered input streams
+			for (int i = 0; i < size; i++) {
+				AudioInput stream = localStreams[i];
+				// read from this source stream, it will add to
+				// the buffer
+				if (stream instanceof FloatAudioInput) {
+					((FloatAudioInput) stream).read(nanoTime, buffer, offset,
+							count);
+				} else {
+					readToScratch(stream, nanoTime, buffer, offset, count);
+				}
+				// compact in place: drop the streams that are done
+				if (stream.done() && retire(stream)) {
+					continue;
+				}
+				localStreams[write++] = stream;
+			}
+			for (int i = write; i < size; i++) {
+				localStreams[i] = null;
 			}
-			localStreams = (AudioInput[]) streams.toArray(localStreams);
-			// localStreams must be null-terminated if it has more elements
-			// than size. toArray() does null-terminate!
+			streamCount = write;
+		} finally {
+			release();
 		}
+	}
 
-		// read from all registered input streams
-		for (AudioInput stream : localStreams) {
-			if (stream == null) break;
-			// read from this source stream, it will add to
-			// the buffer
-			stream.read(time, buffer, offset, count);
+	/**
+	 * Read a stream that does not support float rendering via the double
+	 * precision scratch buffer, and add it to buffer. Must be called by the
+	 * owner.
+	 */
+	private final void readToScratch(AudioInput stream, long nanoTime,
+			FloatAudioBuffer buffer, int offset, int count) {
+		int channelCount = buffer.getChannelCount();
+		int sampleCount = buffer.getSampleCount();
+		if (scratchBuffer == null
+				|| scratchBuffer.getChannelCount() != channelCount) {
+			scratchBuffer =
+					new AudioBuffer(channelCount, sampleCount,
+							buffer.getSampleRate());
+		} else {
+			scratchBuffer.changeSampleCount(sampleCount, false);
+			scratchBuffer.setSampleRate(buffer.getSampleRate());
+		}
+		scratchBuffer.makeSilence();
+		stream.read(nanoTime, scratchBuffer, offset, count);
+		buffer.mix(scratchBuffer, offset, count);
+	}
+
+	/**
+	 * Hand a stream that is done to the maintenance thread.
+	 *
+	 * @return true if the stream was removed
+	 */
+	private final boolean retire(AudioInput ai) {
+		if (!(ai instanceof NoteInput)) {
+			// nothing to recycle
+			return true;
+		}
+		if (retired.offer(ai)) {
+			return true;
 		}
+		// the retire queue is full: keep the stream in the active list
+		// until cleanUp() is called
+		return false;
 	}
 
 	/**
 	 * The actual mixing function type 2 (return a mixed buffer)
 	 */
 	public AudioBuffer read(AudioTime time, int sampleCount, int channelCount, double sampleRate) {
-		// get a local copy of the input streams, so that we can call
-		// the potentially time-consuming rendering task unsynchronized
-		AudioInput[] streamsCopy;
-		synchronized (streams) {
-			int size = streams.size();
-			streamsCopy = (AudioInput[]) streams.toArray(new AudioInput[size]);
-		}
-		
 		AudioBuffer returnBuffer = new AudioBuffer(channelCount, sampleCount, sampleRate);
-
-		// read from all registered input streams
-		for (AudioInput stream : streamsCopy) {
-			// read from this source stream, it will add to
-			// the buffer
-			AudioBuffer buffer = stream.read(time, sampleCount, channelCount, sampleRate);
-			returnBuffer.mix(buffer);
+		acquire();
+		try {
+			// read from all registered input streams
+			for (int i = 0; i < streamCount; i++) {
+				// read from this source stream, it will add to
+				// the buffer
+				AudioBuffer buffer = streams[i].read(time, sampleCount, channelCount, sampleRate);
+				returnBuffer.mix(buffer);
+			}
+		} finally {
+			release();
 		}
 		return returnBuffer;
 	}
 
 	/**
-	 * Cleans the list of streams from streams that are already done. Should be
-	 * called from time to time.
+	 * Cleans the list of streams from streams that are already done, and
+	 * recycles the streams removed by read(). During playback, read() removes
+	 * the streams, so this method only needs to be called if the mixer is not
+	 * read regularly.
 	 */
 	public void cleanUp() {
-		synchronized (streams) {
-			Iterator<AudioInput> it = streams.listIterator(0);
-			while (it.hasNext()) {
-				AudioInput ai = it.next();
+		acquire();
+		try {
+			int size = streamCount;
+			int write = 0;
+			for (int i = 0; i < size; i++) {
+				AudioInput ai = streams[i];
 				if (ai.done()) {
-					it.remove();
+					streamRemoved(ai);
 					if (DEBUG_MIXER) {
-						debug("Mixer.cleanUp: removed audio stream -- now "
-								+ streams.size() + "streams.");
+						debug("Mixer.cleanUp: removed audio stream.");
 					}
+				} else {
+					streams[write++] = ai;
 				}
 			}
+			for (int i = write; i < size; i++) {
+				streams[i] = null;
+			}
+			streamCount = write;
+		} finally {
+			release();
 		}
+		recycleRetired();
+	}
+
+	/**
+	 * Recycle the streams that read() has removed.
+	 */
+	private final void recycleRetired() {
+		// sync note: the retired queue allows only one consumer at a time
+		synchronized (retired) {
+			AudioInput ai;
+			while ((ai = retired.poll()) != null) {
+				streamRemoved(ai);
+			}
+		}
+	}
+
+	/**
+	 * @return true if this mixer should be read with 32-bit float buffers
+	 */
+	public boolean isFloatRendering() {
+		return floatRendering;
+	}
+
+	/**
+	 * Select the render path. This is set by the Synthesizer that renders to
+	 * this mixer. The reader of the mixer (usually AudioPullThread) uses the
+	 * float read method if float rendering is set.
+	 * 
+	 * @param floatRendering true to read this mixer with float buffers
+	 */
+	public void setFloatRendering(boolean floatRendering) {
+		this.floatRendering = floatRendering;
 	}
 
 	/**
@@ -107,12 +344,21 @@ public class AudioMixer implements AudioInput, Serviceable {
 		return false;
 	}
 
+	/**
+	 * Add a stream to this mixer. It will be mixed starting with the next
+	 * call to read(). This method does not block the thread calling read().
+	 */
 	public void addAudioStream(AudioInput stream) {
-		synchronized (streams) {
-			streams.add(stream);
+		// sync note: the pending queue allows only one producer at a time
+		synchronized (addLock) {
+			while (!pending.offer(stream)) {
+				// rare case: the queue is full, drain it here
+				acquire();
+				release();
+			}
 		}
 		if (DEBUG_MIXER) {
-			debug("Mixer: added audio stream -- now " + streams.size()
+			debug("Mixer: added audio stream -- now " + getCount()
 					+ "streams.");
 		}
 	}
@@ -121,15 +367,31 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * Remove an audio stream -- should not be used for ending a note, will
 	 * cause clicks because of missing release phase. Mainly used internally,
 	 * and for debugging.
-	 * 
+	 *
 	 * @param stream the stream to remove from this mixer
 	 */
 	public void removeAudioStream(AudioInput stream) {
-		synchronized (streams) {
-			streams.remove(stream);
+		boolean removed = false;
+		acquire();
+		try {
+			int size = streamCount;
+			for (int i = 0; i < size; i++) {
+				if (streams[i] == stream) {
+					System.arraycopy(streams, i + 1, streams, i, size - i - 1);
+					streams[size - 1] = null;
+					streamCount = size - 1;
+					removed = true;
+					break;
+				}
+			}
+		} finally {
+			release();
+		}
+		if (removed) {
+			streamRemoved(stream);
 		}
 		if (DEBUG_MIXER) {
-			debug("Mixer: removed audio stream -- now " + streams.size()
+			debug("Mixer: removed audio stream -- now " + getCount()
 					+ "streams.");
 		}
 	}
@@ -139,35 +401,44 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 */
 	public void clear() {
 		if (DEBUG_MIXER) {
-			debug("Mixer: removing all "+streams.size()+" audio streams.");
+			debug("Mixer: removing all " + getCount() + " audio streams.");
 		}
-		synchronized (streams) {
-			streams.clear();
+		acquire();
+		try {
+			for (int i = 0; i < streamCount; i++) {
+				streamRemoved(streams[i]);
+				streams[i] = null;
+			}
+			streamCount = 0;
+		} finally {
+			release();
 		}
+		recycleRetired();
 	}
 
 	/**
-	 * @return the current number of streams
+	 * @return the current number of streams, including the streams added
+	 *         since the last call to read()
 	 */
 	public final int getCount() {
-		return streams.size();
+		return streamCount + pending.size();
 	}
 
 	public final List<AudioInput> getAudioStreams() {
-		// TODO: optimization of the code that calls this method!
-		List<AudioInput> list;
-		synchronized (streams) {
-			list = new ArrayList<AudioInput>(streams);
-		}
-		return list;
+		return new ArrayList<AudioInput>(Arrays.asList(getAudioStreamsArray()));
 	}
 
 	/**
 	 * @return an array with the current audio streams
 	 */
 	public final AudioInput[] getAudioStreamsArray() {
-		synchronized (streams) {
-			return (AudioInput[]) streams.toArray(new AudioInput[streams.size()]);
+		acquire();
+		try {
+			AudioInput[] result = new AudioInput[streamCount];
+			System.arraycopy(streams, 0, result, 0, streamCount);
+			return result;
+		} finally {
+			release();
 		}
 	}
 
@@ -176,16 +447,23 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * too small to fit all elements, a new array is created and returned. If
 	 * template contains more entries than audio streams, then the entry after
 	 * the last valid entry is set to null.
-	 * 
+	 *
 	 * @param template
 	 * @return the array of audio streams
 	 */
 	public final AudioInput[] getAudioStreams(AudioInput[] template) {
-		synchronized (streams) {
-			if (template == null) {
-				template = new AudioInput[streams.size()];
+		acquire();
+		try {
+			int size = streamCount;
+			if (template == null || template.length < size) {
+				template = new AudioInput[size];
+			}
+			System.arraycopy(streams, 0, template, 0, size);
+			if (template.length > size) {
+				template[size] = null;
 			}
-			template = (AudioInput[]) streams.toArray(template);
+		} finally {
+			release();
 		}
 		return template;
 	}
@@ -194,20 +472,24 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * Returns an array of all lines that are instance of the NoteInput class.
 	 * The returned array may be larger than the actual number of contained
 	 * NoteInput objects. The excess elements in the array are set to null.
-	 * 
+	 *
 	 * @return the array of NoteInput objects
 	 */
 	public final NoteInput[] getNoteInputs() {
 		NoteInput[] result;
-		synchronized (streams) {
-			int size = streams.size();
+		acquire();
+		try {
+			int size = streamCount;
 			result = new NoteInput[size];
 			int i = 0;
-			for (AudioInput ai : streams) {
+			for (int s = 0; s < size; s++) {
+				AudioInput ai = streams[s];
 				if (!ai.done() && (ai instanceof NoteInput)) {
 					result[i++] = (NoteInput) ai;
 				}
 			}
+		} finally {
+			release();
 		}
 		return result;
 	}
@@ -216,38 +498,46 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * Fills an array with all lines that are instance of the Renderable
 	 * interface. If renderables does not have enough elements, a negative
 	 * number is returned, which is the negative number of required elements.
-	 * 
+	 *
 	 * @return the number of Renderable objects written to the array, or, if the
 	 *         array is too small, the negative minimum size for the renderables
 	 *         array
 	 */
 	public final int getRenderables(Renderable[] renderables) {
-		synchronized (streams) {
-			int size = streams.size();
+		acquire();
+		try {
+			int size = streamCount;
 			if (renderables.length < size) {
 				return -size;
 			}
 			int i = 0;
-			for (AudioInput ai : streams) {
+			for (int s = 0; s < size; s++) {
+				AudioInput ai = streams[s];
 				if (ai instanceof Renderable && !ai.done()) {
 					renderables[i++] = (Renderable) ai;
 				}
 			}
 			return i;
+		} finally {
+			release();
 		}
 	}
 
 	public final Renderable[] getRenderables() {
-		synchronized (streams) {
-			int size = streams.size();
+		acquire();
+		try {
+			int size = streamCount;
 			Renderable[] renderables = new Renderable[size];
 			int i = 0;
-			for (AudioInput ai : streams) {
+			for (int s = 0; s < size; s++) {
+				AudioInput ai = streams[s];
 				if (ai instanceof Renderable && !ai.done()) {
 					renderables[i++] = (Renderable) ai;
 				}
 			}
 			return renderables;
+		} finally {
+			release();
 		}
 	}
 
@@ -256,23 +546,38 @@ public class AudioMixer implements AudioInput, Serviceable {
 	 * purposes.
 	 */
 	public void removeLast(int num) {
-		synchronized (streams) {
-			int index = streams.size() - num;
+		acquire();
+		try {
+			int index = streamCount - num;
 			if (index < 0) index = 0;
-			Iterator<AudioInput> it = streams.listIterator(index);
-			while (it.hasNext()) {
-				it.next();
-				it.remove();
+			for (int i = index; i < streamCount; i++) {
+				streamRemoved(streams[i]);
+				streams[i] = null;
 			}
+			streamCount = index;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Called after a stream is removed from this mixer. Pooled NoteInput
+	 * instances are returned to their VoicePool.
+	 */
+	private static void streamRemoved(AudioInput ai) {
+		if (ai instanceof NoteInput) {
+			((NoteInput) ai).recycle();
 		}
 	}
 
 	// interface Serviceable
 	/**
-	 * Should be called regularly to do some maintenance work.
+	 * Should be called regularly to do some maintenance work: recycle the
+	 * streams removed by read(). This does not interfere with the thread
+	 * calling read().
 	 */
 	public void service() {
-		cleanUp();
+		recycleRetired();
 	}
 
 }
@@ -13,6 +13,18 @@ import java.util.*;
  * AudioSink. By way of the implemented AudioClock interface, you can query the
  * start time of the currently filled audio buffer -- this is in steps of the
  * buffer size of the audio sink.
+ * <p>
+ * <b>Pipelined mode:</b><br>
+ * By default, this thread writes every buffer to the sink itself. While the
+ * sink's write() method blocks, nothing is rendered. With a pipeline depth N
+ * greater than 0 (see setPipelineDepth()), a separate writer thread writes
+ * the buffers to the sink, and this thread continues with the next slices:
+ * dispatching events, and rendering with the asynchronous render threads.
+ * Up to N buffers are rendered ahead of the buffer that is currently
+ * written. This gives more headroom for rendering, at the cost of exactly N
+ * sink buffers of additional latency (see getPipelineLatencyNanos()). Events
+ * that are scheduled by way of the sink's clock need a fixed delay that is
+ * larger by that amount.
  * 
  * @author florian
  */
@@ -53,6 +65,22 @@ public class AudioPullThread implements Runnable, AudioClock {
 
 	private double sliceTime = DEFAULT_SLICE_TIME;
 
+	/**
+	 * The maximum pipeline depth
+	 */
+	public static final int MAX_PIPELINE_DEPTH = 16;
+
+	/**
+	 * The number of buffers that may be rendered ahead of the buffer being
+	 * written to the sink. 0 disables pipelining.
+	 */
+	private volatile int pipelineDepth = 0;
+
+	/**
+	 * The additional latency caused by pipelining, in samples
+	 */
+	private volatile long pipelineLatencySamples = 0;
+
 	/**
 	 * flag to notify the write thread to stop execution
 	 */
@@ -206,6 +234,53 @@ public class AudioPullThread implements Runnable, AudioClock {
 		return (bufferSampleCount / sliceTimeSamples) * sliceTimeSamples;
 	}
 
+	/**
+	 * Set the pipeline depth, i.e. the number of sink buffers that may be
+	 * rendered ahead of the buffer that is currently written to the sink. 0
+	 * disables pipelining. Changing the pipeline depth while running will
+	 * cause a short interruption of rendering.
+	 * 
+	 * @param depth the new pipeline depth [0...MAX_PIPELINE_DEPTH]
+	 * @throws IllegalArgumentException if depth is out of range
+	 */
+	public void setPipelineDepth(int depth) {
+		if (depth < 0 || depth > MAX_PIPELINE_DEPTH) {
+			throw new IllegalArgumentException("illegal pipeline depth: "
+					+ depth);
+		}
+		this.pipelineDepth = depth;
+	}
+
+	/**
+	 * @return the pipeline depth, or 0 if pipelining is disabled
+	 */
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+
+	/**
+	 * The additional latency caused by pipelining, in samples. This is the
+	 * pipeline depth multiplied with the sink's buffer size (aligned to the
+	 * slice time). It is updated once the pull thread uses a new pipeline
+	 * depth or buffer size.
+	 * 
+	 * @return the additional latency in samples, or 0 if not pipelined
+	 */
+	public long getPipelineLatencySamples() {
+		return pipelineLatencySamples;
+	}
+
+	/**
+	 * @return the additional latency caused by pipelining, in nanoseconds
+	 * @see #getPipelineLatencySamples()
+	 */
+	public long getPipelineLatencyNanos() {
+		if (sink == null) {
+			return 0;
+		}
+		return samples2nanos(pipelineLatencySamples, sink.getSampleRate());
+	}
+
 	/**
 	 * @return the resynchCounter
 	 */
@@ -386,10 +461,18 @@ public class AudioPullThread implements Runnable, AudioClock {
 			// force re-setup of buffer
 			double localSliceTime = -1.0;
 			int localBufferSampleCount = -1;
+			int localPipelineDepth = -1;
+			// the pipeline, or null if not pipelined
+			Pipeline pipeline = null;
 			int bufferSampleCount = 0;
 			int sliceSampleCount = 0;
 			AudioBuffer buffer = null;
-			AudioTime duration = null;
+			// the buffer for float rendering, allocated on demand
+			FloatAudioBuffer floatBuffer = null;
+			// set if floatBuffer contains samples for the current buffer
+			boolean floatUsed = false;
+			// the slice duration in nanoseconds
+			long duration = 0;
 			int offset = 0;
 			long samples = 0;
 			int synchronizeCounter = 0;
@@ -399,10 +482,17 @@ public class AudioPullThread implements Runnable, AudioClock {
 					// TODO: some global way to signal a change of parameter
 					// (also for, e.g. stopped flag)
 					if (localSliceTime != sliceTime
-							|| localBufferSampleCount != sink.getBufferSize()) {
+							|| localBufferSampleCount != sink.getBufferSize()
+							|| localPipelineDepth != pipelineDepth) {
+						// write all pending buffers
+						if (pipeline != null) {
+							pipeline.close();
+							pipeline = null;
+						}
 						// set up the temporary buffer for reading
 						localBufferSampleCount = sink.getBufferSize();
 						localSliceTime = sliceTime;
+						localPipelineDepth = pipelineDepth;
 
 						sliceSampleCount = getSliceTimeSamples(sampleRate);
 						if (sliceSampleCount > localBufferSampleCount) {
@@ -424,9 +514,20 @@ public class AudioPullThread implements Runnable, AudioClock {
 									+ ", sink buffer size = "
 									+ sink.getBufferSize() + " samples.");
 						}
-						buffer = new AudioBuffer(sink.getChannels(),
-								bufferSampleCount, sampleRate);
-						duration = new AudioTime(sliceSampleCount, sampleRate);
+						if (localPipelineDepth > 0) {
+							pipeline = new Pipeline(localPipelineDepth,
+									sink.getChannels(), bufferSampleCount,
+									sampleRate, samples);
+							buffer = pipeline.current();
+						} else {
+							buffer = new AudioBuffer(sink.getChannels(),
+									bufferSampleCount, sampleRate);
+						}
+						pipelineLatencySamples =
+								((long) localPipelineDepth) * bufferSampleCount;
+						floatBuffer = null;
+						floatUsed = false;
+						duration = samples2nanos(sliceSampleCount, sampleRate);
 						synchronizeSink(samples, bufferSampleCount, true);
 						if (offset > localBufferSampleCount) {
 							// adapt offset if in the middle of filling a buffer
@@ -434,10 +535,11 @@ public class AudioPullThread implements Runnable, AudioClock {
 						}
 					}
 
-					AudioTime time = new AudioTime(samples, sampleRate);
+					// use primitive times: no objects are created per slice
+					long time = samples2nanos(samples, sampleRate);
 
-					for (AudioRendererListener arl : listeners) {
-						arl.newAudioSlice(time, duration);
+					for (int i = 0; i < listeners.size(); i++) {
+						listeners.get(i).newAudioSlice(time, duration);
 					}
 
 					// wait for input to become ready
@@ -462,13 +564,26 @@ public class AudioPullThread implements Runnable, AudioClock {
 						break;
 					}
 					// read audio data from input
-					if (!DEBUG_USE_FUNCTIONAL_READ) {
+					AudioInput localInput = input;
+					if (!DEBUG_USE_FUNCTIONAL_READ
+							&& (localInput instanceof FloatAudioInput)
+							&& ((FloatAudioInput) localInput).isFloatRendering()) {
+						if (floatBuffer == null) {
+							floatBuffer = new FloatAudioBuffer(
+									buffer.getChannelCount(),
+									bufferSampleCount, sampleRate);
+						}
+						// this call will take some time
+						((FloatAudioInput) localInput).read(time, floatBuffer,
+								offset, sliceSampleCount);
+						floatUsed = true;
+					} else if (!DEBUG_USE_FUNCTIONAL_READ) {
 						// this call will take some time
-						input.read(time, buffer, offset, sliceSampleCount);
+						localInput.read(time, buffer, offset, sliceSampleCount);
 					} else {
-						AudioBuffer thisBuffer = input.read(time,
-								sliceSampleCount, buffer.getChannelCount(),
-								sampleRate);
+						AudioBuffer thisBuffer = localInput.read(
+								new AudioTime(time), sliceSampleCount,
+								buffer.getChannelCount(), sampleRate);
 						// if we're doing synchronous read/write, just exchange
 						// the buffer
 						if (sliceSampleCount == bufferSampleCount) {
@@ -481,46 +596,66 @@ public class AudioPullThread implements Runnable, AudioClock {
 					samples += sliceSampleCount;
 					offset += sliceSampleCount;
 					if (offset >= bufferSampleCount) {
-						// wait for sink to be ready
-						if (sink == null || !sink.isOpen()) {
-							waitForSinkToBeOpen(samples, bufferSampleCount);
+						if (floatUsed) {
+							// the sinks accept double precision buffers:
+							// add slices rendered with double precision,
+							// if any, and convert
+							floatBuffer.mix(buffer, 0, bufferSampleCount);
+							floatBuffer.copyTo(buffer);
+							floatBuffer.makeSilence();
+							floatUsed = false;
 						}
-						// write the audio data
-						if (!stopped) {
-
-							// this is a blocking call
-							sink.write(buffer);
-
-							// since we always write a full buffer to the sink,
-							// we can assume that the sink's time must be
-							// somewhere at the beginning of the last buffer's
-							// time. If not, we'll need to moderately adjust the
-							// next buffer's time synchronize every 16th time
-							if ((++synchronizeCounter & 15) == 0) {
-								synchronizeSink(samples, bufferSampleCount,
-										false);
-							}
-							if (slaveSink != null) {
-								slaveSink.write(buffer);
-							}
+						if (pipeline != null) {
+							// hand the buffer to the writer thread, and
+							// continue with the next buffer
+							pipeline.submit(buffer);
+							buffer = pipeline.current();
 							offset = 0;
-							if (REUSE_AUDIO_BUFFERS) {
-								if (!DEBUG_USE_FUNCTIONAL_READ) {
-									// functional read will always overwrite
-									buffer.makeSilence();
+							nextBufferSamples = samples;
+						} else {
+							// wait for sink to be ready
+							if (sink == null || !sink.isOpen()) {
+								waitForSinkToBeOpen(samples, bufferSampleCount);
+							}
+							// write the audio data
+							if (!stopped) {
+								// this is a blocking call
+								sink.write(buffer);
+
+								// since we always write a full buffer to the sink,
+								// we can assume that the sink's time must be
+								// somewhere at the beginning of the last buffer's
+								// time. If not, we'll need to moderately adjust the
+								// next buffer's time synchronize every 16th time
+								if ((++synchronizeCounter & 15) == 0) {
+									synchronizeSink(samples, bufferSampleCount,
+											false);
+								}
+								if (slaveSink != null) {
+									slaveSink.write(buffer);
 								}
-							} else {
-								buffer = new AudioBuffer(
-										buffer.getChannelCount(),
-										bufferSampleCount, sampleRate);
+								offset = 0;
+								if (REUSE_AUDIO_BUFFERS) {
+									if (!DEBUG_USE_FUNCTIONAL_READ) {
+										// functional read will always overwrite
+										buffer.makeSilence();
+									}
+								} else {
+									buffer = new AudioBuffer(
+											buffer.getChannelCount(),
+											bufferSampleCount, sampleRate);
+								}
+								nextBufferSamples = samples;
 							}
-							nextBufferSamples = samples;
 						}
 					}
 				} catch (Throwable t) {
 					debug(t);
 				}
 			}
+			if (pipeline != null) {
+				pipeline.close();
+			}
 		} finally {
 			inThread = false;
 		}
@@ -529,4 +664,157 @@ public class AudioPullThread implements Runnable, AudioClock {
 		}
 	}
 
+
+	/**
+	 * The writer of the pipelined mode. It keeps a ring of depth+1 buffers:
+	 * the pull thread renders to the current buffer and submits it, the
+	 * writer thread writes the submitted buffers to the sink in order. The
+	 * pull thread blocks in submit() if more than depth buffers are not
+	 * written yet.
+	 */
+	private class Pipeline implements Runnable {
+		private final int depth;
+		private final int bufferSampleCount;
+		private final double sampleRate;
+		private final AudioBuffer[] ring;
+
+		/**
+		 * the index of the buffer that the pull thread renders to
+		 */
+		private int submitIndex = 0;
+
+		/**
+		 * the index of the next buffer to be written to the sink
+		 */
+		private int writeIndex = 0;
+
+		/**
+		 * the number of submitted buffers that are not yet written
+		 */
+		private int inFlight = 0;
+
+		private boolean closed = false;
+
+		private boolean running = true;
+
+		/**
+		 * the number of samples written to the sink
+		 */
+		private long writtenSamples;
+
+		Pipeline(int depth, int channels, int bufferSampleCount,
+				double sampleRate, long startSamples) {
+			this.depth = depth;
+			this.bufferSampleCount = bufferSampleCount;
+			this.sampleRate = sampleRate;
+			this.writtenSamples = startSamples;
+			ring = new AudioBuffer[depth + 1];
+			for (int i = 0; i < ring.length; i++) {
+				ring[i] = new AudioBuffer(channels, bufferSampleCount,
+						sampleRate);
+			}
+			ThreadFactory.createThread(this, AudioPullThread.this.getClass()
+					.getSimpleName()
+					+ " sink writer", PULLTHREAD_PRIORITY);
+		}
+
+		/**
+		 * @return the buffer to render to
+		 */
+		synchronized AudioBuffer current() {
+			return ring[submitIndex];
+		}
+
+		/**
+		 * Submit the rendered buffer for writing. Blocks until at most depth
+		 * buffers are waiting to be written.
+		 */
+		synchronized void submit(AudioBuffer buffer) {
+			ring[submitIndex] = buffer;
+			submitIndex = (submitIndex + 1) % ring.length;
+			inFlight++;
+			this.notifyAll();
+			try {
+				while (inFlight > depth && running) {
+					this.wait();
+				}
+			} catch (InterruptedException ie) {
+				// nothing
+			}
+		}
+
+		/**
+		 * Write all submitted buffers, then stop the writer thread.
+		 */
+		synchronized void close() {
+			try {
+				while (inFlight > 0 && running) {
+					this.wait();
+				}
+			} catch (InterruptedException ie) {
+				// nothing
+			}
+			closed = true;
+			this.notifyAll();
+		}
+
+		public void run() {
+			int synchronizeCounter = 0;
+			try {
+				while (true) {
+					AudioBuffer buffer;
+					synchronized (this) {
+						while (inFlight == 0 && !closed) {
+							this.wait();
+						}
+						if (inFlight == 0) {
+							break;
+						}
+						buffer = ring[writeIndex];
+					}
+					if (sink == null || !sink.isOpen()) {
+						waitForSinkToBeOpen(writtenSamples, bufferSampleCount);
+					}
+					if (!stopped) {
+						// this is a blocking call
+						sink.write(buffer);
+						writtenSamples += bufferSampleCount;
+						// see run() of the outer class
+						if ((++synchronizeCounter & 15) == 0) {
+							synchronizeSink(writtenSamples, bufferSampleCount,
+									false);
+						}
+						if (slaveSink != null) {
+							slaveSink.write(buffer);
+						}
+					}
+					if (REUSE_AUDIO_BUFFERS) {
+						if (!DEBUG_USE_FUNCTIONAL_READ) {
+							buffer.makeSilence();
+						}
+					} else {
+						buffer = new AudioBuffer(buffer.getChannelCount(),
+								bufferSampleCount, sampleRate);
+					}
+					synchronized (this) {
+						ring[writeIndex] = buffer;
+						writeIndex = (writeIndex + 1) % ring.length;
+						inFlight--;
+						this.notifyAll();
+					}
+				}
+			} catch (Throwable t) {
+				debug(t);
+			} finally {
+				synchronized (this) {
+					running = false;
+					this.notifyAll();
+				}
+			}
+			if (DEBUG_PULLTHREAD) {
+				debug("AudioPullThread: quit sink writer thread");
+			}
+		}
+	}
+
 }
@@ -14,4 +14,14 @@ public interface AudioRendererListener {
 
 	public void newAudioSlice(AudioTime time, AudioTime duration);
 
+	/**
+	 * Same as newAudioSlice(AudioTime, AudioTime), with primitive time
+	 * values. The AudioPullThread calls this method, so that it does not need
+	 * to create objects for every slice.
+	 * 
+	 * @param nanoTime the start time of the new slice in nanoseconds
+	 * @param durationNanos the duration of the new slice in nanoseconds
+	 */
+	public void newAudioSlice(long nanoTime, long durationNanos);
+
 }
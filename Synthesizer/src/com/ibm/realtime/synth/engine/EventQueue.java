@@ -0,0 +1,569 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A time ordered queue of short MIDI events, with lock-free insertion by any
+ * number of producer threads (the MIDI input threads) and removal by one
+ * consumer (the pull thread or the asynchronous note dispatcher).
+ * <p>
+ * The events are not stored as MidiEvent objects, but as primitive records
+ * in preallocated arrays: the time, the source, and the MIDI message packed
+ * into an int. Inserting and dispatching an event does not allocate.
+ * <p>
+ * The events are ordered by their time stamp. Events with the same time stamp
+ * are retrieved in the order of insertion, so that e.g. a program change
+ * delivered just before a note on message with the same time stamp is also
+ * dispatched before the note on message. Java's PriorityQueue cannot be used
+ * for this, because it does not maintain the insertion order.
+ * <p>
+ * Producers append the events to a bounded ring buffer (the intake) with one
+ * compare-and-set operation. The consumer moves the events from the intake to
+ * its private ordered storage: an event which is not earlier than the
+ * previously moved event is appended to a FIFO in O(1) -- this is the common
+ * case, since MIDI events usually arrive in time order. Only events arriving
+ * out of order are inserted into a binary heap with O(log n) cost.
+ * <p>
+ * A consumer thread can park until a new event is inserted, or until the
+ * next event becomes due, instead of polling the queue.
+ * <p>
+ * sync note: offer() never blocks unless the intake is full. All other
+ * methods modify the consumer storage, which is guarded
+ * by a consumer flag: if two threads try to consume at the same time (e.g.
+ * while switching the note dispatcher mode), one of them sees an empty queue
+ * instead of blocking.
+ */
+final class EventQueue {
+
+	/**
+	 * The receiver of the events retrieved from the queue.
+	 */
+	interface Consumer {
+		/**
+		 * Called for each event retrieved from the queue.
+		 */
+		public void dispatch(long nanoTime, MidiIn source, int channel,
+				int status, int data1, int data2);
+	}
+
+	/**
+	 * the default capacity of the intake
+	 */
+	private static final int DEFAULT_INTAKE_CAPACITY = 1024;
+
+	/**
+	 * the initial capacity of the FIFO and the heap. Both grow if necessary.
+	 */
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * the maximum time to park a consumer
+	 */
+	private static final long MAX_PARK_NANOS = 100000000L;
+
+	// intake: a bounded multi-producer ring buffer
+
+	private final long[] intakeTimes;
+
+	private final int[] intakeMessages;
+
+	private final MidiIn[] intakeSources;
+
+	/**
+	 * The sequence number of each intake slot: if equal to the slot's
+	 * ticket, the slot is free for the producer with that ticket. If equal to
+	 * ticket+1, the slot holds the event with that ticket.
+	 */
+	private final AtomicLongArray intakeSequence;
+
+	private final int intakeMask;
+
+	/**
+	 * The ticket of the next producer. The ticket defines the insertion order.
+	 */
+	private final AtomicLong intakeTail = new AtomicLong(0);
+
+	/**
+	 * The ticket of the next event to be moved from the intake. Only written
+	 * by the consumer.
+	 */
+	private volatile long intakeHead = 0;
+
+	// consumer storage: the FIFO of in-order events
+
+	private long[] fifoTimes;
+
+	private long[] fifoTickets;
+
+	private int[] fifoMessages;
+
+	private MidiIn[] fifoSources;
+
+	private int fifoHead = 0;
+
+	private int fifoCount = 0;
+
+	/**
+	 * the time of the last event appended to the FIFO
+	 */
+	private long fifoLastTime = Long.MIN_VALUE;
+
+	// consumer storage: the heap of out-of-order events
+
+	private long[] heapTimes;
+
+	private long[] heapTickets;
+
+	private int[] heapMessages;
+
+	private MidiIn[] heapSources;
+
+	private int heapCount = 0;
+
+	/**
+	 * Flag for the thread currently consuming
+	 */
+	private final AtomicBoolean consuming = new AtomicBoolean(false);
+
+	/**
+	 * The time of the earliest event in the consumer storage, or
+	 * Long.MAX_VALUE if it is empty. Written by the consumer.
+	 */
+	private volatile long nextTime = Long.MAX_VALUE;
+
+	/**
+	 * The consumer thread while it is parked
+	 */
+	private volatile Thread parkedConsumer = null;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Create an event queue with the default intake capacity.
+	 */
+	EventQueue() {
+		this(DEFAULT_INTAKE_CAPACITY);
+	}
+
+	/**
+	 * Create an event queue. The intake capacity is the number of events that
+	 * can be inserted without being consumed in between. It is rounded up to
+	 * the next power of 2.
+	 */
+	EventQueue(int intakeCapacity) {
+		if (intakeCapacity <= 0) {
+			throw new IllegalArgumentException("illegal capacity: "
+					+ intakeCapacity);
+		}
+		int size = 1;
+		while (size < intakeCapacity) {
+			size <<= 1;
+		}
+		intakeTimes = new long[size];
+		intakeMessages = new int[size];
+		intakeSources = new MidiIn[size];
+		intakeSequence = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			intakeSequence.set(i, i);
+		}
+		intakeMask = size - 1;
+		fifoTimes = new long[INITIAL_CAPACITY];
+		fifoTickets = new long[INITIAL_CAPACITY];
+		fifoMessages = new int[INITIAL_CAPACITY];
+		fifoSources = new MidiIn[INITIAL_CAPACITY];
+		heapTimes = new long[INITIAL_CAPACITY];
+		heapTickets = new long[INITIAL_CAPACITY];
+		heapMessages = new int[INITIAL_CAPACITY];
+		heapSources = new MidiIn[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Release a parked consumer and make all further calls to awaitEvent()
+	 * return immediately, until open() is called.
+	 */
+	void close() {
+		closed = true;
+		wakeUp();
+	}
+
+	/**
+	 * Let awaitEvent() park again after close(). Called when the synthesizer
+	 * is started (again).
+	 */
+	void open() {
+		closed = false;
+	}
+
+	/**
+	 * Insert a short MIDI event into the queue. If the intake is full, i.e.
+	 * the consumer does not keep up, the calling thread yields until there is
+	 * space.
+	 *
+	 * @param nanoTime the time of the event
+	 * @param source the MIDI input that received the event, may be null
+	 * @param channel the MIDI channel, 0...255
+	 * @param status the status byte, without channel
+	 * @param data1 the first data byte
+	 * @param data2 the second data byte
+	 */
+	void offer(long nanoTime, MidiIn source, int channel, int status,
+			int data1, int data2) {
+		while (true) {
+			long ticket = intakeTail.get();
+			int index = ((int) ticket) & intakeMask;
+			long seq = intakeSequence.get(index);
+			if (seq == ticket) {
+				if (intakeTail.compareAndSet(ticket, ticket + 1)) {
+					intakeTimes[index] = nanoTime;
+					intakeMessages[index] = pack(channel, status, data1, data2);
+					intakeSources[index] = source;
+					// the volatile write publishes the event to the consumer
+					intakeSequence.set(index, ticket + 1);
+					break;
+				}
+			} else if (seq < ticket) {
+				// full
+				wakeUp();
+				Thread.yield();
+			}
+			// otherwise, another producer took this ticket: retry
+		}
+		wakeUp();
+	}
+
+	/**
+	 * Retrieve and remove all events with a time earlier than the given time,
+	 * in time order, and pass them to the consumer. The consumer may insert
+	 * new events while being called.
+	 *
+	 * @param nanoTime the time to compare the events' time with
+	 * @param consumer the consumer to receive the events
+	 * @return the number of dispatched events. 0 is also returned if another
+	 *         thread is consuming.
+	 */
+	int dispatchEarlier(long nanoTime, Consumer consumer) {
+		if (!consuming.compareAndSet(false, true)) {
+			return 0;
+		}
+		int count = 0;
+		try {
+			while (true) {
+				drainIntake();
+				long time;
+				int message;
+				MidiIn source;
+				if (fifoCount == 0 && heapCount == 0) {
+					break;
+				}
+				if (useFifo()) {
+					time = fifoTimes[fifoHead];
+					if (time >= nanoTime) {
+						break;
+					}
+					message = fifoMessages[fifoHead];
+					source = fifoSources[fifoHead];
+					removeFifo();
+				} else {
+					time = heapTimes[0];
+					if (time >= nanoTime) {
+						break;
+					}
+					message = heapMessages[0];
+					source = heapSources[0];
+					removeHeap();
+				}
+				count++;
+				consumer.dispatch(time, source, (message >>> 24),
+						message & 0xFF, (message >> 8) & 0xFF,
+						(message >> 16) & 0xFF);
+			}
+		} finally {
+			updateNextTime();
+			consuming.set(false);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the time of the earliest event known to the consumer, or
+	 *         Long.MAX_VALUE if there is none. Events still in the intake
+	 *         are not taken into account.
+	 */
+	long getNextTime() {
+		return nextTime;
+	}
+
+	/**
+	 * Park the calling consumer thread until an event is inserted, until
+	 * wakeUp() or wakeUpIfDue() is called, or until the timeout elapses.
+	 * Returns immediately if there are events in the intake, or if the queue
+	 * is closed. Spurious returns are possible.
+	 *
+	 * @param timeoutNanos the maximum time to park, capped to 100
+	 *            milliseconds
+	 */
+	void awaitEvent(long timeoutNanos) {
+		if (timeoutNanos <= 0) {
+			return;
+		}
+		if (timeoutNanos > MAX_PARK_NANOS) {
+			timeoutNanos = MAX_PARK_NANOS;
+		}
+		parkedConsumer = Thread.currentThread();
+		// re-check after publishing the parked thread: a producer inserting
+		// now will see it and unpark it
+		if (!closed && !hasIntake()) {
+			LockSupport.parkNanos(this, timeoutNanos);
+		}
+		parkedConsumer = null;
+	}
+
+	/**
+	 * Unpark the consumer, if it is parked.
+	 */
+	void wakeUp() {
+		Thread t = parkedConsumer;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Unpark the consumer, if it is parked and the earliest event is earlier
+	 * than the given time. Called by the pull thread when the audio time
+	 * advances.
+	 */
+	void wakeUpIfDue(long nanoTime) {
+		if (nextTime < nanoTime) {
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Remove all events. Other than the remaining consumer methods, this
+	 * method waits for a concurrent consumer to finish.
+	 */
+	void clear() {
+		while (!consuming.compareAndSet(false, true)) {
+			Thread.yield();
+		}
+		try {
+			drainIntake();
+			while (fifoCount > 0) {
+				removeFifo();
+			}
+			while (heapCount > 0) {
+				removeHeap();
+			}
+			fifoLastTime = Long.MIN_VALUE;
+			updateNextTime();
+		} finally {
+			consuming.set(false);
+		}
+	}
+
+	/**
+	 * @return the approximate number of events in the queue
+	 */
+	int size() {
+		long intake = intakeTail.get() - intakeHead;
+		if (intake < 0) {
+			intake = 0;
+		}
+		return (int) intake + fifoCount + heapCount;
+	}
+
+	/**
+	 * @return true if the queue is approximately empty
+	 */
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Pack a short message into an int: status in the lowest byte, then data1,
+	 * data2, and the channel in the highest byte.
+	 */
+	private static int pack(int channel, int status, int data1, int data2) {
+		return (status & 0xFF) | ((data1 & 0xFF) << 8) | ((data2 & 0xFF) << 16)
+				| (channel << 24);
+	}
+
+	// consumer internals
+
+	private boolean hasIntake() {
+		long head = intakeHead;
+		return intakeSequence.get(((int) head) & intakeMask) == head + 1;
+	}
+
+	/**
+	 * Move all published events from the intake to the FIFO or the heap.
+	 */
+	private void drainIntake() {
+		long head = intakeHead;
+		while (true) {
+			int index = ((int) head) & intakeMask;
+			if (intakeSequence.get(index) != head + 1) {
+				break;
+			}
+			long time = intakeTimes[index];
+			int message = intakeMessages[index];
+			MidiIn source = intakeSources[index];
+			intakeSources[index] = null;
+			// free the slot for the producer one round later
+			intakeSequence.set(index, head + intakeTimes.length);
+			if (fifoCount == 0 || time >= fifoLastTime) {
+				addFifo(time, head, message, source);
+			} else {
+				addHeap(time, head, message, source);
+			}
+			head++;
+		}
+		intakeHead = head;
+	}
+
+	/**
+	 * @return true if the head of the FIFO is before the top of the heap
+	 */
+	private boolean useFifo() {
+		if (heapCount == 0) {
+			return true;
+		}
+		if (fifoCount == 0) {
+			return false;
+		}
+		return before(fifoTimes[fifoHead], fifoTickets[fifoHead], heapTimes[0],
+				heapTickets[0]);
+	}
+
+	private void updateNextTime() {
+		if (fifoCount == 0 && heapCount == 0) {
+			nextTime = Long.MAX_VALUE;
+		} else if (useFifo()) {
+			nextTime = fifoTimes[fifoHead];
+		} else {
+			nextTime = heapTimes[0];
+		}
+	}
+
+	private static boolean before(long time1, long ticket1, long time2,
+			long ticket2) {
+		return time1 < time2 || (time1 == time2 && ticket1 < ticket2);
+	}
+
+	private void addFifo(long time, long ticket, int message, MidiIn source) {
+		int capacity = fifoTimes.length;
+		if (fifoCount == capacity) {
+			// rare: grow and unwrap the ring
+			long[] newTimes = new long[capacity * 2];
+			long[] newTickets = new long[capacity * 2];
+			int[] newMessages = new int[capacity * 2];
+			MidiIn[] newSources = new MidiIn[capacity * 2];
+			for (int i = 0; i < fifoCount; i++) {
+				int index = (fifoHead + i) & (capacity - 1);
+				newTimes[i] = fifoTimes[index];
+				newTickets[i] = fifoTickets[index];
+				newMessages[i] = fifoMessages[index];
+				newSources[i] = fifoSources[index];
+			}
+			fifoTimes = newTimes;
+			fifoTickets = newTickets;
+			fifoMessages = newMessages;
+			fifoSources = newSources;
+			fifoHead = 0;
+			capacity *= 2;
+		}
+		int index = (fifoHead + fifoCount) & (capacity - 1);
+		fifoTimes[index] = time;
+		fifoTickets[index] = ticket;
+		fifoMessages[index] = message;
+		fifoSources[index] = source;
+		fifoCount++;
+		fifoLastTime = time;
+	}
+
+	private void removeFifo() {
+		fifoSources[fifoHead] = null;
+		fifoHead = (fifoHead + 1) & (fifoTimes.length - 1);
+		fifoCount--;
+	}
+
+	private void addHeap(long time, long ticket, int message, MidiIn source) {
+		if (heapCount == heapTimes.length) {
+			// rare: grow
+			int capacity = heapCount * 2;
+			long[] newTimes = new long[capacity];
+			long[] newTickets = new long[capacity];
+			int[] newMessages = new int[capacity];
+			MidiIn[] newSources = new MidiIn[capacity];
+			System.arraycopy(heapTimes, 0, newTimes, 0, heapCount);
+			System.arraycopy(heapTickets, 0, newTickets, 0, heapCount);
+			System.arraycopy(heapMessages, 0, newMessages, 0, heapCount);
+			System.arraycopy(heapSources, 0, newSources, 0, heapCount);
+			heapTimes = newTimes;
+			heapTickets = newTickets;
+			heapMessages = newMessages;
+			heapSources = newSources;
+		}
+		// sift up
+		int i = heapCount++;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (!before(time, ticket, heapTimes[parent], heapTickets[parent])) {
+				break;
+			}
+			moveHeap(parent, i);
+			i = parent;
+		}
+		heapTimes[i] = time;
+		heapTickets[i] = ticket;
+		heapMessages[i] = message;
+		heapSources[i] = source;
+	}
+
+	private void removeHeap() {
+		int last = --heapCount;
+		long time = heapTimes[last];
+		long ticket = heapTickets[last];
+		int message = heapMessages[last];
+		MidiIn source = heapSources[last];
+		heapSources[last] = null;
+		if (last > 0) {
+			// sift down
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= last) {
+					break;
+				}
+				if (child + 1 < last
+						&& before(heapTimes[child + 1], heapTickets[child + 1],
+								heapTimes[child], heapTickets[child])) {
+					child++;
+				}
+				if (!before(heapTimes[child], heapTickets[child], time, ticket)) {
+					break;
+				}
+				moveHeap(child, i);
+				i = child;
+			}
+			heapTimes[i] = time;
+			heapTickets[i] = ticket;
+			heapMessages[i] = message;
+			heapSources[i] = source;
+		}
+	}
+
+	private void moveHeap(int from, int to) {
+		heapTimes[to] = heapTimes[from];
+		heapTickets[to] = heapTickets[from];
+		heapMessages[to] = heapMessages[from];
+		heapSources[to] = heapSources[from];
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A multi-channel buffer of audio samples in 32-bit float precision. This is
+ * the buffer used by the float rendering path: it has half the memory
+ * footprint of AudioBuffer, so that the inner mixing loops touch less memory.
+ * <p>
+ * The sample values are normalized to the range [-1.0 ... +1.0].
+ *
+ * @see Synthesizer#Synthesizer(Soundbank, AudioMixer, boolean)
+ */
+public class FloatAudioBuffer {
+
+	/**
+	 * The sample arrays, one for each channel. The arrays may be larger than
+	 * sampleCount.
+	 */
+	private float[][] channels;
+
+	/**
+	 * The kernels used for the loops over the samples
+	 */
+	private static final MixKernels KERNELS = MixKernels.getInstance();
+
+	private int sampleCount;
+
+	private double sampleRate;
+
+	/**
+	 * Create a new buffer. The samples are initialized to silence.
+	 */
+	public FloatAudioBuffer(int channelCount, int sampleCount,
+			double sampleRate) {
+		if (channelCount < 0 || sampleCount < 0) {
+			throw new IllegalArgumentException("illegal buffer size: "
+					+ channelCount + " channels, " + sampleCount + " samples");
+		}
+		this.channels = new float[channelCount][sampleCount];
+		this.sampleCount = sampleCount;
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @return the number of channels
+	 */
+	public final int getChannelCount() {
+		return channels.length;
+	}
+
+	/**
+	 * @return the number of valid samples in each channel
+	 */
+	public final int getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * @return the sample rate
+	 */
+	public final double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @param sampleRate the sample rate to set
+	 */
+	public final void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Get the sample array of a channel. The array may be larger than the
+	 * sample count.
+	 *
+	 * @param channel the channel index
+	 * @return the samples of the channel
+	 */
+	public final float[] getChannel(int channel) {
+		return channels[channel];
+	}
+
+	/**
+	 * Change the number of samples in this buffer. The sample arrays are only
+	 * re-allocated if the new sample count exceeds their current size.
+	 *
+	 * @param newSampleCount the new sample count
+	 * @param keepOldSamples if true, the existing samples are preserved. Any
+	 *            added samples are silence.
+	 */
+	public void changeSampleCount(int newSampleCount, boolean keepOldSamples) {
+		if (newSampleCount < 0) {
+			throw new IllegalArgumentException("illegal sample count: "
+					+ newSampleCount);
+		}
+		int oldSampleCount = sampleCount;
+		for (int c = 0; c < channels.length; c++) {
+			float[] samples = channels[c];
+			if (samples.length < newSampleCount) {
+				float[] newSamples = new float[newSampleCount];
+				if (keepOldSamples) {
+					System.arraycopy(samples, 0, newSamples, 0, oldSampleCount);
+				}
+				channels[c] = newSamples;
+			} else if (keepOldSamples && newSampleCount > oldSampleCount) {
+				for (int i = oldSampleCount; i < newSampleCount; i++) {
+					samples[i] = 0.0f;
+				}
+			}
+		}
+		sampleCount = newSampleCount;
+	}
+
+	/**
+	 * Set all samples to 0.
+	 */
+	public void makeSilence() {
+		makeSilence(0, sampleCount);
+	}
+
+	/**
+	 * Set count samples, starting at offset, to 0.
+	 */
+	public void makeSilence(int offset, int count) {
+		for (int c = 0; c < channels.length; c++) {
+			KERNELS.silence(channels[c], offset, count);
+		}
+	}
+
+	/**
+	 * Add the samples of source to this buffer. Only the common channels and
+	 * samples are mixed.
+	 */
+	public void mix(FloatAudioBuffer source) {
+		int count = Math.min(sampleCount, source.sampleCount);
+		int channelCount = Math.min(channels.length, source.channels.length);
+		for (int c = 0; c < channelCount; c++) {
+			KERNELS.mix(source.channels[c], 0, channels[c], 0, count);
+		}
+	}
+
+	/**
+	 * Add count samples of the double precision buffer source to this buffer,
+	 * starting at offset in both buffers.
+	 */
+	public void mix(AudioBuffer source, int offset, int count) {
+		int channelCount = Math.min(channels.length, source.getChannelCount());
+		for (int c = 0; c < channelCount; c++) {
+			float[] dest = channels[c];
+			double[] src = source.getChannel(c);
+			for (int i = offset; i < offset + count; i++) {
+				dest[i] += (float) src[i];
+			}
+		}
+	}
+
+	/**
+	 * Copy the samples of this buffer to the double precision buffer dest.
+	 * The sample count of dest is not changed; only the common channels and
+	 * samples are copied.
+	 */
+	public void copyTo(AudioBuffer dest) {
+		int count = Math.min(sampleCount, dest.getSampleCount());
+		int channelCount = Math.min(channels.length, dest.getChannelCount());
+		for (int c = 0; c < channelCount; c++) {
+			float[] src = channels[c];
+			double[] destSamples = dest.getChannel(c);
+			for (int i = 0; i < count; i++) {
+				destSamples[i] = src[i];
+			}
+		}
+	}
+
+	/**
+	 * Copy the samples of the double precision buffer source to this buffer.
+	 * The sample count of this buffer is set to the sample count of source.
+	 */
+	public void copyFrom(AudioBuffer source) {
+		int count = source.getSampleCount();
+		changeSampleCount(count, false);
+		int channelCount = Math.min(channels.length, source.getChannelCount());
+		for (int c = 0; c < channelCount; c++) {
+			double[] src = source.getChannel(c);
+			float[] dest = channels[c];
+			for (int i = 0; i < count; i++) {
+				dest[i] = (float) src[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes needed to store this buffer in the given
+	 *         format
+	 */
+	public int getByteArrayBufferSize(AudioFormat format) {
+		return sampleCount * format.getFrameSize();
+	}
+
+	/**
+	 * Convert this buffer to integer PCM samples in the given format. Sample
+	 * sizes of 8, 16, 24, and 32 bits are supported. Samples exceeding the
+	 * normalized range are clipped.
+	 *
+	 * @param buffer the byte array to write to
+	 * @param offset the start index in buffer
+	 * @param format the format of the samples in buffer. Its channel count
+	 *            must match this buffer's channel count.
+	 * @return the number of bytes written
+	 */
+	public int convertToByteArray(byte[] buffer, int offset,
+			AudioFormat format) {
+		int bytesPerSample = format.getFrameSize() / format.getChannels();
+		if (bytesPerSample < 1 || bytesPerSample > 4) {
+			throw new IllegalArgumentException("unsupported format: "
+					+ format);
+		}
+		boolean bigEndian = format.isBigEndian();
+		boolean signed =
+				format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED);
+		int bits = bytesPerSample * 8;
+		double maxValue = (double) ((1L << (bits - 1)) - 1);
+		int frameSize = format.getFrameSize();
+		int channelCount = Math.min(channels.length, format.getChannels());
+		if (bytesPerSample == 2 && signed) {
+			// the common case
+			for (int c = 0; c < channelCount; c++) {
+				KERNELS.floatToPCM16(channels[c], 0, buffer, offset + c * 2,
+						frameSize, sampleCount, bigEndian);
+			}
+			return sampleCount * frameSize;
+		}
+		for (int c = 0; c < channelCount; c++) {
+			float[] samples = channels[c];
+			int index = offset + c * bytesPerSample;
+			for (int i = 0; i < sampleCount; i++) {
+				float sample = samples[i];
+				if (sample > 1.0f) {
+					sample = 1.0f;
+				} else if (sample < -1.0f) {
+					sample = -1.0f;
+				}
+				long value = Math.round(sample * maxValue);
+				if (!signed) {
+					value += (1L << (bits - 1));
+				}
+				if (bigEndian) {
+					for (int b = bytesPerSample - 1; b >= 0; b--) {
+						buffer[index + b] = (byte) value;
+						value >>= 8;
+					}
+				} else {
+					for (int b = 0; b < bytesPerSample; b++) {
+						buffer[index + b] = (byte) value;
+						value >>= 8;
+					}
+				}
+				index += frameSize;
+			}
+		}
+		return sampleCount * frameSize;
+	}
+}
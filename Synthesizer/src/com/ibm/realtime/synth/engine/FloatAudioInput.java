@@ -0,0 +1,43 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * An AudioInput that can render directly to 32-bit float buffers. The float
+ * path is used by the mixer and the pull thread if the synthesizer is
+ * constructed with float rendering enabled; otherwise, the double precision
+ * methods of AudioInput are used.
+ *
+ * @see Synthesizer#Synthesizer(Soundbank, AudioMixer, boolean)
+ */
+public interface FloatAudioInput extends AudioInput {
+
+	/**
+	 * Float version of read type 1: <b>add</b> count samples to the buffer,
+	 * starting at offset.
+	 *
+	 * @param time - the start playback time of this buffer
+	 * @param buffer - the buffer to be added to
+	 * @param offset - the offset in buffer where to start writing samples
+	 * @param count - how many samples to read to the buffer
+	 */
+	public void read(AudioTime time, FloatAudioBuffer buffer, int offset,
+			int count);
+
+	/**
+	 * Float version of read type 1 with a primitive time stamp.
+	 *
+	 * @param nanoTime - the start playback time of this buffer in nanoseconds
+	 * @param buffer - the buffer to be added to
+	 * @param offset - the offset in buffer where to start writing samples
+	 * @param count - how many samples to read to the buffer
+	 */
+	public void read(long nanoTime, FloatAudioBuffer buffer, int offset,
+			int count);
+
+	/**
+	 * @return true if this input should be read with the float read method
+	 */
+	public boolean isFloatRendering();
+}
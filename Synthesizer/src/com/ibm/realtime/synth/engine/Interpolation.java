@@ -0,0 +1,338 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * The interpolation tiers for sample rate conversion in the oscillators, and
+ * their implementation on float samples.
+ * <p>
+ * The tiers trade quality for CPU time. The following figures are the cost
+ * per output sample relative to LINEAR, and the maximum error when
+ * resampling a full scale sine at 1/20 of the sample rate, measured with
+ * test.InterpolationBenchmark (the absolute figures depend on the machine
+ * and the VM):
+ * <table>
+ * <tr><th>tier</th><th>points</th><th>relative cost</th><th>error</th></tr>
+ * <tr><td>copy (rate factor exactly 1.0)</td><td>1</td><td>0.02-0.04</td><td>-</td></tr>
+ * <tr><td>NEAREST</td><td>1</td><td>0.3</td><td>0.16</td></tr>
+ * <tr><td>LINEAR</td><td>2</td><td>1.0</td><td>0.012</td></tr>
+ * <tr><td>CUBIC</td><td>4</td><td>1.3-2</td><td>0.001</td></tr>
+ * <tr><td>SINC</td><td>16</td><td>3.5-5</td><td>&lt;0.0005</td></tr>
+ * </table>
+ * The copy path is not a selectable tier: every tier uses it when the
+ * effective sample rate factor is exactly 1.0 and the read position is an
+ * integer, since all tiers then return the samples unchanged.
+ * <p>
+ * Use NEAREST or LINEAR for drums and for renders with high polyphony,
+ * CUBIC for good quality at moderate cost, and SINC for final masters.
+ * <p>
+ * The SINC kernel has a fixed cutoff at the Nyquist frequency of the source
+ * samples, so it is band-limited only for a read position step up to 1.0,
+ * i.e. when a sample is not transposed up. For larger steps, the kernel is
+ * not scaled, and the frequencies above the output's Nyquist frequency alias
+ * like with the other tiers. SoundFontSoundbank.createSamplePyramids()
+ * reduces the step of notes transposed up by an octave or more.
+ * <p>
+ * The tier is selected for all channels with
+ * Synthesizer.Params.setInterpolation(), and for a single channel with
+ * MidiChannel.setInterpolation(). A new tier takes effect for the next
+ * notes.
+ */
+public final class Interpolation {
+
+	/**
+	 * Nearest neighbour: the sample closest to the read position, no
+	 * interpolation
+	 */
+	public static final int NEAREST = 0;
+
+	/**
+	 * Linear interpolation between the 2 neighbouring samples (the default)
+	 */
+	public static final int LINEAR = 1;
+
+	/**
+	 * 4-point, 3rd order Hermite (Catmull-Rom) interpolation
+	 */
+	public static final int CUBIC = 2;
+
+	/**
+	 * 16-point windowed sinc interpolation with precomputed polyphase tables,
+	 * band-limited for read position steps up to 1.0
+	 */
+	public static final int SINC = 3;
+
+	/**
+	 * The default tier
+	 */
+	public static final int DEFAULT = LINEAR;
+
+	/**
+	 * Half the number of points of the sinc interpolator
+	 */
+	private static final int SINC_HALF_WIDTH = 8;
+
+	private static final int SINC_WIDTH = 2 * SINC_HALF_WIDTH;
+
+	/**
+	 * The number of phases of the sinc table. Coefficients between two
+	 * phases are interpolated linearly.
+	 */
+	private static final int SINC_PHASES = 256;
+
+	/**
+	 * The polyphase table: SINC_WIDTH coefficients for each of SINC_PHASES+1
+	 * phases. The coefficient k of phase p weights the sample at
+	 * index - (SINC_HALF_WIDTH - 1) + k for the fractional read position
+	 * p / SINC_PHASES.
+	 */
+	private static final float[] SINC_TABLE = createSincTable();
+
+	private Interpolation() {
+		// no instances
+	}
+
+	/**
+	 * @return true if quality is one of the interpolation tiers
+	 */
+	public static boolean isValid(int quality) {
+		return quality >= NEAREST && quality <= SINC;
+	}
+
+	/**
+	 * @return the name of the tier
+	 */
+	public static String toString(int quality) {
+		switch (quality) {
+		case NEAREST:
+			return "nearest";
+		case LINEAR:
+			return "linear";
+		case CUBIC:
+			return "cubic";
+		case SINC:
+			return "sinc";
+		}
+		return "unknown interpolation " + quality;
+	}
+
+	/**
+	 * @return the number of samples before the read position's integer index
+	 *         that are read by the interpolator
+	 */
+	public static int getPointsBefore(int quality) {
+		switch (quality) {
+		case CUBIC:
+			return 1;
+		case SINC:
+			return SINC_HALF_WIDTH - 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the number of samples after the read position's integer index
+	 *         that are read by the interpolator
+	 */
+	public static int getPointsAfter(int quality) {
+		switch (quality) {
+		case CUBIC:
+			return 2;
+		case SINC:
+			return SINC_HALF_WIDTH;
+		}
+		return 1;
+	}
+
+	/**
+	 * @return true if interpolate() copies the input samples for this read
+	 *         position and step
+	 */
+	public static boolean isCopy(double pos, double delta) {
+		return delta == 1.0 && pos == (int) pos;
+	}
+
+	/**
+	 * Resample count samples, to either floatOut or doubleOut. The input
+	 * must contain all samples from index (int) pos - getPointsBefore() to
+	 * (int) (pos + count * delta) + getPointsAfter().
+	 *
+	 * @param quality the interpolation tier
+	 * @param in the input samples: in[i - inStart] is the sample at index i
+	 * @param inStart the sample index of in[0]
+	 * @param pos the read position of the first output sample
+	 * @param delta the read position step per output sample
+	 * @param floatOut the float buffer to write to, or null
+	 * @param doubleOut the double buffer to write to if floatOut is null
+	 * @param offset the index of the first output sample
+	 * @param count the number of output samples
+	 */
+	public static void interpolate(int quality, float[] in, int inStart,
+			double pos, double delta, float[] floatOut, double[] doubleOut,
+			int offset, int count) {
+		if (isCopy(pos, delta)) {
+			copy(in, (int) pos - inStart, floatOut, doubleOut, offset, count);
+			return;
+		}
+		switch (quality) {
+		case NEAREST:
+			nearest(in, inStart, pos, delta, floatOut, doubleOut, offset,
+					count);
+			break;
+		case CUBIC:
+			cubic(in, inStart, pos, delta, floatOut, doubleOut, offset, count);
+			break;
+		case SINC:
+			sinc(in, inStart, pos, delta, floatOut, doubleOut, offset, count);
+			break;
+		default:
+			linear(in, inStart, pos, delta, floatOut, doubleOut, offset,
+					count);
+			break;
+		}
+	}
+
+	private static void copy(float[] in, int inIndex, float[] floatOut,
+			double[] doubleOut, int offset, int count) {
+		if (floatOut != null) {
+			System.arraycopy(in, inIndex, floatOut, offset, count);
+		} else {
+			for (int i = 0; i < count; i++) {
+				doubleOut[offset + i] = in[inIndex + i];
+			}
+		}
+	}
+
+	private static void nearest(float[] in, int inStart, double pos,
+			double delta, float[] floatOut, double[] doubleOut, int offset,
+			int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			float value = in[(int) (pos + 0.5) - inStart];
+			if (floatOut != null) {
+				floatOut[i] = value;
+			} else {
+				doubleOut[i] = value;
+			}
+			pos += delta;
+		}
+	}
+
+	private static void linear(float[] in, int inStart, double pos,
+			double delta, float[] floatOut, double[] doubleOut, int offset,
+			int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int index = (int) pos;
+			float frac = (float) (pos - index);
+			index -= inStart;
+			float s1 = in[index];
+			float value = s1 + (in[index + 1] - s1) * frac;
+			if (floatOut != null) {
+				floatOut[i] = value;
+			} else {
+				doubleOut[i] = value;
+			}
+			pos += delta;
+		}
+	}
+
+	private static void cubic(float[] in, int inStart, double pos,
+			double delta, float[] floatOut, double[] doubleOut, int offset,
+			int count) {
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int index = (int) pos;
+			float t = (float) (pos - index);
+			index -= inStart;
+			float x0 = in[index - 1];
+			float x1 = in[index];
+			float x2 = in[index + 1];
+			float x3 = in[index + 2];
+			float c1 = 0.5f * (x2 - x0);
+			float c2 = x0 - 2.5f * x1 + 2.0f * x2 - 0.5f * x3;
+			float c3 = 0.5f * (x3 - x0) + 1.5f * (x1 - x2);
+			float value = ((c3 * t + c2) * t + c1) * t + x1;
+			if (floatOut != null) {
+				floatOut[i] = value;
+			} else {
+				doubleOut[i] = value;
+			}
+			pos += delta;
+		}
+	}
+
+	private static void sinc(float[] in, int inStart, double pos,
+			double delta, float[] floatOut, double[] doubleOut, int offset,
+			int count) {
+		final float[] table = SINC_TABLE;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int index = (int) pos;
+			double phase = (pos - index) * SINC_PHASES;
+			int p = (int) phase;
+			float f = (float) (phase - p);
+			if (p >= SINC_PHASES) {
+				// rounding of a fraction just below 1.0
+				p = SINC_PHASES - 1;
+				f = 1.0f;
+			}
+			int c0 = p * SINC_WIDTH;
+			int c1 = c0 + SINC_WIDTH;
+			int first = index - inStart - (SINC_HALF_WIDTH - 1);
+			float sum0 = 0.0f;
+			float sum1 = 0.0f;
+			for (int k = 0; k < SINC_WIDTH; k++) {
+				float s = in[first + k];
+				sum0 += s * table[c0 + k];
+				sum1 += s * table[c1 + k];
+			}
+			float value = sum0 + (sum1 - sum0) * f;
+			if (floatOut != null) {
+				floatOut[i] = value;
+			} else {
+				doubleOut[i] = value;
+			}
+			pos += delta;
+		}
+	}
+
+	/**
+	 * Create the polyphase table of a Blackman-windowed sinc. The
+	 * coefficients of every phase are normalized to unity gain at DC.
+	 */
+	private static float[] createSincTable() {
+		float[] table = new float[(SINC_PHASES + 1) * SINC_WIDTH];
+		for (int p = 0; p <= SINC_PHASES; p++) {
+			double frac = ((double) p) / SINC_PHASES;
+			double[] c = new double[SINC_WIDTH];
+			double sum = 0.0;
+			for (int k = 0; k < SINC_WIDTH; k++) {
+				// distance of the sample from the read position
+				double x = k - (SINC_HALF_WIDTH - 1) - frac;
+				double sinc;
+				if (x == 0.0) {
+					sinc = 1.0;
+				} else if (x == Math.rint(x)) {
+					// exact zero crossings, so that phase 0 is a copy
+					sinc = 0.0;
+				} else {
+					sinc = Math.sin(Math.PI * x) / (Math.PI * x);
+				}
+				double w = Math.PI * x / SINC_HALF_WIDTH;
+				double window = 0.42 + 0.5 * Math.cos(w) + 0.08
+						* Math.cos(2.0 * w);
+				if (Math.abs(x) >= SINC_HALF_WIDTH) {
+					window = 0.0;
+				}
+				c[k] = sinc * window;
+				sum += c[k];
+			}
+			for (int k = 0; k < SINC_WIDTH; k++) {
+				table[p * SINC_WIDTH + k] = (float) (c[k] / sum);
+			}
+		}
+		return table;
+	}
+}
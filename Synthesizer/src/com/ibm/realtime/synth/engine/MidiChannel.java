@@ -115,6 +115,13 @@ public class MidiChannel {
 	 */
 	private int program;
 
+	/**
+	 * The interpolation tier for the notes on this channel, or -1 to use the
+	 * synthesizer's tier. This is a setting, not MIDI state: it is not reset
+	 * by init() or reset().
+	 */
+	private volatile int interpolation = -1;
+
 	/**
 	 * Create a MidiChannel instance with some default values.
 	 *
@@ -138,6 +145,7 @@ public class MidiChannel {
 			controllers[DEFAULT_CONTROLLERS[i][0]] = DEFAULT_CONTROLLERS[i][1];
 		}
 		pitchWheel = 0;
+		channelPressure = 0;
 		queuedBankLSB = -1;
 		queuedBankMSB = -1;
 		program = 0;
@@ -266,6 +274,31 @@ public class MidiChannel {
 		return getNormalizedPitchWheel() * getPitchWheelSensitivity();
 	}
 
+	/**
+	 * @return the interpolation tier for the notes on this channel, one of
+	 *         the Interpolation constants, or -1 if the channel uses the
+	 *         synthesizer's tier
+	 */
+	public int getInterpolation() {
+		return interpolation;
+	}
+
+	/**
+	 * Set the interpolation tier for the next notes on this channel, e.g. a
+	 * cheap tier for the drum channel.
+	 * 
+	 * @param interpolation one of the Interpolation constants, or -1 to use
+	 *            the synthesizer's tier
+	 * @see Synthesizer.Params#setInterpolation(int)
+	 */
+	public void setInterpolation(int interpolation) {
+		if (interpolation != -1 && !Interpolation.isValid(interpolation)) {
+			throw new IllegalArgumentException("illegal interpolation: "
+					+ interpolation);
+		}
+		this.interpolation = interpolation;
+	}
+
 	/**
 	 * @return the bank number 0..16383
 	 */
@@ -56,4 +56,27 @@ public interface MidiIn extends AdjustableAudioClock {
 		 */
 		public void midiInReceived(MidiEvent event);
 	}
+
+	/**
+	 * A listener that can receive short MIDI messages without a MidiEvent
+	 * object. MIDI input implementations call the primitive method for short
+	 * messages if the listener implements this interface, so that no object
+	 * is allocated per message. Long messages are still delivered with
+	 * midiInReceived(MidiEvent).
+	 */
+	public interface ShortListener extends Listener {
+		/**
+		 * Sent to the listener upon an incoming short MIDI message.
+		 * 
+		 * @param source the MIDI input that received the message
+		 * @param nanoTime the time of the message
+		 * @param channel the MIDI channel, 0 for system messages
+		 * @param status the status byte, without channel for channel
+		 *            messages
+		 * @param data1 the first data byte
+		 * @param data2 the second data byte
+		 */
+		public void midiInReceived(MidiIn source, long nanoTime, int channel,
+				int status, int data1, int data2);
+	}
 }
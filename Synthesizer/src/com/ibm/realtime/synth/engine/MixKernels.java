@@ -0,0 +1,399 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+/**
+ * The inner loops of mixing: accumulation of a voice with ramped gains,
+ * mixing of buffers, silence fill, and conversion to 16-bit PCM. These loops
+ * run per voice and per sample, so they determine how many voices can be
+ * rendered per core.
+ * <p>
+ * There are two implementations: a plain scalar one, which is the reference,
+ * and an unrolled one that processes 4 samples per iteration without a loop
+ * carried dependency on the gain, so that the JIT compiler can keep the
+ * lanes in independent registers and use SIMD instructions where it can. The
+ * implementation is chosen once at startup: the unrolled kernels are used
+ * unless the system property <code>synth.kernels</code> is set to
+ * <code>scalar</code>.
+ */
+public abstract class MixKernels {
+
+	public static boolean DEBUG_KERNELS = false;
+
+	/**
+	 * The scalar reference implementation
+	 */
+	public static final MixKernels SCALAR = new Scalar();
+
+	/**
+	 * The implementation processing 4 samples per iteration
+	 */
+	public static final MixKernels UNROLLED = new Unrolled();
+
+	/**
+	 * The implementation chosen at startup
+	 */
+	private static final MixKernels INSTANCE = select();
+
+	private static MixKernels select() {
+		MixKernels result = UNROLLED;
+		try {
+			if ("scalar".equals(System.getProperty("synth.kernels"))) {
+				result = SCALAR;
+			}
+		} catch (SecurityException se) {
+			// use the default
+		}
+		if (DEBUG_KERNELS) {
+			debug("MixKernels: using " + result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the kernels chosen at startup
+	 */
+	public static MixKernels getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Add count samples of src, multiplied with a linearly ramped gain, to
+	 * left and right. The gain for sample i is <code>gain + i * inc</code>.
+	 */
+	public abstract void rampedStereoAccumulate(float[] src, int srcOffset,
+			float[] left, float[] right, int offset, int count, float gainL,
+			float incL, float gainR, float incR);
+
+	/**
+	 * Double precision version of rampedStereoAccumulate().
+	 */
+	public abstract void rampedStereoAccumulate(double[] src, int srcOffset,
+			double[] left, double[] right, int offset, int count,
+			double gainL, double incL, double gainR, double incR);
+
+	/**
+	 * Add count samples of src, multiplied with a linearly ramped gain, to
+	 * dest. The gain for sample i is <code>gain + i * inc</code>.
+	 */
+	public abstract void rampedAccumulate(float[] src, int srcOffset,
+			float[] dest, int offset, int count, float gain, float inc);
+
+	/**
+	 * Double precision version of rampedAccumulate().
+	 */
+	public abstract void rampedAccumulate(double[] src, int srcOffset,
+			double[] dest, int offset, int count, double gain, double inc);
+
+	/**
+	 * Add count samples of src to dest.
+	 */
+	public abstract void mix(float[] src, int srcOffset, float[] dest,
+			int offset, int count);
+
+	/**
+	 * Set count samples of dest, starting at offset, to 0.
+	 */
+	public abstract void silence(float[] dest, int offset, int count);
+
+	/**
+	 * Convert count samples of src to signed 16-bit PCM. Samples exceeding
+	 * the range [-1.0 ... +1.0] are clipped.
+	 *
+	 * @param src the samples to convert
+	 * @param srcOffset the index of the first sample in src
+	 * @param dest the byte array to write to
+	 * @param destOffset the index in dest of the first converted sample
+	 * @param destStride the number of bytes from one sample to the next in
+	 *            dest, i.e. the frame size
+	 * @param count the number of samples to convert
+	 * @param bigEndian if true, write big endian samples
+	 */
+	public abstract void floatToPCM16(float[] src, int srcOffset,
+			byte[] dest, int destOffset, int destStride, int count,
+			boolean bigEndian);
+
+	private static final class Scalar extends MixKernels {
+
+		public void rampedStereoAccumulate(float[] src, int srcOffset,
+				float[] left, float[] right, int offset, int count,
+				float gainL, float incL, float gainR, float incR) {
+			for (int i = 0; i < count; i++) {
+				float sample = src[srcOffset + i];
+				left[offset + i] += gainL * sample;
+				right[offset + i] += gainR * sample;
+				gainL += incL;
+				gainR += incR;
+			}
+		}
+
+		public void rampedStereoAccumulate(double[] src, int srcOffset,
+				double[] left, double[] right, int offset, int count,
+				double gainL, double incL, double gainR, double incR) {
+			for (int i = 0; i < count; i++) {
+				double sample = src[srcOffset + i];
+				left[offset + i] += gainL * sample;
+				right[offset + i] += gainR * sample;
+				gainL += incL;
+				gainR += incR;
+			}
+		}
+
+		public void rampedAccumulate(float[] src, int srcOffset,
+				float[] dest, int offset, int count, float gain, float inc) {
+			for (int i = 0; i < count; i++) {
+				dest[offset + i] += gain * src[srcOffset + i];
+				gain += inc;
+			}
+		}
+
+		public void rampedAccumulate(double[] src, int srcOffset,
+				double[] dest, int offset, int count, double gain, double inc) {
+			for (int i = 0; i < count; i++) {
+				dest[offset + i] += gain * src[srcOffset + i];
+				gain += inc;
+			}
+		}
+
+		public void mix(float[] src, int srcOffset, float[] dest, int offset,
+				int count) {
+			for (int i = 0; i < count; i++) {
+				dest[offset + i] += src[srcOffset + i];
+			}
+		}
+
+		public void silence(float[] dest, int offset, int count) {
+			for (int i = offset; i < offset + count; i++) {
+				dest[i] = 0.0f;
+			}
+		}
+
+		public void floatToPCM16(float[] src, int srcOffset, byte[] dest,
+				int destOffset, int destStride, int count, boolean bigEndian) {
+			int hi = bigEndian ? 0 : 1;
+			int lo = 1 - hi;
+			for (int i = 0; i < count; i++) {
+				int value = toPCM16(src[srcOffset + i]);
+				dest[destOffset + hi] = (byte) (value >> 8);
+				dest[destOffset + lo] = (byte) value;
+				destOffset += destStride;
+			}
+		}
+
+		public String toString() {
+			return "scalar kernels";
+		}
+	}
+
+	private static final class Unrolled extends MixKernels {
+
+		public void rampedStereoAccumulate(float[] src, int srcOffset,
+				float[] left, float[] right, int offset, int count,
+				float gainL, float incL, float gainR, float incR) {
+			int blocks = count & ~3;
+			float incL4 = incL * 4.0f;
+			float incR4 = incR * 4.0f;
+			// the gains of the 4 lanes
+			float l0 = gainL, l1 = gainL + incL, l2 = gainL + 2.0f * incL, l3 =
+					gainL + 3.0f * incL;
+			float r0 = gainR, r1 = gainR + incR, r2 = gainR + 2.0f * incR, r3 =
+					gainR + 3.0f * incR;
+			int s = srcOffset;
+			int d = offset;
+			for (int i = 0; i < blocks; i += 4, s += 4, d += 4) {
+				float s0 = src[s];
+				float s1 = src[s + 1];
+				float s2 = src[s + 2];
+				float s3 = src[s + 3];
+				left[d] += l0 * s0;
+				left[d + 1] += l1 * s1;
+				left[d + 2] += l2 * s2;
+				left[d + 3] += l3 * s3;
+				right[d] += r0 * s0;
+				right[d + 1] += r1 * s1;
+				right[d + 2] += r2 * s2;
+				right[d + 3] += r3 * s3;
+				l0 += incL4;
+				l1 += incL4;
+				l2 += incL4;
+				l3 += incL4;
+				r0 += incR4;
+				r1 += incR4;
+				r2 += incR4;
+				r3 += incR4;
+			}
+			// remainder
+			for (int i = blocks; i < count; i++, s++, d++) {
+				float sample = src[s];
+				left[d] += l0 * sample;
+				right[d] += r0 * sample;
+				l0 += incL;
+				r0 += incR;
+			}
+		}
+
+		public void rampedStereoAccumulate(double[] src, int srcOffset,
+				double[] left, double[] right, int offset, int count,
+				double gainL, double incL, double gainR, double incR) {
+			int blocks = count & ~3;
+			double incL4 = incL * 4.0;
+			double incR4 = incR * 4.0;
+			double l0 = gainL, l1 = gainL + incL, l2 = gainL + 2.0 * incL, l3 =
+					gainL + 3.0 * incL;
+			double r0 = gainR, r1 = gainR + incR, r2 = gainR + 2.0 * incR, r3 =
+					gainR + 3.0 * incR;
+			int s = srcOffset;
+			int d = offset;
+			for (int i = 0; i < blocks; i += 4, s += 4, d += 4) {
+				double s0 = src[s];
+				double s1 = src[s + 1];
+				double s2 = src[s + 2];
+				double s3 = src[s + 3];
+				left[d] += l0 * s0;
+				left[d + 1] += l1 * s1;
+				left[d + 2] += l2 * s2;
+				left[d + 3] += l3 * s3;
+				right[d] += r0 * s0;
+				right[d + 1] += r1 * s1;
+				right[d + 2] += r2 * s2;
+				right[d + 3] += r3 * s3;
+				l0 += incL4;
+				l1 += incL4;
+				l2 += incL4;
+				l3 += incL4;
+				r0 += incR4;
+				r1 += incR4;
+				r2 += incR4;
+				r3 += incR4;
+			}
+			for (int i = blocks; i < count; i++, s++, d++) {
+				double sample = src[s];
+				left[d] += l0 * sample;
+				right[d] += r0 * sample;
+				l0 += incL;
+				r0 += incR;
+			}
+		}
+
+		public void rampedAccumulate(float[] src, int srcOffset,
+				float[] dest, int offset, int count, float gain, float inc) {
+			int blocks = count & ~3;
+			float inc4 = inc * 4.0f;
+			float g0 = gain, g1 = gain + inc, g2 = gain + 2.0f * inc, g3 =
+					gain + 3.0f * inc;
+			int s = srcOffset;
+			int d = offset;
+			for (int i = 0; i < blocks; i += 4, s += 4, d += 4) {
+				dest[d] += g0 * src[s];
+				dest[d + 1] += g1 * src[s + 1];
+				dest[d + 2] += g2 * src[s + 2];
+				dest[d + 3] += g3 * src[s + 3];
+				g0 += inc4;
+				g1 += inc4;
+				g2 += inc4;
+				g3 += inc4;
+			}
+			for (int i = blocks; i < count; i++, s++, d++) {
+				dest[d] += g0 * src[s];
+				g0 += inc;
+			}
+		}
+
+		public void rampedAccumulate(double[] src, int srcOffset,
+				double[] dest, int offset, int count, double gain, double inc) {
+			int blocks = count & ~3;
+			double inc4 = inc * 4.0;
+			double g0 = gain, g1 = gain + inc, g2 = gain + 2.0 * inc, g3 =
+					gain + 3.0 * inc;
+			int s = srcOffset;
+			int d = offset;
+			for (int i = 0; i < blocks; i += 4, s += 4, d += 4) {
+				dest[d] += g0 * src[s];
+				dest[d + 1] += g1 * src[s + 1];
+				dest[d + 2] += g2 * src[s + 2];
+				dest[d + 3] += g3 * src[s + 3];
+				g0 += inc4;
+				g1 += inc4;
+				g2 += inc4;
+				g3 += inc4;
+			}
+			for (int i = blocks; i < count; i++, s++, d++) {
+				dest[d] += g0 * src[s];
+				g0 += inc;
+			}
+		}
+
+		public void mix(float[] src, int srcOffset, float[] dest, int offset,
+				int count) {
+			int blocks = count & ~3;
+			int s = srcOffset;
+			int d = offset;
+			for (int i = 0; i < blocks; i += 4, s += 4, d += 4) {
+				dest[d] += src[s];
+				dest[d + 1] += src[s + 1];
+				dest[d + 2] += src[s + 2];
+				dest[d + 3] += src[s + 3];
+			}
+			for (int i = blocks; i < count; i++) {
+				dest[d++] += src[s++];
+			}
+		}
+
+		public void silence(float[] dest, int offset, int count) {
+			// Arrays.fill is an intrinsic on most VMs
+			java.util.Arrays.fill(dest, offset, offset + count, 0.0f);
+		}
+
+		public void floatToPCM16(float[] src, int srcOffset, byte[] dest,
+				int destOffset, int destStride, int count, boolean bigEndian) {
+			int hi = bigEndian ? 0 : 1;
+			int lo = 1 - hi;
+			int blocks = count & ~3;
+			int s = srcOffset;
+			int d = destOffset;
+			for (int i = 0; i < blocks; i += 4, s += 4) {
+				int v0 = toPCM16(src[s]);
+				int v1 = toPCM16(src[s + 1]);
+				int v2 = toPCM16(src[s + 2]);
+				int v3 = toPCM16(src[s + 3]);
+				dest[d + hi] = (byte) (v0 >> 8);
+				dest[d + lo] = (byte) v0;
+				d += destStride;
+				dest[d + hi] = (byte) (v1 >> 8);
+				dest[d + lo] = (byte) v1;
+				d += destStride;
+				dest[d + hi] = (byte) (v2 >> 8);
+				dest[d + lo] = (byte) v2;
+				d += destStride;
+				dest[d + hi] = (byte) (v3 >> 8);
+				dest[d + lo] = (byte) v3;
+				d += destStride;
+			}
+			for (int i = blocks; i < count; i++, s++) {
+				int value = toPCM16(src[s]);
+				dest[d + hi] = (byte) (value >> 8);
+				dest[d + lo] = (byte) value;
+				d += destStride;
+			}
+		}
+
+		public String toString() {
+			return "unrolled kernels";
+		}
+	}
+
+	/**
+	 * Convert a normalized sample to a clipped, rounded 16-bit value.
+	 */
+	private static final int toPCM16(float sample) {
+		if (sample > 1.0f) {
+			sample = 1.0f;
+		} else if (sample < -1.0f) {
+			sample = -1.0f;
+		}
+		return Math.round(sample * 32767.0f);
+	}
+}
@@ -7,6 +7,7 @@ import static com.ibm.realtime.synth.utils.AudioUtils.*;
 import static com.ibm.realtime.synth.utils.Debug.*;
 
 import com.ibm.realtime.synth.engine.Synthesizer.Params;
+import com.ibm.realtime.synth.utils.FastMath;
 
 /**
  * A class for feeding the mixer with a single played note.
@@ -36,7 +37,7 @@ import com.ibm.realtime.synth.engine.Synthesizer.Params;
  * 
  * @author florian
  */
-public class NoteInput implements AudioInput, Renderable {
+public class NoteInput implements FloatAudioInput, Renderable {
 
 	public static boolean DEBUG_NOTEINPUT = false;
 	public static boolean DEBUG_NOTEINPUT_IO = false;
@@ -51,6 +52,11 @@ public class NoteInput implements AudioInput, Renderable {
 	 */
 	private final static int PITCH_CHANGE_INTERVAL = 10000000;
 
+	/**
+	 * The kernels for adding the rendered buffer to the output buffer
+	 */
+	private final static MixKernels KERNELS = MixKernels.getInstance();
+
 	/**
 	 * The note that this NoteInput object plays.
 	 */
@@ -88,6 +94,18 @@ public class NoteInput implements AudioInput, Renderable {
 	 */
 	private AudioBuffer tempBuffer = new AudioBuffer(1, 0, 44100.0);
 
+	/**
+	 * The temporary rendering buffer for the float rendering path
+	 */
+	private FloatAudioBuffer floatTempBuffer =
+			new FloatAudioBuffer(1, 0, 44100.0);
+
+	/**
+	 * true if the last block was rendered to floatTempBuffer, false if it
+	 * was rendered to tempBuffer
+	 */
+	private boolean renderedFloat = false;
+
 	/**
 	 * The oscillator for rendering
 	 */
@@ -120,6 +138,12 @@ public class NoteInput implements AudioInput, Renderable {
 	 */
 	private long insertionTime;
 
+	/**
+	 * when this note starts playing, in nanoseconds. Unlike insertionTime,
+	 * this value is not reset when the note starts sounding.
+	 */
+	private long startTime;
+
 	/**
 	 * Initial rendering volume of the buffer. Each value is for an output
 	 * channel. For stereo, the first element is for the left channel, and the
@@ -150,6 +174,11 @@ public class NoteInput implements AudioInput, Renderable {
 	 */
 	private boolean sostenuto;
 
+	/**
+	 * Set once the release segment is entered.
+	 */
+	private boolean released;
+
 	/**
 	 * For optimization, cache the last relative pitch value
 	 */
@@ -173,6 +202,34 @@ public class NoteInput implements AudioInput, Renderable {
 	 */
 	private int renderSampleCount = 0;
 
+	/**
+	 * The pool that owns this instance, or null if this NoteInput is not
+	 * pooled.
+	 */
+	private VoicePool pool;
+
+	/**
+	 * For pooled instances: set when this NoteInput is removed from the
+	 * mixer. A linked group of NoteInputs is only returned to the pool once
+	 * all of its members are removed.
+	 */
+	private boolean removed = false;
+
+	// the links and slots of the VoiceTable, maintained by VoiceTable
+	// sync note: only access when synchronized on voiceTable
+	VoiceTable voiceTable;
+	NoteInput prevVoice, nextVoice;
+	NoteInput prevOnChannel, nextOnChannel;
+	NoteInput prevForNote, nextForNote;
+	NoteInput prevExclusive, nextExclusive;
+	int tableChannel, tableNoteSlot, tableExclusiveSlot;
+
+	/**
+	 * The time in nanoseconds it took to render the last slice, or 0 if not
+	 * known. Maintained by AsynchronousRenderer for its cost estimate.
+	 */
+	volatile long renderCost;
+
 	/**
 	 * Create a NoteInput stream.
 	 * 
@@ -187,13 +244,67 @@ public class NoteInput implements AudioInput, Renderable {
 	public NoteInput(Synthesizer.Params params, AudioTime time,
 			MidiChannel channel, Patch patch, Oscillator osc, Articulation art,
 			int note, int vel) {
+		init(params, time, channel, patch, osc, art, note, vel);
+	}
+
+	/**
+	 * Create an uninitialized NoteInput with its own patch, oscillator and
+	 * articulation instances. This constructor is used by VoicePool
+	 * implementations to pre-allocate voices. The instance must be
+	 * initialized with init() before it is added to a mixer.
+	 * 
+	 * @param patch the patch instance owned by this voice
+	 * @param osc the oscillator instance owned by this voice
+	 * @param art the articulation instance owned by this voice
+	 */
+	public NoteInput(Patch patch, Oscillator osc, Articulation art) {
+		this.patch = patch;
+		this.osc = osc;
+		this.art = art;
+		this.eofReached = true;
+	}
+
+	/**
+	 * (Re-)initialize this NoteInput for playing a new note. All runtime state
+	 * is reset, so that a recycled instance behaves like a newly constructed
+	 * one. The patch, osc and art instances must be set up already.
+	 * 
+	 * @param note -- the effective note playing (not necessarily the note that
+	 *            triggered this instrument)
+	 */
+	public final void init(Synthesizer.Params params, AudioTime time,
+			MidiChannel channel, Patch patch, Oscillator osc, Articulation art,
+			int note, int vel) {
 		this.synthParams = params;
 		this.channel = channel;
 		this.patch = patch;
 		this.osc = osc;
 		this.art = art;
 		this.note = note;
+		this.triggerNote = 0;
 		this.insertionTime = time.getNanoTime();
+		this.startTime = insertionTime;
+		outSampleOffset = 0;
+		lastRenderTime = -1;
+		eofReached = false;
+		doFadeOut = false;
+		linkedNoteInput = null;
+		inhibitedRelease = false;
+		sostenuto = false;
+		released = false;
+		lastRelativePitch = -100000.0;
+		lastSampleRateFactor = 0.0;
+		nextPitchChange = 0;
+		renderSampleCount = 0;
+		removed = false;
+		renderCost = 0;
+		tempBuffer.changeSampleCount(0, false);
+		floatTempBuffer.changeSampleCount(0, false);
+		renderedFloat = false;
+		for (int i = 0; i < MAX_OUTPUT_CHANNELS; i++) {
+			initialVolFactor[i] = 0.0;
+			finalVolFactor[i] = 0.0;
+		}
 		art.setup(note, vel);
 		// setup initial volume. Use the "finalVolFactor" values
 		// because that will become the initialVolFactor after rendering
@@ -203,6 +314,61 @@ public class NoteInput implements AudioInput, Renderable {
 		finalVolFactor[1] = masterVolume * art.getEffectiveVolumeFactor(1);
 	}
 
+	/**
+	 * package private method to set the pool that owns this instance.
+	 */
+	void setPool(VoicePool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @return the pool that owns this instance, or null if not pooled
+	 */
+	public VoicePool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Called when this NoteInput is removed from the mixer. It is removed
+	 * from the Synthesizer's voice table, and if this instance is pooled, it
+	 * is returned to its pool -- together with all linked NoteInputs, but
+	 * only once every member of the linked group has been removed, so that no
+	 * voice still playing in the mixer refers to a recycled instance.
+	 * Non-pooled instances are left to the garbage collector. In any case,
+	 * the oscillator is closed.
+	 */
+	public void recycle() {
+		if (osc != null) {
+			osc.close();
+		}
+		VoiceTable table = voiceTable;
+		if (table != null) {
+			table.remove(this);
+		}
+		if (pool == null || removed) {
+			return;
+		}
+		removed = true;
+		NoteInput ni = linkedNoteInput;
+		while (ni != null && ni != this) {
+			if (!ni.removed) {
+				// wait for the last one
+				return;
+			}
+			ni = ni.linkedNoteInput;
+		}
+		// all linked instances are removed: unlink and return them
+		ni = this;
+		do {
+			NoteInput next = ni.linkedNoteInput;
+			ni.linkedNoteInput = null;
+			if (ni.pool != null) {
+				ni.pool.recycle(ni);
+			}
+			ni = next;
+		} while (ni != null && ni != this);
+	}
+
 	/**
 	 * @return Returns the patch.
 	 */
@@ -280,7 +446,15 @@ public class NoteInput implements AudioInput, Renderable {
 	/**
 	 * Read a rendered buffer (type 1).
 	 */
-	public synchronized final void read(AudioTime time, AudioBuffer buffer,
+	public final void read(AudioTime time, AudioBuffer buffer, int offset,
+			int count) {
+		read(time.getNanoTime(), buffer, offset, count);
+	}
+
+	/**
+	 * Read a rendered buffer (type 1).
+	 */
+	public synchronized final void read(long nanoTime, AudioBuffer buffer,
 			int offset, int count) {
 
 		if (done()) return;
@@ -290,8 +464,14 @@ public class NoteInput implements AudioInput, Renderable {
 		this.renderSampleCount = count;
 
 		// on-demand rendering
-		if (lastRenderTime + 125000 < time.getNanoTime()) {
-			renderImpl(time, count);
+		if (lastRenderTime + 125000 < nanoTime) {
+			renderImpl(nanoTime, count, false);
+		} else if (renderedFloat) {
+			// rendered ahead by the float path: use its result
+			tempBuffer.changeSampleCount(floatTempBuffer.getSampleCount(),
+					false);
+			floatTempBuffer.copyTo(tempBuffer);
+			renderedFloat = false;
 		}
 
 		// use the temp buffer's sample count, in case it rendered fewer samples
@@ -317,30 +497,22 @@ public class NoteInput implements AudioInput, Renderable {
 			double volFactorInc1 = (finalVolFactor[0] - volFactor1) / thisCount;
 			double volFactor2 = initialVolFactor[1];
 			double volFactorInc2 = (finalVolFactor[1] - volFactor2) / thisCount;
-			int index = offset;
 			// $$fb added this extra check -- happened apparently in a 
 			// race condition when lowering the buffer size 
 			if (thisCount > samples1.length - offset) {
 				thisCount = samples1.length - offset;
 			}
-			for (int i = 0; i < thisCount; i++) {
-				double sample = tempSamples[i];
-				samples1[index] += (volFactor1 * sample);
-				samples2[index++] += (volFactor2 * sample);
-				volFactor1 += volFactorInc1;
-				volFactor2 += volFactorInc2;
-			}
+			KERNELS.rampedStereoAccumulate(tempSamples, 0, samples1,
+					samples2, offset, thisCount, volFactor1, volFactorInc1,
+					volFactor2, volFactorInc2);
 		} else {
 			// ... or the generic version
 			for (int c = 0; c < buffer.getChannelCount(); c++) {
-				double[] samples = buffer.getChannel(c);
 				double volFactor = initialVolFactor[c];
 				double volFactorInc =
 						(finalVolFactor[c] - volFactor) / thisCount;
-				for (int i = 0; i < thisCount; i++) {
-					samples[i + offset] += (volFactor * tempSamples[i]);
-					volFactor += volFactorInc;
-				}
+				KERNELS.rampedAccumulate(tempSamples, 0, buffer.getChannel(c),
+						offset, thisCount, volFactor, volFactorInc);
 			}
 		}
 		// stop note generation if this last slice was a fade out
@@ -349,6 +521,90 @@ public class NoteInput implements AudioInput, Renderable {
 		}
 	}
 
+	/**
+	 * Read a rendered buffer (type 1) with 32-bit float precision.
+	 */
+	public final void read(AudioTime time, FloatAudioBuffer buffer,
+			int offset, int count) {
+		read(time.getNanoTime(), buffer, offset, count);
+	}
+
+	/**
+	 * Read a rendered buffer (type 1) with 32-bit float precision.
+	 */
+	public synchronized final void read(long nanoTime,
+			FloatAudioBuffer buffer, int offset, int count) {
+
+		if (done()) return;
+
+		// store current sample rate and sample count for the render() method
+		floatTempBuffer.setSampleRate(buffer.getSampleRate());
+		this.renderSampleCount = count;
+
+		// on-demand rendering
+		if (lastRenderTime + 125000 < nanoTime) {
+			renderImpl(nanoTime, count, true);
+		} else if (!renderedFloat) {
+			// rendered ahead by the double path: use its result
+			floatTempBuffer.copyFrom(tempBuffer);
+			renderedFloat = true;
+		}
+
+		// use the temp buffer's sample count, in case it rendered fewer samples
+		int thisCount = floatTempBuffer.getSampleCount();
+		offset += outSampleOffset;
+
+		if (thisCount == 0) return;
+		if (thisCount + outSampleOffset > count) {
+			thisCount = count - outSampleOffset;
+		}
+
+		assert (floatTempBuffer.getChannelCount() == 1);
+		assert (thisCount + offset <= buffer.getSampleCount());
+
+		float[] tempSamples = floatTempBuffer.getChannel(0);
+		// add the rendered buffer to this buffer
+
+		// for the stereo case, an optimized version:
+		if (buffer.getChannelCount() == 2) {
+			float[] samples1 = buffer.getChannel(0);
+			float[] samples2 = buffer.getChannel(1);
+			float volFactor1 = (float) initialVolFactor[0];
+			float volFactorInc1 =
+					((float) finalVolFactor[0] - volFactor1) / thisCount;
+			float volFactor2 = (float) initialVolFactor[1];
+			float volFactorInc2 =
+					((float) finalVolFactor[1] - volFactor2) / thisCount;
+			if (thisCount > samples1.length - offset) {
+				thisCount = samples1.length - offset;
+			}
+			KERNELS.rampedStereoAccumulate(tempSamples, 0, samples1,
+					samples2, offset, thisCount, volFactor1, volFactorInc1,
+					volFactor2, volFactorInc2);
+		} else {
+			// ... or the generic version
+			for (int c = 0; c < buffer.getChannelCount(); c++) {
+				float volFactor = (float) initialVolFactor[c];
+				float volFactorInc =
+						((float) finalVolFactor[c] - volFactor) / thisCount;
+				KERNELS.rampedAccumulate(tempSamples, 0, buffer.getChannel(c),
+						offset, thisCount, volFactor, volFactorInc);
+			}
+		}
+		// stop note generation if this last slice was a fade out
+		if (doFadeOut) {
+			eofReached = true;
+		}
+	}
+
+	/**
+	 * @return true if the synthesizer of this note renders with 32-bit float
+	 *         precision
+	 */
+	public boolean isFloatRendering() {
+		return synthParams != null && synthParams.isFloatRendering();
+	}
+
 	/**
 	 * Read a rendered buffer (type 2).
 	 */
@@ -366,9 +622,20 @@ public class NoteInput implements AudioInput, Renderable {
 	 *         rendered
 	 */
 	public final boolean alreadyRendered(AudioTime currTime) {
+		return alreadyRendered(currTime.getNanoTime());
+	}
+
+	/**
+	 * This method must not be synchronized!
+	 * 
+	 * @param nanoTime the time to be tested
+	 * @return returns true if the block starting at time nanoTime is already
+	 *         rendered
+	 */
+	public final boolean alreadyRendered(long nanoTime) {
 		// add 125 microseconds (1 sample at 8000Hz) to account for rounding
 		// errors
-		return lastRenderTime + 125000 >= currTime.getNanoTime();
+		return lastRenderTime + 125000 >= nanoTime;
 	}
 
 	/**
@@ -381,31 +648,48 @@ public class NoteInput implements AudioInput, Renderable {
 	 * 
 	 * @param time the start time of the next buffer to be filled
 	 */
-	public synchronized final boolean render(AudioTime time) {
+	public final boolean render(AudioTime time) {
+		return render(time.getNanoTime());
+	}
+
+	/**
+	 * Render a block of audio data for the given time.
+	 * 
+	 * @param nanoTime the start time of the next buffer to be filled, in
+	 *            nanoseconds
+	 * @see #render(AudioTime)
+	 */
+	public synchronized final boolean render(long nanoTime) {
 		// do not render if already done or if no render sample count is set
 		if (done() || renderSampleCount <= 0) {
 			tempBuffer.changeSampleCount(0, false);
+			floatTempBuffer.changeSampleCount(0, false);
 			return false;
 		}
 
 		// account for race conditions (when a render thread blocks because
 		// the read() method is calling this render instance)
-		if (lastRenderTime + 125000 >= time.getNanoTime()) {
+		if (lastRenderTime + 125000 >= nanoTime) {
 			// buffer is already rendered
 			return false;
 		}
-		return renderImpl(time, renderSampleCount);
+		return renderImpl(nanoTime, renderSampleCount, isFloatRendering());
 	}
 
 	/**
 	 * Private implementation of render() which does not check if this buffer is
 	 * already rendered.
 	 * 
-	 * @param time
+	 * @param nanoTime
+	 * @param useFloat if true, render to floatTempBuffer, otherwise to
+	 *            tempBuffer
 	 * @return
 	 */
-	private final boolean renderImpl(AudioTime time, int count) {
-		long nanoTime = time.getNanoTime();
+	private final boolean renderImpl(long nanoTime, int count,
+			boolean useFloat) {
+		double sampleRate = useFloat ? floatTempBuffer.getSampleRate()
+				: tempBuffer.getSampleRate();
+		renderedFloat = useFloat;
 		// set the lastRenderTime as fast as possible:
 		// method read() will block anyway until termination of this method,
 		// and other threads accessing alreadyRendered() should have the most
@@ -419,13 +703,13 @@ public class NoteInput implements AudioInput, Renderable {
 			// calculate the sample position
 			long nanoOffset = (insertionTime - nanoTime);
 			outSampleOffset =
-					(int) nanos2samples(nanoOffset, tempBuffer.getSampleRate());
+					(int) nanos2samples(nanoOffset, sampleRate);
 			if (outSampleOffset < count) {
 				// OK, we can (and should) start inserting the instrument in
 				// *this* buffer
 				if (outSampleOffset < 0) {
 					if (DEBUG_NOTEINPUT) {
-						debug("NoteInput: time=" + time.getMicroTime()
+						debug("NoteInput: time=" + (nanoTime / 1000L)
 						+ "us, insertion time=" + (insertionTime)
 						+ "us, offset=" + (nanoOffset / 1000L)
 						+ "us, outSampleOffset=" + outSampleOffset
@@ -439,7 +723,9 @@ public class NoteInput implements AudioInput, Renderable {
 				} else {
 					count -= outSampleOffset;
 					if (DEBUG_NOTEINPUT_IO) {
-						debug("NoteInput: Insert Note at time "+time+" with offset "+outSampleOffset+" samples."); 
+						debug("NoteInput: Insert Note at time "
+								+ new AudioTime(nanoTime) + " with offset "
+								+ outSampleOffset + " samples.");
 					}
 				}
 				insertionTime = 0;
@@ -461,12 +747,16 @@ public class NoteInput implements AudioInput, Renderable {
 		}
 
 		// initialize the temporary render buffer
-		tempBuffer.changeSampleCount(count, false);
+		if (useFloat) {
+			floatTempBuffer.changeSampleCount(count, false);
+		} else {
+			tempBuffer.changeSampleCount(count, false);
+		}
 		if (count > 0) {
 			// calculate articulation data
 			// calculate volume level
 			// calculate sample rate factor
-			art.calculate(time);
+			art.calculate(nanoTime);
 
 			// sampleRateFactor does not include master tuning
 			double sampleRateFactor;
@@ -479,7 +769,7 @@ public class NoteInput implements AudioInput, Renderable {
 				if (relativePitch != lastRelativePitch) {
 					lastRelativePitch = relativePitch;
 					sampleRateFactor =
-							getSamplerateFactorFromRelativeNote(relativePitch);
+							FastMath.semitones2factor(relativePitch);
 					lastSampleRateFactor = sampleRateFactor;
 				} else {
 					sampleRateFactor = lastSampleRateFactor;
@@ -493,17 +783,27 @@ public class NoteInput implements AudioInput, Renderable {
 			// - convert from native format
 			// - convert sample-rate (if necessary)
 			// - apply any further processing like filters
-			int newCount =
-					osc.convert(tempBuffer, 0, count, sampleRateFactor
-							* synthParams.getMasterTuningFactor());
-			if (newCount < count) {
-				tempBuffer.changeSampleCount(count, true);
+			double tunedFactor =
+					sampleRateFactor * synthParams.getMasterTuningFactor();
+			if (useFloat) {
+				int newCount = osc.convert(floatTempBuffer, 0, count, tunedFactor);
+				if (newCount < count) {
+					// silence the samples that could not be converted
+					floatTempBuffer.makeSilence(newCount, count - newCount);
+				}
+				// let the articulation block further process this buffer
+				// (filters, ...).
+				art.process(floatTempBuffer);
+			} else {
+				int newCount = osc.convert(tempBuffer, 0, count, tunedFactor);
+				if (newCount < count) {
+					tempBuffer.changeSampleCount(count, true);
+				}
+				// let the articulation block further process this buffer
+				// (filters, ...).
+				art.process(tempBuffer);
 			}
 
-			// let the articulation block further process this buffer (filters,
-			// ...).
-			art.process(tempBuffer);
-
 			// take care of volume changes.
 			// for now: just stereo
 			double masterVolume = synthParams.getMasterVolumeInternal();
@@ -525,14 +825,30 @@ public class NoteInput implements AudioInput, Renderable {
 	 * to the time when the release segment is being entered.
 	 */
 	public void release(AudioTime time) {
+		release(time.getNanoTime());
+	}
+
+	/**
+	 * Enters the release segment of this note at the given time in
+	 * nanoseconds.
+	 */
+	public void release(long nanoTime) {
 		if (channel.sustainDown() || sostenuto) {
 			inhibitedRelease = true;
 		} else {
-			art.release(time);
-			osc.release(time);
+			released = true;
+			art.release(nanoTime);
+			osc.release(nanoTime);
 		}
 	}
 
+	/**
+	 * @return true if this note has entered the release segment
+	 */
+	public boolean isReleased() {
+		return released;
+	}
+
 	/**
 	 * @return true if the note should have already released, but sustain or
 	 *         sostenuto prevented it.
@@ -554,9 +870,16 @@ public class NoteInput implements AudioInput, Renderable {
 	 * sustain pedal is down).
 	 */
 	public void setSostenuto(AudioTime time, boolean active) {
+		setSostenuto(time.getNanoTime(), active);
+	}
+
+	/**
+	 * Activate or end sostenuto state, with the time in nanoseconds.
+	 */
+	public void setSostenuto(long nanoTime, boolean active) {
 		sostenuto = active;
 		if (!active) {
-			release(time);
+			release(nanoTime);
 		}
 	}
 
@@ -568,6 +891,35 @@ public class NoteInput implements AudioInput, Renderable {
 		doFadeOut = true;
 	}
 
+	/**
+	 * @return true if stopAsap() was called for this note
+	 */
+	public boolean isStopping() {
+		return doFadeOut;
+	}
+
+	/**
+	 * @return the time in nanoseconds when this note starts playing
+	 */
+	public long getInsertionTime() {
+		return startTime;
+	}
+
+	/**
+	 * Return the current linear gain of this note, i.e. the maximum gain of
+	 * all output channels as used for rendering the last buffer. It
+	 * incorporates envelope, LFO, velocity, channel volume, and master volume.
+	 * 
+	 * @return the current linear gain
+	 */
+	public double getCurrentLevel() {
+		double level = finalVolFactor[0];
+		if (finalVolFactor[1] > level) {
+			level = finalVolFactor[1];
+		}
+		return level;
+	}
+
 	/**
 	 * Returns true if this input stream has finished rendering data and further
 	 * calls to read would just return silence.
@@ -127,6 +127,17 @@ public abstract class Oscillator {
 	 */
 	protected double loopEnd;
 
+	/**
+	 * The interpolation tier, one of the Interpolation constants
+	 */
+	protected int interpolation = Interpolation.DEFAULT;
+
+	/**
+	 * Conversion buffer for the default implementation of
+	 * convertOneBlock(FloatAudioBuffer, int, int), allocated on demand.
+	 */
+	private AudioBuffer scratchBuffer;
+
 	/**
 	 * Protected default constructor so that descending classes can instantiate
 	 * an instance without using the public simple constructor below.
@@ -151,6 +162,27 @@ public abstract class Oscillator {
 		this.nativeChannels = channels;
 	}
 
+	/**
+	 * @return the interpolation tier, one of the Interpolation constants
+	 */
+	public int getInterpolation() {
+		return interpolation;
+	}
+
+	/**
+	 * Set the interpolation tier used for sample rate conversion. Subclasses
+	 * that do not implement a tier fall back to linear interpolation.
+	 * 
+	 * @param interpolation one of the Interpolation constants
+	 */
+	public void setInterpolation(int interpolation) {
+		if (!Interpolation.isValid(interpolation)) {
+			throw new IllegalArgumentException("illegal interpolation: "
+					+ interpolation);
+		}
+		this.interpolation = interpolation;
+	}
+
 	/**
 	 * Initialization of state variables. Should be called when setting the
 	 * parameters is done.
@@ -173,10 +205,39 @@ public abstract class Oscillator {
 	 */
 	public int convert(AudioBuffer buffer, int offset, int count,
 			double sampleRateFactor) {
+		return convertImpl(buffer, null, buffer.getSampleRate(), offset,
+				count, sampleRateFactor);
+	}
+
+	/**
+	 * Writes count samples to the float buffer at position offset. This is
+	 * the float rendering path's version of convert(AudioBuffer, int, int,
+	 * double), with the same semantics.
+	 * 
+	 * @param buffer the buffer to be written to
+	 * @param offset the offset in samples where to write to buffer
+	 * @param count the number of samples to write to buffer
+	 * @param sampleRateFactor the factor to be applied in addition to the
+	 *            conversion from nativeSampleRate to buffer.getSampleRate().
+	 * @return the number of samples written to buffer
+	 */
+	public int convert(FloatAudioBuffer buffer, int offset, int count,
+			double sampleRateFactor) {
+		return convertImpl(null, buffer, buffer.getSampleRate(), offset,
+				count, sampleRateFactor);
+	}
+
+	/**
+	 * The implementation of the convert() methods: exactly one of
+	 * doubleBuffer and floatBuffer is non-null.
+	 */
+	private final int convertImpl(AudioBuffer doubleBuffer,
+			FloatAudioBuffer floatBuffer, double bufferSampleRate, int offset,
+			int count, double sampleRateFactor) {
 		// first check if the output sample rate has changed. If so, init
-		if (buffer.getSampleRate() != outSampleRate
+		if (bufferSampleRate != outSampleRate
 				|| sampleRateFactor != this.sampleRateFactor) {
-			initSampleRate(buffer.getSampleRate(), sampleRateFactor);
+			initSampleRate(bufferSampleRate, sampleRateFactor);
 		}
 		if (sampleRateFactor == 0.0 || count == 0) {
 			return 0;
@@ -244,14 +305,24 @@ public abstract class Oscillator {
 			}
 
 			// do the actual conversion
-			convertOneBlock(buffer, offset, thisCount);
+			if (floatBuffer != null) {
+				convertOneBlock(floatBuffer, offset, thisCount);
+			} else {
+				convertOneBlock(doubleBuffer, offset, thisCount);
+			}
 			converted += thisCount;
 			offset += thisCount;
 			if (DEBUG_OSC) {
-				float sample1 =
-						(float) ((int) (buffer.getChannel(0)[0] * 1000.0)) / 1000.0f;
-				float sample2 =
-						(float) ((int) (buffer.getChannel(0)[thisCount - 1] * 1000.0)) / 1000.0f;
+				double first, last;
+				if (floatBuffer != null) {
+					first = floatBuffer.getChannel(0)[0];
+					last = floatBuffer.getChannel(0)[thisCount - 1];
+				} else {
+					first = doubleBuffer.getChannel(0)[0];
+					last = doubleBuffer.getChannel(0)[thisCount - 1];
+				}
+				float sample1 = (float) ((int) (first * 1000.0)) / 1000.0f;
+				float sample2 = (float) ((int) (last * 1000.0)) / 1000.0f;
 				debug("   after conversion: first sample=" + sample1
 						+ " last sample = " + sample2);
 			}
@@ -276,6 +347,35 @@ public abstract class Oscillator {
 	protected abstract void convertOneBlock(AudioBuffer buffer, int offset,
 			int count);
 
+	/**
+	 * Convert and write into the float buffer <code>count</code> output
+	 * samples. The default implementation converts to a double precision
+	 * scratch buffer and copies the result. Subclasses should override this
+	 * method with a direct conversion to float samples.
+	 * 
+	 * @param buffer The buffer to which to write the samples
+	 * @param offset at which sample position to write the samples
+	 * @param count how many samples to write to buffer
+	 */
+	protected void convertOneBlock(FloatAudioBuffer buffer, int offset,
+			int count) {
+		if (scratchBuffer == null
+				|| scratchBuffer.getChannelCount() != buffer.getChannelCount()) {
+			scratchBuffer = new AudioBuffer(buffer.getChannelCount(), count,
+					buffer.getSampleRate());
+		} else {
+			scratchBuffer.changeSampleCount(count, false);
+		}
+		convertOneBlock(scratchBuffer, 0, count);
+		for (int c = 0; c < buffer.getChannelCount(); c++) {
+			double[] src = scratchBuffer.getChannel(c);
+			float[] dest = buffer.getChannel(c);
+			for (int i = 0; i < count; i++) {
+				dest[offset + i] = (float) src[i];
+			}
+		}
+	}
+
 	private void initSampleRate(double newSampleRate, double newSampleRateFactor) {
 		if (isAlmost(newSampleRate, 0.0) || isAlmost(newSampleRateFactor, 0.0)) {
 			sampleRateFactor = 0.0;
@@ -292,12 +392,25 @@ public abstract class Oscillator {
 		}
 	}
 
-	public void release(AudioTime time) {
+	public final void release(AudioTime time) {
+		release(time.getNanoTime());
+	}
+
+	public void release(long nanoTime) {
 		if (loopMode == LOOPMODE_UNTIL_RELEASE) {
 			loopMode = LOOPMODE_NONE;
 		}
 	}
 
+	/**
+	 * Called when the voice of this oscillator is removed from the mixer.
+	 * Subclasses release resources that were acquired for playback here. This
+	 * method may be called more than once.
+	 */
+	public void close() {
+		// nothing to do
+	}
+
 	public boolean endReached() {
 		return (nativePos >= nativeSamplesEndPos);
 	}
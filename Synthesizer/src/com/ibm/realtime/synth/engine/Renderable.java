@@ -22,6 +22,13 @@ public interface Renderable {
 	 */
 	public boolean render(AudioTime time);
 
+	/**
+	 * Same as render(AudioTime), with the time in nanoseconds.
+	 * @param nanoTime the time of the buffer to be rendered.
+	 * @return true if the method actually rendered
+	 */
+	public boolean render(long nanoTime);
+
 	/**
 	 * Checks if this Renderable has already rendered a buffer for the 
 	 * specified time. This method should allow for 125microseconds grace time
@@ -33,4 +40,13 @@ public interface Renderable {
 	 */
 	public boolean alreadyRendered(AudioTime currTime);
 
+	/**
+	 * Same as alreadyRendered(AudioTime), with the time in nanoseconds.
+	 * 
+	 * @param nanoTime the time to be tested
+	 * @return true if this Renderable has already rendered a block of audio 
+	 * data for the specified time.
+	 */
+	public boolean alreadyRendered(long nanoTime);
+
 }
@@ -0,0 +1,92 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * A bounded, lock-free single-producer single-consumer queue of audio
+ * streams, used by AudioMixer to pass streams between threads without
+ * locking and without allocation.
+ * <p>
+ * sync note: offer() must only be called by one thread at a time, and
+ * poll() must only be called by one thread at a time. Producer and consumer
+ * may be different threads.
+ */
+final class StreamQueue {
+
+	/**
+	 * the ring buffer
+	 */
+	private final AudioInput[] items;
+
+	/**
+	 * items.length - 1, for fast index calculation
+	 */
+	private final int mask;
+
+	/**
+	 * The index of the next item to be read. Only written by the consumer.
+	 */
+	private volatile long head = 0;
+
+	/**
+	 * The index of the next item to be written. Only written by the producer.
+	 */
+	private volatile long tail = 0;
+
+	/**
+	 * Create a queue with at least the given capacity. The capacity is
+	 * rounded up to the next power of 2.
+	 */
+	StreamQueue(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		items = new AudioInput[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Append the stream to the queue (producer only).
+	 *
+	 * @return false if the queue is full
+	 */
+	boolean offer(AudioInput ai) {
+		long t = tail;
+		if (t - head >= items.length) {
+			return false;
+		}
+		items[((int) t) & mask] = ai;
+		// the volatile write publishes the item to the consumer
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Remove the first stream from the queue (consumer only).
+	 *
+	 * @return the first stream, or null if the queue is empty
+	 */
+	AudioInput poll() {
+		long h = head;
+		if (h == tail) {
+			return null;
+		}
+		int index = ((int) h) & mask;
+		AudioInput ai = items[index];
+		items[index] = null;
+		head = h + 1;
+		return ai;
+	}
+
+	/**
+	 * @return the number of streams in the queue. If producer or consumer are
+	 *         active concurrently, this is a snapshot.
+	 */
+	int size() {
+		// read head first, so that the result is never negative
+		long h = head;
+		return (int) (tail - h);
+	}
+}
@@ -39,10 +39,11 @@ import java.util.*;
  * list of AudioRendererListeners. First, the synth dispatches all MIDI events
  * for that slice (in the AudioRendererListener thread). Once that is done, it
  * signals the AsynchronousRenderer thread the beginning of a new slice. From
- * now on, all threads of the AsynchronousRenderer simultaneously try to render
- * the Renderable lines of the mixer, in the same order. Meanwhile, the
- * AudioPullThread will finish serving AudioRendererListeners and then call the
- * mixer's read() method. The mixer is unaware of any AsynchronousRenderer and
+ * now on, all threads of the AsynchronousRenderer simultaneously render
+ * the Renderable lines of the mixer, distributed by their estimated cost and
+ * balanced by work stealing. The AudioPullThread takes part in rendering until
+ * all lines are claimed, then it will finish serving AudioRendererListeners
+ * and then call the mixer's read() method. The mixer is unaware of any AsynchronousRenderer and
  * will read all AudioInput lines in order. So, all threads, plus the thread in
  * mixer.read() compete for rendering the line's slices.
  * <p>
@@ -62,10 +63,9 @@ import java.util.*;
  * If there are enough AsynchronousRenderer threads this blocking is no waste,
  * since the asychronous threads will sufficiently exploit all processor cores.</li>
  * </ul>
- * The scenario 1 above is particularly efficient since all threads start
- * working on the lines in the same order. That means that statistically render
- * threads may render higher numbered lines, while the read() method already
- * mixes the beginning lines.
+ * Since the AudioPullThread only calls read() once all lines are claimed by
+ * a thread, scenario 1 is rare: it only happens for lines that are added to
+ * the mixer after the slice was dispatched.
  * <p>
  * <b>Bottlenecks that could be further optimized:</b><br>
  * <ul>
@@ -80,11 +80,13 @@ import java.util.*;
  * is started before writing the last buffer to the sink, the event dispatching
  * may delay the writing unnecessarily and in an uncontrolled way. If the next
  * slice is started after writing, we miss the opportunity to use the blocking
- * time of the sink for rendering.</li>
+ * time of the sink for rendering. AudioPullThread's pipelined mode (see
+ * AudioPullThread.setPipelineDepth()) renders the next slices while the sink
+ * writes, at the cost of a higher, but exactly known latency.</li>
  * 
  * @author florian
  */
-public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
+public class Synthesizer implements MidiIn.ShortListener, AudioRendererListener,
 		AsynchExec.Listener<MidiEvent> {
 
 	public static boolean DEBUG_SYNTH = false;
@@ -127,10 +129,26 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	public static final int NOTE_DISPATCHER_FORCE_ASYNCHRONOUS = 2;
 
 	/**
-	 * The list of non-NoteOn events for correct scheduling
+	 * The time ordered queue of incoming MIDI events
 	 */
 	private EventQueue eventQueue;
 
+	/**
+	 * The consumer of the event queue: dispatches the events
+	 */
+	private final EventQueue.Consumer eventDispatcher = new EventQueue.Consumer() {
+		public void dispatch(long nanoTime, MidiIn source, int channel,
+				int status, int data1, int data2) {
+			dispatchEvent(nanoTime, source, channel, status, data1, data2);
+		}
+	};
+
+	/**
+	 * The index of all playing voices, for fast access by channel, note, and
+	 * exclusive level.
+	 */
+	private VoiceTable voices;
+
 	/**
 	 * The array of MIDI channels
 	 */
@@ -155,17 +173,18 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 
 	/**
 	 * The end time of the last rendered audio slice i.e. the start time of the
-	 * next slice to be rendered. So this time has already passed and all events
-	 * to be scheduled before this time must be immediately processed
+	 * next slice to be rendered, in nanoseconds. So this time has already
+	 * passed and all events to be scheduled before this time must be
+	 * immediately processed
 	 */
-	private volatile AudioTime nextAudioSliceTime = new AudioTime(0);
+	private volatile long nextAudioSliceTime = 0;
 
 	/**
 	 * Keep track of the duration of the last audio slice in order to
 	 * extrapolate the duration of the next audio slice. This is used in the
 	 * asynchronous event dispatcher.
 	 */
-	private AudioTime nextAudioSliceDuration = new AudioTime(0);
+	private volatile long nextAudioSliceDuration = 0;
 
 	/**
 	 * An optional pointer to the audio clock of the rendering device, with
@@ -189,6 +208,12 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	 */
 	private AsynchronousRenderer asynchRenderer = null;
 
+	/**
+	 * The array for retrieving the Renderables from the mixer in every
+	 * slice. Only accessed by newAudioSlice().
+	 */
+	private Renderable[] renderables = new Renderable[64];
+
 	/**
 	 * if yes, asynchronous dispatching is requested
 	 */
@@ -221,6 +246,40 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 
 	private boolean started = false;
 
+	/**
+	 * The default maximum number of voices playing at the same time: 0, no
+	 * limit
+	 */
+	public static final int DEFAULT_MAX_POLYPHONY = 0;
+
+	/**
+	 * The default maximum number of voices playing at the same time on one
+	 * MIDI channel: 0, no limit
+	 */
+	public static final int DEFAULT_MAX_CHANNEL_POLYPHONY = 0;
+
+	/**
+	 * The maximum number of voices playing at the same time, or 0 for no limit
+	 */
+	private int maxPolyphony = DEFAULT_MAX_POLYPHONY;
+
+	/**
+	 * The maximum number of voices playing at the same time on one channel, or
+	 * 0 for no limit
+	 */
+	private int maxChannelPolyphony = DEFAULT_MAX_CHANNEL_POLYPHONY;
+
+	/**
+	 * The policy for choosing the voices to stop when a polyphony limit is
+	 * reached.
+	 */
+	private VoiceStealingPolicy stealingPolicy = VoiceStealingPolicy.DEFAULT;
+
+	/**
+	 * The number of voices stopped because of the polyphony limits
+	 */
+	private volatile int stolenVoiceCount = 0;
+
 	/**
 	 * Constructor without parameters. This will create a default mixer to be
 	 * used.
@@ -246,19 +305,35 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	 * @param m the initial mixer
 	 */
 	public Synthesizer(Soundbank sb, AudioMixer m) {
-		init();
+		this(sb, m, false);
+	}
+
+	/**
+	 * Constructor with parameters, selecting the precision of the render
+	 * path. The float render path renders the voices and mixes them with
+	 * 32-bit float samples, which halves the memory traffic of the inner
+	 * loops. The double precision path is the reference implementation.
+	 * 
+	 * @param sb the initial soundbank
+	 * @param m the initial mixer
+	 * @param floatRendering if true, render with 32-bit float precision,
+	 *            otherwise with double precision
+	 */
+	public Synthesizer(Soundbank sb, AudioMixer m, boolean floatRendering) {
+		init(floatRendering);
 		setSoundbank(sb);
 		setMixer(m);
 	}
 
 	/** initialization tasks common to all constructors */
-	private final void init() {
+	private final void init(boolean floatRendering) {
 		channels = new MidiChannel[16];
 		for (int i = 0; i < channels.length; i++) {
 			channels[i] = new MidiChannel(i);
 		}
-		params = new Params();
+		params = new Params(floatRendering);
 		eventQueue = new EventQueue();
+		voices = new VoiceTable();
 		listeners = new ArrayList<SynthesizerListener>(1);
 		listenerHandler = new AsynchExec<MidiEvent>(this,
 				"Synthesizer listener handler");
@@ -275,6 +350,8 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	 */
 	public void start() {
 		started = true;
+		// re-enable parking of the note dispatcher after a previous close()
+		eventQueue.open();
 		listenerHandler.start();
 		// start asynchronous renderer
 		setRenderThreadCount(threadCount);
@@ -320,6 +397,7 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 			throw new IllegalArgumentException(
 					"may not set the synth's mixer to null");
 		}
+		mixer.setFloatRendering(params.isFloatRendering());
 		this.aMixer = mixer;
 	}
 
@@ -381,6 +459,83 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 				: asynchRenderer.getThreadCount();
 	}
 
+	/**
+	 * Set the maximum number of voices that can play at the same time. When a
+	 * new note would exceed this limit, playing voices are stopped according
+	 * to the voice stealing policy. One note may use several voices, e.g. for
+	 * stereo samples.
+	 * 
+	 * @param voices the maximum number of voices, or 0 for no limit
+	 * @exception IllegalArgumentException if voices is negative
+	 */
+	public void setMaxPolyphony(int voices) {
+		if (voices < 0) {
+			throw new IllegalArgumentException("illegal polyphony: " + voices);
+		}
+		maxPolyphony = voices;
+	}
+
+	/**
+	 * @return the maximum number of voices, or 0 if there is no limit
+	 */
+	public int getMaxPolyphony() {
+		return maxPolyphony;
+	}
+
+	/**
+	 * Set the maximum number of voices that can play at the same time on one
+	 * MIDI channel.
+	 * 
+	 * @param voices the maximum number of voices per channel, or 0 for no
+	 *            limit
+	 * @exception IllegalArgumentException if voices is negative
+	 */
+	public void setMaxChannelPolyphony(int voices) {
+		if (voices < 0) {
+			throw new IllegalArgumentException("illegal polyphony: " + voices);
+		}
+		maxChannelPolyphony = voices;
+	}
+
+	/**
+	 * @return the maximum number of voices per channel, or 0 if there is no
+	 *         limit
+	 */
+	public int getMaxChannelPolyphony() {
+		return maxChannelPolyphony;
+	}
+
+	/**
+	 * Set the policy for choosing the voices to stop when a polyphony limit
+	 * is reached.
+	 * 
+	 * @param policy the new policy, e.g. one of the static instances in
+	 *            VoiceStealingPolicy
+	 * @exception IllegalArgumentException if policy is null
+	 */
+	public void setVoiceStealingPolicy(VoiceStealingPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException(
+					"may not set the voice stealing policy to null");
+		}
+		stealingPolicy = policy;
+	}
+
+	/**
+	 * @return the current voice stealing policy
+	 */
+	public VoiceStealingPolicy getVoiceStealingPolicy() {
+		return stealingPolicy;
+	}
+
+	/**
+	 * @return the number of voices stopped so far because of the polyphony
+	 *         limits
+	 */
+	public int getStolenVoiceCount() {
+		return stolenVoiceCount;
+	}
+
 	/**
 	 * Either enable the asynchronous note dispatcher or disable it. If it is
 	 * disabled, note dispatching is done from the newAudioSlice callback.
@@ -574,7 +729,7 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 			}
 		}
 		reset();
-		nextAudioSliceTime = new AudioTime(0);
+		nextAudioSliceTime = 0;
 	}
 
 	/**
@@ -602,15 +757,13 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
+	 * Find a playing voice on the given channel that was triggered by the
+	 * given note.
 	 */
-	private NoteInput getNoteFromMixer(AudioMixer localMixer,
-			MidiChannel channel, int note) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+	private NoteInput getPlayingNote(MidiChannel channel, int note) {
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstForNote(channel, note); ni != null;
+					ni = ni.nextForNote) {
 				if (ni.getMidiChannel() == channel
 						&& ni.getTriggerNote() == note && !ni.done()) {
 					return ni;
@@ -623,25 +776,21 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	/**
 	 * pre-conditions:
 	 * <li>exclusiveLevel != 0
-	 * <li>localMixer!=null
 	 * 
 	 * @param exclusiveLevel
 	 * @param program
 	 * @param bank
-	 * @return
 	 */
-	private NoteInput stopExclusiveNotes(AudioMixer localMixer,
-			int exclusiveLevel, int program, int bank) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+	private void stopExclusiveNotes(int exclusiveLevel, int program, int bank) {
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstExclusive(exclusiveLevel); ni != null;
+					ni = ni.nextExclusive) {
 				Patch patch = ni.getPatch();
 				if (patch.getExclusiveLevel() == exclusiveLevel
 						&& patch.getBank() == bank
 						&& patch.getProgram() == program && !ni.done()) {
 					if (DEBUG_SYNTH) {
-						debug("Synth " + nextAudioSliceTime.getMillisTime()
+						debug("Synth " + (nextAudioSliceTime / 1000000L)
 								+ ": stopping exclusive note, level="
 								+ patch.getExclusiveLevel() + " note:" + ni);
 					}
@@ -649,28 +798,22 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 				}
 			}
 		}
-		return null;
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
-	 * 
 	 * @param channel
 	 * @param time
 	 */
-	private void releaseSustainedNotes(AudioMixer localMixer,
-			MidiChannel channel, AudioTime time) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+	private void releaseSustainedNotes(MidiChannel channel, long time) {
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstOnChannel(channel); ni != null;
+					ni = ni.nextOnChannel) {
 				if (ni.getMidiChannel() == channel && ni.isReleaseInhibited()
 						&& !ni.done()) {
 					// no need to check linked notes
 					ni.release(time);
 					if (DEBUG_SYNTH) {
-						debug("Synth " + nextAudioSliceTime.getMillisTime()
+						debug("Synth " + (nextAudioSliceTime / 1000000L)
 								+ ": releasing sustained note:" + ni);
 					}
 				}
@@ -679,24 +822,20 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
-	 * 
 	 * @param channel
 	 * @param time
 	 * @param active
 	 */
-	private void handleSostenuto(AudioMixer localMixer, MidiChannel channel,
-			AudioTime time, boolean active) {
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+	private void handleSostenuto(MidiChannel channel, long time,
+			boolean active) {
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstOnChannel(channel); ni != null;
+					ni = ni.nextOnChannel) {
 				if (ni.getMidiChannel() == channel && !ni.done()) {
 					// no need to check linked notes
 					ni.setSostenuto(time, active);
 					if (DEBUG_SYNTH) {
-						debug("Synth " + nextAudioSliceTime.getMillisTime()
+						debug("Synth " + (nextAudioSliceTime / 1000000L)
 								+ ": " + "setting sostenuto to " + active
 								+ ": note:" + ni);
 					}
@@ -706,20 +845,16 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
-	 * 
 	 * @param channel
 	 */
-	private void handleAllSoundOff(AudioMixer localMixer, MidiChannel channel) {
+	private void handleAllSoundOff(MidiChannel channel) {
 		if (DEBUG_SYNTH) {
-			debug("Synth " + nextAudioSliceTime.getMillisTime()
+			debug("Synth " + (nextAudioSliceTime / 1000000L)
 					+ ": all sound off channel " + channel);
 		}
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstOnChannel(channel); ni != null;
+					ni = ni.nextOnChannel) {
 				if (ni.getMidiChannel() == channel) {
 					// no need to check linked notes
 					ni.stopAsap();
@@ -729,22 +864,17 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	}
 
 	/**
-	 * pre-conditions:
-	 * <li>localMixer!=null
-	 * 
 	 * @param channel
 	 * @param time
 	 */
-	private void handleAllNotesOff(AudioMixer localMixer, MidiChannel channel,
-			AudioTime time) {
+	private void handleAllNotesOff(MidiChannel channel, long time) {
 		if (DEBUG_SYNTH) {
-			debug("Synth " + nextAudioSliceTime.getMillisTime()
+			debug("Synth " + (nextAudioSliceTime / 1000000L)
 					+ ": all notes off channel " + channel);
 		}
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstOnChannel(channel); ni != null;
+					ni = ni.nextOnChannel) {
 				if (ni.getMidiChannel() == channel && !ni.done()) {
 					// no need to check linked notes
 					ni.release(time);
@@ -753,12 +883,133 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 		}
 	}
 
-	private void stopAsap(NoteInput ni) {
+	/**
+	 * Stop the note and all its linked notes.
+	 * 
+	 * @return the number of voices that were playing and are stopped now
+	 */
+	private int stopAsap(NoteInput ni) {
 		NoteInput firstNI = ni;
+		int count = 0;
 		do {
+			if (isVoicePlaying(ni)) {
+				count++;
+			}
 			ni.stopAsap();
 			ni = ni.getLinkedNoteInput();
 		} while (ni != null && ni != firstNI);
+		return count;
+	}
+
+	/**
+	 * @return true if the voice counts for the polyphony limits, i.e. if it is
+	 *         not finished and not about to be stopped.
+	 */
+	private static boolean isVoicePlaying(NoteInput ni) {
+		return !ni.isStopping() && !ni.done();
+	}
+
+	/**
+	 * Make room for newVoices new voices on the given channel by stopping
+	 * playing voices as selected by the voice stealing policy, so that the
+	 * global and the per-channel polyphony limits are not exceeded.
+	 */
+	private void limitPolyphony(MidiChannel channel, int note, int newVoices) {
+		int maxGlobal = maxPolyphony;
+		int maxChannel = maxChannelPolyphony;
+		if (maxGlobal <= 0 && maxChannel <= 0) {
+			return;
+		}
+		synchronized (voices) {
+			// the table also contains voices that are done or stopping, so
+			// only count if a limit can be exceeded at all
+			if ((maxGlobal <= 0 || voices.getCount() + newVoices <= maxGlobal)
+					&& maxChannel <= 0) {
+				return;
+			}
+			int channelCount = 0;
+			if (maxChannel > 0) {
+				for (NoteInput ni = voices.getFirstOnChannel(channel); ni != null;
+						ni = ni.nextOnChannel) {
+					if (isVoicePlaying(ni)) {
+						channelCount++;
+					}
+				}
+				// first enforce the channel limit by stealing on this channel
+				// only
+				while (channelCount > 0
+						&& channelCount + newVoices > maxChannel) {
+					NoteInput victim = selectVictim(channel, channel, note);
+					if (victim == null) {
+						break;
+					}
+					channelCount -= stealVoice(victim);
+				}
+			}
+			if (maxGlobal <= 0 || voices.getCount() + newVoices <= maxGlobal) {
+				return;
+			}
+			int globalCount = 0;
+			for (NoteInput ni = voices.getFirst(); ni != null;
+					ni = ni.nextVoice) {
+				if (isVoicePlaying(ni)) {
+					globalCount++;
+				}
+			}
+			// then enforce the global limit
+			while (globalCount > 0 && globalCount + newVoices > maxGlobal) {
+				NoteInput victim = selectVictim(null, channel, note);
+				if (victim == null) {
+					break;
+				}
+				globalCount -= stealVoice(victim);
+			}
+		}
+	}
+
+	/**
+	 * Select the voice to be stolen according to the voice stealing policy.
+	 * <p>
+	 * sync note: must be called while synchronized on voices
+	 * 
+	 * @param onlyChannel if non-null, only select voices on this channel
+	 * @param channel the channel of the new note
+	 * @param note the new note
+	 * @return the voice to steal, or null if no playing voice is found
+	 */
+	private NoteInput selectVictim(MidiChannel onlyChannel,
+			MidiChannel channel, int note) {
+		VoiceStealingPolicy policy = stealingPolicy;
+		NoteInput victim = null;
+		NoteInput ni = (onlyChannel != null)
+				? voices.getFirstOnChannel(onlyChannel) : voices.getFirst();
+		while (ni != null) {
+			if ((onlyChannel == null || ni.getMidiChannel() == onlyChannel)
+					&& isVoicePlaying(ni)
+					&& (victim == null || policy.isBetterVictim(ni, victim,
+							channel, note))) {
+				victim = ni;
+			}
+			ni = (onlyChannel != null) ? ni.nextOnChannel : ni.nextVoice;
+		}
+		return victim;
+	}
+
+	/**
+	 * Stop the given voice and its linked voices because of the polyphony
+	 * limit.
+	 * 
+	 * @return the number of stopped voices
+	 */
+	private int stealVoice(NoteInput victim) {
+		if (DEBUG_SYNTH) {
+			debug("Synth " + (nextAudioSliceTime / 1000000L) + ": "
+					+ "polyphony limit reached, stealing voice " + victim);
+		}
+		int stopped = stopAsap(victim);
+		stolenVoiceCount += stopped;
+		// make sure that the loop in limitPolyphony terminates
+		return (stopped > 0) ? stopped : 1;
 	}
 
 	private void noteOn(AudioTime time, MidiChannel channel, int note, int vel) {
@@ -780,10 +1031,10 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 		} else {
 			Patch patch = thisNoteStream.getPatch();
 			if (patch.isSelfExclusive()) {
-				NoteInput ni = getNoteFromMixer(localMixer, channel, note);
+				NoteInput ni = getPlayingNote(channel, note);
 				if (ni != null) {
 					if (DEBUG_SYNTH) {
-						debug("Synth " + nextAudioSliceTime.getMillisTime()
+						debug("Synth " + (nextAudioSliceTime / 1000000L)
 								+ ": " + "stopping self-exclusive note " + ni);
 					}
 					stopAsap(ni);
@@ -792,30 +1043,44 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 
 			if (patch.getExclusiveLevel() != 0) {
 				if (DEBUG_SYNTH) {
-					debug("Synth " + nextAudioSliceTime.getMillisTime() + ": "
+					debug("Synth " + (nextAudioSliceTime / 1000000L) + ": "
 							+ "playing exclusive note, level="
 							+ patch.getExclusiveLevel());
 				}
-				stopExclusiveNotes(localMixer, patch.getExclusiveLevel(),
+				stopExclusiveNotes(patch.getExclusiveLevel(),
 						channel.getProgram(), channel.getBank());
 			}
+
+			// make room for the new voices
+			int newVoices = 0;
+			do {
+				newVoices++;
+				thisNoteStream = thisNoteStream.getLinkedNoteInput();
+			} while (thisNoteStream != null
+					&& thisNoteStream != firstNoteStream);
+			thisNoteStream = firstNoteStream;
+			limitPolyphony(channel, note, newVoices);
+
 			// loop through all linked streams
 			do {
 				// allow identification of this NoteInput with the corresponding
 				// NoteOff message (NoteInput may internally store a different
 				// note number):
 				thisNoteStream.setTriggerNote(note);
+				// add to the voice table before the mixer: the mixer will
+				// remove it from the table once it is done
+				voices.add(thisNoteStream);
 				localMixer.addAudioStream(thisNoteStream);
 				if (DEBUG_SYNTH_TIMING) {
 					if (thisNoteStream != firstNoteStream) {
 						debug("Synth NoteOn: nextAudioSlice="
-								+ nextAudioSliceTime.getMillisTime() + "ms. "
+								+ (nextAudioSliceTime / 1000000L) + "ms. "
 								+ "adding linked instrument with "
 								+ time.subtract(nextAudioSliceTime)
 								+ " delay: " + thisNoteStream);
 					} else {
 						debug("Synth NoteOn: nextAudioSlice="
-								+ nextAudioSliceTime.getMillisTime() + "ms. "
+								+ (nextAudioSliceTime / 1000000L) + "ms. "
 								+ "adding instrument with "
 								+ time.subtract(nextAudioSliceTime)
 								+ " delay: " + thisNoteStream);
@@ -830,16 +1095,12 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 		}
 	}
 
-	private void noteOff(AudioTime time, MidiChannel channel, int note) {
-		AudioMixer localMixer = getMixer();
-		if (localMixer == null) return;
-
+	private void noteOff(long time, MidiChannel channel, int note) {
 		// Note: there may be several NoteInput's for one key, so we need to
-		// iterate through all lines
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+		// iterate through all voices of this key
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstForNote(channel, note); ni != null;
+					ni = ni.nextForNote) {
 				if (ni.getMidiChannel() == channel
 						&& ni.getTriggerNote() == note) {
 					if (DEBUG_SYNTH) {
@@ -863,76 +1124,75 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	 * 
 	 * @param event the event to get dispatched
 	 */
-	private final void dispatchEvent(MidiEvent event) {
+	private final void dispatchEvent(long nanoTime, MidiIn source,
+			int channelNum, int status, int data1, int data2) {
 		if (DEBUG_SYNTH_IO) {
-			debug("Synth: Dispatching MIDI event " + event);
+			debug("Synth: Dispatching MIDI event: time="
+					+ (nanoTime / 1000000L) + "ms channel " + channelNum
+					+ ", 0x" + Integer.toHexString(status) + ", " + data1
+					+ ", " + data2);
 		}
-		MidiChannel channel = getChannel(event.getChannel());
-		switch (event.getStatus()) {
+		MidiChannel channel = getChannel(channelNum);
+		switch (status) {
 		case 0x80: // NOTE OFF
-			noteOff(event.getTime(), channel, event.getData1());
+			noteOff(nanoTime, channel, data1);
 			break;
 		case 0x90: // NOTE ON
-			if (event.getData2() == 0) {
+			if (data2 == 0) {
 				// NOTE ON with velocity=0 is equivalent to NOTE OFF
-				noteOff(event.getTime(), channel, event.getData1());
+				noteOff(nanoTime, channel, data1);
 			} else {
-				noteOn(event.getTime(), channel, event.getData1(),
-						event.getData2());
+				noteOn(new AudioTime(nanoTime), channel, data1, data2);
 			}
 			break;
 		case 0xB0: // Controller Change
-			channel.parseController(event.getData1(), event.getData2());
-			handleControlChange(event.getTime(), channel, event.getData1(),
-					event.getData2());
+			channel.parseController(data1, data2);
+			handleControlChange(nanoTime, channel, data1, data2);
 			break;
 		case 0xC0: // Program Change
-			channel.parseProgramChange(event.getData1());
+			channel.parseProgramChange(data1);
 			break;
 		case 0xD0: // Channel Pressure
-			channel.parseChannelPressure(event.getData1());
+			channel.parseChannelPressure(data1);
 			break;
 		case 0xE0: // Pitch Wheel
-			channel.setPitchWheel(event.getData2(), event.getData1());
+			channel.setPitchWheel(data2, data1);
 			handlePitchWheel(channel);
 			break;
 		}
 		if (listeners.size() > 0) {
 			// send this event to all listeners (asynchronously)
-			listenerHandler.invokeLater(event);
+			listenerHandler.invokeLater(new MidiEvent(source, nanoTime,
+					channelNum, status, data1, data2));
 		}
 	}
 
-	private void handleControlChange(AudioTime time, MidiChannel channel,
+	private void handleControlChange(long nanoTime, MidiChannel channel,
 			int num, int data) {
-		AudioMixer localMixer = getMixer();
-		if (localMixer == null) return;
-
 		switch (num) {
 		case MidiChannel.SUSTAIN_PEDAL:
 			if (data < 64) {
-				releaseSustainedNotes(localMixer, channel, time);
+				releaseSustainedNotes(channel, nanoTime);
 			}
 			break;
 		case MidiChannel.SOSTENUTO_PEDAL:
-			handleSostenuto(localMixer, channel, time, data >= 64);
+			handleSostenuto(channel, nanoTime, data >= 64);
 			break;
 		case MidiChannel.ALL_SOUND_OFF:
-			handleAllSoundOff(localMixer, channel);
+			handleAllSoundOff(channel);
 			break;
 		case MidiChannel.RESET_ALL_CONTROLLERS:
 			// TODO: notify the articulation objects individually of the changed
 			// controllers?
 			break;
 		case MidiChannel.ALL_NOTES_OFF:
-			handleAllNotesOff(localMixer, channel, time);
+			handleAllNotesOff(channel, nanoTime);
 			break;
 		}
 		// notify the articulation modules of all playing notes on this channel
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstOnChannel(channel); ni != null;
+					ni = ni.nextOnChannel) {
 				if (ni.getMidiChannel() == channel && !ni.done()) {
 					// no need to check linked notes
 					ni.getArticulation().controlChange(num, data);
@@ -945,12 +1205,9 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	 * notify all active NoteInput voices of the change in pitch wheel.
 	 */
 	private void handlePitchWheel(MidiChannel channel) {
-		AudioMixer localMixer = getMixer();
-		if (localMixer == null) return;
-		AudioInput[] lines = localMixer.getAudioStreamsArray();
-		for (AudioInput ai : lines) {
-			if (ai instanceof NoteInput) {
-				NoteInput ni = (NoteInput) ai;
+		synchronized (voices) {
+			for (NoteInput ni = voices.getFirstOnChannel(channel); ni != null;
+					ni = ni.nextOnChannel) {
 				if (ni.getMidiChannel() == channel && !ni.done()) {
 					// no need to check linked notes
 					ni.getArticulation().pitchWheelChange();
@@ -965,58 +1222,76 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	 * Receive an event. The event's time should be aligned with the time of the
 	 * Mixer, i.e. with the time passed to newAudioSlice().
 	 * <p>
-	 * The event's time (plus the FixedDelayOffset) is compared to the last
-	 * audio slice's time. If it is smaller, it should have already been played
-	 * and it is dispatched and parsed immediately. All other events (except
-	 * long events and real time events) are added to the scheduler queue which
-	 * is processed in newAudioSlice().
+	 * Short events are passed on to
+	 * {@link #midiInReceived(MidiIn, long, int, int, int, int)}. Long events
+	 * are ignored.
 	 */
-	// note: this method must not be synchronized, otherwise deadlock with
-	// newAudioSlice()!
 	public void midiInReceived(MidiEvent event) {
+		if (DEBUG_SYNTH_IO) {
+			debug("Synth: Incoming MIDI event: " + event);
+		}
+		if (!event.isLong()) {
+			midiInReceived(event.getSource(), event.getTime().getNanoTime(),
+					event.getChannel(), event.getStatus(), event.getData1(),
+					event.getData2());
+		}
+	}
+
+	// listener MidiIn.ShortListener
 
+	/**
+	 * Receive a short event. The event's time should be aligned with the time
+	 * of the Mixer, i.e. with the time passed to newAudioSlice().
+	 * <p>
+	 * The fixed delay is added to the event's time, and all events (except
+	 * real time events) are added to the scheduler queue which is processed
+	 * in newAudioSlice() or by the note dispatcher thread. The events are
+	 * stored as primitive records, so that no objects are allocated on the
+	 * way from the MIDI input to dispatchEvent().
+	 */
+	// note: this method must not be synchronized, otherwise deadlock with
+	// newAudioSlice()!
+	public void midiInReceived(MidiIn source, long nanoTime, int channel,
+			int status, int data1, int data2) {
+		if (status > 0xF0) {
+			// real time events are not scheduled
+			return;
+		}
 		// add the fixed delay to the event's time
-		AudioTime eventTime;
-		if (event.getTime().getNanoTime() == 0) {
+		long eventTime;
+		if (nanoTime == 0) {
 			// time==0 means to schedule immediately
 			if (masterClock != null && schedulingOfRealtimeEvents) {
-				eventTime = masterClock.getAudioTime().add(fixedDelayNanos);
+				eventTime = masterClock.getAudioTime().getNanoTime()
+						+ fixedDelayNanos;
 			} else {
 				// just insert it at the beginning of the next buffer
-				eventTime = event.getTime();
+				eventTime = nanoTime;
 			}
 		} else {
-			eventTime = event.getTime().add(fixedDelayNanos);
+			eventTime = nanoTime + fixedDelayNanos;
 		}
 		if (DEBUG_SYNTH_IO) {
-			// if (event.getStatus() == 0x90 && startDebugTime == 0) {
-			// startDebugTime = System.nanoTime();
-			// }
-			// debug("Synth "+((System.nanoTime() - startDebugTime)/1000000)+":
-			// Incoming MIDI event " + event);
-			debug("Synth: Incoming MIDI event: " + event);
+			debug("Synth: Incoming MIDI event: time=" + (nanoTime / 1000000L)
+					+ "ms channel " + channel + ", 0x"
+					+ Integer.toHexString(status) + ", " + data1 + ", " + data2);
 		}
-		// patch the event so that it has the corrected time
+		// patch the event
 		if (benchmarkMode) {
 			// in benchmark mode, set channel to 10, note to 32 and velocity to
 			// 127 */
-			int status = event.getStatus() & 0xF0;
-			if (status == 0x90 && event.getData2() > 0) {
-				event = new MidiEvent(event.getSource(), eventTime,
-						9 /* 0-based */, event.getStatus(), BENCHMARK_NOTE,
-						0x7F);
-			} else {
-				// just change channel to 10
-				event = event.cloneNewTimeChannel(eventTime, 9 /* 0-based */);
+			if ((status & 0xF0) == 0x90 && data2 > 0) {
+				data1 = BENCHMARK_NOTE;
+				data2 = 0x7F;
 			}
-		} else {
-			event = event.clone(eventTime);
+			// change channel to 10
+			channel = 9; /* 0-based */
 		}
 		if (DEBUG_SYNTH_TIMING) {
 			String add = "";
 			if (masterClock != null) {
 				long master = masterClock.getAudioTime().getMillisTime();
-				long masterSliceDiff = nextAudioSliceTime.getMillisTime()
+				long masterSliceDiff = (nextAudioSliceTime / 1000000L)
 						- master;
 				add = " | master=" + master + "ms, masterSliceDiff="
 						+ masterSliceDiff + "ms";
@@ -1025,11 +1300,11 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 							+ "ms!";
 				}
 			}
-			long eventSliceDiff = eventTime.getMillisTime()
-					- nextAudioSliceTime.getMillisTime();
+			long eventSliceDiff = (eventTime / 1000000L)
+					- (nextAudioSliceTime / 1000000L);
 			debug("Synth: Incoming: " + "adjustedEventTime="
-					+ eventTime.getMillisTime() + "ms, " + "nextSlice="
-					+ nextAudioSliceTime.getMillisTime() + "ms, "
+					+ (eventTime / 1000000L) + "ms, " + "nextSlice="
+					+ (nextAudioSliceTime / 1000000L) + "ms, "
 					+ "eventSliceDiff=" + eventSliceDiff + "ms" + add);
 			if (DEBUG_SYNTH) debugShowAudioTime += 2;
 		}
@@ -1040,19 +1315,9 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 		// before the next audio slice anyway, in which case it will
 		// be retrieved from the queue anyway. Enqueuing all events
 		// increases predictability.
-		// // don't queue if the event is already too late
-		// if (nextAudioSliceTime.laterOrEqualThan(eventTime)) {
-		// if (DEBUG_SYNTH) {
-		// debug("## Synth: event comes too late for correct scheduling! "
-		// + "event=" + event);
-		// }
-		// dispatchEvent(event);
-		// } else {
-		if (!event.isLong() && !event.isRealtimeEvent()) {
-			// schedule this event for usage by newAudioSlice callback
-			eventQueue.offer(event);
-		}
-		// }
+
+		// schedule this event for usage by newAudioSlice callback
+		eventQueue.offer(eventTime, source, channel, status, data1, data2);
 	}
 
 	// listener AudioRendererListener
@@ -1061,17 +1326,26 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 	 * asynchronous renderer is used, start rendering the new slice.
 	 */
 	public final void newAudioSlice(AudioTime time, AudioTime duration) {
-		AudioTime nextNextAudioSliceTime = time.add(duration);
+		newAudioSlice(time.getNanoTime(), duration.getNanoTime());
+	}
+
+	/**
+	 * goes through the queued MIDI events and dispatch/execute them. If an
+	 * asynchronous renderer is used, start rendering the new slice. This
+	 * version with primitive times does not allocate objects.
+	 */
+	public final void newAudioSlice(long time, long duration) {
+		long nextNextAudioSliceTime = time + duration;
 		nextAudioSliceDuration = duration;
 
 		if (DEBUG_SYNTH) {
 			if (debugShowAudioTime > 0) {
 				debug("Synth.newAudioSlice: Audio Time: "
-						+ time.getMillisTime() + "ms, queue size="
+						+ (time / 1000000L) + "ms, queue size="
 						+ eventQueue.size());
 				if (masterClock != null) {
 					long master = masterClock.getAudioTime().getMillisTime();
-					long diff = (time.getMillisTime() - master);
+					long diff = ((time / 1000000L) - master);
 					debug("           master:" + master
 							+ "ms, masterSliceDiff=" + diff + "ms.");
 					if (diff > (fixedDelayNanos / 1000000)) {
@@ -1084,22 +1358,49 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 		}
 
 		if (!isNoteDispatcherRunning()) {
-			synchronized (eventQueue) {
-				while (eventQueue.lastIsEarlier(nextNextAudioSliceTime)) {
-					dispatchEvent(eventQueue.poll());
-				}
-			}
+			eventQueue.dispatchEarlier(nextNextAudioSliceTime, eventDispatcher);
 		}
 
 		if (asynchRenderer != null) {
 			AudioMixer localMixer = getMixer();
 			if (localMixer.getCount() > ASYNCH_RENDER_STREAM_THRESHOLD) {
-				asynchRenderer.dispatch(time, localMixer.getRenderables());
+				int count = localMixer.getRenderables(renderables);
+				if (count < 0) {
+					// rare case: need a larger array
+					renderables = new Renderable[-count * 2];
+					count = localMixer.getRenderables(renderables);
+				}
+				if (count > 0) {
+					asynchRenderer.dispatch(time, renderables, count);
+					// the pull thread renders, too, before mixing
+					asynchRenderer.participate();
+				}
 			}
 		}
 
 		// eventually, commit the new nextAudioSlice time
 		nextAudioSliceTime = nextNextAudioSliceTime;
+		if (isNoteDispatcherRunning()) {
+			// release the note dispatcher if events became due
+			eventQueue.wakeUpIfDue(nextNextAudioSliceTime + duration);
+		}
+	}
+
+	/**
+	 * Dispatch all queued events earlier than the given time in the calling
+	 * thread. This is for offline rendering, where the thread that feeds the
+	 * events is also the thread that renders: it calls this method when it
+	 * enqueues many events for the same slice, so that the event queue does
+	 * not fill up. Does nothing if the asynchronous note dispatcher is
+	 * running.
+	 *
+	 * @param nanoTime the events before this time are dispatched
+	 * @see com.ibm.realtime.synth.modules.OfflineRenderer
+	 */
+	public void dispatchPendingEvents(long nanoTime) {
+		if (!isNoteDispatcherRunning()) {
+			eventQueue.dispatchEarlier(nanoTime, eventDispatcher);
+		}
 	}
 
 	// listener EventDispatcher
@@ -1176,6 +1477,42 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 
 		private double masterTuningFactor = 1.0f;
 
+		/**
+		 * If true, the voices are rendered with 32-bit float precision
+		 */
+		private final boolean floatRendering;
+
+		/**
+		 * The interpolation tier for channels that do not set their own
+		 */
+		private volatile int interpolation = Interpolation.DEFAULT;
+
+		/**
+		 * If true, the soundbank creates voices that do not depend on the
+		 * timing of background threads
+		 */
+		private volatile boolean reproducible;
+
+		/**
+		 * Create parameters for the default, double precision render path.
+		 */
+		public Params() {
+			this(false);
+		}
+
+		Params(boolean floatRendering) {
+			this.floatRendering = floatRendering;
+		}
+
+		/**
+		 * @return true if the synthesizer renders with 32-bit float
+		 *         precision, false if it uses the double precision render
+		 *         path
+		 */
+		public boolean isFloatRendering() {
+			return floatRendering;
+		}
+
 		double getMasterVolumeInternal() {
 			return masterVolume;
 		}
@@ -1205,191 +1542,100 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 		}
 
 		/**
-		 * master tuning in Hertz
-		 */
-		public void setMasterTuning(double masterFreq) {
-			masterTuningFactor = masterFreq / 440.0;
-		}
-
-		/**
-		 * @return master tuning in Hertz, rounded to 5 decimals
-		 */
-		public double getMasterTuning() {
-			return Math.round(masterTuningFactor * 4400000.0) / 10000.0;
-		}
-
-		/**
-		 * @return master tuning as a linear factor
-		 */
-		public double getMasterTuningFactor() {
-			return masterTuningFactor;
-		}
-	}
-
-	/**
-	 * A queue implementation to maintain a sorted FIFO list of MidiEvents. The
-	 * MidiEvents are inserted at the beginning of the queue. If the Comparable
-	 * of the inserted event is higher than the first element, it is inserted at
-	 * the next index, etc.
-	 * <p>
-	 * An own class for this functionality is necessary in order to maintain
-	 * FIFO sorting of elements with the same time (i.e. Comparable.compareTo()
-	 * returns 0). Also, this class can use an optimal implementation for the
-	 * only 2 used methods: offer() (sorted insert at the beginning) and poll()
-	 * (remove last element). Internally, it uses a double-linked list to assure
-	 * that.
-	 * <p>
-	 * Java's PriorityQueue and PriorityBlockingQueue could not be used for
-	 * this, because the ordering is not maintained, causing e.g. program change
-	 * messages to be dispatched after the note on message if the program change
-	 * and the note on message were delivered with the same time stamp, but the
-	 * program change message was delivered first.
-	 * <p>
-	 * This implementation is synchronized.
-	 * 
-	 * @author florian
-	 */
-	private static class EventQueue {
-
-		private LinkedList<MidiEvent> list;
-
-		private volatile boolean closed = false;
-
-		public EventQueue() {
-			list = new LinkedList<MidiEvent>();
-		}
-
-		/**
-		 * close operation on this queue, so any thread waiting in
-		 * waitForEvent() will be released
+		 * @return the interpolation tier used by the oscillators of channels
+		 *         that do not set their own, one of the Interpolation
+		 *         constants
 		 */
-		public synchronized void close() {
-			closed = true;
-			this.notifyAll();
+		public int getInterpolation() {
+			return interpolation;
 		}
 
 		/**
-		 * Inserts the MidiEvent into the queue. It is sorted in a correct
-		 * interpretation of MIDI timing.
+		 * Set the interpolation tier used by the oscillators of channels that
+		 * do not set their own. It takes effect for the next notes.
 		 * 
-		 * @param me the element to insert
+		 * @param interpolation one of the Interpolation constants
+		 * @see MidiChannel#setInterpolation(int)
 		 */
-		public synchronized void offer(MidiEvent me) {
-			if (!list.isEmpty()) {
-				// go through all elements until it finds one with higher time
-				ListIterator<MidiEvent> it = list.listIterator(0);
-				long nanoTime = me.getTime().getNanoTime();
-				while (it.hasNext()) {
-					MidiEvent lme = it.next();
-					if (lme.getTime().getNanoTime() <= nanoTime) {
-						it.previous();
-						// out("inserting at index "+it.nextIndex()+": "+me);
-						it.add(me);
-						// for (int i=0; i<list.size(); i++) {
-						// out(" "+i+": "+list.get(i)); }
-						this.notifyAll();
-						return;
-					}
-				}
+		public void setInterpolation(int interpolation) {
+			if (!Interpolation.isValid(interpolation)) {
+				throw new IllegalArgumentException("illegal interpolation: "
+						+ interpolation);
 			}
-			// if the list is empty, or it could not be inserted in the
-			// loop above, insert at the end
-			// out("inserting at index "+list.size()+": "+me);
-			list.add(me);
-			this.notifyAll();
-			// for (int i=0; i<list.size(); i++) {
-			// out(" "+i+": "+list.get(i)); }
+			this.interpolation = interpolation;
 		}
 
 		/**
-		 * Returns true if the queue has at least one element, and if the last
-		 * element is earlier than the specified time.
-		 * 
-		 * @param time the time to test the last element for
-		 * @return true if the last element exists and is earlier than
-		 *         <code>time</code>
+		 * @return true if the soundbank creates voices that render the same
+		 *         output regardless of the timing of background threads
+		 * @see #setReproducible(boolean)
 		 */
-		public synchronized boolean lastIsEarlier(AudioTime time) {
-			return ((list.size() > 0) && (list.getLast().getTime().earlierThan(time)));
+		public boolean isReproducible() {
+			return reproducible;
 		}
 
 		/**
-		 * @return Retrieves and removes the head of this queue, or null if this
-		 *         queue is empty.
+		 * Request voices that render the same output regardless of the
+		 * timing of background threads. A soundbank that prepares sample
+		 * data in the background, like a sample cache or a sample streamer,
+		 * then reads the sample data directly. This is slower, and is meant
+		 * for offline rendering that must be repeatable. It takes effect for
+		 * the next notes.
+		 * 
+		 * @param reproducible true to ignore background sample preparation
 		 */
-		public synchronized MidiEvent poll() {
-			return list.removeLast();
+		public void setReproducible(boolean reproducible) {
+			this.reproducible = reproducible;
 		}
 
 		/**
-		 * @return Retrieves and removes the head of this queue if its time is
-		 *         earlier than the given time, or null otherwise
+		 * Return the interpolation tier for a new note on the channel.
+		 * 
+		 * @return the channel's tier, or the default tier if the channel does
+		 *         not set one
 		 */
-		public synchronized MidiEvent pollIfEarlier(AudioTime time) {
-			if (list.size() > 0) {
-				MidiEvent event = list.getLast();
-				if ((event.getTime().earlierThan(time))) {
-					return list.removeLast();
-				}
+		public int getInterpolation(MidiChannel channel) {
+			int result = channel.getInterpolation();
+			if (result < 0) {
+				result = interpolation;
 			}
-			return null;
+			return result;
 		}
 
 		/**
-		 * @return Retrieves and removes the head of this queue if its time is
-		 *         earlier than the given time, or null otherwise
+		 * master tuning in Hertz
 		 */
-		public synchronized MidiEvent pollIfEarlier(long nanoTime) {
-			if (list.size() > 0) {
-				MidiEvent event = list.getLast();
-				if ((event.getTime().getNanoTime() < nanoTime)) {
-					return list.removeLast();
-				}
-			}
-			return null;
+		public void setMasterTuning(double masterFreq) {
+			masterTuningFactor = masterFreq / 440.0;
 		}
 
 		/**
-		 * Cleans this queue.
+		 * @return master tuning in Hertz, rounded to 5 decimals
 		 */
-		public synchronized void clear() {
-			list.clear();
+		public double getMasterTuning() {
+			return Math.round(masterTuningFactor * 4400000.0) / 10000.0;
 		}
 
 		/**
-		 * @return the size of the list
+		 * @return master tuning as a linear factor
 		 */
-		public synchronized int size() {
-			return list.size();
+		public double getMasterTuningFactor() {
+			return masterTuningFactor;
 		}
+	}
+
+	private class NoteDispatcher implements Runnable {
 
 		/**
-		 * Returns true if there are no events in the queue.
-		 * 
-		 * @return true if the list is empty
+		 * the maximum time to wait for an event
 		 */
-		public synchronized boolean isEmpty() {
-			return (list.size() > 0);
-		}
+		private final static long MAX_WAIT_NANOS = 100000000L;
 
 		/**
-		 * Wait until an event is added to the queue.
+		 * the minimum time to wait for a due event, so that the dispatcher
+		 * does not spin if the audio time is stalled
 		 */
-		public synchronized void waitForEvent() {
-			if (!closed) {
-				try {
-					while (list.size() == 0) {
-						this.wait();
-					}
-				} catch (InterruptedException ie) {
-				}
-			}
-		}
-	}
-
-	private class NoteDispatcher implements Runnable {
-
-		private final static int SLEEP_MICROSECONDS = 75;
+		private final static long MIN_WAIT_NANOS = 50000L;
 
 		private Thread thread;
 		private volatile boolean doStop = false;
@@ -1407,6 +1653,7 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 		 */
 		public void stop() {
 			doStop = true;
+			eventQueue.wakeUp();
 			synchronized (this) {
 				try {
 					thread.join(2000);
@@ -1420,7 +1667,6 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 			if (DEBUG_SYNTH) {
 				debug("Synthesizer: starting asynchronous note dispatcher");
 			}
-			MidiEvent event = null;
 			while (!doStop) {
 				try {
 					// 2 loops to not enter the try block for every loop
@@ -1429,16 +1675,23 @@ public class Synthesizer implements MidiIn.Listener, AudioRendererListener,
 						// one buffer after "nextAudioSliceTime"!
 						// also start events a little ahead so that they can't
 						// come too late
-						event = eventQueue.pollIfEarlier(nextAudioSliceTime.getNanoTime()
-								+ nextAudioSliceDuration.getNanoTime());
-						if (event != null) {
-							dispatchEvent(event);
-						} else {
-							if (eventQueue.isEmpty()) {
-								eventQueue.waitForEvent();
-							} else {
-								Thread.sleep(0, SLEEP_MICROSECONDS * 1000);
+						long limit = nextAudioSliceTime + nextAudioSliceDuration;
+						int count = eventQueue.dispatchEarlier(limit,
+								eventDispatcher);
+						if (count == 0) {
+							// park until a new event arrives, or until the
+							// next event is due: newAudioSlice() wakes us up
+							// when the audio time advances past it. The
+							// timeout is an estimate in case the audio time
+							// does not advance with the system clock.
+							long nextTime = eventQueue.getNextTime();
+							long wait = MAX_WAIT_NANOS;
+							if (nextTime != Long.MAX_VALUE
+									&& nextTime - limit < MAX_WAIT_NANOS) {
+								wait = Math.max(nextTime - limit,
+										MIN_WAIT_NANOS);
 							}
+							eventQueue.awaitEvent(wait);
 						}
 					}
 				} catch (Exception e) {
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+/**
+ * A pool of pre-allocated NoteInput instances, so that a Note On event does
+ * not need to allocate objects. Each pooled NoteInput owns its patch,
+ * oscillator and articulation instances, which are re-initialized by the
+ * soundbank when the voice is handed out again.
+ * <p>
+ * Voices are taken from the pool with obtain() and are returned to the pool
+ * automatically when the AudioMixer removes them (see NoteInput.recycle()).
+ * If the pool is exhausted, new voices are allocated on demand; they are
+ * kept in the pool after their first use as long as the pool has room for
+ * them.
+ * <p>
+ * Descendants implement createVoice() to create an uninitialized NoteInput
+ * with the soundbank-specific patch, oscillator and articulation instances.
+ */
+public abstract class VoicePool {
+
+	public static boolean DEBUG_VOICEPOOL = false;
+
+	/**
+	 * The default number of voices pre-allocated by a pool.
+	 */
+	public static final int DEFAULT_POLYPHONY = 256;
+
+	/**
+	 * The stack of free voices
+	 */
+	private NoteInput[] free = new NoteInput[0];
+
+	/**
+	 * The number of valid entries in the free array
+	 */
+	private int freeCount = 0;
+
+	/**
+	 * how many voices were allocated because the pool was exhausted
+	 */
+	private int allocationCount = 0;
+
+	/**
+	 * Create an empty voice pool. Descendants must call setPolyphony() to
+	 * pre-allocate the voices once they are fully constructed.
+	 */
+	protected VoicePool() {
+		// nothing to do
+	}
+
+	/**
+	 * Create the specific uninitialized voice instance.
+	 */
+	protected abstract NoteInput createVoice();
+
+	/**
+	 * Set the number of voices kept in this pool. If the pool grows, new
+	 * voices are allocated immediately. Voices currently in use are not
+	 * affected.
+	 *
+	 * @param polyphony the number of voices to keep in this pool
+	 */
+	public synchronized void setPolyphony(int polyphony) {
+		if (polyphony < 0) {
+			throw new IllegalArgumentException("illegal polyphony: "
+					+ polyphony);
+		}
+		NoteInput[] newFree = new NoteInput[polyphony];
+		if (freeCount > polyphony) {
+			freeCount = polyphony;
+		}
+		System.arraycopy(free, 0, newFree, 0, freeCount);
+		free = newFree;
+		while (freeCount < polyphony) {
+			free[freeCount++] = newVoice();
+		}
+		if (DEBUG_VOICEPOOL) {
+			debug("VoicePool: pre-allocated " + polyphony + " voices.");
+		}
+	}
+
+	/**
+	 * @return the maximum number of voices kept in this pool
+	 */
+	public synchronized int getPolyphony() {
+		return free.length;
+	}
+
+	/**
+	 * @return the number of voices currently available without allocation
+	 */
+	public synchronized int getFreeCount() {
+		return freeCount;
+	}
+
+	/**
+	 * @return the number of voices that had to be allocated because the pool
+	 *         was exhausted
+	 */
+	public synchronized int getAllocationCount() {
+		return allocationCount;
+	}
+
+	/**
+	 * Get a voice from the pool. The returned instance must be initialized by
+	 * the caller. If no voice is available, a new one is allocated.
+	 *
+	 * @return an uninitialized NoteInput instance owned by this pool
+	 */
+	public synchronized NoteInput obtain() {
+		if (freeCount > 0) {
+			NoteInput ni = free[--freeCount];
+			free[freeCount] = null;
+			return ni;
+		}
+		allocationCount++;
+		if (DEBUG_VOICEPOOL) {
+			debug("VoicePool: exhausted, allocating a new voice.");
+		}
+		return newVoice();
+	}
+
+	/**
+	 * Return a voice to the pool. Called from NoteInput.recycle().
+	 */
+	synchronized void recycle(NoteInput ni) {
+		if (freeCount < free.length) {
+			free[freeCount++] = ni;
+		}
+		// otherwise, leave this voice to the garbage collector
+	}
+
+	private NoteInput newVoice() {
+		NoteInput ni = createVoice();
+		ni.setPool(this);
+		return ni;
+	}
+}
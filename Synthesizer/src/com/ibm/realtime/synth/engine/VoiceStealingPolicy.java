@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * A policy for choosing the voice to be stopped when the polyphony limit of
+ * the Synthesizer is reached. The chosen voice is stopped with
+ * NoteInput.stopAsap(), i.e. it is faded out in the next slice.
+ * <p>
+ * Policies can be chained: a policy that does not prefer one of two voices
+ * delegates the decision to its fallback policy. The static instances
+ * provide the common policies; DEFAULT prefers voices that are already in
+ * the release segment, then a retriggered note, then the quietest voice.
+ */
+public abstract class VoiceStealingPolicy {
+
+	/**
+	 * Steal the oldest voice, i.e. the voice with the earliest insertion time.
+	 */
+	public static final VoiceStealingPolicy OLDEST = new Oldest();
+
+	/**
+	 * Steal the voice with the lowest current level, as computed from
+	 * envelope, LFO, velocity, and channel volume. For equal levels, steal
+	 * the oldest voice.
+	 */
+	public static final VoiceStealingPolicy QUIETEST = new Quietest(OLDEST);
+
+	/**
+	 * Prefer voices that are already in the release segment; among those,
+	 * steal the oldest one.
+	 */
+	public static final VoiceStealingPolicy RELEASED =
+			new ReleasedFirst(OLDEST);
+
+	/**
+	 * Prefer voices playing the same note on the same channel as the new note
+	 * (retrigger); otherwise steal the oldest voice.
+	 */
+	public static final VoiceStealingPolicy SAME_NOTE = new SameNoteFirst(OLDEST);
+
+	/**
+	 * The default policy: voices in release first, then same note retrigger,
+	 * then the quietest voice.
+	 */
+	public static final VoiceStealingPolicy DEFAULT =
+			new ReleasedFirst(new SameNoteFirst(QUIETEST));
+
+	/**
+	 * The policy to ask if this policy does not prefer any of two voices, or
+	 * null.
+	 */
+	private VoiceStealingPolicy fallback;
+
+	/**
+	 * Create a policy without fallback.
+	 */
+	protected VoiceStealingPolicy() {
+		this(null);
+	}
+
+	/**
+	 * Create a policy that delegates to the given fallback policy.
+	 */
+	protected VoiceStealingPolicy(VoiceStealingPolicy fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Compare two voices for being stolen.
+	 *
+	 * @param a the first voice
+	 * @param b the second voice
+	 * @param channel the channel of the new note
+	 * @param note the new note that causes the voice stealing
+	 * @return a negative value if a should rather be stolen than b, a
+	 *         positive value if b should be rather stolen than a, or 0 if
+	 *         this policy does not prefer any of the two voices.
+	 */
+	protected abstract int compareVoices(NoteInput a, NoteInput b,
+			MidiChannel channel, int note);
+
+	/**
+	 * Return true if voice candidate should be stolen rather than the voice
+	 * current. The fallback policies are consulted for equal voices.
+	 *
+	 * @param candidate the voice to check
+	 * @param current the currently selected voice to be stolen, never null
+	 * @param channel the channel of the new note
+	 * @param note the new note that causes the voice stealing
+	 */
+	public final boolean isBetterVictim(NoteInput candidate, NoteInput current,
+			MidiChannel channel, int note) {
+		VoiceStealingPolicy policy = this;
+		while (policy != null) {
+			int c = policy.compareVoices(candidate, current, channel, note);
+			if (c != 0) {
+				return c < 0;
+			}
+			policy = policy.fallback;
+		}
+		return false;
+	}
+
+	private static final class Oldest extends VoiceStealingPolicy {
+		protected int compareVoices(NoteInput a, NoteInput b,
+				MidiChannel channel, int note) {
+			long ta = a.getInsertionTime();
+			long tb = b.getInsertionTime();
+			return (ta < tb) ? -1 : ((ta == tb) ? 0 : 1);
+		}
+
+		public String toString() {
+			return "oldest";
+		}
+	}
+
+	private static final class Quietest extends VoiceStealingPolicy {
+		Quietest(VoiceStealingPolicy fallback) {
+			super(fallback);
+		}
+
+		protected int compareVoices(NoteInput a, NoteInput b,
+				MidiChannel channel, int note) {
+			double la = a.getCurrentLevel();
+			double lb = b.getCurrentLevel();
+			return (la < lb) ? -1 : ((la == lb) ? 0 : 1);
+		}
+
+		public String toString() {
+			return "quietest";
+		}
+	}
+
+	private static final class ReleasedFirst extends VoiceStealingPolicy {
+		ReleasedFirst(VoiceStealingPolicy fallback) {
+			super(fallback);
+		}
+
+		protected int compareVoices(NoteInput a, NoteInput b,
+				MidiChannel channel, int note) {
+			if (a.isReleased() == b.isReleased()) {
+				return 0;
+			}
+			return a.isReleased() ? -1 : 1;
+		}
+
+		public String toString() {
+			return "released";
+		}
+	}
+
+	private static final class SameNoteFirst extends VoiceStealingPolicy {
+		SameNoteFirst(VoiceStealingPolicy fallback) {
+			super(fallback);
+		}
+
+		protected int compareVoices(NoteInput a, NoteInput b,
+				MidiChannel channel, int note) {
+			boolean sa = a.getMidiChannel() == channel
+					&& a.getTriggerNote() == note;
+			boolean sb = b.getMidiChannel() == channel
+					&& b.getTriggerNote() == note;
+			if (sa == sb) {
+				return 0;
+			}
+			return sa ? -1 : 1;
+		}
+
+		public String toString() {
+			return "same note";
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.engine;
+
+/**
+ * An index of the voices (NoteInput instances) started by the Synthesizer.
+ * The voices are kept in intrusive doubly linked lists, so that adding and
+ * removing a voice does not allocate memory and is done in constant time.
+ * Every voice is member of 4 lists:
+ * <ul>
+ * <li>the list of all voices
+ * <li>the list of voices on its MIDI channel
+ * <li>the list of voices on its MIDI channel with the same trigger note
+ * <li>the list of voices with the same exclusive level (only if the
+ * exclusive level is not 0). Different exclusive levels may share a list, so
+ * the exclusive level must be verified when traversing it.
+ * </ul>
+ * The list links are fields in NoteInput. The voices are added by the
+ * Synthesizer when a note is started, and removed when the mixer removes
+ * them (see NoteInput.recycle()).
+ * <p>
+ * sync note: all methods are synchronized on this instance. To traverse a
+ * list, callers need to synchronize on this instance, too.
+ */
+final class VoiceTable {
+
+	private static final int CHANNEL_COUNT = 16;
+
+	private static final int NOTE_COUNT = 128;
+
+	private static final int EXCLUSIVE_SLOTS = 128;
+
+	/**
+	 * the head of the list of all voices
+	 */
+	private NoteInput first;
+
+	/**
+	 * the number of voices in this table
+	 */
+	private int count;
+
+	/**
+	 * the heads of the lists of voices per channel
+	 */
+	private final NoteInput[] channelHeads = new NoteInput[CHANNEL_COUNT];
+
+	/**
+	 * the heads of the lists of voices per channel and trigger note
+	 */
+	private final NoteInput[] noteHeads =
+			new NoteInput[CHANNEL_COUNT * NOTE_COUNT];
+
+	/**
+	 * the heads of the lists of voices per exclusive level
+	 */
+	private final NoteInput[] exclusiveHeads = new NoteInput[EXCLUSIVE_SLOTS];
+
+	/**
+	 * Add the voice to this table. The voice's trigger note must be set
+	 * already. If the voice is already member of a table, it is not added.
+	 */
+	synchronized void add(NoteInput ni) {
+		if (ni.voiceTable != null) {
+			return;
+		}
+		ni.voiceTable = this;
+		ni.tableChannel = ni.getMidiChannel().getChannelNum() & (CHANNEL_COUNT - 1);
+		ni.tableNoteSlot = ni.tableChannel * NOTE_COUNT
+				+ (ni.getTriggerNote() & (NOTE_COUNT - 1));
+		int level = ni.getPatch().getExclusiveLevel();
+		ni.tableExclusiveSlot =
+				(level == 0) ? -1 : (level & (EXCLUSIVE_SLOTS - 1));
+
+		// list of all voices
+		ni.prevVoice = null;
+		ni.nextVoice = first;
+		if (first != null) {
+			first.prevVoice = ni;
+		}
+		first = ni;
+		// channel list
+		NoteInput head = channelHeads[ni.tableChannel];
+		ni.prevOnChannel = null;
+		ni.nextOnChannel = head;
+		if (head != null) {
+			head.prevOnChannel = ni;
+		}
+		channelHeads[ni.tableChannel] = ni;
+		// note list
+		head = noteHeads[ni.tableNoteSlot];
+		ni.prevForNote = null;
+		ni.nextForNote = head;
+		if (head != null) {
+			head.prevForNote = ni;
+		}
+		noteHeads[ni.tableNoteSlot] = ni;
+		// exclusive list
+		ni.prevExclusive = null;
+		ni.nextExclusive = null;
+		if (ni.tableExclusiveSlot >= 0) {
+			head = exclusiveHeads[ni.tableExclusiveSlot];
+			ni.nextExclusive = head;
+			if (head != null) {
+				head.prevExclusive = ni;
+			}
+			exclusiveHeads[ni.tableExclusiveSlot] = ni;
+		}
+		count++;
+	}
+
+	/**
+	 * Remove the voice from this table. Nothing is done if the voice is not
+	 * member of this table.
+	 */
+	synchronized void remove(NoteInput ni) {
+		if (ni.voiceTable != this) {
+			return;
+		}
+		// list of all voices
+		if (ni.prevVoice != null) {
+			ni.prevVoice.nextVoice = ni.nextVoice;
+		} else {
+			first = ni.nextVoice;
+		}
+		if (ni.nextVoice != null) {
+			ni.nextVoice.prevVoice = ni.prevVoice;
+		}
+		// channel list
+		if (ni.prevOnChannel != null) {
+			ni.prevOnChannel.nextOnChannel = ni.nextOnChannel;
+		} else {
+			channelHeads[ni.tableChannel] = ni.nextOnChannel;
+		}
+		if (ni.nextOnChannel != null) {
+			ni.nextOnChannel.prevOnChannel = ni.prevOnChannel;
+		}
+		// note list
+		if (ni.prevForNote != null) {
+			ni.prevForNote.nextForNote = ni.nextForNote;
+		} else {
+			noteHeads[ni.tableNoteSlot] = ni.nextForNote;
+		}
+		if (ni.nextForNote != null) {
+			ni.nextForNote.prevForNote = ni.prevForNote;
+		}
+		// exclusive list
+		if (ni.tableExclusiveSlot >= 0) {
+			if (ni.prevExclusive != null) {
+				ni.prevExclusive.nextExclusive = ni.nextExclusive;
+			} else {
+				exclusiveHeads[ni.tableExclusiveSlot] = ni.nextExclusive;
+			}
+			if (ni.nextExclusive != null) {
+				ni.nextExclusive.prevExclusive = ni.prevExclusive;
+			}
+		}
+		ni.prevVoice = null;
+		ni.nextVoice = null;
+		ni.prevOnChannel = null;
+		ni.nextOnChannel = null;
+		ni.prevForNote = null;
+		ni.nextForNote = null;
+		ni.prevExclusive = null;
+		ni.nextExclusive = null;
+		ni.voiceTable = null;
+		count--;
+	}
+
+	/**
+	 * @return the number of voices in this table, including voices that are
+	 *         done but not removed from the mixer yet
+	 */
+	synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the first voice of the list of all voices, continue with
+	 *         NoteInput.nextVoice
+	 */
+	NoteInput getFirst() {
+		return first;
+	}
+
+	/**
+	 * @return the first voice playing on the given channel, continue with
+	 *         NoteInput.nextOnChannel
+	 */
+	NoteInput getFirstOnChannel(MidiChannel channel) {
+		return channelHeads[channel.getChannelNum() & (CHANNEL_COUNT - 1)];
+	}
+
+	/**
+	 * @return the first voice on the given channel that was triggered by the
+	 *         given note, continue with NoteInput.nextForNote
+	 */
+	NoteInput getFirstForNote(MidiChannel channel, int note) {
+		return noteHeads[(channel.getChannelNum() & (CHANNEL_COUNT - 1))
+				* NOTE_COUNT + (note & (NOTE_COUNT - 1))];
+	}
+
+	/**
+	 * @return the first voice in the list of the given exclusive level,
+	 *         continue with NoteInput.nextExclusive. Voices of other
+	 *         exclusive levels may be in this list, too.
+	 */
+	NoteInput getFirstExclusive(int exclusiveLevel) {
+		return exclusiveHeads[exclusiveLevel & (EXCLUSIVE_SLOTS - 1)];
+	}
+}
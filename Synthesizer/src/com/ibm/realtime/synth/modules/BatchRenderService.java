@@ -0,0 +1,317 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.modules;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.sound.sampled.AudioFormat;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import com.ibm.realtime.synth.engine.*;
+
+/**
+ * A service that renders MIDI files offline, as a queue of RenderJobs
+ * executed by a fixed number of worker threads. The soundbank is loaded once
+ * and shared by all workers; each worker has its own Synthesizer, AudioMixer
+ * and OfflineRenderer, which are reused from job to job.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * BatchRenderService service = new BatchRenderService(soundbank, 4, 100);
+ * RenderJob job = service.submit(new RenderJob(midiFile, wavFile, 44100.0, 1.0));
+ * ...
+ * job.waitFor();
+ * service.close();
+ * </pre>
+ */
+public class BatchRenderService {
+
+	public static boolean DEBUG_BATCH_RENDER = false;
+
+	/**
+	 * The number of channels for jobs writing to a file
+	 */
+	private static final int FILE_CHANNELS = 2;
+
+	/**
+	 * The sample size in bits for jobs writing to a file
+	 */
+	private static final int FILE_SAMPLE_SIZE = 16;
+
+	/**
+	 * Put in the queue to stop a worker
+	 */
+	private static final RenderJob STOP = new RenderJob(new SMFEventList(
+			new long[0], new int[0], 0, 0), null, 1.0, 0.0);
+
+	private final Soundbank soundbank;
+
+	private final boolean floatRendering;
+
+	private final BlockingQueue<RenderJob> queue;
+
+	private final Thread[] workers;
+
+	/**
+	 * Guards the closed check and the insertion into the queue, so that no
+	 * job is queued after the stop markers. Not "this", since the workers
+	 * update the statistics while a submitter may wait for queue space.
+	 */
+	private final Object submitLock = new Object();
+
+	private volatile boolean closed = false;
+
+	// statistics, guarded by "this"
+
+	private int completedJobs;
+
+	private int failedJobs;
+
+	private double renderedSeconds;
+
+	/**
+	 * Create a batch render service and start its worker threads.
+	 *
+	 * @param soundbank the loaded soundbank, shared by all jobs
+	 * @param workerCount the number of jobs rendered concurrently
+	 * @param queueCapacity the maximum number of queued jobs: submit() blocks
+	 *            if the queue is full
+	 */
+	public BatchRenderService(Soundbank soundbank, int workerCount,
+			int queueCapacity) {
+		this(soundbank, workerCount, queueCapacity, false);
+	}
+
+	/**
+	 * Create a batch render service and start its worker threads.
+	 *
+	 * @param soundbank the loaded soundbank, shared by all jobs
+	 * @param workerCount the number of jobs rendered concurrently
+	 * @param queueCapacity the maximum number of queued jobs: submit() blocks
+	 *            if the queue is full
+	 * @param floatRendering if true, use the 32-bit float render path
+	 */
+	public BatchRenderService(Soundbank soundbank, int workerCount,
+			int queueCapacity, boolean floatRendering) {
+		if (workerCount <= 0) {
+			throw new IllegalArgumentException("illegal worker count: "
+					+ workerCount);
+		}
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("illegal queue capacity: "
+					+ queueCapacity);
+		}
+		this.soundbank = soundbank;
+		this.floatRendering = floatRendering;
+		// the stop markers wait for queue space like jobs
+		queue = new ArrayBlockingQueue<RenderJob>(queueCapacity);
+		workers = new Thread[workerCount];
+		for (int i = 0; i < workerCount; i++) {
+			workers[i] = ThreadFactory.createThread(new Worker(),
+					"BatchRenderService " + i, OfflineRenderer.WORKER_PRIORITY);
+		}
+	}
+
+	/**
+	 * @return the soundbank used by all jobs
+	 */
+	public Soundbank getSoundbank() {
+		return soundbank;
+	}
+
+	/**
+	 * @return the number of worker threads
+	 */
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/**
+	 * Add a job to the queue. If the queue is full, wait until a worker
+	 * takes a job.
+	 *
+	 * @param job the job to render
+	 * @return job
+	 * @throws InterruptedException if the calling thread is interrupted while
+	 *             waiting
+	 * @exception IllegalStateException if the service is closed
+	 */
+	public RenderJob submit(RenderJob job) throws InterruptedException {
+		synchronized (submitLock) {
+			if (closed) {
+				throw new IllegalStateException("service is closed");
+			}
+			if (DEBUG_BATCH_RENDER) {
+				debug("BatchRenderService: queued " + job);
+			}
+			queue.put(job);
+		}
+		return job;
+	}
+
+	/**
+	 * @return the number of jobs waiting in the queue
+	 */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of jobs rendered successfully
+	 */
+	public synchronized int getCompletedCount() {
+		return completedJobs;
+	}
+
+	/**
+	 * @return the number of jobs that failed
+	 */
+	public synchronized int getFailedCount() {
+		return failedJobs;
+	}
+
+	/**
+	 * @return the total audio time rendered by all jobs, in seconds
+	 */
+	public synchronized double getRenderedSeconds() {
+		return renderedSeconds;
+	}
+
+	/**
+	 * Finish the queued jobs and stop the worker threads. No more jobs can be
+	 * submitted. This method waits until all workers are stopped.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted while
+	 *             waiting
+	 */
+	public void close() throws InterruptedException {
+		synchronized (submitLock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			// the workers keep taking jobs, so there will be room for the
+			// stop markers
+			for (int i = 0; i < workers.length; i++) {
+				queue.put(STOP);
+			}
+		}
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].join();
+		}
+		if (DEBUG_BATCH_RENDER) {
+			debug("BatchRenderService: closed, " + completedJobs
+					+ " jobs done, " + failedJobs + " failed");
+		}
+	}
+
+	/**
+	 * A worker thread: takes jobs from the queue and renders them.
+	 */
+	private class Worker implements Runnable {
+
+		/**
+		 * The renderer, re-created if the sample rate or channel count
+		 * changes
+		 */
+		private OfflineRenderer renderer;
+
+		public void run() {
+			try {
+				while (true) {
+					RenderJob job;
+					try {
+						job = queue.take();
+					} catch (InterruptedException ie) {
+						continue;
+					}
+					if (job == STOP) {
+						break;
+					}
+					execute(job);
+				}
+			} finally {
+				if (renderer != null) {
+					renderer.getSynthesizer().close();
+				}
+			}
+		}
+
+		private void execute(RenderJob job) {
+			job.setRunning();
+			long startTime = System.nanoTime();
+			DiskWriterSink fileSink = null;
+			try {
+				SMFEventList events = job.getEvents();
+				if (events == null) {
+					events = SMFParser.parse(job.getMidiFile());
+				}
+				AudioSink sink = job.getSink();
+				if (sink == null) {
+					fileSink = new DiskWriterSink();
+					fileSink.open(job.getOutputFile(), new AudioFormat(
+							(float) job.getSampleRate(), FILE_SAMPLE_SIZE,
+							FILE_CHANNELS, true, false));
+					sink = fileSink;
+				}
+				OfflineRenderer localRenderer = getRenderer(
+						job.getSampleRate(), sink.getChannels());
+				localRenderer.getSynthesizer().getParams().setMasterVolume(
+						job.getGain());
+				long samples = localRenderer.render(events, sink);
+				if (fileSink != null) {
+					fileSink.close();
+					fileSink = null;
+				}
+				long nanos = System.nanoTime() - startTime;
+				synchronized (BatchRenderService.this) {
+					completedJobs++;
+					renderedSeconds += samples / job.getSampleRate();
+				}
+				job.setDone(samples, nanos);
+				if (DEBUG_BATCH_RENDER) {
+					debug("BatchRenderService: " + job + ": done, "
+							+ job.getThroughput() + "x real time");
+				}
+			} catch (Throwable t) {
+				// also catch errors: the job must always finish, and the
+				// worker keeps running for the next jobs
+				synchronized (BatchRenderService.this) {
+					failedJobs++;
+				}
+				if (!(t instanceof Exception) && renderer != null) {
+					// the renderer may be in an inconsistent state
+					renderer.getSynthesizer().close();
+					renderer = null;
+				}
+				job.setFailed(t, System.nanoTime() - startTime);
+				if (DEBUG_BATCH_RENDER) {
+					debug("BatchRenderService: " + job + ": failed: " + t);
+				}
+			} finally {
+				if (fileSink != null) {
+					fileSink.close();
+				}
+			}
+		}
+
+		private OfflineRenderer getRenderer(double sampleRate, int channels) {
+			if (renderer == null || renderer.getSampleRate() != sampleRate
+					|| renderer.getChannels() != channels) {
+				Synthesizer synth;
+				if (renderer != null) {
+					synth = renderer.getSynthesizer();
+				} else {
+					synth = new Synthesizer(soundbank, new AudioMixer(),
+							floatRendering);
+				}
+				renderer = new OfflineRenderer(synth, sampleRate, channels);
+			}
+			return renderer;
+		}
+	}
+}
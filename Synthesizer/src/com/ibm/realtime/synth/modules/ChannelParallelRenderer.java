@@ -0,0 +1,412 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.modules;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import com.ibm.realtime.synth.engine.*;
+
+/**
+ * Renders a MIDI file offline with one Synthesizer per MIDI channel, in
+ * parallel on a pool of worker threads. The MIDI channels are independent
+ * apart from the final mix, so each channel gets its own Synthesizer,
+ * AudioMixer and OfflineRenderer, all sharing the same Soundbank.
+ * <p>
+ * The file is rendered in blocks: for every block, the channels with events
+ * are rendered in parallel, each to its own buffer, and then the channel
+ * buffers are summed in channel order. A channel's output only depends on
+ * its own events, and the summing order is fixed, so the output is
+ * bit-identical for any number of threads. For that, the synthesizers are
+ * set to reproducible: a sample cache or a sample streamer attached to the
+ * soundbank is not used, since their contents depend on the timing of their
+ * background threads.
+ * <p>
+ * Note that the polyphony limits apply per channel: the voice stealing of
+ * one Synthesizer for all channels is not reproduced.
+ *
+ * @see OfflineRenderer
+ */
+public class ChannelParallelRenderer {
+
+	public static boolean DEBUG_CHANNEL_PARALLEL = false;
+
+	/**
+	 * The default number of samples that each channel renders per block
+	 */
+	public static final int DEFAULT_BLOCK_SAMPLES = 16384;
+
+	private static final int MIDI_CHANNELS = 16;
+
+	private final Soundbank soundbank;
+
+	private final double sampleRate;
+
+	private final int channels;
+
+	private final boolean floatRendering;
+
+	private int blockSamples = DEFAULT_BLOCK_SAMPLES;
+
+	private int maxSliceSamples = OfflineRenderer.DEFAULT_MAX_SLICE_SAMPLES;
+
+	private double tailSeconds = OfflineRenderer.DEFAULT_TAIL_SECONDS;
+
+	/**
+	 * The render state of each MIDI channel, created on demand
+	 */
+	private final Part[] parts = new Part[MIDI_CHANNELS];
+
+	/**
+	 * The worker threads
+	 */
+	private final Worker[] workers;
+
+	/**
+	 * The block that is currently rendered, guarded by "this"
+	 */
+	private Block currentBlock;
+
+	/**
+	 * Incremented for every block, to release the workers, guarded by "this"
+	 */
+	private long blockNumber = 0;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * The first exception or error thrown by a task in the current block
+	 */
+	private volatile Throwable taskFailure;
+
+	/**
+	 * Create a channel parallel renderer and start its worker threads.
+	 *
+	 * @param soundbank the soundbank shared by all channels
+	 * @param sampleRate the sample rate to render at
+	 * @param channels the number of audio channels to render
+	 * @param threadCount the number of worker threads in addition to the
+	 *            thread calling render(), 0 to render in the calling thread
+	 *            only
+	 * @param floatRendering if true, use the 32-bit float render path
+	 */
+	public ChannelParallelRenderer(Soundbank soundbank, double sampleRate,
+			int channels, int threadCount, boolean floatRendering) {
+		if (sampleRate <= 0.0 || channels <= 0) {
+			throw new IllegalArgumentException("illegal format: " + sampleRate
+					+ "Hz, " + channels + " channels");
+		}
+		if (threadCount < 0) {
+			throw new IllegalArgumentException("illegal thread count: "
+					+ threadCount);
+		}
+		this.soundbank = soundbank;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		this.floatRendering = floatRendering;
+		// more threads than channels cannot be used
+		if (threadCount > MIDI_CHANNELS - 1) {
+			threadCount = MIDI_CHANNELS - 1;
+		}
+		workers = new Worker[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			workers[i] = new Worker(i);
+		}
+	}
+
+	/**
+	 * @return the number of worker threads
+	 */
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	/**
+	 * @return the number of samples rendered per channel and block
+	 */
+	public int getBlockSamples() {
+		return blockSamples;
+	}
+
+	/**
+	 * Set the number of samples rendered per channel and block. Larger blocks
+	 * need less synchronization, but more memory.
+	 */
+	public void setBlockSamples(int samples) {
+		if (samples <= 0) {
+			throw new IllegalArgumentException("illegal block size: "
+					+ samples);
+		}
+		blockSamples = samples;
+	}
+
+	/**
+	 * @see OfflineRenderer#setMaxSliceSamples(int)
+	 */
+	public void setMaxSliceSamples(int samples) {
+		if (samples <= 0) {
+			throw new IllegalArgumentException("illegal slice length: "
+					+ samples);
+		}
+		maxSliceSamples = samples;
+	}
+
+	/**
+	 * @see OfflineRenderer#setTailSeconds(double)
+	 */
+	public void setTailSeconds(double seconds) {
+		if (seconds < 0.0) {
+			throw new IllegalArgumentException("illegal tail time: " + seconds);
+		}
+		tailSeconds = seconds;
+	}
+
+	/**
+	 * Render the events to the sink, from start to end. The sink is not
+	 * closed. This method must not be called by several threads at once.
+	 *
+	 * @param events the events to render
+	 * @param sink the sink to write to, e.g. a DiskWriterSink
+	 * @return the number of rendered samples
+	 */
+	public long render(SMFEventList events, AudioSink sink) {
+		if (closed) {
+			throw new IllegalStateException("renderer is closed");
+		}
+		long startTime = DEBUG_CHANNEL_PARALLEL ? System.nanoTime() : 0;
+		// set up the channels with events
+		int activeCount = 0;
+		Part[] active = new Part[MIDI_CHANNELS];
+		for (int c = 0; c < MIDI_CHANNELS; c++) {
+			SMFEventList channelEvents = events.getChannelEvents(c);
+			if (channelEvents.getEventCount() > 0) {
+				Part part = getPart(c);
+				part.renderer.start(channelEvents);
+				active[activeCount++] = part;
+			}
+		}
+		AudioBuffer mix = new AudioBuffer(channels, blockSamples, sampleRate);
+		long total = 0;
+		while (activeCount > 0) {
+			renderBlock(active, activeCount);
+			// sum the channels in channel order
+			int count = 0;
+			for (int i = 0; i < activeCount; i++) {
+				if (active[i].count > count) {
+					count = active[i].count;
+				}
+			}
+			if (count == 0) {
+				break;
+			}
+			mix.changeSampleCount(count, false);
+			mix.makeSilence();
+			for (int i = 0; i < activeCount; i++) {
+				Part part = active[i];
+				for (int ch = 0; ch < channels; ch++) {
+					double[] src = part.buffer.getChannel(ch);
+					double[] dest = mix.getChannel(ch);
+					for (int s = 0; s < part.count; s++) {
+						dest[s] += src[s];
+					}
+				}
+			}
+			sink.write(mix);
+			total += count;
+			// remove the finished channels, retaining the channel order
+			int write = 0;
+			for (int i = 0; i < activeCount; i++) {
+				if (!active[i].renderer.isDone()) {
+					active[write++] = active[i];
+				}
+			}
+			activeCount = write;
+		}
+		if (DEBUG_CHANNEL_PARALLEL) {
+			double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
+			double seconds = total / sampleRate;
+			debug("ChannelParallelRenderer: rendered " + seconds + "s in "
+					+ elapsed + "s with " + (workers.length + 1)
+					+ " threads, " + (seconds / elapsed) + "x real time");
+		}
+		return total;
+	}
+
+	/**
+	 * Stop the worker threads. The renderer cannot be used anymore
+	 * afterwards.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			this.notifyAll();
+		}
+		for (int c = 0; c < MIDI_CHANNELS; c++) {
+			if (parts[c] != null) {
+				parts[c].synth.close();
+			}
+		}
+	}
+
+	private Part getPart(int channel) {
+		Part part = parts[channel];
+		if (part == null) {
+			part = new Part(channel);
+			parts[channel] = part;
+		}
+		part.renderer.setMaxSliceSamples(maxSliceSamples);
+		part.renderer.setTailSeconds(tailSeconds);
+		part.buffer.changeSampleCount(blockSamples, false);
+		return part;
+	}
+
+	/**
+	 * Render the next block of the given parts, using the worker threads and
+	 * the calling thread. Returns when all parts are rendered.
+	 */
+	private void renderBlock(Part[] active, int activeCount) {
+		taskFailure = null;
+		Block block = new Block(active, activeCount);
+		synchronized (this) {
+			currentBlock = block;
+			blockNumber++;
+			if (workers.length > 0) {
+				this.notifyAll();
+			}
+		}
+		// the calling thread renders, too
+		block.run();
+		// wait for the workers to finish
+		synchronized (this) {
+			while (block.pending.get() > 0) {
+				try {
+					this.wait();
+				} catch (InterruptedException ie) {
+					// nothing
+				}
+			}
+		}
+		Throwable failure = taskFailure;
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new RuntimeException(failure);
+		}
+	}
+
+	/**
+	 * The parts to render in one block. A worker that is late for a block
+	 * only finds claimed tasks in it, so it cannot interfere with the next
+	 * block.
+	 */
+	private class Block {
+		final Part[] tasks;
+		final int count;
+
+		/**
+		 * The index of the next task to be claimed
+		 */
+		final AtomicInteger next = new AtomicInteger();
+
+		/**
+		 * The number of tasks not finished yet
+		 */
+		final AtomicInteger pending;
+
+		Block(Part[] parts, int count) {
+			this.tasks = new Part[count];
+			System.arraycopy(parts, 0, tasks, 0, count);
+			this.count = count;
+			this.pending = new AtomicInteger(count);
+		}
+
+		/**
+		 * Render the unclaimed tasks of this block.
+		 */
+		void run() {
+			int index;
+			while ((index = next.getAndIncrement()) < count) {
+				Part part = tasks[index];
+				try {
+					part.count = part.renderer.render(part.buffer, 0,
+							blockSamples);
+				} catch (Throwable t) {
+					// also catch errors: the block must always finish, and
+					// render() rethrows the failure
+					part.count = 0;
+					if (taskFailure == null) {
+						taskFailure = t;
+					}
+				} finally {
+					if (pending.decrementAndGet() == 0) {
+						synchronized (ChannelParallelRenderer.this) {
+							ChannelParallelRenderer.this.notifyAll();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The render state of one MIDI channel.
+	 */
+	private class Part {
+		final Synthesizer synth;
+		final OfflineRenderer renderer;
+		final AudioBuffer buffer;
+
+		/**
+		 * The number of samples rendered in the current block
+		 */
+		int count;
+
+		Part(int channel) {
+			synth = new Synthesizer(soundbank, new AudioMixer(), floatRendering);
+			synth.getParams().setReproducible(true);
+			renderer = new OfflineRenderer(synth, sampleRate, channels);
+			buffer = new AudioBuffer(channels, blockSamples, sampleRate);
+			if (DEBUG_CHANNEL_PARALLEL) {
+				debug("ChannelParallelRenderer: created synthesizer for channel "
+						+ (channel + 1));
+			}
+		}
+	}
+
+	/**
+	 * A worker thread: waits for a new block and renders unclaimed tasks.
+	 */
+	private class Worker implements Runnable {
+
+		Worker(int index) {
+			ThreadFactory.createThread(this, "ChannelParallelRenderer "
+					+ index, OfflineRenderer.WORKER_PRIORITY);
+		}
+
+		public void run() {
+			long lastBlock = 0;
+			while (true) {
+				Block block;
+				synchronized (ChannelParallelRenderer.this) {
+					while (!closed && blockNumber == lastBlock) {
+						try {
+							ChannelParallelRenderer.this.wait();
+						} catch (InterruptedException ie) {
+							// nothing
+						}
+					}
+					if (closed) {
+						break;
+					}
+					lastBlock = blockNumber;
+					block = currentBlock;
+				}
+				block.run();
+			}
+		}
+	}
+}
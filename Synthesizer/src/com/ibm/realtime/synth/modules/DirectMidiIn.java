@@ -422,15 +422,21 @@ public class DirectMidiIn implements Runnable, MidiIn {
 						}
 					} else {
 						// short event
-						MidiEvent me = new MidiEvent(this, time, status & 0x0F,
-								status > 0xF0 ? status : status & 0xF0,
-								(int) ((ret >> 8) & 0x7F),
-								(int) ((ret >> 15) & 0x7F));
+						int channel = status & 0x0F;
+						if (status > 0xF0) {
+							channel = 0;
+						} else {
+							status &= 0xF0;
+						}
+						int data1 = (int) ((ret >> 8) & 0x7F);
+						int data2 = (int) ((ret >> 15) & 0x7F);
 						if (l != null) {
-							l.midiInReceived(me);
+							dispatchShort(l, time, channel, status, data1,
+									data2);
 						} else {
-							for (Listener li : ls) {
-								li.midiInReceived(me);
+							for (int i = 0; i < ls.length; i++) {
+								dispatchShort(ls[i], time, channel, status,
+										data1, data2);
 							}
 						}
 					}
@@ -446,6 +452,21 @@ public class DirectMidiIn implements Runnable, MidiIn {
 		}
 	}
 
+	/**
+	 * Send a short message to the listener. If the listener implements
+	 * MidiIn.ShortListener, no MidiEvent object is created.
+	 */
+	private void dispatchShort(Listener li, long time, int channel,
+			int status, int data1, int data2) {
+		if (li instanceof ShortListener) {
+			((ShortListener) li).midiInReceived(this, time, channel, status,
+					data1, data2);
+		} else {
+			li.midiInReceived(new MidiEvent(this, time, channel, status,
+					data1, data2));
+		}
+	}
+
 	// ------------ NATIVE METHODS
 
 	/**
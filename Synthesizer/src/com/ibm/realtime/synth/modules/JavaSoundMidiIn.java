@@ -179,6 +179,7 @@ public class JavaSoundMidiIn implements MidiIn {
 	 */
 	public void setTimeOffset(AudioTime offset) {
 		this.clockOffset = offset.getNanoTime();
+		receiver.setTimeOffset(clockOffset);
 	}
 
 	public String toString() {
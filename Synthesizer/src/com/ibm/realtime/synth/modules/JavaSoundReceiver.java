@@ -23,6 +23,18 @@ public class JavaSoundReceiver implements Receiver {
 	 */
 	private List<MidiIn.Listener> listeners = new ArrayList<MidiIn.Listener>();
 
+	/**
+	 * A copy of the listeners, replaced when a listener is added or removed,
+	 * so that dispatching a message does not need to lock or iterate over the
+	 * list
+	 */
+	private volatile MidiIn.Listener[] listenerArray = new MidiIn.Listener[0];
+
+	/**
+	 * The time offset of the owner, in nanoseconds
+	 */
+	private volatile long timeOffset = 0;
+
 	// private int ID;
 
 	private MidiIn owner;
@@ -40,15 +52,29 @@ public class JavaSoundReceiver implements Receiver {
 	public void addListener(MidiIn.Listener L) {
 		synchronized (listeners) {
 			this.listeners.add(L);
+			listenerArray =
+					listeners.toArray(new MidiIn.Listener[listeners.size()]);
 		}
 	}
 
 	public void removeListener(MidiIn.Listener L) {
 		synchronized (listeners) {
 			this.listeners.remove(L);
+			listenerArray =
+					listeners.toArray(new MidiIn.Listener[listeners.size()]);
 		}
 	}
 
+	/**
+	 * Set the time offset that is added to the time stamps of the incoming
+	 * messages. Called by the owner when its time offset changes.
+	 * 
+	 * @param nanoTime the time offset in nanoseconds
+	 */
+	public void setTimeOffset(long nanoTime) {
+		this.timeOffset = nanoTime;
+	}
+
 	public void setID(int ID) {
 		// this.ID = ID;
 	}
@@ -103,13 +129,18 @@ public class JavaSoundReceiver implements Receiver {
 				nanoTime = owner.getAudioTime().getNanoTime();
 			}
 		} else {
-			nanoTime =
-					(microTime * 1000L) + owner.getTimeOffset().getNanoTime();
+			nanoTime = (microTime * 1000L) + timeOffset;
 		}
-		synchronized (listeners) {
-			for (MidiIn.Listener listener : listeners) {
-				listener.midiInReceived(new MidiEvent(owner, nanoTime, channel,
-						status, data1, data2));
+		MidiIn.Listener[] ls = listenerArray;
+		for (int i = 0; i < ls.length; i++) {
+			MidiIn.Listener listener = ls[i];
+			if (listener instanceof MidiIn.ShortListener) {
+				// no need to create a MidiEvent object
+				((MidiIn.ShortListener) listener).midiInReceived(owner,
+						nanoTime, channel, status, data1, data2);
+			} else {
+				listener.midiInReceived(new MidiEvent(owner, nanoTime,
+						channel, status, data1, data2));
 			}
 		}
 	}
@@ -135,12 +166,13 @@ public class JavaSoundReceiver implements Receiver {
 				nanoTime = owner.getAudioTime().getNanoTime();
 			}
 		} else {
-			nanoTime =
-					(microTime * 1000L) + owner.getTimeOffset().getNanoTime();
+			nanoTime = (microTime * 1000L) + timeOffset;
 		}
-		synchronized (listeners) {
-			for (MidiIn.Listener listener : listeners) {
-				listener.midiInReceived(new MidiEvent(owner, nanoTime, msg));
+		MidiIn.Listener[] ls = listenerArray;
+		if (ls.length > 0) {
+			MidiEvent me = new MidiEvent(owner, nanoTime, msg);
+			for (int i = 0; i < ls.length; i++) {
+				ls[i].midiInReceived(me);
 			}
 		}
 	}
@@ -0,0 +1,581 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.modules;
+
+import java.util.Arrays;
+
+import static com.ibm.realtime.synth.utils.AudioUtils.*;
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import com.ibm.realtime.synth.engine.*;
+
+/**
+ * Renders a MIDI file as fast as possible, without a real time clock. The
+ * events of an SMFEventList are fed to the Synthesizer in audio time, i.e.
+ * the time is derived from the number of rendered samples, and the mixer is
+ * read in the calling thread.
+ * <p>
+ * The slices are cut at the events' sample positions, so that every event
+ * takes effect at its exact sample, up to the minimum slice length. Between
+ * events, the slices are as large as the maximum slice length, which
+ * removes most of the per-slice overhead of real time rendering.
+ * <p>
+ * The Synthesizer must not be connected to an AudioPullThread or any other
+ * renderer while it is used by an OfflineRenderer. It does not need to be
+ * started, unless it should use render threads. The renderer can be reused
+ * for any number of files.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * OfflineRenderer renderer = new OfflineRenderer(synth, 44100.0, 2);
+ * renderer.render(SMFParser.parse(midiFile), diskWriterSink);
+ * </pre>
+ */
+public class OfflineRenderer {
+
+	public static boolean DEBUG_OFFLINE = false;
+
+	/**
+	 * The default maximum number of samples rendered in one slice
+	 */
+	public static final int DEFAULT_MAX_SLICE_SAMPLES = 512;
+
+	/**
+	 * The default maximum time in seconds that is rendered after the end of
+	 * the file, if notes are still sounding
+	 */
+	public static final double DEFAULT_TAIL_SECONDS = 5.0;
+
+	/**
+	 * The priority of the worker threads of the parallel and batch
+	 * renderers: offline rendering is not time critical.
+	 */
+	public static final int WORKER_PRIORITY = 14;
+
+	/**
+	 * The minimum slice length in nanoseconds. NoteInput only renders a slice
+	 * if it is longer than its "already rendered" grace period, so slices must
+	 * not be shorter than that.
+	 */
+	private static final long MIN_SLICE_NANOS = 250000L;
+
+	/**
+	 * The audio time of the first sample. The time line does not start at 0:
+	 * the Synthesizer treats events at time 0 as "now", and NoteInput
+	 * considers slices close to time 0 as already rendered.
+	 */
+	private static final long TIME_ORIGIN_NANOS = 1000000000L;
+
+	/**
+	 * The number of events that are enqueued before they are dispatched. This
+	 * must be less than the capacity of the Synthesizer's event queue.
+	 */
+	private static final int FEED_CHUNK = 256;
+
+	/**
+	 * The number of slices after which the mixer's removed streams are
+	 * recycled
+	 */
+	private static final int SERVICE_INTERVAL = 16;
+
+	/**
+	 * The size of the buffers written to an AudioSink
+	 */
+	private static final int SINK_BUFFER_SAMPLES = 8192;
+
+	private final Synthesizer synth;
+
+	private final double sampleRate;
+
+	private final int channels;
+
+	private int maxSliceSamples = DEFAULT_MAX_SLICE_SAMPLES;
+
+	private int minSliceSamples;
+
+	private long tailSamples;
+
+	/**
+	 * The buffer that one slice is rendered to
+	 */
+	private AudioBuffer sliceBuffer;
+
+	/**
+	 * The slice buffer for float rendering, or null
+	 */
+	private FloatAudioBuffer floatSliceBuffer;
+
+	/**
+	 * The number of samples in sliceBuffer
+	 */
+	private int sliceCount;
+
+	/**
+	 * The number of samples in sliceBuffer that are already returned
+	 */
+	private int sliceRead;
+
+	// the state of the current file
+
+	private SMFEventList events;
+
+	private int eventIndex;
+
+	/**
+	 * The sample position of the start of the next slice
+	 */
+	private long position;
+
+	/**
+	 * The sample position where rendering started
+	 */
+	private long startPosition;
+
+	/**
+	 * The sample position of the end of the file
+	 */
+	private long endPosition;
+
+	private boolean done = true;
+
+	private int sliceCounter;
+
+	/**
+	 * The number of events fed since the last dispatch
+	 */
+	private int fedCount;
+
+	/**
+	 * Create an offline renderer for the given synthesizer.
+	 *
+	 * @param synth the synthesizer, it must have a mixer
+	 * @param sampleRate the sample rate to render at
+	 * @param channels the number of channels to render
+	 */
+	public OfflineRenderer(Synthesizer synth, double sampleRate, int channels) {
+		if (sampleRate <= 0.0 || channels <= 0) {
+			throw new IllegalArgumentException("illegal format: " + sampleRate
+					+ "Hz, " + channels + " channels");
+		}
+		this.synth = synth;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		setTailSeconds(DEFAULT_TAIL_SECONDS);
+		minSliceSamples = (int) nanos2samples(MIN_SLICE_NANOS, sampleRate) + 1;
+	}
+
+	/**
+	 * @return the synthesizer that this renderer feeds
+	 */
+	public Synthesizer getSynthesizer() {
+		return synth;
+	}
+
+	/**
+	 * @return the sample rate
+	 */
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return the number of channels
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return the maximum number of samples rendered in one slice
+	 */
+	public int getMaxSliceSamples() {
+		return maxSliceSamples;
+	}
+
+	/**
+	 * Set the maximum number of samples rendered in one slice. Larger slices
+	 * have less overhead, but controller changes and note-offs take effect at
+	 * slice boundaries only, unless the slice is cut at the event.
+	 *
+	 * @param samples the maximum slice length in samples
+	 */
+	public void setMaxSliceSamples(int samples) {
+		if (samples <= 0) {
+			throw new IllegalArgumentException("illegal slice length: "
+					+ samples);
+		}
+		maxSliceSamples = samples;
+	}
+
+	/**
+	 * @return the maximum time rendered after the end of the file
+	 */
+	public double getTailSeconds() {
+		return tailSamples / sampleRate;
+	}
+
+	/**
+	 * Set the maximum time that is rendered after the end of the file. The
+	 * rendering stops earlier if no notes are sounding anymore.
+	 *
+	 * @param seconds the maximum tail time in seconds
+	 */
+	public void setTailSeconds(double seconds) {
+		if (seconds < 0.0) {
+			throw new IllegalArgumentException("illegal tail time: " + seconds);
+		}
+		tailSamples = (long) (seconds * sampleRate);
+	}
+
+	/**
+	 * Prepare rendering of the given events. The synthesizer is reset, its
+	 * fixed delay is set to 0, and its note dispatcher is set to synchronous
+	 * mode, so that the events are dispatched by this renderer.
+	 *
+	 * @param events the events to render
+	 */
+	public void start(SMFEventList events) {
+		start(events, 0);
+	}
+
+	/**
+	 * Prepare rendering of the given events, starting at the given time of
+	 * the file. The synthesizer is set up as in start(SMFEventList). Then
+	 * the state at the start time is chased: all controller, program, pitch
+	 * bend, and channel pressure events before the start time are replayed
+	 * without rendering, and the notes that are held at the start time, by
+	 * key or by sustain pedal, are restarted. A restarted note begins with its
+	 * attack phase, so the first seconds after the start time only
+	 * approximate an uninterrupted rendering.
+	 *
+	 * @param events the events to render
+	 * @param startNanos the time in the file where rendering starts
+	 */
+	public void start(SMFEventList events, long startNanos) {
+		AudioMixer mixer = synth.getMixer();
+		if (mixer == null) {
+			throw new IllegalStateException("synthesizer does not have a mixer");
+		}
+		synth.setNoteDispatcherMode(Synthesizer.NOTE_DISPATCHER_SYNCHRONOUS);
+		synth.setFixedDelayNanos(0);
+		synth.setMasterClock(null);
+		synth.hardReset();
+		mixer.cleanUp();
+
+		if (mixer.isFloatRendering()) {
+			if (floatSliceBuffer == null
+					|| floatSliceBuffer.getChannelCount() != channels) {
+				floatSliceBuffer = new FloatAudioBuffer(channels,
+						maxSliceSamples, sampleRate);
+			}
+		}
+		if (sliceBuffer == null || sliceBuffer.getChannelCount() != channels) {
+			sliceBuffer = new AudioBuffer(channels, maxSliceSamples, sampleRate);
+		}
+		this.events = events;
+		eventIndex = 0;
+		position = nanos2samples(startNanos, sampleRate);
+		startPosition = position;
+		endPosition = nanos2samples(events.getDurationNanos(), sampleRate);
+		sliceCount = 0;
+		sliceRead = 0;
+		sliceCounter = 0;
+		done = false;
+		fedCount = 0;
+		if (position > 0) {
+			chase(events.findIndex(samples2nanos(position, sampleRate)));
+		}
+		if (DEBUG_OFFLINE) {
+			debug("OfflineRenderer: start rendering " + events + " at "
+					+ sampleRate + "Hz");
+		}
+	}
+
+	/**
+	 * Bring the synthesizer to the state at the start position: replay all
+	 * events before endIndex except the note events, and restart the notes
+	 * that are still held at the start position.
+	 */
+	private void chase(int endIndex) {
+		long nanoTime = TIME_ORIGIN_NANOS + samples2nanos(position, sampleRate);
+		// for each channel and key: the velocity of the held note, or 0
+		int[] velocity = new int[16 * 128];
+		// for each channel and key: the index of the held note's note on event
+		int[] onIndex = new int[16 * 128];
+		// for each channel and key: true if only held by the sustain pedal
+		boolean[] keyUp = new boolean[16 * 128];
+		boolean[] pedal = new boolean[16];
+		int heldCount = 0;
+		for (int i = 0; i < endIndex; i++) {
+			int message = events.getMessage(i);
+			int status = message & 0xF0;
+			int channel = message & 0x0F;
+			int data1 = (message >> 8) & 0xFF;
+			int data2 = (message >> 16) & 0xFF;
+			int slot = (channel << 7) | data1;
+			if (status == 0x90 && data2 > 0) {
+				if (velocity[slot] == 0) {
+					heldCount++;
+				}
+				velocity[slot] = data2;
+				onIndex[slot] = i;
+				keyUp[slot] = false;
+			} else if (status == 0x80 || status == 0x90) {
+				if (velocity[slot] > 0) {
+					if (pedal[channel]) {
+						keyUp[slot] = true;
+					} else {
+						velocity[slot] = 0;
+						heldCount--;
+					}
+				}
+			} else if (status == 0xA0) {
+				// polyphonic key pressure only applies to playing notes
+			} else {
+				if (status == 0xB0) {
+					if (data1 == 64) {
+						pedal[channel] = (data2 >= 64);
+						if (!pedal[channel]) {
+							heldCount -= releaseKeyUp(velocity, keyUp, channel);
+						}
+					} else if (data1 == 120 || data1 == 123) {
+						// all sound off, all notes off
+						for (int s = channel << 7; s < (channel + 1) << 7; s++) {
+							if (velocity[s] > 0) {
+								velocity[s] = 0;
+								heldCount--;
+							}
+						}
+					}
+				}
+				feed(nanoTime, message);
+			}
+		}
+		eventIndex = endIndex;
+		if (heldCount > 0) {
+			// restart the held notes in the order of their note on events
+			long[] order = new long[heldCount];
+			int n = 0;
+			for (int slot = 0; slot < velocity.length; slot++) {
+				if (velocity[slot] > 0) {
+					order[n++] = (((long) onIndex[slot]) << 11) | slot;
+				}
+			}
+			Arrays.sort(order, 0, n);
+			for (int i = 0; i < n; i++) {
+				int slot = (int) (order[i] & 0x7FF);
+				feed(nanoTime, 0x90 | (slot >> 7) | ((slot & 0x7F) << 8)
+						| (velocity[slot] << 16));
+			}
+			// the notes held by pedal are released right away: the pedal
+			// sustains them
+			for (int i = 0; i < n; i++) {
+				int slot = (int) (order[i] & 0x7FF);
+				if (keyUp[slot]) {
+					feed(nanoTime, 0x80 | (slot >> 7) | ((slot & 0x7F) << 8));
+				}
+			}
+		}
+		if (DEBUG_OFFLINE) {
+			debug("OfflineRenderer: chased " + endIndex + " events, restarted "
+					+ heldCount + " notes");
+		}
+	}
+
+	/**
+	 * Release the notes of channel that are only held by the sustain pedal.
+	 *
+	 * @return the number of released notes
+	 */
+	private static int releaseKeyUp(int[] velocity, boolean[] keyUp,
+			int channel) {
+		int released = 0;
+		for (int s = channel << 7; s < (channel + 1) << 7; s++) {
+			if (keyUp[s] && velocity[s] > 0) {
+				velocity[s] = 0;
+				keyUp[s] = false;
+				released++;
+			}
+		}
+		return released;
+	}
+
+	/**
+	 * Send one event to the synthesizer. Every FEED_CHUNK events, the queued
+	 * events up to nanoTime are dispatched to make room in the event queue.
+	 */
+	private void feed(long nanoTime, int message) {
+		synth.midiInReceived(null, nanoTime, message & 0x0F, message & 0xF0,
+				(message >> 8) & 0xFF, (message >> 16) & 0xFF);
+		if (++fedCount == FEED_CHUNK) {
+			synth.dispatchPendingEvents(nanoTime + 1);
+			fedCount = 0;
+		}
+	}
+
+	/**
+	 * @return true if the current file is completely rendered
+	 */
+	public boolean isDone() {
+		return done && sliceRead >= sliceCount;
+	}
+
+	/**
+	 * @return the number of samples rendered so far for the current file
+	 */
+	public long getRenderedSamples() {
+		return position - startPosition - (sliceCount - sliceRead);
+	}
+
+	/**
+	 * Render the next samples of the current file to buffer. The samples in
+	 * the region offset...offset+count are overwritten. If buffer has more
+	 * channels than this renderer, the additional channels are silent.
+	 *
+	 * @param buffer the buffer to render to
+	 * @param offset the index of the first sample in buffer
+	 * @param count the number of samples to render
+	 * @return the number of samples rendered: less than count only if the end
+	 *         of the file is reached
+	 */
+	public int render(AudioBuffer buffer, int offset, int count) {
+		int rendered = 0;
+		int bufferChannels = buffer.getChannelCount();
+		int channelCount = Math.min(channels, bufferChannels);
+		while (rendered < count) {
+			if (sliceRead >= sliceCount) {
+				if (done || !renderSlice()) {
+					break;
+				}
+			}
+			int n = Math.min(count - rendered, sliceCount - sliceRead);
+			for (int c = 0; c < channelCount; c++) {
+				System.arraycopy(sliceBuffer.getChannel(c), sliceRead,
+						buffer.getChannel(c), offset + rendered, n);
+			}
+			for (int c = channelCount; c < bufferChannels; c++) {
+				Arrays.fill(buffer.getChannel(c), offset + rendered,
+						offset + rendered + n, 0.0);
+			}
+			sliceRead += n;
+			rendered += n;
+		}
+		return rendered;
+	}
+
+	/**
+	 * Render the events to the sink, from start to end, in the calling
+	 * thread. The sink is not closed.
+	 *
+	 * @param events the events to render
+	 * @param sink the sink to write to, e.g. a DiskWriterSink
+	 * @return the number of rendered samples
+	 */
+	public long render(SMFEventList events, AudioSink sink) {
+		long startTime = DEBUG_OFFLINE ? System.nanoTime() : 0;
+		start(events);
+		AudioBuffer buffer = new AudioBuffer(channels, SINK_BUFFER_SAMPLES,
+				sampleRate);
+		long total = 0;
+		while (true) {
+			int n = render(buffer, 0, SINK_BUFFER_SAMPLES);
+			if (n == 0) {
+				break;
+			}
+			if (n < SINK_BUFFER_SAMPLES) {
+				buffer.changeSampleCount(n, true);
+			}
+			sink.write(buffer);
+			total += n;
+		}
+		if (DEBUG_OFFLINE) {
+			double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
+			double seconds = total / sampleRate;
+			debug("OfflineRenderer: rendered " + seconds + "s in " + elapsed
+					+ "s, " + (seconds / elapsed) + "x real time");
+		}
+		return total;
+	}
+
+	/**
+	 * Render the next slice to sliceBuffer.
+	 *
+	 * @return false if the end is reached
+	 */
+	private boolean renderSlice() {
+		AudioMixer mixer = synth.getMixer();
+		int eventCount = events.getEventCount();
+		if (eventIndex >= eventCount && position >= endPosition) {
+			// wait for the release phase of the sounding notes
+			if (mixer.getCount() == 0 || position >= endPosition + tailSamples) {
+				finish(mixer);
+				return false;
+			}
+		}
+
+		// determine the slice length: end the slice at the next event, but
+		// not before the minimum slice length
+		int count = maxSliceSamples;
+		for (int i = eventIndex; i < eventCount; i++) {
+			long distance = nanos2samples(events.getTime(i), sampleRate)
+					- position;
+			if (distance > 0) {
+				// the first event after the start of this slice
+				if (distance < count) {
+					count = (int) Math.max(distance, minSliceSamples);
+				}
+				break;
+			}
+		}
+		long sliceTime = TIME_ORIGIN_NANOS + samples2nanos(position, sampleRate);
+		long sliceEnd = position + count;
+		long sliceEndTime = TIME_ORIGIN_NANOS
+				+ samples2nanos(sliceEnd, sampleRate);
+
+		// feed all events of this slice with their sample accurate time
+		while (eventIndex < eventCount) {
+			long eventSample = nanos2samples(events.getTime(eventIndex),
+					sampleRate);
+			if (eventSample >= sliceEnd) {
+				break;
+			}
+			feed(TIME_ORIGIN_NANOS + samples2nanos(eventSample, sampleRate),
+					events.getMessage(eventIndex));
+			eventIndex++;
+		}
+
+		synth.newAudioSlice(sliceTime, sliceEndTime - sliceTime);
+		sliceBuffer.changeSampleCount(count, false);
+		if (floatSliceBuffer != null && mixer.isFloatRendering()) {
+			floatSliceBuffer.changeSampleCount(count, false);
+			floatSliceBuffer.makeSilence();
+			mixer.read(sliceTime, floatSliceBuffer, 0, count);
+			floatSliceBuffer.copyTo(sliceBuffer);
+		} else {
+			sliceBuffer.makeSilence();
+			mixer.read(sliceTime, sliceBuffer, 0, count);
+		}
+		position = sliceEnd;
+		sliceCount = count;
+		sliceRead = 0;
+		if (++sliceCounter == SERVICE_INTERVAL) {
+			mixer.service();
+			sliceCounter = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Clean up after the end of a file.
+	 */
+	private void finish(AudioMixer mixer) {
+		done = true;
+		synth.hardReset();
+		mixer.cleanUp();
+		if (DEBUG_OFFLINE) {
+			debug("OfflineRenderer: done at " + (position / sampleRate) + "s");
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.modules;
+
+import java.io.File;
+
+import com.ibm.realtime.synth.engine.AudioSink;
+
+/**
+ * A job for the BatchRenderService: a MIDI file to render, the output
+ * target, the sample rate, and the gain. After the job is executed, it
+ * provides its result and the throughput.
+ *
+ * @see BatchRenderService#submit(RenderJob)
+ */
+public class RenderJob {
+
+	/**
+	 * Status: the job is waiting in the queue
+	 */
+	public static final int STATUS_QUEUED = 0;
+
+	/**
+	 * Status: the job is being rendered
+	 */
+	public static final int STATUS_RUNNING = 1;
+
+	/**
+	 * Status: the job was rendered successfully
+	 */
+	public static final int STATUS_DONE = 2;
+
+	/**
+	 * Status: the job failed, see getException()
+	 */
+	public static final int STATUS_FAILED = 3;
+
+	private final File midiFile;
+
+	private final SMFEventList events;
+
+	private final File outputFile;
+
+	private final AudioSink sink;
+
+	private final double sampleRate;
+
+	private final double gain;
+
+	// results, guarded by "this"
+
+	private int status = STATUS_QUEUED;
+
+	private long renderedSamples;
+
+	private long wallNanos;
+
+	private Throwable exception;
+
+	/**
+	 * Create a job that renders a MIDI file to a 16-bit stereo WAVE file.
+	 *
+	 * @param midiFile the standard MIDI file to render
+	 * @param outputFile the WAVE file to write
+	 * @param sampleRate the sample rate to render at
+	 * @param gain the master volume on a linear scale, 1.0 is 0dB
+	 */
+	public RenderJob(File midiFile, File outputFile, double sampleRate,
+			double gain) {
+		this(midiFile, null, outputFile, null, sampleRate, gain);
+	}
+
+	/**
+	 * Create a job that renders parsed MIDI events to an AudioSink. The
+	 * number of channels is taken from the sink; the sink is not closed.
+	 *
+	 * @param events the events to render
+	 * @param sink the sink to write to
+	 * @param sampleRate the sample rate to render at
+	 * @param gain the master volume on a linear scale, 1.0 is 0dB
+	 */
+	public RenderJob(SMFEventList events, AudioSink sink, double sampleRate,
+			double gain) {
+		this(null, events, null, sink, sampleRate, gain);
+	}
+
+	private RenderJob(File midiFile, SMFEventList events, File outputFile,
+			AudioSink sink, double sampleRate, double gain) {
+		if (sampleRate <= 0.0) {
+			throw new IllegalArgumentException("illegal sample rate: "
+					+ sampleRate);
+		}
+		if (gain < 0.0) {
+			throw new IllegalArgumentException("illegal gain: " + gain);
+		}
+		this.midiFile = midiFile;
+		this.events = events;
+		this.outputFile = outputFile;
+		this.sink = sink;
+		this.sampleRate = sampleRate;
+		this.gain = gain;
+	}
+
+	/**
+	 * @return the MIDI file to render, or null if the events are given
+	 */
+	public File getMidiFile() {
+		return midiFile;
+	}
+
+	/**
+	 * @return the events to render, or null if a MIDI file is given
+	 */
+	public SMFEventList getEvents() {
+		return events;
+	}
+
+	/**
+	 * @return the WAVE file to write, or null if a sink is given
+	 */
+	public File getOutputFile() {
+		return outputFile;
+	}
+
+	/**
+	 * @return the sink to write to, or null if an output file is given
+	 */
+	public AudioSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * @return the sample rate to render at
+	 */
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return the master volume on a linear scale
+	 */
+	public double getGain() {
+		return gain;
+	}
+
+	/**
+	 * @return one of the STATUS_* constants
+	 */
+	public synchronized int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the job is done or failed
+	 */
+	public synchronized boolean isFinished() {
+		return status >= STATUS_DONE;
+	}
+
+	/**
+	 * @return the exception or error that caused the job to fail, or null
+	 */
+	public synchronized Throwable getException() {
+		return exception;
+	}
+
+	/**
+	 * @return the number of rendered samples
+	 */
+	public synchronized long getRenderedSamples() {
+		return renderedSamples;
+	}
+
+	/**
+	 * @return the rendered audio time in seconds
+	 */
+	public synchronized double getRenderedSeconds() {
+		return renderedSamples / sampleRate;
+	}
+
+	/**
+	 * @return the wall clock time in seconds that the job took, including
+	 *         parsing the MIDI file and writing the output
+	 */
+	public synchronized double getWallSeconds() {
+		return wallNanos / 1000000000.0;
+	}
+
+	/**
+	 * @return the throughput: rendered seconds per wall clock second, or 0
+	 *         if the job did not finish yet
+	 */
+	public synchronized double getThroughput() {
+		if (wallNanos <= 0) {
+			return 0.0;
+		}
+		return getRenderedSeconds() / getWallSeconds();
+	}
+
+	/**
+	 * Wait until the job is finished.
+	 *
+	 * @return true if the job was rendered successfully
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public synchronized boolean waitFor() throws InterruptedException {
+		while (status < STATUS_DONE) {
+			this.wait();
+		}
+		return status == STATUS_DONE;
+	}
+
+	synchronized void setRunning() {
+		status = STATUS_RUNNING;
+	}
+
+	synchronized void setDone(long samples, long nanos) {
+		renderedSamples = samples;
+		wallNanos = nanos;
+		status = STATUS_DONE;
+		this.notifyAll();
+	}
+
+	synchronized void setFailed(Throwable e, long nanos) {
+		exception = e;
+		wallNanos = nanos;
+		status = STATUS_FAILED;
+		this.notifyAll();
+	}
+
+	public String toString() {
+		String input = (midiFile != null) ? midiFile.getName() : "" + events;
+		return "RenderJob: " + input + " at " + sampleRate + "Hz, gain="
+				+ gain;
+	}
+}
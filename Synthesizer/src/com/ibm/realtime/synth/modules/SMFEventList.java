@@ -0,0 +1,165 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.modules;
+
+/**
+ * The short MIDI events of a standard MIDI file, sorted by time, in primitive
+ * arrays. The times are in nanoseconds, with all tempo changes applied, so
+ * the list can be rendered without further conversion. Events with the same
+ * time are in the order of the file's tracks.
+ * <p>
+ * Instances are immutable, so one list can be rendered by several threads at
+ * once.
+ *
+ * @see SMFParser
+ */
+public class SMFEventList {
+
+	/**
+	 * The time of each event in nanoseconds
+	 */
+	private final long[] times;
+
+	/**
+	 * The packed message of each event: the status byte including the
+	 * channel in the lowest byte, then data1 and data2.
+	 */
+	private final int[] messages;
+
+	private final int count;
+
+	/**
+	 * The duration of the file in nanoseconds, i.e. the time of the last
+	 * event or the last end of track, whichever comes later.
+	 */
+	private final long duration;
+
+	/**
+	 * Create an event list. The arrays are not copied, and must not be
+	 * modified afterwards.
+	 */
+	SMFEventList(long[] times, int[] messages, int count, long duration) {
+		this.times = times;
+		this.messages = messages;
+		this.count = count;
+		this.duration = duration;
+	}
+
+	/**
+	 * @return the number of events
+	 */
+	public int getEventCount() {
+		return count;
+	}
+
+	/**
+	 * @return the time of the event at index in nanoseconds
+	 */
+	public long getTime(int index) {
+		return times[index];
+	}
+
+	/**
+	 * @return the packed message of the event at index: status byte in bits
+	 *         0-7, data1 in bits 8-15, data2 in bits 16-23
+	 */
+	public int getMessage(int index) {
+		return messages[index];
+	}
+
+	/**
+	 * @return the status of the event at index, without the channel
+	 */
+	public int getStatus(int index) {
+		return messages[index] & 0xF0;
+	}
+
+	/**
+	 * @return the MIDI channel of the event at index, 0-based
+	 */
+	public int getChannel(int index) {
+		return messages[index] & 0x0F;
+	}
+
+	/**
+	 * @return the first data byte of the event at index
+	 */
+	public int getData1(int index) {
+		return (messages[index] >> 8) & 0xFF;
+	}
+
+	/**
+	 * @return the second data byte of the event at index
+	 */
+	public int getData2(int index) {
+		return (messages[index] >> 16) & 0xFF;
+	}
+
+	/**
+	 * @return the duration of the file in nanoseconds
+	 */
+	public long getDurationNanos() {
+		return duration;
+	}
+
+	/**
+	 * @return the duration of the file in seconds
+	 */
+	public double getDurationSeconds() {
+		return duration / 1000000000.0;
+	}
+
+	/**
+	 * Find the first event at or after the given time.
+	 *
+	 * @param nanoTime the time in nanoseconds
+	 * @return the index of the first event with a time of at least nanoTime,
+	 *         or getEventCount() if there is none
+	 */
+	public int findIndex(long nanoTime) {
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (times[mid] < nanoTime) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Create a list with the events of one MIDI channel. The duration of the
+	 * returned list is the duration of this list.
+	 *
+	 * @param channel the MIDI channel, 0-based
+	 * @return a new list with the events of channel
+	 */
+	public SMFEventList getChannelEvents(int channel) {
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if ((messages[i] & 0x0F) == channel) {
+				n++;
+			}
+		}
+		long[] newTimes = new long[n];
+		int[] newMessages = new int[n];
+		n = 0;
+		for (int i = 0; i < count; i++) {
+			if ((messages[i] & 0x0F) == channel) {
+				newTimes[n] = times[i];
+				newMessages[n] = messages[i];
+				n++;
+			}
+		}
+		return new SMFEventList(newTimes, newMessages, n, duration);
+	}
+
+	public String toString() {
+		return "SMFEventList: " + count + " events, duration="
+				+ (duration / 1000000L) + "ms";
+	}
+}
@@ -302,6 +302,7 @@ public class SMFMidiIn implements MidiIn, MetaEventListener {
 	 */
 	public void setTimeOffset(AudioTime offset) {
 		this.clockOffset = offset.getNanoTime();
+		receiver.setTimeOffset(clockOffset);
 	}
 
 	public int getInstanceIndex() {
@@ -0,0 +1,424 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.modules;
+
+import java.io.*;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+/**
+ * A parser for standard MIDI files (SMF) of type 0, 1, and 2. The result is
+ * an SMFEventList with the short MIDI messages of all tracks, merged and
+ * sorted by time, with the tick times converted to nanoseconds using the
+ * file's tempo map. System exclusive messages and meta events other than
+ * tempo changes are skipped.
+ * <p>
+ * Unlike the Java Sound MidiSystem, this parser does not create a MidiEvent
+ * object per event, which makes it suitable for offline rendering of large
+ * numbers of files.
+ */
+public class SMFParser {
+
+	public static boolean DEBUG_SMF_PARSER = false;
+
+	/**
+	 * The default tempo: 120 bpm, in microseconds per quarter note
+	 */
+	private static final int DEFAULT_TEMPO = 500000;
+
+	/**
+	 * The maximum number of bytes of a variable length quantity
+	 */
+	private static final int MAX_VARIABLE_LENGTH_BYTES = 4;
+
+	private SMFParser() {
+		// no instances
+	}
+
+	/**
+	 * Parse a standard MIDI file.
+	 *
+	 * @param file the MIDI file
+	 * @return the sorted events of the file
+	 * @throws IOException if the file cannot be read, or it is not a valid
+	 *             MIDI file
+	 */
+	public static SMFEventList parse(File file) throws IOException {
+		long length = file.length();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("MIDI file too large: " + file);
+		}
+		byte[] data = new byte[(int) length];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return parse(data);
+	}
+
+	/**
+	 * Parse a standard MIDI file from a stream. The stream is read to its
+	 * end, but not closed.
+	 *
+	 * @param in the stream with the MIDI file
+	 * @return the sorted events of the file
+	 * @throws IOException if the stream cannot be read, or it does not
+	 *             contain a valid MIDI file
+	 */
+	public static SMFEventList parse(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return parse(out.toByteArray());
+	}
+
+	/**
+	 * Parse a standard MIDI file in memory.
+	 *
+	 * @param data the entire MIDI file
+	 * @return the sorted events of the file
+	 * @throws IOException if data is not a valid MIDI file
+	 */
+	public static SMFEventList parse(byte[] data) throws IOException {
+		int pos = 0;
+		if (data.length < 14 || readInt(data, 0) != 0x4D546864 /* "MThd" */) {
+			throw new IOException("not a standard MIDI file");
+		}
+		int headerLength = readInt(data, 4);
+		if (headerLength < 6 || headerLength > data.length - 8) {
+			throw new IOException("invalid MIDI file header");
+		}
+		int format = readShort(data, 8);
+		int trackCount = readShort(data, 10);
+		int division = readShort(data, 12);
+		if (format > 2) {
+			throw new IOException("unsupported MIDI file format: " + format);
+		}
+		if (division == 0) {
+			throw new IOException("invalid MIDI file division: 0");
+		}
+		pos = 8 + headerLength;
+
+		Track[] tracks = new Track[trackCount];
+		Track tempoMap = new Track();
+		int found = 0;
+		// type 2 tracks are independent sequences: play them one after the
+		// other
+		long baseTick = 0;
+		while (found < trackCount && pos + 8 <= data.length) {
+			int chunkType = readInt(data, pos);
+			int chunkLength = readInt(data, pos + 4);
+			pos += 8;
+			if (chunkLength < 0 || chunkLength > data.length - pos) {
+				// tolerate truncated files
+				chunkLength = data.length - pos;
+			}
+			if (chunkType == 0x4D54726B /* "MTrk" */) {
+				tracks[found] = parseTrack(data, pos, pos + chunkLength,
+						baseTick, tempoMap);
+				if (format == 2) {
+					baseTick = tracks[found].endTick;
+				}
+				found++;
+			}
+			// unknown chunks are skipped
+			pos += chunkLength;
+		}
+		if (found < trackCount) {
+			if (DEBUG_SMF_PARSER) {
+				debug("SMFParser: expected " + trackCount + " tracks, found "
+						+ found);
+			}
+			trackCount = found;
+		}
+		tempoMap.sortStable();
+		return merge(tracks, trackCount, tempoMap, division);
+	}
+
+	/**
+	 * Parse the events of one MTrk chunk.
+	 *
+	 * @param baseTick the tick of the start of the track
+	 * @param tempoMap the tempo events are added to this track, with the tempo
+	 *            in microseconds per quarter note as message
+	 */
+	/**
+	 * Throw an exception if the variable length quantity starting at start
+	 * has more than MAX_VARIABLE_LENGTH_BYTES bytes when reading the byte at
+	 * pos.
+	 */
+	private static void checkVariableLength(int start, int pos)
+			throws IOException {
+		if (pos - start >= MAX_VARIABLE_LENGTH_BYTES) {
+			throw new IOException("invalid MIDI file: variable length "
+					+ "quantity longer than " + MAX_VARIABLE_LENGTH_BYTES
+					+ " bytes at offset " + start);
+		}
+	}
+
+	private static Track parseTrack(byte[] data, int pos, int end,
+			long baseTick, Track tempoMap) throws IOException {
+		Track track = new Track();
+		long tick = baseTick;
+		int runningStatus = 0;
+		while (pos < end) {
+			// read the delta time
+			int delta = 0;
+			int b;
+			int deltaStart = pos;
+			do {
+				if (pos >= end) {
+					return track;
+				}
+				checkVariableLength(deltaStart, pos);
+				b = data[pos++] & 0xFF;
+				delta = (delta << 7) | (b & 0x7F);
+			} while ((b & 0x80) != 0);
+			tick += delta;
+			if (pos >= end) {
+				break;
+			}
+			int status = data[pos] & 0xFF;
+			if (status < 0x80) {
+				if (runningStatus == 0) {
+					throw new IOException("invalid MIDI file: data byte "
+							+ "without status at offset " + pos);
+				}
+				status = runningStatus;
+			} else {
+				pos++;
+			}
+			if (status == 0xFF) {
+				// meta event
+				if (pos >= end) {
+					break;
+				}
+				int type = data[pos++] & 0xFF;
+				int length = 0;
+				int lengthStart = pos;
+				do {
+					if (pos >= end) {
+						return track;
+					}
+					checkVariableLength(lengthStart, pos);
+					b = data[pos++] & 0xFF;
+					length = (length << 7) | (b & 0x7F);
+				} while ((b & 0x80) != 0);
+				if (length < 0 || length > end - pos) {
+					// truncated or invalid length
+					break;
+				}
+				if (type == 0x51 && length >= 3 && pos + 3 <= end) {
+					tempoMap.add(tick, ((data[pos] & 0xFF) << 16)
+							| ((data[pos + 1] & 0xFF) << 8)
+							| (data[pos + 2] & 0xFF));
+				} else if (type == 0x2F) {
+					track.endTick = tick;
+					break;
+				}
+				pos += length;
+				runningStatus = 0;
+			} else if (status == 0xF0 || status == 0xF7) {
+				// system exclusive: skip
+				int length = 0;
+				int lengthStart = pos;
+				do {
+					if (pos >= end) {
+						return track;
+					}
+					checkVariableLength(lengthStart, pos);
+					b = data[pos++] & 0xFF;
+					length = (length << 7) | (b & 0x7F);
+				} while ((b & 0x80) != 0);
+				if (length < 0 || length > end - pos) {
+					// truncated or invalid length
+					break;
+				}
+				pos += length;
+				runningStatus = 0;
+			} else if (status > 0xF0) {
+				// system common/real time messages are not allowed in SMF
+				throw new IOException("invalid MIDI file: status 0x"
+						+ Integer.toHexString(status) + " at offset " + (pos - 1));
+			} else {
+				runningStatus = status;
+				int command = status & 0xF0;
+				int data1 = 0;
+				int data2 = 0;
+				if (pos < end) {
+					data1 = data[pos++] & 0x7F;
+				}
+				if (command != 0xC0 && command != 0xD0 && pos < end) {
+					data2 = data[pos++] & 0x7F;
+				}
+				track.add(tick, status | (data1 << 8) | (data2 << 16));
+			}
+		}
+		if (track.endTick < tick) {
+			track.endTick = tick;
+		}
+		return track;
+	}
+
+	/**
+	 * Merge the tracks into one list, and convert the ticks to nanoseconds.
+	 * Events with the same tick are ordered by track index.
+	 */
+	private static SMFEventList merge(Track[] tracks, int trackCount,
+			Track tempoMap, int division) {
+		int total = 0;
+		long endTick = 0;
+		for (int t = 0; t < trackCount; t++) {
+			total += tracks[t].count;
+			if (tracks[t].endTick > endTick) {
+				endTick = tracks[t].endTick;
+			}
+		}
+		long[] times = new long[total];
+		int[] messages = new int[total];
+		int[] trackPos = new int[trackCount];
+		TickConverter converter = new TickConverter(tempoMap, division);
+
+		for (int i = 0; i < total; i++) {
+			// find the track with the earliest next event: the track count is
+			// small, so a linear scan is cheaper than a heap
+			int best = -1;
+			long bestTick = Long.MAX_VALUE;
+			for (int t = 0; t < trackCount; t++) {
+				Track track = tracks[t];
+				int p = trackPos[t];
+				if (p < track.count && track.ticks[p] < bestTick) {
+					bestTick = track.ticks[p];
+					best = t;
+				}
+			}
+			times[i] = converter.toNanos(bestTick);
+			messages[i] = tracks[best].messages[trackPos[best]];
+			trackPos[best]++;
+		}
+		long duration = converter.toNanos(endTick);
+		if (total > 0 && times[total - 1] > duration) {
+			duration = times[total - 1];
+		}
+		if (DEBUG_SMF_PARSER) {
+			debug("SMFParser: " + trackCount + " tracks, " + total
+					+ " events, " + tempoMap.count + " tempo changes, duration "
+					+ (duration / 1000000L) + "ms");
+		}
+		return new SMFEventList(times, messages, total, duration);
+	}
+
+	private static final int readInt(byte[] data, int pos) {
+		return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+				| ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+	}
+
+	private static final int readShort(byte[] data, int pos) {
+		return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+	}
+
+	/**
+	 * A growable list of events in primitive arrays.
+	 */
+	private static class Track {
+		long[] ticks = new long[256];
+		int[] messages = new int[256];
+		int count;
+		long endTick;
+
+		void add(long tick, int message) {
+			if (count == ticks.length) {
+				long[] newTicks = new long[count * 2];
+				int[] newMessages = new int[count * 2];
+				System.arraycopy(ticks, 0, newTicks, 0, count);
+				System.arraycopy(messages, 0, newMessages, 0, count);
+				ticks = newTicks;
+				messages = newMessages;
+			}
+			ticks[count] = tick;
+			messages[count] = message;
+			count++;
+		}
+
+		/**
+		 * Sort by tick, retaining the order of events with the same tick
+		 * (insertion sort: tempo maps are short and mostly sorted).
+		 */
+		void sortStable() {
+			for (int i = 1; i < count; i++) {
+				long tick = ticks[i];
+				int message = messages[i];
+				int j = i - 1;
+				while (j >= 0 && ticks[j] > tick) {
+					ticks[j + 1] = ticks[j];
+					messages[j + 1] = messages[j];
+					j--;
+				}
+				ticks[j + 1] = tick;
+				messages[j + 1] = message;
+			}
+		}
+	}
+
+	/**
+	 * Converts ticks to nanoseconds with a tempo map. The ticks passed to
+	 * toNanos() must not decrease from call to call.
+	 */
+	private static class TickConverter {
+		private final Track tempoMap;
+
+		/**
+		 * For PPQ files, the ticks per quarter note; for SMPTE files, 0
+		 */
+		private final int ticksPerQuarter;
+
+		/**
+		 * For SMPTE files, the ticks per second
+		 */
+		private final double ticksPerSecond;
+
+		private int tempoIndex = 0;
+		private long segmentTick = 0;
+		private double segmentNanos = 0.0;
+		private double nanosPerTick;
+
+		TickConverter(Track tempoMap, int division) {
+			this.tempoMap = tempoMap;
+			if ((division & 0x8000) != 0) {
+				// SMPTE: negative frames per second in the upper byte
+				int fps = -((byte) (division >> 8));
+				int ticksPerFrame = division & 0xFF;
+				double framesPerSecond = (fps == 29) ? 29.97 : fps;
+				ticksPerQuarter = 0;
+				ticksPerSecond = framesPerSecond * ticksPerFrame;
+				nanosPerTick = 1000000000.0 / ticksPerSecond;
+			} else {
+				ticksPerQuarter = division;
+				ticksPerSecond = 0.0;
+				nanosPerTick = DEFAULT_TEMPO * 1000.0 / ticksPerQuarter;
+			}
+		}
+
+		long toNanos(long tick) {
+			if (ticksPerQuarter > 0) {
+				// advance through the tempo changes up to tick
+				while (tempoIndex < tempoMap.count
+						&& tempoMap.ticks[tempoIndex] <= tick) {
+					long tempoTick = tempoMap.ticks[tempoIndex];
+					segmentNanos += (tempoTick - segmentTick) * nanosPerTick;
+					segmentTick = tempoTick;
+					nanosPerTick = tempoMap.messages[tempoIndex] * 1000.0
+							/ ticksPerQuarter;
+					tempoIndex++;
+				}
+			}
+			return Math.round(segmentNanos + (tick - segmentTick) * nanosPerTick);
+		}
+	}
+}
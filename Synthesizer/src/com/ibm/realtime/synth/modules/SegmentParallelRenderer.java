@@ -0,0 +1,572 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.modules;
+
+import static com.ibm.realtime.synth.utils.AudioUtils.*;
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import com.ibm.realtime.synth.engine.*;
+
+/**
+ * Renders a MIDI file offline by splitting the time line into segments that
+ * are rendered in parallel, each by its own Synthesizer on a worker thread.
+ * This scales with the length of the file rather than with the number of MIDI
+ * channels.
+ * <p>
+ * Each segment is rendered with an OfflineRenderer that starts before the
+ * segment, by the pre-roll time: it first chases the controller, program,
+ * and pedal state from the start of the file, restarts the notes that are
+ * held at that point, and then renders the pre-roll, which is discarded. So
+ * the notes that sound into a segment are in their release or sustain phase
+ * when the segment begins. Each segment also renders a short overlap past its
+ * end, which is cross-faded with the start of the next segment.
+ * <p>
+ * The result approximates an uninterrupted rendering: notes held for longer
+ * than the pre-roll are restarted with their attack in the pre-roll, and
+ * release tails longer than the pre-roll are cut off at the segment boundary
+ * by the cross-fade. The output only depends on the segment length, pre-roll
+ * and overlap, not on the number of threads.
+ *
+ * @see OfflineRenderer#start(SMFEventList, long)
+ */
+public class SegmentParallelRenderer {
+
+	public static boolean DEBUG_SEGMENT_PARALLEL = false;
+
+	/**
+	 * The default length of the segments in seconds
+	 */
+	public static final double DEFAULT_SEGMENT_SECONDS = 20.0;
+
+	/**
+	 * The default time rendered before each segment, in seconds
+	 */
+	public static final double DEFAULT_PRE_ROLL_SECONDS = 3.0;
+
+	/**
+	 * The default length of the cross-fade between segments, in seconds
+	 */
+	public static final double DEFAULT_OVERLAP_SECONDS = 0.02;
+
+	/**
+	 * The size of the buffers for discarding the pre-roll and for the last
+	 * segment's tail
+	 */
+	private static final int CHUNK_SAMPLES = 8192;
+
+	private final Soundbank soundbank;
+
+	private final double sampleRate;
+
+	private final int channels;
+
+	private final boolean floatRendering;
+
+	private double segmentSeconds = DEFAULT_SEGMENT_SECONDS;
+
+	private double preRollSeconds = DEFAULT_PRE_ROLL_SECONDS;
+
+	private double overlapSeconds = DEFAULT_OVERLAP_SECONDS;
+
+	private int maxSliceSamples = OfflineRenderer.DEFAULT_MAX_SLICE_SAMPLES;
+
+	private double tailSeconds = OfflineRenderer.DEFAULT_TAIL_SECONDS;
+
+	/**
+	 * The worker threads
+	 */
+	private final Worker[] workers;
+
+	/**
+	 * The idle render contexts, guarded by "this"
+	 */
+	private OfflineRenderer[] idleRenderers;
+
+	private int idleCount;
+
+	// the state of the current file, guarded by "this"
+
+	private Job job;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a segment parallel renderer and start its worker threads.
+	 *
+	 * @param soundbank the soundbank shared by all segments
+	 * @param sampleRate the sample rate to render at
+	 * @param channels the number of audio channels to render
+	 * @param threadCount the number of worker threads in addition to the
+	 *            thread calling render(), 0 to render in the calling thread
+	 *            only
+	 * @param floatRendering if true, use the 32-bit float render path
+	 */
+	public SegmentParallelRenderer(Soundbank soundbank, double sampleRate,
+			int channels, int threadCount, boolean floatRendering) {
+		if (sampleRate <= 0.0 || channels <= 0) {
+			throw new IllegalArgumentException("illegal format: " + sampleRate
+					+ "Hz, " + channels + " channels");
+		}
+		if (threadCount < 0) {
+			throw new IllegalArgumentException("illegal thread count: "
+					+ threadCount);
+		}
+		this.soundbank = soundbank;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		this.floatRendering = floatRendering;
+		idleRenderers = new OfflineRenderer[threadCount + 1];
+		workers = new Worker[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			workers[i] = new Worker(i);
+		}
+	}
+
+	/**
+	 * @return the number of worker threads
+	 */
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	/**
+	 * Set the length of the segments. Every segment needs a buffer of this
+	 * length until it is written, and the pre-roll is rendered once per
+	 * segment.
+	 *
+	 * @param seconds the segment length in seconds
+	 */
+	public void setSegmentSeconds(double seconds) {
+		if (seconds <= 0.0) {
+			throw new IllegalArgumentException("illegal segment length: "
+					+ seconds);
+		}
+		segmentSeconds = seconds;
+	}
+
+	/**
+	 * @return the length of the segments in seconds
+	 */
+	public double getSegmentSeconds() {
+		return segmentSeconds;
+	}
+
+	/**
+	 * Set the time that is rendered and discarded before every segment. It
+	 * should be longer than the release time of the instruments.
+	 *
+	 * @param seconds the pre-roll time in seconds
+	 */
+	public void setPreRollSeconds(double seconds) {
+		if (seconds < 0.0) {
+			throw new IllegalArgumentException("illegal pre-roll time: "
+					+ seconds);
+		}
+		preRollSeconds = seconds;
+	}
+
+	/**
+	 * @return the pre-roll time in seconds
+	 */
+	public double getPreRollSeconds() {
+		return preRollSeconds;
+	}
+
+	/**
+	 * Set the length of the cross-fade between two segments.
+	 *
+	 * @param seconds the overlap in seconds
+	 */
+	public void setOverlapSeconds(double seconds) {
+		if (seconds < 0.0) {
+			throw new IllegalArgumentException("illegal overlap: " + seconds);
+		}
+		overlapSeconds = seconds;
+	}
+
+	/**
+	 * @return the length of the cross-fade between two segments in seconds
+	 */
+	public double getOverlapSeconds() {
+		return overlapSeconds;
+	}
+
+	/**
+	 * @see OfflineRenderer#setMaxSliceSamples(int)
+	 */
+	public void setMaxSliceSamples(int samples) {
+		if (samples <= 0) {
+			throw new IllegalArgumentException("illegal slice length: "
+					+ samples);
+		}
+		maxSliceSamples = samples;
+	}
+
+	/**
+	 * @see OfflineRenderer#setTailSeconds(double)
+	 */
+	public void setTailSeconds(double seconds) {
+		if (seconds < 0.0) {
+			throw new IllegalArgumentException("illegal tail time: " + seconds);
+		}
+		tailSeconds = seconds;
+	}
+
+	/**
+	 * Render the events to the sink, from start to end. The segments are
+	 * written in order as soon as they are complete. The sink is not closed.
+	 * This method must not be called by several threads at once.
+	 *
+	 * @param events the events to render
+	 * @param sink the sink to write to, e.g. a DiskWriterSink
+	 * @return the number of rendered samples
+	 */
+	public long render(SMFEventList events, AudioSink sink) {
+		if (closed) {
+			throw new IllegalStateException("renderer is closed");
+		}
+		long startTime = DEBUG_SEGMENT_PARALLEL ? System.nanoTime() : 0;
+		int segmentSamples = (int) Math.max(1, segmentSeconds * sampleRate);
+		long durationSamples = nanos2samples(events.getDurationNanos(),
+				sampleRate);
+		int segmentCount = (int) (durationSamples / segmentSamples) + 1;
+		Job localJob = new Job(events, segmentCount, segmentSamples,
+				(int) (preRollSeconds * sampleRate),
+				(int) (overlapSeconds * sampleRate));
+		synchronized (this) {
+			job = localJob;
+			this.notifyAll();
+		}
+		long total = 0;
+		AudioBuffer previousOverlap = null;
+		try {
+			for (int s = 0; s < segmentCount; s++) {
+				Segment segment = localJob.awaitSegment(s);
+				AudioBuffer buffer = segment.buffer;
+				int count = buffer.getSampleCount();
+				int overlap = localJob.overlapSamples;
+				if (previousOverlap != null) {
+					crossFade(previousOverlap, buffer,
+							Math.min(overlap, count));
+				}
+				if (s < segmentCount - 1) {
+					// keep the overlap for the next segment
+					int keep = Math.min(overlap, count);
+					count -= keep;
+					previousOverlap = new AudioBuffer(channels, keep,
+							sampleRate);
+					for (int c = 0; c < channels; c++) {
+						System.arraycopy(buffer.getChannel(c), count,
+								previousOverlap.getChannel(c), 0, keep);
+					}
+					buffer.changeSampleCount(count, true);
+				}
+				if (count > 0) {
+					sink.write(buffer);
+					total += count;
+				}
+				segment.buffer = null;
+			}
+		} finally {
+			synchronized (this) {
+				localJob.cancelled = true;
+				job = null;
+				this.notifyAll();
+			}
+		}
+		if (DEBUG_SEGMENT_PARALLEL) {
+			double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
+			double seconds = total / sampleRate;
+			debug("SegmentParallelRenderer: rendered " + seconds + "s in "
+					+ segmentCount + " segments, " + elapsed + "s with "
+					+ (workers.length + 1) + " threads, " + (seconds / elapsed)
+					+ "x real time");
+		}
+		return total;
+	}
+
+	/**
+	 * Stop the worker threads. The renderer cannot be used anymore
+	 * afterwards.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			this.notifyAll();
+			for (int i = 0; i < idleCount; i++) {
+				idleRenderers[i].getSynthesizer().close();
+			}
+		}
+	}
+
+	/**
+	 * Mix the overlap of the previous segment into the start of buffer, with
+	 * a linear cross-fade.
+	 */
+	private void crossFade(AudioBuffer previous, AudioBuffer buffer, int count) {
+		count = Math.min(count, previous.getSampleCount());
+		for (int c = 0; c < channels; c++) {
+			double[] prev = previous.getChannel(c);
+			double[] next = buffer.getChannel(c);
+			for (int i = 0; i < count; i++) {
+				double fade = (i + 0.5) / count;
+				next[i] = prev[i] * (1.0 - fade) + next[i] * fade;
+			}
+		}
+	}
+
+	/**
+	 * Get an idle renderer, or create a new one.
+	 */
+	private synchronized OfflineRenderer obtainRenderer() {
+		OfflineRenderer renderer;
+		if (idleCount > 0) {
+			renderer = idleRenderers[--idleCount];
+			idleRenderers[idleCount] = null;
+		} else {
+			Synthesizer synth = new Synthesizer(soundbank, new AudioMixer(),
+					floatRendering);
+			renderer = new OfflineRenderer(synth, sampleRate, channels);
+		}
+		renderer.setMaxSliceSamples(maxSliceSamples);
+		renderer.setTailSeconds(tailSeconds);
+		return renderer;
+	}
+
+	private synchronized void releaseRenderer(OfflineRenderer renderer) {
+		if (idleCount < idleRenderers.length && !closed) {
+			idleRenderers[idleCount++] = renderer;
+		} else {
+			renderer.getSynthesizer().close();
+		}
+	}
+
+	/**
+	 * Render one segment.
+	 */
+	private void renderSegment(Job localJob, int index) {
+		OfflineRenderer renderer = null;
+		AudioBuffer buffer = null;
+		Throwable failure = null;
+		try {
+			renderer = obtainRenderer();
+			long start = ((long) index) * localJob.segmentSamples;
+			long renderStart = Math.max(0, start - localJob.preRollSamples);
+			renderer.start(localJob.events, samples2nanos(renderStart,
+					sampleRate));
+			// render and discard the pre-roll
+			AudioBuffer discard = new AudioBuffer(channels, CHUNK_SAMPLES,
+					sampleRate);
+			long preRoll = start - renderStart;
+			while (preRoll > 0) {
+				int n = renderer.render(discard, 0, (int) Math.min(preRoll,
+						CHUNK_SAMPLES));
+				if (n == 0) {
+					break;
+				}
+				preRoll -= n;
+			}
+			if (index < localJob.segmentCount - 1) {
+				int count = localJob.segmentSamples + localJob.overlapSamples;
+				buffer = new AudioBuffer(channels, count, sampleRate);
+				int n = renderer.render(buffer, 0, count);
+				if (n < count) {
+					// silence after the end
+					for (int c = 0; c < channels; c++) {
+						double[] samples = buffer.getChannel(c);
+						for (int i = n; i < count; i++) {
+							samples[i] = 0.0;
+						}
+					}
+				}
+			} else {
+				// the last segment: render until the end
+				buffer = new AudioBuffer(channels, localJob.segmentSamples,
+						sampleRate);
+				int count = 0;
+				while (true) {
+					if (count + CHUNK_SAMPLES > buffer.getSampleCount()) {
+						buffer.changeSampleCount(count + CHUNK_SAMPLES, true);
+					}
+					int n = renderer.render(buffer, count, CHUNK_SAMPLES);
+					count += n;
+					if (n < CHUNK_SAMPLES) {
+						break;
+					}
+				}
+				buffer.changeSampleCount(count, true);
+			}
+		} catch (Throwable t) {
+			// also catch errors: the writer waits for every segment, and
+			// render() rethrows the failure
+			failure = t;
+		} finally {
+			localJob.finish(index, buffer, failure);
+			if (renderer != null) {
+				if (failure == null) {
+					releaseRenderer(renderer);
+				} else {
+					// the renderer may be in an inconsistent state
+					renderer.getSynthesizer().close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * One rendered segment
+	 */
+	private static class Segment {
+		AudioBuffer buffer;
+		boolean done;
+	}
+
+	/**
+	 * The state of rendering one file. The segments are claimed in order, but
+	 * no further ahead of the writer than the number of threads, so that the
+	 * number of buffered segments is bounded.
+	 */
+	private class Job {
+		final SMFEventList events;
+		final int segmentCount;
+		final int segmentSamples;
+		final int preRollSamples;
+		final int overlapSamples;
+		final Segment[] segments;
+
+		/**
+		 * The index of the next segment to claim, guarded by
+		 * SegmentParallelRenderer.this
+		 */
+		int nextSegment;
+
+		/**
+		 * The index of the segment the writer waits for
+		 */
+		int writeSegment;
+
+		boolean cancelled;
+
+		/**
+		 * The first exception or error thrown while rendering a segment
+		 */
+		Throwable failure;
+
+		Job(SMFEventList events, int segmentCount, int segmentSamples,
+				int preRollSamples, int overlapSamples) {
+			this.events = events;
+			this.segmentCount = segmentCount;
+			this.segmentSamples = segmentSamples;
+			this.preRollSamples = preRollSamples;
+			this.overlapSamples = overlapSamples;
+			segments = new Segment[segmentCount];
+			for (int i = 0; i < segmentCount; i++) {
+				segments[i] = new Segment();
+			}
+		}
+
+		/**
+		 * Claim the next segment to render.
+		 *
+		 * @return the index of the segment, or -1 if no segment can be
+		 *         claimed now
+		 */
+		int claim() {
+			// sync note: called with the lock on SegmentParallelRenderer.this
+			if (cancelled || nextSegment >= segmentCount
+					|| nextSegment > writeSegment + workers.length) {
+				return -1;
+			}
+			return nextSegment++;
+		}
+
+		/**
+		 * Mark the segment as done, with its buffer, or with the failure
+		 * that stopped rendering it.
+		 */
+		void finish(int index, AudioBuffer buffer, Throwable t) {
+			synchronized (SegmentParallelRenderer.this) {
+				if (t != null && failure == null) {
+					failure = t;
+				}
+				segments[index].buffer = buffer;
+				segments[index].done = true;
+				SegmentParallelRenderer.this.notifyAll();
+			}
+		}
+
+		/**
+		 * Wait until the given segment is rendered. The calling thread
+		 * renders segments while waiting.
+		 */
+		Segment awaitSegment(int index) {
+			while (true) {
+				int claimed;
+				synchronized (SegmentParallelRenderer.this) {
+					writeSegment = index;
+					if (failure instanceof RuntimeException) {
+						throw (RuntimeException) failure;
+					} else if (failure instanceof Error) {
+						throw (Error) failure;
+					} else if (failure != null) {
+						throw new RuntimeException(failure);
+					}
+					if (segments[index].done) {
+						// allow the workers to claim further segments
+						SegmentParallelRenderer.this.notifyAll();
+						return segments[index];
+					}
+					claimed = claim();
+					if (claimed < 0) {
+						try {
+							SegmentParallelRenderer.this.wait();
+						} catch (InterruptedException ie) {
+							// nothing
+						}
+						continue;
+					}
+				}
+				renderSegment(this, claimed);
+			}
+		}
+	}
+
+	/**
+	 * A worker thread: renders segments of the current job.
+	 */
+	private class Worker implements Runnable {
+
+		Worker(int index) {
+			ThreadFactory.createThread(this, "SegmentParallelRenderer "
+					+ index, OfflineRenderer.WORKER_PRIORITY);
+		}
+
+		public void run() {
+			while (true) {
+				Job localJob;
+				int claimed;
+				synchronized (SegmentParallelRenderer.this) {
+					while (true) {
+						if (closed) {
+							return;
+						}
+						if (job != null) {
+							claimed = job.claim();
+							if (claimed >= 0) {
+								localJob = job;
+								break;
+							}
+						}
+						try {
+							SegmentParallelRenderer.this.wait();
+						} catch (InterruptedException ie) {
+							// nothing
+						}
+					}
+				}
+				renderSegment(localJob, claimed);
+			}
+		}
+	}
+}
@@ -265,8 +265,8 @@ public class StaticPianoSoundbank implements Soundbank {
 			eg = new ADSREnvelope(time);
 		}
 
-		public void calculate(AudioTime time) {
-			eg.calculate(time);
+		public void calculate(long nanoTime) {
+			eg.calculate(nanoTime);
 			calcEffectiveVolumeFactor();
 		}
 
@@ -284,8 +284,8 @@ public class StaticPianoSoundbank implements Soundbank {
 			return 0.0;
 		}
 
-		public void release(AudioTime time) {
-			eg.release(time);
+		public void release(long nanoTime) {
+			eg.release(nanoTime);
 		}
 
 		public boolean endReached() {
@@ -322,9 +322,10 @@ public class StaticPianoSoundbank implements Soundbank {
 		 * specified <code>time</code>. The time should increase in a monotonic
 		 * fashion.
 		 * 
-		 * @param time the current time to calculate this envelope's value for
+		 * @param nanoTime the current time in nanoseconds to calculate this
+		 *            envelope's value for
 		 */
-		public void calculate(AudioTime time);
+		public void calculate(long nanoTime);
 
 		/**
 		 * This is the current value of the envelope. During the life time of the
@@ -345,9 +346,9 @@ public class StaticPianoSoundbank implements Soundbank {
 		/**
 		 * Enter the release segment
 		 * 
-		 * @param time
+		 * @param nanoTime the release time in nanoseconds
 		 */
-		public void release(AudioTime time);
+		public void release(long nanoTime);
 	}
 
 	/**
@@ -394,11 +395,11 @@ public class StaticPianoSoundbank implements Soundbank {
 		 * 
 		 * @see com.ibm.realtime.synth.engine.Envelope#calculate(com.ibm.realtime.synth.engine.AudioTime)
 		 */
-		public void calculate(AudioTime time) {
+		public void calculate(long nanoTime) {
 			if (currSegment == SEGMENT_RELEASE) {
 				// for now, every 100 milliseconds, reduce by 10 decibel
 				long millisSinceReleaseStart =
-						(time.getNanoTime() - currSegmentStartTime) / 1000000L;
+						(nanoTime - currSegmentStartTime) / 1000000L;
 				currDecibelValue = -10.0 * millisSinceReleaseStart / 200;
 				currLinearValue = decibel2linear(currDecibelValue);
 			}
@@ -421,9 +422,9 @@ public class StaticPianoSoundbank implements Soundbank {
 			return (currSegment == SEGMENT_RELEASE) && (currLinearValue < CUT_OFF);
 		}
 
-		public void release(AudioTime time) {
+		public void release(long nanoTime) {
 			if (currSegment < SEGMENT_RELEASE) {
-				currSegmentStartTime = time.getNanoTime();
+				currSegmentStartTime = nanoTime;
 				currSegment = SEGMENT_RELEASE;
 			}
 		}
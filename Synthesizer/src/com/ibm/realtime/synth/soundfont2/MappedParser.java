@@ -0,0 +1,587 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+/**
+ * A SoundFont 2 parser that reads the file through a FileChannel instead of
+ * an InputStream. Only the RIFF chunk headers are read with explicit I/O:
+ * the INFO and pdta lists are memory-mapped and their records are decoded
+ * directly from the mapped buffers by chunk offset, and the smpl chunk is
+ * not read at all, but mapped in place as SoundFontSampleData. So the
+ * sample data is never copied to the heap, and loading time does not depend
+ * on the size of the samples.
+ * <p>
+ * Usage is the same as for Parser: call load(), then retrieve the results
+ * with getInfo(), getPresetBanks(), and getSampleData().
+ */
+public class MappedParser {
+
+	public static boolean TRACE = false;
+	public static boolean TRACE_RIFF = false;
+	public static boolean TRACE_SAMPLELINKS = false;
+
+	// the record sizes of the pdta chunks
+
+	private static final int PHDR_SIZE = 38;
+	private static final int BAG_SIZE = 4;
+	private static final int MOD_SIZE = 10;
+	private static final int GEN_SIZE = 4;
+	private static final int INST_SIZE = 22;
+	private static final int SHDR_SIZE = 46;
+
+	/**
+	 * The length of the name field in phdr, inst, and shdr records
+	 */
+	private static final int NAME_LENGTH = 20;
+
+	/**
+	 * The size of a RIFF chunk header and a LIST type
+	 */
+	private static final int HEADER_SIZE = 12;
+
+	private SoundFontInfo info;
+
+	private List<SoundFontBank> banks;
+
+	private SoundFontSampleData sampleData;
+
+	// the pdta chunks, each a view of the mapped pdta list
+
+	private ByteBuffer phdr;
+	private ByteBuffer pbag;
+	private ByteBuffer pmod;
+	private ByteBuffer pgen;
+	private ByteBuffer inst;
+	private ByteBuffer ibag;
+	private ByteBuffer imod;
+	private ByteBuffer igen;
+	private ByteBuffer shdr;
+
+	/**
+	 * @return the info data of the loaded file
+	 */
+	public SoundFontInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * @return the presets of the loaded file, grouped in banks and sorted by
+	 *         bank number
+	 */
+	public List<SoundFontBank> getPresetBanks() {
+		return banks;
+	}
+
+	/**
+	 * @return the memory-mapped sample data of the loaded file
+	 */
+	public SoundFontSampleData getSampleData() {
+		return sampleData;
+	}
+
+	/**
+	 * Parse the given SoundFont 2 file. The file is closed before this method
+	 * returns, the mappings stay valid.
+	 *
+	 * @param file the SoundFont 2 file
+	 * @throws IOException if the file cannot be read
+	 * @throws Parser.SoundFont2ParserException if the file is not a valid
+	 *             SoundFont 2 file
+	 */
+	public void load(File file) throws IOException,
+			Parser.SoundFont2ParserException {
+		long startTime = TRACE ? System.nanoTime() : 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			readRiff(channel);
+		} finally {
+			raf.close();
+		}
+		if (sampleData == null) {
+			throw new Parser.SoundFont2ParserException("no sample data chunk");
+		}
+		if (phdr == null || pbag == null || pmod == null || pgen == null
+				|| inst == null || ibag == null || imod == null || igen == null
+				|| shdr == null) {
+			throw new Parser.SoundFont2ParserException("no preset data");
+		}
+		if (info == null) {
+			info = new SoundFontInfo();
+		}
+		SoundFontSample[] samples = readSamples();
+		SoundFontInstrument[] instruments = readInstruments(samples);
+		banks = readPresets(instruments);
+		if (TRACE) {
+			debug("MappedParser: loaded " + file + " in "
+					+ ((System.nanoTime() - startTime) / 1000000.0) + "ms: "
+					+ samples.length + " samples, " + instruments.length
+					+ " instruments, " + banks.size() + " banks");
+		}
+	}
+
+	// ------------------------------ RIFF structure
+
+	/**
+	 * Walk the top level chunks and the LIST chunks of the RIFF file.
+	 */
+	private void readRiff(FileChannel channel) throws IOException,
+			Parser.SoundFont2ParserException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		if (!readHeader(channel, header, 0)
+				|| !fourCC(header, 0).equals("RIFF")
+				|| !fourCC(header, 8).equals("sfbk")) {
+			throw new Parser.SoundFont2ParserException(
+					"not a SoundFont 2 file");
+		}
+		long end = Math.min(channel.size(),
+				8 + (header.getInt(4) & 0xFFFFFFFFL));
+		long pos = HEADER_SIZE;
+		while (pos + HEADER_SIZE <= end) {
+			if (!readHeader(channel, header, pos)) {
+				break;
+			}
+			String id = fourCC(header, 0);
+			long size = header.getInt(4) & 0xFFFFFFFFL;
+			long listEnd = Math.min(end, pos + 8 + size);
+			if (TRACE_RIFF) {
+				debug("MappedParser: chunk " + id + " at " + pos + ", " + size
+						+ " bytes");
+			}
+			if (id.equals("LIST")) {
+				String type = fourCC(header, 8);
+				long listStart = pos + HEADER_SIZE;
+				if (type.equals("INFO")) {
+					readInfo(map(channel, listStart, listEnd));
+				} else if (type.equals("sdta")) {
+					readSampleDataList(channel, header, listStart, listEnd);
+				} else if (type.equals("pdta")) {
+					readPresetDataList(map(channel, listStart, listEnd));
+				}
+			}
+			// chunks are padded to even size
+			pos += 8 + size + (size & 1);
+		}
+	}
+
+	/**
+	 * Find the smpl chunk in the sdta list and map it.
+	 */
+	private void readSampleDataList(FileChannel channel, ByteBuffer header,
+			long pos, long end) throws IOException {
+		while (pos + 8 <= end) {
+			if (!readHeader(channel, header, pos)) {
+				break;
+			}
+			long size = header.getInt(4) & 0xFFFFFFFFL;
+			if (fourCC(header, 0).equals("smpl")) {
+				sampleData = SoundFontSampleData.map(channel, pos + 8,
+						Math.min(size, end - (pos + 8)));
+				return;
+			}
+			pos += 8 + size + (size & 1);
+		}
+	}
+
+	/**
+	 * Read the chunks of the INFO list.
+	 */
+	private void readInfo(ByteBuffer list) {
+		info = new SoundFontInfo();
+		int pos = 0;
+		while (pos + 8 <= list.limit()) {
+			String id = fourCC(list, pos);
+			int size = (int) Math.min(list.getInt(pos + 4) & 0xFFFFFFFFL,
+					list.limit() - (pos + 8));
+			ByteBuffer chunk = slice(list, pos + 8, size);
+			if (id.equals("ifil") && size >= 4) {
+				info.setVersion(chunk.getShort(0) & 0xFFFF,
+						chunk.getShort(2) & 0xFFFF);
+			} else if (id.equals("iver") && size >= 4) {
+				info.setROMVersion(chunk.getShort(0) & 0xFFFF,
+						chunk.getShort(2) & 0xFFFF);
+			} else if (id.equals("isng")) {
+				info.setSoundEngine(string(chunk, 0, size));
+			} else if (id.equals("INAM")) {
+				info.setName(string(chunk, 0, size));
+			} else if (id.equals("irom")) {
+				info.setRomName(string(chunk, 0, size));
+			} else if (id.equals("ICRD")) {
+				info.setCreationDate(string(chunk, 0, size));
+			} else if (id.equals("IENG")) {
+				info.setEngineer(string(chunk, 0, size));
+			} else if (id.equals("IPRD")) {
+				info.setProduct(string(chunk, 0, size));
+			} else if (id.equals("ICOP")) {
+				info.setCopyright(string(chunk, 0, size));
+			} else if (id.equals("ICMT")) {
+				info.setComment(string(chunk, 0, size));
+			} else if (id.equals("ISFT")) {
+				info.setSoftware(string(chunk, 0, size));
+			}
+			pos += 8 + size + (size & 1);
+		}
+	}
+
+	/**
+	 * Locate the chunks of the pdta list. The records are decoded later.
+	 */
+	private void readPresetDataList(ByteBuffer list)
+			throws Parser.SoundFont2ParserException {
+		int pos = 0;
+		while (pos + 8 <= list.limit()) {
+			String id = fourCC(list, pos);
+			int size = (int) Math.min(list.getInt(pos + 4) & 0xFFFFFFFFL,
+					list.limit() - (pos + 8));
+			ByteBuffer chunk = slice(list, pos + 8, size);
+			if (id.equals("phdr")) {
+				phdr = checkRecords(id, chunk, PHDR_SIZE);
+			} else if (id.equals("pbag")) {
+				pbag = checkRecords(id, chunk, BAG_SIZE);
+			} else if (id.equals("pmod")) {
+				pmod = checkRecords(id, chunk, MOD_SIZE);
+			} else if (id.equals("pgen")) {
+				pgen = checkRecords(id, chunk, GEN_SIZE);
+			} else if (id.equals("inst")) {
+				inst = checkRecords(id, chunk, INST_SIZE);
+			} else if (id.equals("ibag")) {
+				ibag = checkRecords(id, chunk, BAG_SIZE);
+			} else if (id.equals("imod")) {
+				imod = checkRecords(id, chunk, MOD_SIZE);
+			} else if (id.equals("igen")) {
+				igen = checkRecords(id, chunk, GEN_SIZE);
+			} else if (id.equals("shdr")) {
+				shdr = checkRecords(id, chunk, SHDR_SIZE);
+			}
+			pos += 8 + size + (size & 1);
+		}
+	}
+
+	private static ByteBuffer checkRecords(String id, ByteBuffer chunk,
+			int recordSize) throws Parser.SoundFont2ParserException {
+		// every chunk has at least the terminal record
+		if (chunk.limit() % recordSize != 0 || chunk.limit() < recordSize) {
+			throw new Parser.SoundFont2ParserException("illegal size of "
+					+ id + " chunk: " + chunk.limit());
+		}
+		return chunk;
+	}
+
+	// ------------------------------ pdta records
+
+	/**
+	 * Decode the sample headers. Samples that are ROM samples or that are
+	 * inconsistent with the sample data are returned as null.
+	 */
+	private SoundFontSample[] readSamples() {
+		// without the terminal record
+		int count = shdr.limit() / SHDR_SIZE - 1;
+		int numSampleDataPoints = sampleData.getSampleCount();
+		SoundFontSample[] samples = new SoundFontSample[count];
+		for (int i = 0; i < count; i++) {
+			int pos = i * SHDR_SIZE;
+			String name = string(shdr, pos, NAME_LENGTH);
+			long start = shdr.getInt(pos + 20) & 0xFFFFFFFFL;
+			long end = shdr.getInt(pos + 24) & 0xFFFFFFFFL;
+			long startLoop = shdr.getInt(pos + 28) & 0xFFFFFFFFL;
+			long endLoop = shdr.getInt(pos + 32) & 0xFFFFFFFFL;
+			long sampleRate = shdr.getInt(pos + 36) & 0xFFFFFFFFL;
+			int originalPitch = shdr.get(pos + 40) & 0xFF;
+			int pitchCorrection = shdr.get(pos + 41);
+			int sampleLink = shdr.getShort(pos + 42) & 0xFFFF;
+			int sampleType = shdr.getShort(pos + 44) & 0xFFFF;
+			if ((sampleType & SoundFontSample.ROM_SAMPLE_FLAG) != 0
+					|| end > Integer.MAX_VALUE) {
+				if (TRACE) {
+					debug("MappedParser: ignoring sample " + name);
+				}
+				continue;
+			}
+			if (startLoop < start || endLoop < startLoop || endLoop > end) {
+				// loop points are only used if the zone loops
+				startLoop = start;
+				endLoop = end;
+			}
+			SoundFontSample sample = new SoundFontSample(name, (int) start,
+					(int) end, (int) startLoop, (int) endLoop, sampleRate,
+					originalPitch, pitchCorrection, sampleLink, sampleType);
+			if (sample.isConsistent(numSampleDataPoints, count)) {
+				samples[i] = sample;
+			} else if (TRACE) {
+				debug("MappedParser: inconsistent sample " + sample);
+			}
+		}
+		return samples;
+	}
+
+	/**
+	 * Decode the instruments and their zones, link the zones of stereo
+	 * samples, and create the zone lookup tables.
+	 */
+	private SoundFontInstrument[] readInstruments(SoundFontSample[] samples)
+			throws Parser.SoundFont2ParserException {
+		int count = inst.limit() / INST_SIZE - 1;
+		SoundFontInstrument[] instruments = new SoundFontInstrument[count];
+		List<SoundFontInstrumentZone> zones =
+				new ArrayList<SoundFontInstrumentZone>();
+		for (int i = 0; i < count; i++) {
+			int pos = i * INST_SIZE;
+			SoundFontInstrument instrument = new SoundFontInstrument(string(
+					inst, pos, NAME_LENGTH));
+			int firstBag = inst.getShort(pos + 20) & 0xFFFF;
+			int endBag = inst.getShort(pos + INST_SIZE + 20) & 0xFFFF;
+			checkRange(firstBag, endBag, ibag.limit() / BAG_SIZE - 1);
+			zones.clear();
+			for (int bag = firstBag; bag < endBag; bag++) {
+				SoundFontGenerator[] gens = readGenerators(igen, ibag, bag,
+						SoundFontGenerator.SAMPLE_ID);
+				SoundFontModulator[] mods = readModulators(imod, ibag, bag);
+				SoundFontSample sample = null;
+				int last = gens.length - 1;
+				if (last >= 0
+						&& gens[last].getOp() == SoundFontGenerator.SAMPLE_ID) {
+					int index = gens[last].getAmount() & 0xFFFF;
+					sample = (index < samples.length) ? samples[index] : null;
+					SoundFontInstrumentZone zone = new SoundFontInstrumentZone(
+							gens, mods, sample);
+					if (sample == null) {
+						// missing sample: keep the zone, but never use it
+						zone.makeInaccessible();
+					}
+					zones.add(zone);
+				} else if (bag == firstBag) {
+					// global zone
+					zones.add(new SoundFontInstrumentZone(gens, mods, null));
+				} else if (TRACE) {
+					debug("MappedParser: ignoring zone " + (bag - firstBag)
+							+ " of instrument " + instrument.getName());
+				}
+			}
+			linkStereoZones(instrument, zones, samples);
+			instrument.setZones(zones.toArray(
+					new SoundFontInstrumentZone[zones.size()]));
+			instrument.createZoneIndex();
+			instruments[i] = instrument;
+		}
+		return instruments;
+	}
+
+	/**
+	 * For every zone with a left or right sample, find the zone of the
+	 * instrument with the linked sample and the same key region, and make
+	 * the first of the two the master zone.
+	 */
+	private static void linkStereoZones(SoundFontInstrument instrument,
+			List<SoundFontInstrumentZone> zones, SoundFontSample[] samples) {
+		int count = zones.size();
+		for (int i = 0; i < count; i++) {
+			SoundFontInstrumentZone zone = zones.get(i);
+			SoundFontSample sample = zone.getSample();
+			if (!zone.isValid() || zone.getZoneLink() != null
+					|| (sample.getSampleType() & SoundFontSample.MONO_SAMPLE) != 0) {
+				continue;
+			}
+			int linkIndex = sample.getSampleLinkIndex();
+			if (linkIndex >= samples.length || samples[linkIndex] == null) {
+				continue;
+			}
+			SoundFontSample linked = samples[linkIndex];
+			for (int j = i + 1; j < count; j++) {
+				SoundFontInstrumentZone other = zones.get(j);
+				if (other.getSample() == linked && other.isValid()
+						&& other.getZoneLink() == null
+						&& zone.matchesKeyRegion(other)) {
+					zone.setMasterZone(other);
+					if (TRACE_SAMPLELINKS) {
+						debug("MappedParser: linked " + sample.getName()
+								+ " with " + linked.getName() + " in "
+								+ instrument.getName());
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decode the presets and their zones, create the zone lookup tables, and
+	 * group the presets in banks.
+	 */
+	private List<SoundFontBank> readPresets(SoundFontInstrument[] instruments)
+			throws Parser.SoundFont2ParserException {
+		int count = phdr.limit() / PHDR_SIZE - 1;
+		Map<Integer, SoundFontBank> bankMap =
+				new HashMap<Integer, SoundFontBank>();
+		List<SoundFontPresetZone> zones = new ArrayList<SoundFontPresetZone>();
+		for (int i = 0; i < count; i++) {
+			int pos = i * PHDR_SIZE;
+			String name = string(phdr, pos, NAME_LENGTH);
+			int program = phdr.getShort(pos + 20) & 0xFFFF;
+			int bank = phdr.getShort(pos + 22) & 0xFFFF;
+			int firstBag = phdr.getShort(pos + 24) & 0xFFFF;
+			int endBag = phdr.getShort(pos + PHDR_SIZE + 24) & 0xFFFF;
+			checkRange(firstBag, endBag, pbag.limit() / BAG_SIZE - 1);
+			if (program > 127) {
+				if (TRACE) {
+					debug("MappedParser: ignoring preset " + name
+							+ " with program " + program);
+				}
+				continue;
+			}
+			SoundFontPreset preset = new SoundFontPreset(name, program, bank);
+			zones.clear();
+			for (int bag = firstBag; bag < endBag; bag++) {
+				SoundFontGenerator[] gens = readGenerators(pgen, pbag, bag,
+						SoundFontGenerator.INSTRUMENT);
+				SoundFontModulator[] mods = readModulators(pmod, pbag, bag);
+				int last = gens.length - 1;
+				if (last >= 0
+						&& gens[last].getOp() == SoundFontGenerator.INSTRUMENT) {
+					int index = gens[last].getAmount() & 0xFFFF;
+					SoundFontInstrument instrument = null;
+					if (index < instruments.length) {
+						instrument = instruments[index];
+					}
+					SoundFontPresetZone zone = new SoundFontPresetZone(gens,
+							mods, instrument);
+					if (instrument == null) {
+						zone.makeInaccessible();
+					}
+					zones.add(zone);
+				} else if (bag == firstBag) {
+					// global zone
+					zones.add(new SoundFontPresetZone(gens, mods, null));
+				} else if (TRACE) {
+					debug("MappedParser: ignoring zone " + (bag - firstBag)
+							+ " of preset " + name);
+				}
+			}
+			preset.setZones(zones.toArray(
+					new SoundFontPresetZone[zones.size()]));
+			preset.createZoneIndex();
+			SoundFontBank sfBank = bankMap.get(bank);
+			if (sfBank == null) {
+				sfBank = new SoundFontBank(bank);
+				bankMap.put(bank, sfBank);
+			}
+			sfBank.setPreset(program, preset);
+		}
+		List<SoundFontBank> result = new ArrayList<SoundFontBank>(
+				bankMap.values());
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Decode the generators of one zone. Generators after the terminal
+	 * generator (INSTRUMENT or SAMPLE_ID) are ignored.
+	 */
+	private static SoundFontGenerator[] readGenerators(ByteBuffer gen,
+			ByteBuffer bag, int index, int terminal)
+			throws Parser.SoundFont2ParserException {
+		int first = bag.getShort(index * BAG_SIZE) & 0xFFFF;
+		int end = bag.getShort((index + 1) * BAG_SIZE) & 0xFFFF;
+		checkRange(first, end, gen.limit() / GEN_SIZE);
+		int count = end - first;
+		for (int i = 0; i < count; i++) {
+			if ((gen.getShort((first + i) * GEN_SIZE) & 0xFFFF) == terminal) {
+				count = i + 1;
+				break;
+			}
+		}
+		SoundFontGenerator[] result = new SoundFontGenerator[count];
+		for (int i = 0; i < count; i++) {
+			int pos = (first + i) * GEN_SIZE;
+			result[i] = new SoundFontGenerator(gen.getShort(pos) & 0xFFFF,
+					gen.getShort(pos + 2));
+		}
+		return result;
+	}
+
+	/**
+	 * Decode the modulators of one zone.
+	 */
+	private static SoundFontModulator[] readModulators(ByteBuffer mod,
+			ByteBuffer bag, int index) throws Parser.SoundFont2ParserException {
+		int first = bag.getShort(index * BAG_SIZE + 2) & 0xFFFF;
+		int end = bag.getShort((index + 1) * BAG_SIZE + 2) & 0xFFFF;
+		checkRange(first, end, mod.limit() / MOD_SIZE);
+		SoundFontModulator[] result = new SoundFontModulator[end - first];
+		for (int i = 0; i < result.length; i++) {
+			int pos = (first + i) * MOD_SIZE;
+			result[i] = new SoundFontModulator(mod.getShort(pos) & 0xFFFF,
+					mod.getShort(pos + 2) & 0xFFFF, mod.getShort(pos + 4),
+					mod.getShort(pos + 6) & 0xFFFF,
+					mod.getShort(pos + 8) & 0xFFFF);
+		}
+		return result;
+	}
+
+	private static void checkRange(int first, int end, int count)
+			throws Parser.SoundFont2ParserException {
+		if (first > end || end > count) {
+			throw new Parser.SoundFont2ParserException("illegal bag index: "
+					+ first + ".." + end + ", " + count + " records");
+		}
+	}
+
+	// ------------------------------ utilities
+
+	private static boolean readHeader(FileChannel channel, ByteBuffer header,
+			long pos) throws IOException {
+		header.clear();
+		while (header.hasRemaining()) {
+			if (channel.read(header, pos + header.position()) < 0) {
+				// the last chunk header may lack the LIST type
+				return header.position() >= 8;
+			}
+		}
+		return true;
+	}
+
+	private static ByteBuffer map(FileChannel channel, long start, long end)
+			throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, start,
+				Math.max(0, end - start)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return a little endian view of length bytes of the buffer
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int pos, int length) {
+		ByteBuffer dup = buffer.duplicate();
+		dup.clear();
+		dup.position(pos);
+		dup.limit(pos + length);
+		return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static String fourCC(ByteBuffer buffer, int pos) {
+		return string(buffer, pos, 4);
+	}
+
+	/**
+	 * Decode a zero terminated ASCII string of at most length bytes.
+	 */
+	private static String string(ByteBuffer buffer, int pos, int length) {
+		char[] c = new char[length];
+		int i = 0;
+		while (i < length) {
+			byte b = buffer.get(pos + i);
+			if (b == 0) {
+				break;
+			}
+			c[i++] = (char) (b & 0xFF);
+		}
+		return new String(c, 0, i);
+	}
+}
@@ -5,6 +5,7 @@ package com.ibm.realtime.synth.soundfont2;
 
 import com.ibm.realtime.synth.engine.*;
 import com.ibm.realtime.synth.utils.AudioUtils;
+import com.ibm.realtime.synth.utils.FastMath;
 
 import static com.ibm.realtime.synth.utils.Debug.*;
 
@@ -149,7 +150,6 @@ public class SoundFontArticulation extends Articulation {
 	 */
 	public SoundFontArticulation(AudioTime time, Patch patch,
 			MidiChannel channel) {
-		init(time, patch, channel);
 		lfo1 = new SoundFontLFO(time);
 		lfo2 = new SoundFontLFO(time);
 		eg1 = new SoundFontEnvelope(time);
@@ -158,6 +158,37 @@ public class SoundFontArticulation extends Articulation {
 		// the modifiers for the lowpass are calculated in the Articulation
 		// objects, so it is owned by Articulation.
 		lowPass = new SoundFontFilter(this);
+		init(time, patch, channel);
+	}
+
+	/**
+	 * Initialize this articulation with the default values. This is also used
+	 * to re-initialize the articulation of a pooled voice for a new note.
+	 */
+	protected void init(AudioTime time, Patch patch, MidiChannel channel) {
+		super.init(time, patch, channel);
+		setInitialPitchOffset(0.0);
+		name = "";
+		linearPan = 0.0;
+		linearVolume = 1.0;
+		initialAttenuation = 0.0;
+		initialVolumeFactor[0] = 0.0;
+		initialVolumeFactor[1] = 0.0;
+		runtimeVolumeFactor[0] = 0.0;
+		runtimeVolumeFactor[1] = 0.0;
+		fineTune = 0.0;
+		LFO_EG_VolumeFactor = 1.0;
+		modulationToPitchLFO = 0.5;
+		channelPressureToPitchLFO = 0.5;
+		nextPitchChange = 0;
+		chorusSend = 0.0;
+		reverbSend = 0.0;
+		scaleTuning = 1.0;
+		lfo1.init(time);
+		lfo2.init(time);
+		eg1.init(time);
+		eg2.init(time);
+		lowPass.reset();
 		lfo1.name = "LFO 1"; // vibrato LFO: only pitch
 		lfo2.name = "LFO 2"; // modulation LFO: pitch, volume, cutoff
 		eg1.name = "EG 1"; // volume envelope
@@ -194,17 +225,16 @@ public class SoundFontArticulation extends Articulation {
 	/**
 	 * Override from super class: calculate envelopes and LFO's.
 	 */
-	public void calculate(AudioTime time) {
-		long nanoTime = time.getNanoTime();
+	public void calculate(long nanoTime) {
 		if (nanoTime >= nextPitchChange) {
 			// calculate pitch/filter only
-			lfo1.calculate(time);
-			eg2.calculate(time);
+			lfo1.calculate(nanoTime);
+			eg2.calculate(nanoTime);
 			lowPass.calculate(lfo2.getCurrentCutoff() + eg2.getCurrentCutoff());
 			nextPitchChange = nanoTime + PITCH_CHANGE_INTERVAL;
 		}
-		eg1.calculate(time);
-		lfo2.calculate(time);
+		eg1.calculate(nanoTime);
+		lfo2.calculate(nanoTime);
 		calcLFO_EG_VolumeFactor();
 	}
 
@@ -212,6 +242,10 @@ public class SoundFontArticulation extends Articulation {
 		lowPass.process(buffer);
 	}
 
+	public void process(FloatAudioBuffer buffer) {
+		lowPass.process(buffer);
+	}
+
 	protected double getRuntimePitchOffset() {
 		return lfo1.getCurrentPitch() + lfo2.getCurrentPitch()
 				+ eg2.getCurrentPitch();
@@ -275,7 +309,7 @@ public class SoundFontArticulation extends Articulation {
 
 		double decibel =
 				SoundFontUtils.transform(vol * expr, true, true, false) * 96.0;
-		double linear = AudioUtils.decibel2linear(-decibel);
+		double linear = FastMath.decibel2linear(-decibel);
 
 		// use new pan "style" with 64 as the middle (=64*128 with 14-bit
 		// controllers)
@@ -298,7 +332,7 @@ public class SoundFontArticulation extends Articulation {
 		double lfoEg = lfo2.getCurrentVolume() + eg1.getCurrentVolume();
 		double newLFO_EG_VolumeFactor;
 		if (lfoEg != 0.0) {
-			newLFO_EG_VolumeFactor = AudioUtils.decibel2linear(lfoEg);
+			newLFO_EG_VolumeFactor = FastMath.decibel2linear(lfoEg);
 		} else {
 			newLFO_EG_VolumeFactor = 1.0;
 		}
@@ -534,9 +568,9 @@ public class SoundFontArticulation extends Articulation {
 		// nothing?
 	}
 
-	public void release(AudioTime time) {
-		eg1.release(time);
-		eg2.release(time);
+	public void release(long nanoTime) {
+		eg1.release(nanoTime);
+		eg2.release(nanoTime);
 	}
 
 	public boolean endReached() {
@@ -38,13 +38,23 @@ public class SoundFontBank implements Comparable<SoundFontBank>, Soundbank.Bank
 		}
 		return presets;
 	}
+
+	/**
+	 * Return all presets of this bank. Unlike getPresets(), this creates the
+	 * presets of a bank that creates them lazily, e.g. of a snapshot.
+	 * 
+	 * @return an array of 128 presets. Some elements may be null.
+	 */
+	public SoundFontPreset[] getAllPresets() {
+		return getPresets();
+	}
 	
 	/**
 	 * @return the list of all existing presets in this bank, up to 128.
 	 */
 	public List<Soundbank.Instrument> getInstruments() {
 		List<Soundbank.Instrument> list = new ArrayList<Soundbank.Instrument>(128);
-		SoundFontPreset[] ps = getPresets();
+		SoundFontPreset[] ps = getAllPresets();
 		for (SoundFontPreset p : ps) {
 			if (p != null) {
 				list.add(p);
@@ -74,8 +84,21 @@ public class SoundFontBank implements Comparable<SoundFontBank>, Soundbank.Bank
 	 * @return the index of the found SoundFontBank, or -1 if not found
 	 */
 	public static int findBank(List<SoundFontBank> banks, int thisBank) {
-		// TODO: if more than 5 banks, use binary search
-		return banks.indexOf(new SoundFontBank(thisBank));
+		// binary search, without allocating a key object
+		int low = 0;
+		int high = banks.size() - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int midBank = banks.get(mid).getMidiNumber();
+			if (midBank < thisBank) {
+				low = mid + 1;
+			} else if (midBank > thisBank) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
 	}
 
 	public boolean equals(SoundFontBank sfb) {
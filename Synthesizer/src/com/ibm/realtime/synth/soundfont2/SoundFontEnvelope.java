@@ -82,6 +82,11 @@ public class SoundFontEnvelope {
 	 */
 	private int key;
 
+	/**
+	 * Factor to convert nanoseconds to seconds
+	 */
+	private static final double NANOS_TO_SECONDS = 1.0 / 1000000000.0;
+
 	/**
 	 * The start time of this instrument in nanoseconds
 	 */
@@ -117,8 +122,33 @@ public class SoundFontEnvelope {
 	 * Create an envelope without any influence on pitch, volume, or cutoff.
 	 */
 	public SoundFontEnvelope(AudioTime time) {
-		startTime = time.getNanoTime();
+		init(time);
+	}
+
+	/**
+	 * (Re-)initialize this envelope to the default values, so that a pooled
+	 * voice can be reused for a new note.
+	 */
+	void init(AudioTime time) {
+		init(time.getNanoTime());
+	}
+
+	/**
+	 * (Re-)initialize this envelope with the start time in nanoseconds.
+	 */
+	void init(long nanoTime) {
+		startTime = nanoTime;
+		pitch = 0.0;
+		volume = 0.0;
+		cutoff = 0.0;
+		keyNumToHoldTimeCents = 0;
+		keyNumToDecayTimeCents = 0;
+		key = 0;
 		segmentStartTime = 0.0;
+		nextSegmentStartTime = 0.0;
+		value = 0.0;
+		releaseLevel = 0.0;
+		segment = DELAY;
 		// set default values
 		for (int i = 0; i < segmentValue.length; i++) {
 			segmentValue[i] = DEFAULT_ARTICULATION_DELAY;
@@ -141,7 +171,7 @@ public class SoundFontEnvelope {
 		advanceSegment(DELAY, 0.0);
 		if (DEBUG_EG) {
 			// process this segment's start in case delay==0
-			calculate(new AudioTime(startTime));
+			calculate(startTime);
 		}
 	}
 
@@ -151,10 +181,17 @@ public class SoundFontEnvelope {
 	 * @see com.ibm.realtime.synth.engine.Envelope#calculate(com.ibm.realtime.synth.engine.AudioTime)
 	 */
 	public void calculate(AudioTime time) {
+		calculate(time.getNanoTime());
+	}
+
+	/**
+	 * Calculate the current value for the given time in nanoseconds.
+	 */
+	public void calculate(long nanoTime) {
 		if (segment > RELEASE) {
 			return;
 		}
-		double thisTime = getRelativeTime(time);
+		double thisTime = getRelativeTime(nanoTime);
 		// first check if we need to go to next segment
 		while (segment != SUSTAIN && thisTime >= nextSegmentStartTime) {
 			// advance to next segment
@@ -231,12 +268,12 @@ public class SoundFontEnvelope {
 	/**
 	 * Calculate the duration from start of this voice until the specified time.
 	 * 
-	 * @param time the time to convert to relative time
+	 * @param nanoTime the time to convert to relative time
 	 * @return the time, in seconds, that have passed since the start time of
 	 *         this instrument
 	 */
-	private final double getRelativeTime(AudioTime time) {
-		return (time.getNanoTime() - startTime) / 1000000000.0;
+	private final double getRelativeTime(long nanoTime) {
+		return (nanoTime - startTime) * NANOS_TO_SECONDS;
 	}
 
 	/**
@@ -294,10 +331,17 @@ public class SoundFontEnvelope {
 	 * @see com.ibm.realtime.synth.engine.Envelope#release(com.ibm.realtime.synth.engine.AudioTime)
 	 */
 	public void release(AudioTime time) {
+		release(time.getNanoTime());
+	}
+
+	/**
+	 * Enter the release segment at the given time in nanoseconds.
+	 */
+	public void release(long nanoTime) {
 		if (segment < RELEASE) {
-			calculate(time);
+			calculate(nanoTime);
 			releaseLevel = value;
-			advanceSegment(RELEASE, getRelativeTime(time));
+			advanceSegment(RELEASE, getRelativeTime(nanoTime));
 		}
 	}
 
@@ -6,16 +6,21 @@
 package com.ibm.realtime.synth.soundfont2;
 
 import com.ibm.realtime.synth.engine.AudioBuffer;
+import com.ibm.realtime.synth.engine.FloatAudioBuffer;
 
 public class SoundFontFilter {
   public SoundFontFilter(SoundFontArticulation owner) {
   }
+  void reset() {
+  }
   public void setup(int note, int vel) {
   }
   public void calculate(double cutOffOffset) {
   }
   public void process(AudioBuffer buffer) {
   }
+  public void process(FloatAudioBuffer buffer) {
+  }
   void setCutoffCents(int cents) {
   }
   void addCutoffCents(int cents) {
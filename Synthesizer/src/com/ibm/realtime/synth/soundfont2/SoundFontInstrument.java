@@ -5,6 +5,7 @@ package com.ibm.realtime.synth.soundfont2;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Container for a SoundFont instrument with its zones.
@@ -17,6 +18,13 @@ public class SoundFontInstrument {
 
 	private SoundFontInstrumentZone[] zones;
 
+	/**
+	 * The lookup table for findZones(), created on first use
+	 */
+	private volatile SoundFontZoneIndex<SoundFontInstrumentZone> zoneIndex;
+
+	private static final SoundFontInstrumentZone[] NO_ZONES = new SoundFontInstrumentZone[0];
+
 	public SoundFontInstrument(String name) {
 		this.name = name;
 	}
@@ -40,24 +48,57 @@ public class SoundFontInstrument {
 	 */
 	protected void setZones(SoundFontInstrumentZone[] zones) {
 		this.zones = zones;
+		this.zoneIndex = null;
 	}
 
 	/**
 	 * @return a matching zone, or null if none found. This method does not return zones without a sample.
 	 */
 	public List<SoundFontInstrumentZone> getZones(int note, int vel) {
-		List<SoundFontInstrumentZone> result = null;
-		for (SoundFontInstrumentZone zone : zones) {
-			if (zone.getSample()!=null && zone.matches(note, vel)) {
-				if (result == null) {
-					result = new ArrayList<SoundFontInstrumentZone>(2);
+		SoundFontInstrumentZone[] result = findZones(note, vel);
+		if (result.length == 0) {
+			return null;
+		}
+		return new ArrayList<SoundFontInstrumentZone>(Arrays.asList(result));
+	}
+
+	/**
+	 * Return the zones matching note and velocity from a lookup table. The
+	 * table is created on first use, and then the lookup does not allocate.
+	 *
+	 * @return the matching zones, or an empty array if none found. This
+	 *         method does not return zones without a sample. The returned
+	 *         array must not be modified.
+	 */
+	public SoundFontInstrumentZone[] findZones(int note, int vel) {
+		SoundFontZoneIndex<SoundFontInstrumentZone> index = zoneIndex;
+		if (index == null) {
+			index = createZoneIndex();
+		}
+		return index.get(note, vel);
+	}
+
+	/**
+	 * Create the lookup table for findZones(). Must be called again if the
+	 * key or velocity ranges of the zones change, e.g. by setMasterZone().
+	 */
+	SoundFontZoneIndex<SoundFontInstrumentZone> createZoneIndex() {
+		List<SoundFontInstrumentZone> usable =
+				new ArrayList<SoundFontInstrumentZone>();
+		if (zones != null) {
+			for (SoundFontInstrumentZone zone : zones) {
+				if (zone.getSample() != null) {
+					usable.add(zone);
 				}
-				result.add(zone);
 			}
 		}
-		return result;
+		SoundFontZoneIndex<SoundFontInstrumentZone> index =
+				new SoundFontZoneIndex<SoundFontInstrumentZone>(
+						usable.toArray(NO_ZONES), NO_ZONES);
+		zoneIndex = index;
+		return index;
 	}
-	
+
 	/**
 	 * @return the global zone of this instrument, or null if none exists
 	 */
@@ -18,6 +18,11 @@ public class SoundFontLFO {
 
 	public static boolean DEBUG_LFO = false;
 
+	/**
+	 * The default frequency, in hertz.
+	 */
+	private final static double DEFAULT_FREQUENCY = cents2hertzLFO(0);
+
 	// for debugging
 	String name;
 
@@ -55,20 +60,21 @@ public class SoundFontLFO {
 	/**
 	 * The frequency, in hertz.
 	 */
-	private double frequency = cents2hertzLFO(0);
+	private double frequency = DEFAULT_FREQUENCY;
 
 	// runtime variables
 
 	/**
-	 * The start time, in microseconds, of this LFO. It is initialized in the
+	 * The start time, in nanoseconds, of this LFO. It is initialized in the
 	 * setup() method.
 	 */
 	private long startTime;
 
 	/**
-	 * The period of one entire "run" of the oscillator, in microseconds.
+	 * The number of periods of the oscillator per nanosecond, i.e. the
+	 * frequency divided by 1E9.
 	 */
-	private double period;
+	private double periodsPerNano;
 
 	/**
 	 * The current value, [-1.0 ... 0.0 ... +1.0]
@@ -79,7 +85,30 @@ public class SoundFontLFO {
 	 * Create an LFO without any influence on pitch, volume, or cutoff.
 	 */
 	public SoundFontLFO(AudioTime time) {
-		startTime = time.getMicroTime();
+		init(time);
+	}
+
+	/**
+	 * (Re-)initialize this LFO to the default values, so that a pooled voice
+	 * can be reused for a new note.
+	 */
+	void init(AudioTime time) {
+		init(time.getNanoTime());
+	}
+
+	/**
+	 * (Re-)initialize this LFO with the start time in nanoseconds.
+	 */
+	void init(long nanoTime) {
+		startTime = nanoTime;
+		pitch = 0.0;
+		runtimePitchOffset = 0.0;
+		volume = 0.0;
+		cutoff = 0.0;
+		delay = DEFAULT_ARTICULATION_DELAY;
+		frequency = DEFAULT_FREQUENCY;
+		periodsPerNano = 0.0;
+		value = 0.0;
 	}
 
 	/**
@@ -88,11 +117,11 @@ public class SoundFontLFO {
 	 */
 	public void setup() {
 		// add the delay to startTime
-		startTime += (long) (delay * 1000000.0);
+		startTime += (long) (delay * 1000000000.0);
 		if (frequency != 0.0) {
-			period = 1000000.0 / (double) frequency;
+			periodsPerNano = frequency / 1000000000.0;
 		} else {
-			period = 1000000.0;
+			periodsPerNano = 1.0 / 1000000000.0;
 		}
 		value = 0.0; // start value
 	}
@@ -106,13 +135,20 @@ public class SoundFontLFO {
 	 * retrieve the current LFO values in the respective unit.
 	 */
 	public void calculate(AudioTime time) {
-		double curr = (double) (time.getMicroTime() - startTime);
-		if (curr < 0.0) {
+		calculate(time.getNanoTime());
+	}
+
+	/**
+	 * Calculate the current value for the given time in nanoseconds.
+	 */
+	public void calculate(long nanoTime) {
+		long curr = nanoTime - startTime;
+		if (curr < 0) {
 			value = 0.0;
 		} else {
 			// a triangle that "starts" 1/4th of a period before the start time.
 			double periodFraction =
-					getRemainder((curr + (period / 4.0)) / period);
+					getRemainder((curr * periodsPerNano) + 0.25);
 			if (periodFraction < 0.5) {
 				// first phase: "uphill"
 				value = (periodFraction - 0.25) * 4.0;
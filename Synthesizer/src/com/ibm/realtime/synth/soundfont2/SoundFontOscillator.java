@@ -3,14 +3,118 @@
  */
 package com.ibm.realtime.synth.soundfont2;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import com.ibm.realtime.synth.engine.*;
 
 public class SoundFontOscillator extends Oscillator {
 
+	/**
+	 * Factor to normalize 16-bit samples to [-1.0 ... +1.0]
+	 */
+	private static final float SAMPLE_SCALE = 1.0f / 32768.0f;
+
+	/**
+	 * The size of the window: enough for a block of 512 samples at a read
+	 * position step of almost 4 with any interpolation tier. Blocks that need
+	 * more samples are converted in parts.
+	 */
+	private static final int WINDOW_SIZE = 2048;
+
+	/**
+	 * The sample data, read directly if it is memory-mapped
+	 */
+	private SoundFontSampleData sampleData;
+
+	/**
+	 * The decoded samples from the sample cache, or null
+	 */
+	private float[] cachedSamples;
+
+	/**
+	 * The sample index of the first element in cachedSamples
+	 */
+	private int cachedStart;
+
+	/**
+	 * The sample played by this oscillator
+	 */
+	private SoundFontSample sample;
+
+	/**
+	 * The streamer for long samples, or null
+	 */
+	private SoundFontSampleStreamer streamer;
+
+	/**
+	 * The stream of a streamed sample, or null
+	 */
+	private SoundFontSampleStreamer.Stream stream;
+
+	/**
+	 * The half and quarter rate copies of the sample, or null
+	 */
+	private SoundFontSamplePyramid pyramid;
+
+	/**
+	 * The decoded samples of one block for interpolation tiers other than
+	 * linear. It is allocated with the oscillator, i.e. at load time for the
+	 * pooled voices, so that rendering does not allocate.
+	 */
+	private final float[] window = new float[WINDOW_SIZE];
+
+	/**
+	 * Create an uninitialized oscillator for a pooled voice.
+	 */
+	SoundFontOscillator() {
+		// nothing to do
+	}
+
 	public SoundFontOscillator(SoundFontSample sample,
 			SoundFontSampleData sampleData) {
+		init(sample, sampleData, null, null);
+	}
+
+	SoundFontOscillator(SoundFontSample sample,
+			SoundFontSampleData sampleData, SoundFontSampleCache cache,
+			SoundFontSampleStreamer streamer) {
+		init(sample, sampleData, cache, streamer);
+	}
+
+	/**
+	 * Set up this oscillator for the given sample. All state variables are
+	 * reset, so that the oscillator of a pooled voice can be reused for a new
+	 * note.
+	 * 
+	 * @param cache the cache for decoded samples, or null
+	 * @param streamer the streamer for long samples, or null
+	 */
+	void init(SoundFontSample sample, SoundFontSampleData sampleData,
+			SoundFontSampleCache cache, SoundFontSampleStreamer streamer) {
+		close();
 		setNativeAudioFormat(sample.getSampleRate(), 16, 2, 1, true, false);
+		this.nativePos = 0.0;
+		this.nativePosDelta = 0.0;
+		this.outSampleRate = 0.0;
+		this.sampleRateFactor = 0.0;
+		this.effectiveSampleRateFactor = 0.0;
+		this.loopMode = LOOPMODE_NONE;
+		this.interpolation = Interpolation.DEFAULT;
+		this.sampleData = sampleData;
+		// null if the sample data is memory-mapped
 		this.nativeSamples = sampleData.getData();
+		this.sample = sample;
+		this.streamer = streamer;
+		this.pyramid = sample.getPyramid();
+		if (streamer != null && streamer.isStreamable(sample)) {
+			// do not cache long samples, and always read the stream
+			cache = null;
+			this.pyramid = null;
+		}
+		this.cachedSamples =
+				(cache != null) ? cache.lookup(sample, sampleData) : null;
+		this.cachedStart = sample.getStart();
 		this.nativeSamplesStartPos = sample.getStart();
 		this.nativeSamplesEndPos = sample.getEnd();
 
@@ -18,14 +122,365 @@ public class SoundFontOscillator extends Oscillator {
 		this.loopEnd = sample.getEndLoop();
 	}
 
+	/**
+	 * Called after the generators are applied: open the stream if the sample
+	 * is streamed.
+	 */
+	public void init() {
+		super.init();
+		if (streamer != null) {
+			stream = streamer.open(sample, nativeSamplesStartPos,
+					nativeSamplesEndPos, loopMode != LOOPMODE_NONE, loopStart,
+					loopEnd);
+		}
+	}
+
+	/**
+	 * Close the stream, if any.
+	 */
+	public void close() {
+		if (stream != null) {
+			streamer.close(stream);
+			stream = null;
+		}
+	}
+
 	protected void convertOneBlock(AudioBuffer buffer, int offset, int count) {
 		assert(buffer.getChannelCount()==1);
+		if (pyramid != null && nativePosDelta >= 2.0
+				&& convertPyramid(null, buffer.getChannel(0), offset, count)) {
+			return;
+		}
+		if (interpolation != Interpolation.LINEAR
+				|| Interpolation.isCopy(nativePos, nativePosDelta)) {
+			convertInterpolated(null, buffer.getChannel(0), offset, count);
+			return;
+		}
+		if (stream != null) {
+			convertStreamed(null, buffer.getChannel(0), offset, count);
+			return;
+		}
+		if (cachedSamples != null
+				&& convertCached(null, buffer.getChannel(0), offset, count)) {
+			return;
+		}
+		if (nativeSamples == null) {
+			convertMapped(null, buffer.getChannel(0), offset, count);
+			return;
+		}
 		ConversionTool.byte2doubleGenericLSRC(nativeSamples,
 					0, nativeSampleSize, nativePos,
 					nativePosDelta, buffer.getChannel(0), offset,
 					count, nativeFormatCode);
 	}
 
+	/**
+	 * Direct conversion of the 16-bit little endian mono sample data to float
+	 * samples, with linear interpolation or the selected interpolation tier.
+	 */
+	protected void convertOneBlock(FloatAudioBuffer buffer, int offset,
+			int count) {
+		assert(buffer.getChannelCount()==1);
+		if (pyramid != null && nativePosDelta >= 2.0
+				&& convertPyramid(buffer.getChannel(0), null, offset, count)) {
+			return;
+		}
+		if (interpolation != Interpolation.LINEAR
+				|| Interpolation.isCopy(nativePos, nativePosDelta)) {
+			convertInterpolated(buffer.getChannel(0), null, offset, count);
+			return;
+		}
+		if (stream != null) {
+			convertStreamed(buffer.getChannel(0), null, offset, count);
+			return;
+		}
+		if (cachedSamples != null
+				&& convertCached(buffer.getChannel(0), null, offset, count)) {
+			return;
+		}
+		if (nativeSamples == null) {
+			convertMapped(buffer.getChannel(0), null, offset, count);
+			return;
+		}
+		byte[] data = nativeSamples;
+		float[] out = buffer.getChannel(0);
+		// the last sample that can be read as the second interpolation point
+		int lastIndex = (data.length / 2) - 1;
+		double pos = nativePos;
+		double delta = nativePosDelta;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int index = (int) pos;
+			float frac = (float) (pos - index);
+			int byteIndex = index << 1;
+			float s1 = (short) ((data[byteIndex + 1] << 8)
+					| (data[byteIndex] & 0xFF));
+			float s2 = s1;
+			if (index < lastIndex) {
+				s2 = (short) ((data[byteIndex + 3] << 8)
+						| (data[byteIndex + 2] & 0xFF));
+			}
+			out[i] = (s1 + (s2 - s1) * frac) * SAMPLE_SCALE;
+			pos += delta;
+		}
+	}
+
+	/**
+	 * Conversion with the selected interpolation tier, or a copy of the
+	 * samples if the sample rate factor is exactly 1.0, to either floatOut or
+	 * doubleOut. The samples are read from the sample cache if it holds all
+	 * samples of the block, otherwise they are decoded to a window first.
+	 * Beyond the readable sample data, the first or last sample is repeated.
+	 */
+	private void convertInterpolated(float[] floatOut, double[] doubleOut,
+			int offset, int count) {
+		int quality = interpolation;
+		double delta = nativePosDelta;
+		// the number of samples whose read positions and interpolation
+		// points fit into the window, see convertInterpolated() below
+		double maxCount = Math.floor((WINDOW_SIZE - 3
+				- Interpolation.getPointsBefore(quality)
+				- Interpolation.getPointsAfter(quality)) / delta) + 1.0;
+		if (count <= maxCount) {
+			convertInterpolated(quality, nativePos, delta, floatOut,
+					doubleOut, offset, count);
+			return;
+		}
+		int partCount = (int) maxCount;
+		for (int done = 0; done < count; done += partCount) {
+			convertInterpolated(quality, nativePos + done * delta, delta,
+					floatOut, doubleOut, offset + done,
+					Math.min(partCount, count - done));
+		}
+	}
+
+	/**
+	 * Conversion of count samples starting at read position pos. The window
+	 * holds the samples from first to last, at most WINDOW_SIZE samples.
+	 */
+	private void convertInterpolated(int quality, double pos, double delta,
+			float[] floatOut, double[] doubleOut, int offset, int count) {
+		int before = Interpolation.getPointsBefore(quality);
+		int first = ((int) pos) - before;
+		// pos + (count - 1) * delta is the last read position; one sample
+		// more is a margin for the rounding errors of adding up delta
+		int last = ((int) (pos + (count - 1) * delta)) + 1
+				+ Interpolation.getPointsAfter(quality);
+		SoundFontSampleStreamer.Stream st = stream;
+		if (st != null) {
+			int start = sample.getStart();
+			if (!st.isAvailable(Math.max(first, start), last)) {
+				st.underrun();
+				if (floatOut != null) {
+					Arrays.fill(floatOut, offset, offset + count, 0.0f);
+				} else {
+					Arrays.fill(doubleOut, offset, offset + count, 0.0);
+				}
+			} else {
+				float[] w = window;
+				for (int i = first; i <= last; i++) {
+					w[i - first] = st.get(Math.max(i, start));
+				}
+				Interpolation.interpolate(quality, w, first, pos, delta,
+						floatOut, doubleOut, offset, count);
+			}
+			// the next block starts here, give or take a rounding error
+			st.setConsumed(((long) (pos + count * delta)) - 1 - before);
+			return;
+		}
+		float[] data = cachedSamples;
+		if (data != null && first >= cachedStart
+				&& last - cachedStart < data.length) {
+			Interpolation.interpolate(quality, data, cachedStart, pos, delta,
+					floatOut, doubleOut, offset, count);
+			return;
+		}
+		long dataCount = sampleData.getLongSampleCount();
+		if (floatOut != null && Interpolation.isCopy(pos, delta)
+				&& pos >= 0 && ((long) pos) + count <= dataCount) {
+			// decode directly to the output buffer
+			sampleData.decode((long) pos, floatOut, offset, count);
+			return;
+		}
+		float[] w = window;
+		int lo = Math.max(first, 0);
+		int hi = (int) Math.min(last, dataCount - 1);
+		if (lo <= hi) {
+			sampleData.decode(lo, w, lo - first, hi - lo + 1);
+			for (int i = first; i < lo; i++) {
+				w[i - first] = w[lo - first];
+			}
+			for (int i = hi + 1; i <= last; i++) {
+				w[i - first] = w[hi - first];
+			}
+		} else {
+			Arrays.fill(w, 0, last - first + 1, 0.0f);
+		}
+		Interpolation.interpolate(quality, w, first, pos, delta, floatOut,
+				doubleOut, offset, count);
+	}
+
+	/**
+	 * Conversion from the level of the sample pyramid that is closest to the
+	 * read position step, with the selected interpolation tier, to either
+	 * floatOut or doubleOut. The read position and step are scaled to the
+	 * level's sample rate, so the loop points and the end position remain in
+	 * samples of the original data.
+	 * 
+	 * @return false if the block reads samples outside of the levels, e.g.
+	 *         because the generators moved the sample start or end
+	 */
+	private boolean convertPyramid(float[] floatOut, double[] doubleOut,
+			int offset, int count) {
+		int level = SoundFontSamplePyramid.chooseLevel(nativePosDelta);
+		if (level == 0) {
+			return false;
+		}
+		float[] data = pyramid.getLevel(level);
+		double scale = 1.0 / (1 << level);
+		double pos = (nativePos - pyramid.getStart()) * scale;
+		double delta = nativePosDelta * scale;
+		int quality = interpolation;
+		int first = ((int) pos) - Interpolation.getPointsBefore(quality);
+		// pos + count * delta is one step beyond the last read position: a
+		// margin for the rounding errors of adding up delta
+		int last = ((int) (pos + count * delta))
+				+ Interpolation.getPointsAfter(quality);
+		int inStart = -SoundFontSamplePyramid.PAD;
+		if (pos < 0.0 || first < inStart || last - inStart >= data.length) {
+			return false;
+		}
+		Interpolation.interpolate(quality, data, inStart, pos, delta,
+				floatOut, doubleOut, offset, count);
+		return true;
+	}
+
+	/**
+	 * Conversion of a streamed sample with linear interpolation, to either
+	 * floatOut or doubleOut. If the prefetch thread has not read the
+	 * samples of this block yet, the block is silent: the render thread
+	 * never waits for I/O.
+	 */
+	private void convertStreamed(float[] floatOut, double[] doubleOut,
+			int offset, int count) {
+		SoundFontSampleStreamer.Stream st = stream;
+		double pos = nativePos;
+		double delta = nativePosDelta;
+		int end = offset + count;
+		// one more sample as second interpolation point, and one sample
+		// more for the rounding errors of adding up delta
+		if (!st.isAvailable((int) pos, (int) (pos + count * delta) + 1)) {
+			st.underrun();
+			if (floatOut != null) {
+				Arrays.fill(floatOut, offset, end, 0.0f);
+			} else {
+				Arrays.fill(doubleOut, offset, end, 0.0);
+			}
+		} else {
+			for (int i = offset; i < end; i++) {
+				int index = (int) pos;
+				float frac = (float) (pos - index);
+				float s1 = st.get(index);
+				float value = s1 + (st.get(index + 1) - s1) * frac;
+				if (floatOut != null) {
+					floatOut[i] = value;
+				} else {
+					doubleOut[i] = value;
+				}
+				pos += delta;
+			}
+		}
+		// the next block starts here, give or take a rounding error
+		st.setConsumed(((long) (nativePos + count * delta)) - 1);
+	}
+
+	/**
+	 * Conversion of decoded samples from the sample cache with linear
+	 * interpolation, to either floatOut or doubleOut. The cached samples are
+	 * scaled by a power of 2, so the result is the same as decoding the
+	 * samples here.
+	 * 
+	 * @return false if the block reads samples outside of the cached range,
+	 *         e.g. because the generators moved the sample end
+	 */
+	private boolean convertCached(float[] floatOut, double[] doubleOut,
+			int offset, int count) {
+		float[] data = cachedSamples;
+		int start = cachedStart;
+		double pos = nativePos;
+		double delta = nativePosDelta;
+		// one more sample as second interpolation point, and one sample
+		// more for the rounding errors of adding up delta
+		if ((int) pos < start
+				|| (int) (pos + count * delta) + 1 - start >= data.length) {
+			return false;
+		}
+		int end = offset + count;
+		if (floatOut != null) {
+			for (int i = offset; i < end; i++) {
+				int index = (int) pos;
+				float frac = (float) (pos - index);
+				float s1 = data[index - start];
+				floatOut[i] = s1 + (data[index - start + 1] - s1) * frac;
+				pos += delta;
+			}
+		} else {
+			for (int i = offset; i < end; i++) {
+				int index = (int) pos;
+				float frac = (float) (pos - index);
+				float s1 = data[index - start];
+				doubleOut[i] = s1 + (data[index - start + 1] - s1) * frac;
+				pos += delta;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Conversion of memory-mapped sample data with linear interpolation, to
+	 * either floatOut or doubleOut. Sample indexes are converted to long byte
+	 * offsets. Usually, all samples of the block are in one mapped region and
+	 * are read with int offsets into that region. Otherwise, e.g. at the very
+	 * end of the data, every sample is looked up in its region.
+	 */
+	private void convertMapped(float[] floatOut, double[] doubleOut,
+			int offset, int count) {
+		// the last sample that can be read as the second interpolation point
+		long lastIndex = sampleData.getLongSampleCount() - 1;
+		double pos = nativePos;
+		double delta = nativePosDelta;
+		int end = offset + count;
+
+		long firstByte = ((long) (int) pos) << 1;
+		long lastByte = (((long) (int) (pos + (count - 1) * delta)) + 1) << 1;
+		int shift = SoundFontSampleData.REGION_SHIFT;
+		int regionIndex = (int) (firstByte >> shift);
+		long regionStart = ((long) regionIndex) << shift;
+		ByteBuffer region = sampleData.getRegion(regionIndex);
+		boolean inRegion = (lastByte + 2 - regionStart) <= region.limit();
+
+		for (int i = offset; i < end; i++) {
+			int index = (int) pos;
+			float frac = (float) (pos - index);
+			float s1, s2;
+			if (inRegion) {
+				int byteIndex = (int) ((((long) index) << 1) - regionStart);
+				s1 = region.getShort(byteIndex);
+				s2 = (index < lastIndex) ? region.getShort(byteIndex + 2) : s1;
+			} else {
+				s1 = sampleData.getSample(index);
+				s2 = (index < lastIndex) ? sampleData.getSample(index + 1) : s1;
+			}
+			float value = (s1 + (s2 - s1) * frac) * SAMPLE_SCALE;
+			if (floatOut != null) {
+				floatOut[i] = value;
+			} else {
+				doubleOut[i] = value;
+			}
+			pos += delta;
+		}
+	}
+
 	/**
 	 * @param loopEnd The loopEnd to set.
 	 */
@@ -10,7 +10,23 @@ public class SoundFontPatch extends Patch {
 	private int note;
 	private int velocity;
 
+	/**
+	 * Create an uninitialized patch for a pooled voice.
+	 */
+	SoundFontPatch() {
+		// nothing to do
+	}
+
 	public SoundFontPatch(int note, int velocity, int bank, int program, SoundFontSample sample) {
+		init(note, velocity, bank, program, sample);
+	}
+
+	/**
+	 * (Re-)initialize this patch. Used for reusing the patch of a pooled voice.
+	 */
+	void init(int note, int velocity, int bank, int program, SoundFontSample sample) {
+		this.selfExclusive = true;
+		this.exclusiveLevel = 0;
 		this.note = note;
 		this.velocity = velocity;
 		this.bank = bank;
@@ -6,6 +6,7 @@ package com.ibm.realtime.synth.soundfont2;
 import com.ibm.realtime.synth.engine.Soundbank;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Class to hold all data for a Preset in a soundfont file.
@@ -21,6 +22,13 @@ public class SoundFontPreset implements Soundbank.Instrument {
 
 	private SoundFontPresetZone[] zones;
 
+	/**
+	 * The lookup table for findZones(), created on first use
+	 */
+	private volatile SoundFontZoneIndex<SoundFontPresetZone> zoneIndex;
+
+	private static final SoundFontPresetZone[] NO_ZONES = new SoundFontPresetZone[0];
+
 	public SoundFontPreset(String name, int program, int bank) {
 		this.name = name;
 		this.program = program;
@@ -60,6 +68,7 @@ public class SoundFontPreset implements Soundbank.Instrument {
 	 */
 	protected void setZones(SoundFontPresetZone[] zones) {
 		this.zones = zones;
+		this.zoneIndex = null;
 	}
 
 	/**
@@ -67,16 +76,47 @@ public class SoundFontPreset implements Soundbank.Instrument {
 	 *         return zones without attached instruments.
 	 */
 	public List<SoundFontPresetZone> getZones(int note, int vel) {
-		List<SoundFontPresetZone> result = null;
-		for (SoundFontPresetZone zone : zones) {
-			if (zone.getInstrument()!=null && zone.matches(note, vel)) {
-				if (result == null) {
-					result = new ArrayList<SoundFontPresetZone>(2);
+		SoundFontPresetZone[] result = findZones(note, vel);
+		if (result.length == 0) {
+			return null;
+		}
+		return new ArrayList<SoundFontPresetZone>(Arrays.asList(result));
+	}
+
+	/**
+	 * Return the zones matching note and velocity from a lookup table. The
+	 * table is created on first use, and then the lookup does not allocate.
+	 *
+	 * @return the matching zones, or an empty array if none found. This
+	 *         method does not return zones without attached instruments.
+	 *         The returned array must not be modified.
+	 */
+	public SoundFontPresetZone[] findZones(int note, int vel) {
+		SoundFontZoneIndex<SoundFontPresetZone> index = zoneIndex;
+		if (index == null) {
+			index = createZoneIndex();
+		}
+		return index.get(note, vel);
+	}
+
+	/**
+	 * Create the lookup table for findZones(). Must be called again if the
+	 * key or velocity ranges of the zones change.
+	 */
+	SoundFontZoneIndex<SoundFontPresetZone> createZoneIndex() {
+		List<SoundFontPresetZone> usable = new ArrayList<SoundFontPresetZone>();
+		if (zones != null) {
+			for (SoundFontPresetZone zone : zones) {
+				if (zone.getInstrument() != null) {
+					usable.add(zone);
 				}
-				result.add(zone);
 			}
 		}
-		return result;
+		SoundFontZoneIndex<SoundFontPresetZone> index =
+				new SoundFontZoneIndex<SoundFontPresetZone>(
+						usable.toArray(NO_ZONES), NO_ZONES);
+		zoneIndex = index;
+		return index;
 	}
 
 	/**
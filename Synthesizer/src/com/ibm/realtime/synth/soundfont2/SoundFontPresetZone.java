@@ -3,6 +3,8 @@
  */
 package com.ibm.realtime.synth.soundfont2;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * A zone on preset level. The preset zones typically define the instrument to
  * be used in this preset for this zone.
@@ -18,6 +20,14 @@ public class SoundFontPresetZone extends SoundFontZone {
 	 */
 	private SoundFontInstrument instrument;
 
+	/**
+	 * The compiled voice templates for the instrument zones used with this
+	 * preset zone, created on first use
+	 */
+	private final ConcurrentHashMap<SoundFontInstrumentZone,
+			SoundFontVoiceTemplate> templates = new ConcurrentHashMap<
+			SoundFontInstrumentZone, SoundFontVoiceTemplate>();
+
 	/**
 	 * Constructor for a preset zone
 	 * 
@@ -38,6 +48,30 @@ public class SoundFontPresetZone extends SoundFontZone {
 		return instrument;
 	}
 
+	/**
+	 * Return the voice template for this preset zone and the given zone of
+	 * its instrument. The template is compiled on first use. The lookup does
+	 * not allocate.
+	 *
+	 * @param pZoneGlobal the global zone of this zone's preset, or null
+	 * @param iZone a zone of this zone's instrument
+	 * @return the template
+	 */
+	SoundFontVoiceTemplate getVoiceTemplate(SoundFontPresetZone pZoneGlobal,
+			SoundFontInstrumentZone iZone) {
+		SoundFontVoiceTemplate template = templates.get(iZone);
+		if (template == null) {
+			template = new SoundFontVoiceTemplate(pZoneGlobal, this,
+					instrument.getGlobalZone(), iZone);
+			SoundFontVoiceTemplate other = templates.putIfAbsent(iZone,
+					template);
+			if (other != null) {
+				template = other;
+			}
+		}
+		return template;
+	}
+
 	public boolean isGlobalZone() {
 		return (keyMin >= 0) && (instrument == null);
 	}
@@ -33,6 +33,11 @@ public class SoundFontSample {
 	// private SoundFontSample sampleLink;
 	private int sampleType;
 
+	/**
+	 * The band-limited copies at lower sample rates, or null
+	 */
+	private volatile SoundFontSamplePyramid pyramid;
+
 	public SoundFontSample(String name, int start, int end, int startLoop,
 			int endLoop, double sampleRate, int originalPitch,
 			int pitchCorrection, int sampleLinkIndex, int sampleType) {
@@ -106,6 +111,22 @@ public class SoundFontSample {
 		return sampleType;
 	}
 
+	/**
+	 * Package private field, the pyramid is created by the soundbank.
+	 * 
+	 * @return the band-limited copies at lower sample rates, or null
+	 */
+	SoundFontSamplePyramid getPyramid() {
+		return pyramid;
+	}
+
+	/**
+	 * @param pyramid the band-limited copies at lower sample rates, or null
+	 */
+	void setPyramid(SoundFontSamplePyramid pyramid) {
+		this.pyramid = pyramid;
+	}
+
 	/**
 	 * @return Returns the start sample point.
 	 */
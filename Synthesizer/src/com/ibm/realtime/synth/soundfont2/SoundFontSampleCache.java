@@ -0,0 +1,415 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import java.util.*;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import com.ibm.realtime.synth.engine.*;
+
+/**
+ * A cache of decoded samples: for every SoundFontSample in use, it holds a
+ * float copy of the 16-bit sample data, normalized to [-1.0, +1.0). The
+ * oscillator then reads floats directly instead of decoding the little
+ * endian bytes for every voice and every block.
+ * <p>
+ * The cache has a memory budget in bytes. If adding a sample exceeds the
+ * budget, the least recently used samples are evicted. A sample that is
+ * larger than the whole budget is not cached. Note that an oscillator that
+ * plays an evicted sample keeps its copy until the note ends, so the budget
+ * may be exceeded temporarily by the samples of the playing notes.
+ * <p>
+ * Decoding a sample takes time in the order of its length, so it is never
+ * done at note on: a new note calls lookup(), which only returns samples
+ * that are already cached. On a miss, the note decodes the sample data while
+ * rendering, as without a cache, and the sample is decoded by a background
+ * loader thread for the next notes. The loader thread is started by the
+ * constructor and waits for requests, so lookup() only queues the sample and
+ * notifies it. Call close() to stop the loader thread. Use preload() to
+ * decode the samples of a soundbank at load time:
+ *
+ * <pre>
+ * SoundFontSampleCache cache = new SoundFontSampleCache(budget);
+ * cache.preload(soundbank);
+ * soundbank.setSampleCache(cache);
+ * ...
+ * cache.close();
+ * </pre>
+ *
+ * A cache may be shared by several soundbanks and synthesizers: all methods
+ * are thread safe.
+ *
+ * @see SoundFontSoundbank#setSampleCache(SoundFontSampleCache)
+ */
+public class SoundFontSampleCache {
+
+	public static boolean DEBUG_SAMPLE_CACHE = false;
+
+	/**
+	 * The number of bytes per cached sample data point
+	 */
+	private static final int BYTES_PER_SAMPLE = 4;
+
+	/**
+	 * The maximum number of samples waiting for the loader thread. Further
+	 * misses are not queued, the samples are requested again by later notes.
+	 */
+	private static final int MAX_PENDING = 64;
+
+	/**
+	 * The priority of the loader thread: like the offline workers, below the
+	 * sample streamer's prefetch thread
+	 */
+	private static final int LOADER_PRIORITY = 14;
+
+	/**
+	 * The cached samples in access order, guarded by "this"
+	 */
+	private final LinkedHashMap<SoundFontSample, float[]> cache =
+			new LinkedHashMap<SoundFontSample, float[]>(64, 0.75f, true);
+
+	private long budget;
+
+	private long usedBytes;
+
+	/**
+	 * The samples to be decoded by the loader thread, guarded by "this"
+	 */
+	private final LinkedHashMap<SoundFontSample, SoundFontSampleData> pending =
+			new LinkedHashMap<SoundFontSample, SoundFontSampleData>();
+
+	/**
+	 * The loader thread, started in the constructor
+	 */
+	private final Thread loader;
+
+	/**
+	 * true while the loader thread accepts requests. Guarded by "this".
+	 */
+	private boolean loaderRunning;
+
+	/**
+	 * Set by close() to stop the loader thread. Guarded by "this".
+	 */
+	private boolean closed;
+
+	// statistics, guarded by "this"
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	/**
+	 * Create a sample cache with the given memory budget, and start its
+	 * loader thread.
+	 *
+	 * @param budget the maximum number of bytes used by cached samples
+	 */
+	public SoundFontSampleCache(long budget) {
+		setBudget(budget);
+		loaderRunning = true;
+		loader = ThreadFactory.createThread(new Loader(),
+				"SoundFontSampleCache", LOADER_PRIORITY);
+	}
+
+	/**
+	 * @return the maximum number of bytes used by cached samples
+	 */
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Set the maximum number of bytes used by cached samples. If the cache
+	 * holds more, the least recently used samples are evicted.
+	 */
+	public synchronized void setBudget(long budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("illegal budget: " + budget);
+		}
+		this.budget = budget;
+		evict(0);
+	}
+
+	/**
+	 * Return the decoded data of the sample if it is cached. Otherwise,
+	 * request the loader thread to decode it, and return null. This method
+	 * does not decode, so it can be called at note on.
+	 *
+	 * @param sample the sample to look up
+	 * @param sampleData the sample data that sample refers to
+	 * @return the decoded samples as described in get(), or null if the
+	 *         sample is not cached (yet)
+	 */
+	public synchronized float[] lookup(SoundFontSample sample,
+			SoundFontSampleData sampleData) {
+		float[] decoded = cache.get(sample);
+		if (decoded != null) {
+			hits++;
+			return decoded;
+		}
+		misses++;
+		if (loaderRunning && pending.size() < MAX_PENDING
+				&& !pending.containsKey(sample)
+				&& getByteCount(sample, sampleData) <= budget) {
+			pending.put(sample, sampleData);
+			this.notifyAll();
+		}
+		return null;
+	}
+
+	/**
+	 * Return the decoded data of the sample. The returned array starts with
+	 * the sample's start index and ends with its end index (inclusive, as
+	 * second interpolation point), unless that is beyond the end of the
+	 * sample data. If the sample is not cached yet, it is decoded and added
+	 * to the cache in the calling thread, so do not call this method at note
+	 * on, use lookup() instead.
+	 *
+	 * @param sample the sample to look up
+	 * @param sampleData the sample data that sample refers to
+	 * @return the decoded samples, or null if the sample cannot be cached
+	 */
+	public float[] get(SoundFontSample sample, SoundFontSampleData sampleData) {
+		synchronized (this) {
+			float[] decoded = cache.get(sample);
+			if (decoded != null) {
+				hits++;
+				return decoded;
+			}
+			misses++;
+		}
+		return decode(sample, sampleData);
+	}
+
+	/**
+	 * Decode all samples used by the soundbank's instruments, except for
+	 * the samples streamed by the soundbank's sample streamer. If the
+	 * samples exceed the budget, the samples decoded first are evicted.
+	 *
+	 * @param soundbank the soundbank to decode the samples of
+	 * @return the number of cached samples
+	 */
+	public int preload(SoundFontSoundbank soundbank) {
+		SoundFontSampleStreamer streamer = soundbank.getSampleStreamer();
+		SoundFontSampleData sampleData = soundbank.getSampleData();
+		for (Soundbank.Bank bank : soundbank.getBanks()) {
+			for (SoundFontPreset preset : ((SoundFontBank) bank).getAllPresets()) {
+				if (preset == null || preset.getZones() == null) {
+					continue;
+				}
+				for (SoundFontPresetZone pZone : preset.getZones()) {
+					SoundFontInstrument inst = pZone.getInstrument();
+					if (inst == null || inst.getZones() == null) {
+						continue;
+					}
+					for (SoundFontInstrumentZone iZone : inst.getZones()) {
+						SoundFontSample sample = iZone.getSample();
+						if (sample == null || (streamer != null
+								&& streamer.isStreamable(sample))) {
+							continue;
+						}
+						decode(sample, sampleData);
+					}
+				}
+			}
+		}
+		synchronized (this) {
+			if (DEBUG_SAMPLE_CACHE) {
+				debug("SoundFontSampleCache: preloaded, " + this);
+			}
+			return cache.size();
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the decoded sample
+	 */
+	private static long getByteCount(SoundFontSample sample,
+			SoundFontSampleData sampleData) {
+		long start = sample.getStart();
+		long end = Math.min(((long) sample.getEnd()) + 1,
+				sampleData.getLongSampleCount());
+		return (end - start) * BYTES_PER_SAMPLE;
+	}
+
+	/**
+	 * Decode the sample in the calling thread and add it to the cache, if it
+	 * is not cached yet.
+	 *
+	 * @return the decoded samples, or null if the sample cannot be cached
+	 */
+	private float[] decode(SoundFontSample sample,
+			SoundFontSampleData sampleData) {
+		synchronized (this) {
+			float[] decoded = cache.get(sample);
+			if (decoded != null) {
+				return decoded;
+			}
+		}
+		long start = sample.getStart();
+		long end = Math.min(((long) sample.getEnd()) + 1,
+				sampleData.getLongSampleCount());
+		long count = end - start;
+		if (start < 0 || count <= 0 || count * BYTES_PER_SAMPLE > getBudget()) {
+			return null;
+		}
+		// decode without holding the lock
+		float[] decoded = new float[(int) count];
+		sampleData.decode(start, decoded, 0, decoded.length);
+		synchronized (this) {
+			float[] other = cache.get(sample);
+			if (other != null) {
+				// decoded concurrently by another thread
+				return other;
+			}
+			long size = ((long) decoded.length) * BYTES_PER_SAMPLE;
+			evict(size);
+			cache.put(sample, decoded);
+			usedBytes += size;
+			if (DEBUG_SAMPLE_CACHE) {
+				debug("SoundFontSampleCache: added " + sample.getName() + ", "
+						+ this);
+			}
+		}
+		return decoded;
+	}
+
+	/**
+	 * Evict least recently used samples until size more bytes fit into the
+	 * budget. Must be called with the lock held.
+	 */
+	private void evict(long size) {
+		Iterator<Map.Entry<SoundFontSample, float[]>> it =
+				cache.entrySet().iterator();
+		while (usedBytes + size > budget && it.hasNext()) {
+			float[] decoded = it.next().getValue();
+			it.remove();
+			usedBytes -= ((long) decoded.length) * BYTES_PER_SAMPLE;
+			evictions++;
+		}
+	}
+
+	/**
+	 * Remove all samples from the cache, and the requests to the loader
+	 * thread. The statistics are not reset.
+	 */
+	public synchronized void clear() {
+		cache.clear();
+		pending.clear();
+		usedBytes = 0;
+	}
+
+	/**
+	 * @return the number of bytes used by cached samples
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return the number of cached samples
+	 */
+	public synchronized int getSampleCount() {
+		return cache.size();
+	}
+
+	/**
+	 * @return the number of lookups that found the sample in the cache
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that did not find the sample in the cache
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of samples evicted to stay within the budget
+	 */
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * Stop the loader thread. Pending requests are dropped, and later misses
+	 * are not queued anymore. The cached samples remain available.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			pending.clear();
+			this.notifyAll();
+		}
+		try {
+			loader.join();
+		} catch (InterruptedException ie) {
+			// nothing
+		}
+	}
+
+	/**
+	 * The loader thread: waits for requests and decodes the requested
+	 * samples, until the cache is closed.
+	 */
+	private class Loader implements Runnable {
+		public void run() {
+			SoundFontSampleCache c = SoundFontSampleCache.this;
+			try {
+				while (true) {
+					SoundFontSample sample;
+					SoundFontSampleData sampleData;
+					synchronized (c) {
+						while (!closed && pending.isEmpty()) {
+							try {
+								c.wait();
+							} catch (InterruptedException ie) {
+								// nothing
+							}
+						}
+						if (closed) {
+							return;
+						}
+						Iterator<Map.Entry<SoundFontSample, SoundFontSampleData>> it =
+								pending.entrySet().iterator();
+						Map.Entry<SoundFontSample, SoundFontSampleData> request =
+								it.next();
+						it.remove();
+						sample = request.getKey();
+						sampleData = request.getValue();
+					}
+					try {
+						decode(sample, sampleData);
+					} catch (Throwable t) {
+						// e.g. an I/O error of a memory-mapped file, or
+						// out of memory: the sample is decoded while
+						// rendering
+						debug(t);
+					}
+				}
+			} finally {
+				synchronized (c) {
+					loaderRunning = false;
+					pending.clear();
+				}
+			}
+		}
+	}
+
+	public synchronized String toString() {
+		return "SoundFontSampleCache: " + cache.size() + " samples, "
+				+ usedBytes + " of " + budget + " bytes, " + hits + " hits, "
+				+ misses + " misses, " + evictions + " evictions";
+	}
+}
@@ -3,17 +3,195 @@
  */
 package com.ibm.realtime.synth.soundfont2;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
 /**
  * A class to store the actual audio sample data of a SoundFont file.
- * 
+ * <p>
+ * The samples are either held on the heap in a byte array, or they are
+ * memory-mapped from the SoundFont file with map(). Mapped sample data is
+ * not read at load time, does not count against the heap, and the pages are
+ * shared with other processes mapping the same file. Since one mapping is
+ * limited to 2GB, the mapped data is split in regions of REGION_SIZE bytes.
+ * Every region maps REGION_OVERLAP bytes more than its size, so that a block
+ * of samples crossing the region border can still be read from one region.
+ *
  * @author florian
- * 
+ *
  */
 public class SoundFontSampleData {
+
+	public static boolean DEBUG_SAMPLE_DATA = false;
+
+	/**
+	 * log2 of the number of bytes in one region of mapped sample data
+	 */
+	static final int REGION_SHIFT = 30;
+
+	/**
+	 * The number of bytes in one region of mapped sample data
+	 */
+	static final long REGION_SIZE = 1L << REGION_SHIFT;
+
+	/**
+	 * The number of bytes that a region maps in addition to REGION_SIZE
+	 */
+	static final int REGION_OVERLAP = 1 << 20;
+
 	private byte[] data;
 
 	/**
-	 * @return Returns the data.
+	 * The mapped regions in little endian order, or null if the data is on
+	 * the heap
+	 */
+	private ByteBuffer[] regions;
+
+	/**
+	 * The length of the mapped data in bytes
+	 */
+	private long mappedLength;
+
+	/**
+	 * Create an empty sample data instance, to be filled with setData().
+	 */
+	public SoundFontSampleData() {
+		// nothing to do
+	}
+
+	/**
+	 * Create a sample data instance that maps length bytes of the channel's
+	 * file, starting at the given file offset.
+	 */
+	private SoundFontSampleData(FileChannel channel, long offset, long length)
+			throws IOException {
+		int regionCount = (int) ((length + REGION_SIZE - 1) >> REGION_SHIFT);
+		regions = new ByteBuffer[regionCount];
+		for (int i = 0; i < regionCount; i++) {
+			long regionStart = ((long) i) << REGION_SHIFT;
+			long regionLength = Math.min(REGION_SIZE + REGION_OVERLAP, length
+					- regionStart);
+			regions[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+					offset + regionStart, regionLength).order(
+					ByteOrder.LITTLE_ENDIAN);
+		}
+		mappedLength = length;
+		if (DEBUG_SAMPLE_DATA) {
+			debug("SoundFontSampleData: mapped " + length + " bytes at offset "
+					+ offset + " in " + regionCount + " regions");
+		}
+	}
+
+	/**
+	 * Memory-map the sample data chunk (the smpl chunk in the sdta list) of
+	 * the given SoundFont file. Only the RIFF chunk headers are read. The
+	 * mapping stays valid after the file is closed.
+	 *
+	 * @param file the SoundFont 2 file
+	 * @return the mapped sample data
+	 * @throws IOException if the file cannot be read, or if it does not have
+	 *             a sample data chunk
+	 */
+	public static SoundFontSampleData map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long[] chunk = findSampleChunk(channel);
+			if (chunk == null) {
+				throw new IOException(file + ": no sample data chunk");
+			}
+			return map(channel, chunk[0], chunk[1]);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Memory-map a region of a file as 16-bit little endian sample data. The
+	 * mapping stays valid after the channel is closed.
+	 *
+	 * @param channel the file to map
+	 * @param offset the file offset of the first sample
+	 * @param length the number of bytes to map
+	 * @return the mapped sample data
+	 * @throws IOException if mapping fails
+	 */
+	public static SoundFontSampleData map(FileChannel channel, long offset,
+			long length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > channel.size()) {
+			throw new IllegalArgumentException("illegal sample data region: "
+					+ offset + ", " + length + " bytes");
+		}
+		return new SoundFontSampleData(channel, offset, length);
+	}
+
+	/**
+	 * Walk the RIFF structure to find the smpl chunk.
+	 *
+	 * @return the file offset and the length of the smpl chunk data, or null
+	 */
+	static long[] findSampleChunk(FileChannel channel)
+			throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(12).order(
+				ByteOrder.LITTLE_ENDIAN);
+		if (!readFully(channel, header, 0, 12)
+				|| !fourCC(header, 0).equals("RIFF")
+				|| !fourCC(header, 8).equals("sfbk")) {
+			throw new IOException("not a SoundFont 2 file");
+		}
+		long end = Math.min(channel.size(),
+				8 + (header.getInt(4) & 0xFFFFFFFFL));
+		long pos = 12;
+		while (pos + 8 <= end) {
+			if (!readFully(channel, header, pos, 12)) {
+				break;
+			}
+			String id = fourCC(header, 0);
+			long size = header.getInt(4) & 0xFFFFFFFFL;
+			if (id.equals("LIST") && fourCC(header, 8).equals("sdta")) {
+				// enter the sample data list
+				end = Math.min(end, pos + 8 + size);
+				pos += 12;
+				continue;
+			}
+			if (id.equals("smpl")) {
+				return new long[] {
+						pos + 8, Math.min(size, channel.size() - (pos + 8))
+				};
+			}
+			// chunks are padded to even size
+			pos += 8 + size + (size & 1);
+		}
+		return null;
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer,
+			long pos, int count) throws IOException {
+		buffer.clear();
+		buffer.limit(count);
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, pos + buffer.position());
+			if (read < 0) {
+				// a chunk header may be cut by the end of the file
+				return buffer.position() >= 8;
+			}
+		}
+		return true;
+	}
+
+	private static String fourCC(ByteBuffer buffer, int pos) {
+		char[] c = new char[4];
+		for (int i = 0; i < 4; i++) {
+			c[i] = (char) (buffer.get(pos + i) & 0xFF);
+		}
+		return new String(c);
+	}
+
+	/**
+	 * @return Returns the data, or null if the data is memory-mapped.
 	 */
 	public byte[] getData() {
 		return data;
@@ -24,12 +202,32 @@ public class SoundFontSampleData {
 	 */
 	protected void setData(byte[] data) {
 		this.data = data;
+		this.regions = null;
+		this.mappedLength = 0;
 	}
 
 	/**
-	 * @return the number of sample data points
+	 * @return true if the sample data is memory-mapped rather than on the
+	 *         heap
+	 */
+	public boolean isMapped() {
+		return regions != null;
+	}
+
+	/**
+	 * @return the number of sample data points, at most Integer.MAX_VALUE
 	 */
 	public int getSampleCount() {
+		return (int) Math.min(getLongSampleCount(), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the number of sample data points
+	 */
+	public long getLongSampleCount() {
+		if (regions != null) {
+			return mappedLength / 2;
+		}
 		if (data == null) {
 			return 0;
 		}
@@ -37,4 +235,110 @@ public class SoundFontSampleData {
 		return data.length / 2;
 	}
 
+	/**
+	 * Return one sample data point. This is slower than reading from the
+	 * data array or the regions directly, and meant for occasional access.
+	 *
+	 * @param index the index of the sample data point
+	 * @return the 16-bit sample
+	 */
+	public short getSample(long index) {
+		long byteIndex = index << 1;
+		if (regions != null) {
+			int within = (int) (byteIndex & (REGION_SIZE - 1));
+			return regions[(int) (byteIndex >> REGION_SHIFT)].getShort(within);
+		}
+		int i = (int) byteIndex;
+		return (short) ((data[i + 1] << 8) | (data[i] & 0xFF));
+	}
+
+	/**
+	 * Decode count sample data points to float samples in the range [-1.0,
+	 * +1.0).
+	 *
+	 * @param index the index of the first sample data point
+	 * @param dest the array to write to
+	 * @param offset the index in dest of the first decoded sample
+	 * @param count the number of samples to decode
+	 */
+	public void decode(long index, float[] dest, int offset, int count) {
+		if (index < 0 || count < 0 || index + count > getLongSampleCount()) {
+			throw new IllegalArgumentException("illegal sample range: "
+					+ index + ", " + count + " samples");
+		}
+		final float scale = 1.0f / 32768.0f;
+		if (regions == null) {
+			int byteIndex = (int) (index << 1);
+			int end = offset + count;
+			for (int i = offset; i < end; i++) {
+				dest[i] = ((short) ((data[byteIndex + 1] << 8)
+						| (data[byteIndex] & 0xFF))) * scale;
+				byteIndex += 2;
+			}
+			return;
+		}
+		long byteIndex = index << 1;
+		while (count > 0) {
+			// decode up to the end of the region
+			ByteBuffer region = regions[(int) (byteIndex >> REGION_SHIFT)];
+			int within = (int) (byteIndex & (REGION_SIZE - 1));
+			int thisCount = (int) Math.min(count,
+					(REGION_SIZE - within) >> 1);
+			for (int i = 0; i < thisCount; i++) {
+				dest[offset + i] = region.getShort(within) * scale;
+				within += 2;
+			}
+			offset += thisCount;
+			count -= thisCount;
+			byteIndex += ((long) thisCount) << 1;
+		}
+	}
+
+	/**
+	 * Write all sample data in its native 16-bit little endian format to the
+	 * channel.
+	 *
+	 * @param channel the channel to write to
+	 * @param position the file position to write to
+	 * @return the number of bytes written
+	 * @throws IOException if writing fails
+	 */
+	public long writeTo(FileChannel channel, long position) throws IOException {
+		long written = 0;
+		if (regions == null) {
+			if (data != null) {
+				written = writeFully(channel, ByteBuffer.wrap(data), position);
+			}
+			return written;
+		}
+		for (int i = 0; i < regions.length; i++) {
+			// do not write the overlap
+			ByteBuffer region = regions[i].duplicate();
+			region.clear();
+			region.limit((int) Math.min(REGION_SIZE, mappedLength
+					- (((long) i) << REGION_SHIFT)));
+			written += writeFully(channel, region, position + written);
+		}
+		return written;
+	}
+
+	private static long writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		long written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+
+	/**
+	 * Return the mapped region containing the given byte index.
+	 *
+	 * @param region the region index, i.e. byteIndex >> REGION_SHIFT
+	 * @return the region, in little endian order
+	 */
+	final ByteBuffer getRegion(int region) {
+		return regions[region];
+	}
+
 }
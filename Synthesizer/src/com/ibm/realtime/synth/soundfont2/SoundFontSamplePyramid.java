@@ -0,0 +1,188 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+/**
+ * Band-limited copies of a sample at half and quarter of its sample rate.
+ * When a note is transposed up by an octave or more, the oscillator reads
+ * every second (fourth) sample of the original data: that reads more data
+ * than necessary, and the frequencies above the output's Nyquist frequency
+ * alias. Instead, the oscillator reads the level of the pyramid that is
+ * closest to the read position step, without skipping samples.
+ * <p>
+ * Every level is created from the previous one with a low pass half-band
+ * FIR filter and decimation by 2, so the levels need 3/4 of the number of
+ * samples of the original. Since the levels are stored as decoded floats,
+ * this is 1.5 times the size of the 16-bit sample data.
+ * <p>
+ * The data of a level starts PAD samples before the sample's start, and
+ * ends PAD samples after its end, so that the interpolators can read beyond
+ * the end points. Outside of the sample, the original data is taken as
+ * silence. Note that the filter does not wrap around the loop: at the loop
+ * points, the levels see the samples before the loop start and after the
+ * loop end, like the original data.
+ * <p>
+ * A pyramid is immutable.
+ *
+ * @see SoundFontSoundbank#createSamplePyramids()
+ */
+final class SoundFontSamplePyramid {
+
+	/**
+	 * The number of levels: half rate and quarter rate
+	 */
+	static final int LEVEL_COUNT = 2;
+
+	/**
+	 * The number of samples before the start and after the end of every
+	 * level
+	 */
+	static final int PAD = 16;
+
+	/**
+	 * Half the number of filter taps, without the center tap
+	 */
+	private static final int FILTER_HALF_WIDTH = 15;
+
+	/**
+	 * The half-band low pass filter, normalized to unity gain at DC
+	 */
+	private static final float[] FILTER = createFilter();
+
+	/**
+	 * The sample index of the original data at the start of the levels
+	 */
+	private final int start;
+
+	/**
+	 * The levels: levels[0] at half rate, levels[1] at quarter rate
+	 */
+	private final float[][] levels;
+
+	private SoundFontSamplePyramid(int start, float[][] levels) {
+		this.start = start;
+		this.levels = levels;
+	}
+
+	/**
+	 * Create the pyramid of a sample. This decodes and filters the whole
+	 * sample, so it should be done at load time.
+	 *
+	 * @param sample the sample to create the levels for
+	 * @param sampleData the sample data that sample refers to
+	 * @return the pyramid, or null if the sample is too short
+	 */
+	static SoundFontSamplePyramid create(SoundFontSample sample,
+			SoundFontSampleData sampleData) {
+		long start = sample.getStart();
+		// the end sample, inclusive as second interpolation point
+		long end = Math.min(((long) sample.getEnd()) + 1,
+				sampleData.getLongSampleCount());
+		int count = (int) (end - start);
+		if (start < 0 || count < (1 << LEVEL_COUNT)) {
+			return null;
+		}
+		float[] in = new float[count + 2 * PAD];
+		sampleData.decode(start, in, PAD, count);
+		float[][] levels = new float[LEVEL_COUNT][];
+		for (int level = 0; level < LEVEL_COUNT; level++) {
+			int levelCount = ((count - 1) >> (level + 1)) + 1;
+			levels[level] = decimate(in, levelCount + 2 * PAD);
+			in = levels[level];
+		}
+		return new SoundFontSamplePyramid((int) start, levels);
+	}
+
+	/**
+	 * Low pass filter and decimate by 2: the output sample k is the filtered
+	 * input at index 2 * k - PAD, so that both arrays have PAD samples before
+	 * the sample's start. Samples outside the input array are 0.
+	 */
+	private static float[] decimate(float[] in, int outCount) {
+		final float[] filter = FILTER;
+		float[] out = new float[outCount];
+		int inCount = in.length;
+		for (int k = 0; k < outCount; k++) {
+			int first = 2 * k - PAD - FILTER_HALF_WIDTH;
+			int t0 = Math.max(0, -first);
+			int t1 = Math.min(filter.length, inCount - first);
+			float sum = 0.0f;
+			for (int t = t0; t < t1; t++) {
+				sum += in[first + t] * filter[t];
+			}
+			out[k] = sum;
+		}
+		return out;
+	}
+
+	/**
+	 * Create the coefficients of a Blackman-windowed sinc with the cutoff
+	 * frequency at half of the Nyquist frequency.
+	 */
+	private static float[] createFilter() {
+		int width = 2 * FILTER_HALF_WIDTH + 1;
+		double[] c = new double[width];
+		double sum = 0.0;
+		for (int t = 0; t < width; t++) {
+			double x = t - FILTER_HALF_WIDTH;
+			double sinc = (x == 0.0) ? 1.0 : Math.sin(Math.PI * x / 2.0)
+					/ (Math.PI * x / 2.0);
+			double w = 2.0 * Math.PI * t / (width - 1);
+			double window = 0.42 - 0.5 * Math.cos(w) + 0.08 * Math.cos(2.0 * w);
+			c[t] = sinc * window;
+			sum += c[t];
+		}
+		float[] filter = new float[width];
+		for (int t = 0; t < width; t++) {
+			filter[t] = (float) (c[t] / sum);
+		}
+		return filter;
+	}
+
+	/**
+	 * Return the level to read for the given read position step: the level
+	 * with the highest rate that does not skip samples.
+	 *
+	 * @param delta the read position step in samples of the original data,
+	 *            i.e. the effective sample rate factor
+	 * @return 0 for the original data, 1 for half rate, 2 for quarter rate
+	 */
+	static int chooseLevel(double delta) {
+		if (delta >= 4.0) {
+			return 2;
+		}
+		if (delta >= 2.0) {
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @param level 1 for half rate, 2 for quarter rate
+	 * @return the samples of the level, starting PAD samples before the
+	 *         sample's start
+	 */
+	float[] getLevel(int level) {
+		return levels[level - 1];
+	}
+
+	/**
+	 * @return the sample index of the original data that corresponds to
+	 *         index PAD in every level
+	 */
+	int getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the number of bytes used by the levels
+	 */
+	long getByteCount() {
+		long bytes = 0;
+		for (float[] level : levels) {
+			bytes += ((long) level.length) * 4;
+		}
+		return bytes;
+	}
+}
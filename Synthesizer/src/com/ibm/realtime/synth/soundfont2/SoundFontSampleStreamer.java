@@ -0,0 +1,740 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import com.ibm.realtime.synth.engine.*;
+
+/**
+ * Streams long samples from disk, so that they need not be resident in
+ * memory. For every long sample, only the attack (the first attack
+ * milliseconds) and the tail (from the loop start to the end) are kept in
+ * memory. The samples in between are read by a background prefetch thread
+ * into a ring buffer for every playing voice, ahead of the voice's read
+ * position.
+ * <p>
+ * The render threads never wait for the prefetch thread: if a voice needs
+ * samples that are not read yet, it renders silence for that block, and the
+ * underrun is counted.
+ * <p>
+ * The streams and their ring buffers are allocated when the streamer is
+ * created, for a maximum number of streamed voices, so that opening a stream
+ * at note on does not allocate. If all streams are in use, a new voice gets
+ * a resident-only stream: it plays the attack and the tail, and the
+ * streamed part in between is silent.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * SoundFontSampleStreamer streamer = new SoundFontSampleStreamer(sf2File);
+ * streamer.preload(soundbank);
+ * soundbank.setSampleStreamer(streamer);
+ * ...
+ * streamer.close();
+ * </pre>
+ *
+ * @see SoundFontSoundbank#setSampleStreamer(SoundFontSampleStreamer)
+ */
+public class SoundFontSampleStreamer implements Runnable {
+
+	public static boolean DEBUG_STREAMER = false;
+
+	/**
+	 * The default length of the resident attack of a streamed sample
+	 */
+	public static final double DEFAULT_ATTACK_MILLIS = 500.0;
+
+	/**
+	 * The default size of a voice's ring buffer, in samples
+	 */
+	public static final int DEFAULT_RING_SAMPLES = 65536;
+
+	/**
+	 * The default maximum number of voices that are streamed at the same
+	 * time
+	 */
+	public static final int DEFAULT_MAX_STREAMS = 32;
+
+	/**
+	 * The maximum number of samples read at once
+	 */
+	private static final int CHUNK_SAMPLES = 8192;
+
+	/**
+	 * How long the prefetch thread sleeps if there is nothing to read
+	 */
+	private static final int POLL_MILLIS = 5;
+
+	/**
+	 * The priority of the prefetch thread: below the render threads, but
+	 * above the offline workers.
+	 */
+	private static final int PREFETCH_PRIORITY = 20;
+
+	/**
+	 * Factor to normalize 16-bit samples to [-1.0 ... +1.0]
+	 */
+	private static final float SAMPLE_SCALE = 1.0f / 32768.0f;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	/**
+	 * The file offset of the sample data chunk
+	 */
+	private final long dataOffset;
+
+	/**
+	 * The number of samples in the sample data chunk
+	 */
+	private final long dataSamples;
+
+	private final double attackMillis;
+
+	/**
+	 * The resident parts of the streamable samples, guarded by "this"
+	 */
+	private final Map<SoundFontSample, Entry> entries =
+			new IdentityHashMap<SoundFontSample, Entry>();
+
+	/**
+	 * The streams that the prefetch thread fills, guarded by "this"
+	 */
+	private final List<Stream> active;
+
+	/**
+	 * The stack of streams that are not in use, guarded by "this"
+	 */
+	private final Stream[] freeStreams;
+
+	/**
+	 * The number of valid entries in freeStreams, guarded by "this"
+	 */
+	private int freeStreamCount;
+
+	/**
+	 * The number of bytes of the resident parts, guarded by "this"
+	 */
+	private long residentBytes;
+
+	/**
+	 * The number of opened streams, guarded by "this"
+	 */
+	private long openCount;
+
+	/**
+	 * The number of resident-only streams opened because all streams were
+	 * in use, guarded by "this"
+	 */
+	private long exhaustedCount;
+
+	private final AtomicLong underruns = new AtomicLong();
+
+	/**
+	 * The number of bytes read by the prefetch thread
+	 */
+	private volatile long bytesRead;
+
+	private volatile boolean closed = false;
+
+	private final Thread thread;
+
+	/**
+	 * Create a sample streamer for the given SoundFont file, with the default
+	 * attack length, ring buffer size and number of streams, and start its
+	 * prefetch thread.
+	 *
+	 * @param sf2File the SoundFont 2 file of the soundbank
+	 * @throws IOException if the file cannot be opened, or if it has no
+	 *             sample data chunk
+	 */
+	public SoundFontSampleStreamer(File sf2File) throws IOException {
+		this(sf2File, DEFAULT_ATTACK_MILLIS, DEFAULT_RING_SAMPLES);
+	}
+
+	/**
+	 * Create a sample streamer for the given SoundFont file with the default
+	 * number of streams, and start its prefetch thread.
+	 *
+	 * @param sf2File the SoundFont 2 file of the soundbank
+	 * @param attackMillis the length of the resident attack of every
+	 *            streamed sample
+	 * @param ringSamples the size of a voice's ring buffer in samples, a
+	 *            power of 2
+	 * @throws IOException if the file cannot be opened, or if it has no
+	 *             sample data chunk
+	 */
+	public SoundFontSampleStreamer(File sf2File, double attackMillis,
+			int ringSamples) throws IOException {
+		this(sf2File, attackMillis, ringSamples, DEFAULT_MAX_STREAMS);
+	}
+
+	/**
+	 * Create a sample streamer for the given SoundFont file and start its
+	 * prefetch thread. The ring buffers of all streams are allocated here,
+	 * i.e. maxStreams * ringSamples * 4 bytes.
+	 *
+	 * @param sf2File the SoundFont 2 file of the soundbank
+	 * @param attackMillis the length of the resident attack of every
+	 *            streamed sample
+	 * @param ringSamples the size of a voice's ring buffer in samples, a
+	 *            power of 2
+	 * @param maxStreams the maximum number of voices that are streamed at
+	 *            the same time
+	 * @throws IOException if the file cannot be opened, or if it has no
+	 *             sample data chunk
+	 */
+	public SoundFontSampleStreamer(File sf2File, double attackMillis,
+			int ringSamples, int maxStreams) throws IOException {
+		if (attackMillis <= 0.0) {
+			throw new IllegalArgumentException("illegal attack length: "
+					+ attackMillis);
+		}
+		if (ringSamples < CHUNK_SAMPLES
+				|| (ringSamples & (ringSamples - 1)) != 0) {
+			throw new IllegalArgumentException("illegal ring buffer size: "
+					+ ringSamples);
+		}
+		if (maxStreams < 0) {
+			throw new IllegalArgumentException("illegal number of streams: "
+					+ maxStreams);
+		}
+		this.attackMillis = attackMillis;
+		active = new ArrayList<Stream>(maxStreams);
+		freeStreams = new Stream[maxStreams];
+		while (freeStreamCount < maxStreams) {
+			freeStreams[freeStreamCount++] =
+					new Stream(new float[ringSamples]);
+		}
+		file = new RandomAccessFile(sf2File, "r");
+		channel = file.getChannel();
+		long[] chunk;
+		try {
+			chunk = SoundFontSampleData.findSampleChunk(channel);
+		} catch (IOException ioe) {
+			file.close();
+			throw ioe;
+		}
+		if (chunk == null) {
+			file.close();
+			throw new IOException(sf2File + ": no sample data chunk");
+		}
+		dataOffset = chunk[0];
+		dataSamples = chunk[1] / 2;
+		thread = ThreadFactory.createThread(this, "SoundFontSampleStreamer",
+				PREFETCH_PRIORITY);
+	}
+
+	/**
+	 * Load the resident parts of all long samples used by the soundbank's
+	 * instruments. Only preloaded samples are streamed.
+	 *
+	 * @param soundbank the soundbank read from this streamer's file
+	 * @return the number of streamable samples
+	 * @throws IOException if reading fails
+	 */
+	public int preload(SoundFontSoundbank soundbank) throws IOException {
+		for (Soundbank.Bank bank : soundbank.getBanks()) {
+			for (SoundFontPreset preset : ((SoundFontBank) bank).getAllPresets()) {
+				if (preset == null || preset.getZones() == null) {
+					continue;
+				}
+				for (SoundFontPresetZone pZone : preset.getZones()) {
+					SoundFontInstrument inst = pZone.getInstrument();
+					if (inst == null || inst.getZones() == null) {
+						continue;
+					}
+					for (SoundFontInstrumentZone iZone : inst.getZones()) {
+						if (iZone.getSample() != null) {
+							preload(iZone.getSample());
+						}
+					}
+				}
+			}
+		}
+		synchronized (this) {
+			if (DEBUG_STREAMER) {
+				debug("SoundFontSampleStreamer: " + entries.size()
+						+ " streamable samples, " + residentBytes
+						+ " resident bytes");
+			}
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Load the resident parts of the sample, if it is long enough to be
+	 * streamed.
+	 *
+	 * @param sample the sample to preload
+	 * @return true if the sample is streamable
+	 * @throws IOException if reading fails
+	 */
+	public boolean preload(SoundFontSample sample) throws IOException {
+		synchronized (this) {
+			if (entries.containsKey(sample)) {
+				return true;
+			}
+		}
+		int start = sample.getStart();
+		int end = sample.getEnd();
+		int attack = (int) (attackMillis * sample.getSampleRate() / 1000.0);
+		int streamStart = start + attack;
+		// the tail is resident so that loops and the release do not need
+		// the ring buffer
+		int tailStart = end;
+		if (sample.getStartLoop() >= streamStart
+				&& sample.getStartLoop() < sample.getEndLoop()
+				&& sample.getEndLoop() <= end) {
+			tailStart = sample.getStartLoop();
+		}
+		// one more sample as second interpolation point
+		int tailEnd = (int) Math.min(((long) end) + 2, dataSamples);
+		// only stream if it saves more than the attack
+		if (start < 0 || tailEnd <= tailStart
+				|| tailStart - streamStart < attack) {
+			return false;
+		}
+		Entry entry = new Entry(start, streamStart, tailStart);
+		entry.residentStream = new Stream(null);
+		entry.residentStream.open(entry);
+		entry.attack = new float[attack];
+		readSamples(start, entry.attack, 0, attack, null);
+		entry.tail = new float[tailEnd - tailStart];
+		readSamples(tailStart, entry.tail, 0, entry.tail.length, null);
+		synchronized (this) {
+			if (!entries.containsKey(sample)) {
+				entries.put(sample, entry);
+				residentBytes +=
+						4L * (entry.attack.length + entry.tail.length);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the sample has been preloaded for streaming
+	 */
+	public synchronized boolean isStreamable(SoundFontSample sample) {
+		return entries.containsKey(sample);
+	}
+
+	/**
+	 * Open a stream for a voice, if the sample is streamable and the voice's
+	 * sample positions are within the resident parts and the streamed part.
+	 * Called when a note starts. If all streams are in use, the sample's
+	 * resident-only stream is returned.
+	 *
+	 * @return the stream, or null if the voice cannot be streamed
+	 */
+	synchronized Stream open(SoundFontSample sample, int startPos,
+			int endPos, boolean looping, double loopStart, double loopEnd) {
+		if (closed) {
+			return null;
+		}
+		Entry entry = entries.get(sample);
+		if (entry == null) {
+			return null;
+		}
+		// the last sample that can be read as second interpolation point
+		int tailEnd = entry.tailStart + entry.tail.length - 1;
+		if (startPos < entry.start || startPos >= entry.streamStart
+				|| endPos > tailEnd) {
+			return null;
+		}
+		if (looping && (loopStart < entry.tailStart || loopEnd > tailEnd)) {
+			return null;
+		}
+		if (freeStreamCount == 0) {
+			exhaustedCount++;
+			if (DEBUG_STREAMER) {
+				debug("SoundFontSampleStreamer: all streams in use");
+			}
+			return entry.residentStream;
+		}
+		Stream stream = freeStreams[--freeStreamCount];
+		freeStreams[freeStreamCount] = null;
+		stream.open(entry);
+		active.add(stream);
+		openCount++;
+		// wake up the prefetch thread
+		this.notifyAll();
+		return stream;
+	}
+
+	/**
+	 * Close a stream when its voice is done. The stream is reused once the
+	 * prefetch thread does not access it anymore.
+	 */
+	synchronized void close(Stream stream) {
+		if (stream.ring == null) {
+			// a resident-only stream is shared by the voices of the sample
+			return;
+		}
+		stream.closed = true;
+		if (!stream.active) {
+			freeStreams[freeStreamCount++] = stream;
+		}
+	}
+
+	/**
+	 * Stop the prefetch thread and close the file. Open streams return
+	 * silence for the streamed part afterwards.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			this.notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException ie) {
+			// nothing
+		}
+		try {
+			file.close();
+		} catch (IOException ioe) {
+			debug(ioe);
+		}
+	}
+
+	/**
+	 * @return the number of streamable samples
+	 */
+	public synchronized int getStreamableSampleCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of bytes used by the resident parts of the samples
+	 */
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	/**
+	 * @return the number of streams that the prefetch thread fills
+	 */
+	public synchronized int getActiveStreamCount() {
+		return active.size();
+	}
+
+	/**
+	 * @return the number of streams opened so far
+	 */
+	public synchronized long getOpenCount() {
+		return openCount;
+	}
+
+	/**
+	 * @return the number of voices that got a resident-only stream because
+	 *         all streams were in use
+	 */
+	public synchronized long getExhaustedCount() {
+		return exhaustedCount;
+	}
+
+	/**
+	 * @return the number of blocks rendered as silence because the
+	 *         prefetch thread had not read the samples yet
+	 */
+	public long getUnderrunCount() {
+		return underruns.get();
+	}
+
+	/**
+	 * @return the number of bytes read by the prefetch thread
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * The prefetch thread: fill the ring buffers of the active streams.
+	 */
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SAMPLES * 2);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		Stream[] streams = new Stream[freeStreams.length];
+		float[] decoded = new float[CHUNK_SAMPLES];
+		while (true) {
+			int count;
+			synchronized (this) {
+				if (closed) {
+					break;
+				}
+				// remove closed, failed and completely read streams
+				for (int i = active.size() - 1; i >= 0; i--) {
+					Stream stream = active.get(i);
+					if (stream.closed || stream.failed
+							|| stream.written >= stream.entry.tailStart) {
+						active.remove(i);
+						stream.active = false;
+						if (stream.closed) {
+							freeStreams[freeStreamCount++] = stream;
+						}
+					}
+				}
+				count = active.size();
+				active.toArray(streams);
+			}
+			// read without holding the lock
+			boolean didRead = false;
+			for (int i = 0; i < count; i++) {
+				try {
+					didRead |= fill(streams[i], buffer, decoded);
+				} catch (IOException ioe) {
+					if (DEBUG_STREAMER) {
+						debug("SoundFontSampleStreamer: " + ioe);
+					}
+				} catch (RuntimeException re) {
+					// do not read this stream anymore: its voice renders
+					// silence for the rest of the streamed part
+					debug(re);
+					synchronized (this) {
+						streams[i].failed = true;
+					}
+				}
+				streams[i] = null;
+			}
+			if (!didRead) {
+				synchronized (this) {
+					if (!closed) {
+						try {
+							this.wait(POLL_MILLIS);
+						} catch (InterruptedException ie) {
+							// nothing
+						}
+					}
+				}
+			}
+		}
+		if (DEBUG_STREAMER) {
+			debug("SoundFontSampleStreamer: stopped, " + bytesRead
+					+ " bytes read, " + underruns.get() + " underruns");
+		}
+	}
+
+	/**
+	 * Read the next chunk of a stream into its ring buffer, if there is room.
+	 *
+	 * @return true if samples were read
+	 */
+	private boolean fill(Stream stream, ByteBuffer buffer, float[] decoded)
+			throws IOException {
+		long written = stream.written;
+		long consumed = stream.consumed;
+		if (written < consumed) {
+			// the voice skipped ahead after an underrun
+			written = consumed;
+		}
+		long limit = Math.min(consumed + stream.ring.length,
+				stream.entry.tailStart);
+		int count = (int) Math.min(limit - written, CHUNK_SAMPLES);
+		if (count <= 0) {
+			return false;
+		}
+		readSamples(written, decoded, 0, count, buffer);
+		bytesRead += count * 2;
+		float[] ring = stream.ring;
+		int mask = ring.length - 1;
+		int ringPos = (int) (written - stream.entry.streamStart) & mask;
+		int first = Math.min(count, ring.length - ringPos);
+		System.arraycopy(decoded, 0, ring, ringPos, first);
+		System.arraycopy(decoded, first, ring, 0, count - first);
+		// publish the samples
+		stream.written = written + count;
+		return true;
+	}
+
+	/**
+	 * Read and decode count samples with positional reads. Samples beyond
+	 * the end of the file are silent.
+	 *
+	 * @param buffer a little endian buffer, or null to allocate one
+	 */
+	private void readSamples(long index, float[] dest, int offset, int count,
+			ByteBuffer buffer) throws IOException {
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(Math.min(count, CHUNK_SAMPLES) * 2);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		while (count > 0) {
+			int thisCount = Math.min(count, buffer.capacity() / 2);
+			buffer.clear();
+			buffer.limit(thisCount * 2);
+			long pos = dataOffset + (index << 1);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, pos + buffer.position()) < 0) {
+					break;
+				}
+			}
+			int read = buffer.position() / 2;
+			for (int i = 0; i < thisCount; i++) {
+				dest[offset + i] =
+						(i < read) ? buffer.getShort(i << 1) * SAMPLE_SCALE
+								: 0.0f;
+			}
+			index += thisCount;
+			offset += thisCount;
+			count -= thisCount;
+		}
+	}
+
+	/**
+	 * The resident parts of a streamable sample. All positions are sample
+	 * indexes in the sample data.
+	 */
+	static final class Entry {
+		/**
+		 * The start of the sample and of the resident attack
+		 */
+		final int start;
+
+		/**
+		 * The end of the attack and the start of the streamed part
+		 */
+		final int streamStart;
+
+		/**
+		 * The end of the streamed part and the start of the resident tail
+		 */
+		final int tailStart;
+
+		float[] attack;
+
+		float[] tail;
+
+		/**
+		 * The stream without ring buffer that is returned if all streams are
+		 * in use
+		 */
+		Stream residentStream;
+
+		Entry(int start, int streamStart, int tailStart) {
+			this.start = start;
+			this.streamStart = streamStart;
+			this.tailStart = tailStart;
+		}
+	}
+
+	/**
+	 * The playback state of one streamed voice. The ring buffer is written by
+	 * the prefetch thread and read by the render thread of the voice; they
+	 * synchronize with the volatile fields only. A stream without ring buffer
+	 * is resident-only: the streamed part is never available.
+	 */
+	final class Stream {
+		/**
+		 * The sample's resident parts, set by open()
+		 */
+		Entry entry;
+
+		/**
+		 * The ring buffer, or null for a resident-only stream
+		 */
+		final float[] ring;
+
+		/**
+		 * The sample index up to which the ring buffer is filled (exclusive)
+		 */
+		volatile long written;
+
+		/**
+		 * The lowest sample index still needed by the voice
+		 */
+		volatile long consumed;
+
+		/**
+		 * Set when the voice is done, guarded by the streamer
+		 */
+		boolean closed;
+
+		/**
+		 * Set while the prefetch thread may access the ring buffer, guarded
+		 * by the streamer
+		 */
+		boolean active;
+
+		/**
+		 * Set when reading failed with an unexpected exception, guarded by
+		 * the streamer
+		 */
+		boolean failed;
+
+		Stream(float[] ring) {
+			this.ring = ring;
+		}
+
+		/**
+		 * Set up this stream for a new voice of the entry's sample.
+		 */
+		void open(Entry entry) {
+			this.entry = entry;
+			this.written = entry.streamStart;
+			this.consumed = entry.streamStart;
+			this.closed = false;
+			this.failed = false;
+			this.active = (ring != null);
+		}
+
+		/**
+		 * @return true if all samples from first to last (inclusive) can be
+		 *         read
+		 */
+		boolean isAvailable(int first, int last) {
+			int lo = Math.max(first, entry.streamStart);
+			int hi = Math.min(last, entry.tailStart - 1);
+			if (lo > hi) {
+				// resident samples only
+				return true;
+			}
+			if (ring == null) {
+				return false;
+			}
+			long w = written;
+			return hi < w && lo >= w - ring.length;
+		}
+
+		/**
+		 * Return the sample at the given index. The index must be available.
+		 */
+		float get(int index) {
+			if (index < entry.streamStart) {
+				return entry.attack[index - entry.start];
+			}
+			if (index < entry.tailStart) {
+				return ring[(index - entry.streamStart) & (ring.length - 1)];
+			}
+			index -= entry.tailStart;
+			return (index < entry.tail.length) ? entry.tail[index] : 0.0f;
+		}
+
+		/**
+		 * Let the prefetch thread overwrite samples before index.
+		 */
+		void setConsumed(long index) {
+			if (index > consumed) {
+				consumed = index;
+			}
+		}
+
+		void underrun() {
+			if (ring != null) {
+				underruns.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,820 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import com.ibm.realtime.synth.engine.Soundbank;
+
+/**
+ * A precompiled binary snapshot of a SoundFontSoundbank, for fast startup.
+ * write() stores the resolved preset, instrument and zone tables, the
+ * generators and modulators of every zone, and the sample data. load() maps
+ * the snapshot file into memory and creates the presets and instruments
+ * only when they are first used. The voice templates are not stored: they
+ * are compiled from the generators and modulators like for a SoundFont file.
+ * <p>
+ * File format (all values little endian):
+ *
+ * <pre>
+ * int magic ('SFSN'), int version, int section count, int reserved
+ * section directory: for every section: long offset, int record count,
+ *     int record size
+ * the sections, each 8-byte aligned
+ * the sample data, page-aligned, in the SoundFont's 16-bit format
+ * </pre>
+ *
+ * The sections hold fixed size records, so that any record can be read by
+ * its index. Objects refer to each other by record index, -1 for none.
+ * A snapshot must be re-created if its version is not VERSION.
+ */
+public class SoundFontSnapshot {
+
+	public static boolean DEBUG_SNAPSHOT = false;
+
+	/**
+	 * The magic number at the start of a snapshot file: 'SFSN'
+	 */
+	public static final int MAGIC = 0x4E534653;
+
+	/**
+	 * The version of the file format
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The alignment of the sample data in the file
+	 */
+	private static final int PAGE_SIZE = 4096;
+
+	private static final int HEADER_SIZE = 16;
+
+	private static final int DIRECTORY_ENTRY_SIZE = 16;
+
+	// the sections in the order of the section directory
+
+	/** per string: int offset into STRING_DATA, int length in bytes */
+	private static final int SECTION_STRINGS = 0;
+	/** the strings, UTF-8 encoded */
+	private static final int SECTION_STRING_DATA = 1;
+	/** version major, minor, ROM version major, minor, 9 string refs */
+	private static final int SECTION_INFO = 2;
+	/** name, start, end, startLoop, endLoop, double sample rate,
+	 * original pitch, pitch correction, sample link, sample type */
+	private static final int SECTION_SAMPLES = 3;
+	/** name, first zone, zone count */
+	private static final int SECTION_INSTRUMENTS = 4;
+	/** sample, key min/max, vel min/max, zone link, is master, first
+	 * generator, generator count, first modulator, modulator count */
+	private static final int SECTION_INSTRUMENT_ZONES = 5;
+	/** name, program, bank, first zone, zone count */
+	private static final int SECTION_PRESETS = 6;
+	/** instrument, key min/max, vel min/max, first generator, generator
+	 * count, first modulator, modulator count */
+	private static final int SECTION_PRESET_ZONES = 7;
+	/** short op, short amount */
+	private static final int SECTION_GENERATORS = 8;
+	/** source op, dest op, source op amount, transform, amount */
+	private static final int SECTION_MODULATORS = 9;
+	/** bank number, 128 preset refs */
+	private static final int SECTION_BANKS = 10;
+	/** the sample data */
+	private static final int SECTION_SAMPLE_DATA = 11;
+
+	private static final int SECTION_COUNT = 12;
+
+	private static final int[] RECORD_SIZES = {
+			8, 1, 52, 44, 12, 44, 20, 36, 4, 20, 4 + 128 * 4, 2
+	};
+
+	private static final String CHARSET = "UTF-8";
+
+	// ------------------------------ loading
+
+	/**
+	 * The mapped metadata (everything before the sample data)
+	 */
+	private final ByteBuffer meta;
+
+	private final long[] sectionOffsets = new long[SECTION_COUNT];
+
+	private final int[] sectionCounts = new int[SECTION_COUNT];
+
+	// the objects created so far, guarded by "this"
+
+	private final String[] strings;
+
+	private final SoundFontSample[] samples;
+
+	private final SoundFontInstrument[] instruments;
+
+	private final SoundFontInstrumentZone[] instrumentZones;
+
+	private final SoundFontPreset[] presets;
+
+	private SoundFontSnapshot(ByteBuffer meta) throws IOException {
+		this.meta = meta;
+		if (meta.getInt(0) != MAGIC) {
+			throw new IOException("not a soundbank snapshot");
+		}
+		if (meta.getInt(4) != VERSION) {
+			throw new IOException("unsupported snapshot version "
+					+ meta.getInt(4) + ", expected " + VERSION);
+		}
+		if (meta.getInt(8) != SECTION_COUNT) {
+			throw new IOException("corrupt snapshot: " + meta.getInt(8)
+					+ " sections");
+		}
+		for (int i = 0; i < SECTION_COUNT; i++) {
+			int entry = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+			sectionOffsets[i] = meta.getLong(entry);
+			sectionCounts[i] = meta.getInt(entry + 8);
+			if (meta.getInt(entry + 12) != RECORD_SIZES[i]) {
+				throw new IOException("corrupt snapshot: record size of section "
+						+ i);
+			}
+			if (i != SECTION_SAMPLE_DATA
+					&& sectionOffsets[i] + ((long) sectionCounts[i])
+							* RECORD_SIZES[i] > meta.limit()) {
+				throw new IOException("corrupt snapshot: section " + i
+						+ " exceeds the file");
+			}
+		}
+		strings = new String[sectionCounts[SECTION_STRINGS]];
+		samples = new SoundFontSample[sectionCounts[SECTION_SAMPLES]];
+		instruments = new SoundFontInstrument[sectionCounts[SECTION_INSTRUMENTS]];
+		int zoneCount = sectionCounts[SECTION_INSTRUMENT_ZONES];
+		instrumentZones = new SoundFontInstrumentZone[zoneCount];
+		presets = new SoundFontPreset[sectionCounts[SECTION_PRESETS]];
+	}
+
+	/**
+	 * Load a snapshot written by write(). The file is memory-mapped: only
+	 * the info data and the bank table are read here, presets and
+	 * instruments are read when they are first used, and the sample data is
+	 * paged in by the operating system.
+	 *
+	 * @param file the snapshot file
+	 * @return the soundbank
+	 * @throws IOException if the file cannot be read, is not a snapshot, or
+	 *             has a different version
+	 */
+	public static SoundFontSoundbank load(File file) throws IOException {
+		long startTime = DEBUG_SNAPSHOT ? System.nanoTime() : 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE
+					+ SECTION_COUNT * DIRECTORY_ENTRY_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new IOException("not a soundbank snapshot");
+				}
+			}
+			int dataEntry = HEADER_SIZE + SECTION_SAMPLE_DATA
+					* DIRECTORY_ENTRY_SIZE;
+			long dataOffset = header.getLong(dataEntry);
+			long dataLength = ((long) header.getInt(dataEntry + 8)) * 2;
+			if (header.getInt(0) != MAGIC || dataOffset < header.capacity()
+					|| dataOffset > Integer.MAX_VALUE
+					|| dataOffset + dataLength > channel.size()) {
+				throw new IOException("not a soundbank snapshot");
+			}
+			ByteBuffer meta = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					dataOffset);
+			meta.order(ByteOrder.LITTLE_ENDIAN);
+			SoundFontSnapshot snapshot = new SoundFontSnapshot(meta);
+			SoundFontSampleData sampleData = SoundFontSampleData.map(channel,
+					dataOffset, dataLength);
+			SoundFontSoundbank soundbank = new SoundFontSoundbank(sampleData,
+					snapshot.readInfo(), snapshot.readBanks());
+			if (DEBUG_SNAPSHOT) {
+				debug("SoundFontSnapshot: loaded " + file + " in "
+						+ ((System.nanoTime() - startTime) / 1000000.0) + "ms");
+			}
+			return soundbank;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the position of the record in the metadata buffer
+	 */
+	private int record(int section, int index) {
+		if (index < 0 || index >= sectionCounts[section]) {
+			throw new IllegalStateException("corrupt snapshot: record " + index
+					+ " of section " + section);
+		}
+		return (int) (sectionOffsets[section] + ((long) index)
+				* RECORD_SIZES[section]);
+	}
+
+	private synchronized String getString(int index) {
+		if (index < 0) {
+			return null;
+		}
+		String s = strings[index];
+		if (s == null) {
+			int pos = record(SECTION_STRINGS, index);
+			int offset = meta.getInt(pos);
+			int length = meta.getInt(pos + 4);
+			byte[] bytes = new byte[length];
+			ByteBuffer data = meta.duplicate();
+			data.position((int) sectionOffsets[SECTION_STRING_DATA] + offset);
+			data.get(bytes);
+			try {
+				s = new String(bytes, CHARSET);
+			} catch (UnsupportedEncodingException uee) {
+				throw new IllegalStateException(uee);
+			}
+			strings[index] = s;
+		}
+		return s;
+	}
+
+	private SoundFontInfo readInfo() {
+		int pos = record(SECTION_INFO, 0);
+		SoundFontInfo info = new SoundFontInfo();
+		info.setVersion(meta.getInt(pos), meta.getInt(pos + 4));
+		info.setROMVersion(meta.getInt(pos + 8), meta.getInt(pos + 12));
+		pos += 16;
+		info.setName(getString(meta.getInt(pos)));
+		info.setSoundEngine(getString(meta.getInt(pos + 4)));
+		info.setRomName(getString(meta.getInt(pos + 8)));
+		info.setCreationDate(getString(meta.getInt(pos + 12)));
+		info.setEngineer(getString(meta.getInt(pos + 16)));
+		info.setProduct(getString(meta.getInt(pos + 20)));
+		info.setCopyright(getString(meta.getInt(pos + 24)));
+		info.setComment(getString(meta.getInt(pos + 28)));
+		info.setSoftware(getString(meta.getInt(pos + 32)));
+		return info;
+	}
+
+	private List<SoundFontBank> readBanks() {
+		int count = sectionCounts[SECTION_BANKS];
+		List<SoundFontBank> banks = new ArrayList<SoundFontBank>(count);
+		for (int i = 0; i < count; i++) {
+			int pos = record(SECTION_BANKS, i);
+			int[] presetIndexes = new int[128];
+			for (int p = 0; p < 128; p++) {
+				presetIndexes[p] = meta.getInt(pos + 4 + p * 4);
+			}
+			banks.add(new SnapshotBank(this, meta.getInt(pos), presetIndexes));
+		}
+		return banks;
+	}
+
+	synchronized SoundFontPreset getPreset(int index) {
+		SoundFontPreset preset = presets[index];
+		if (preset == null) {
+			int pos = record(SECTION_PRESETS, index);
+			preset = new SoundFontPreset(getString(meta.getInt(pos)),
+					meta.getInt(pos + 4), meta.getInt(pos + 8));
+			int first = meta.getInt(pos + 12);
+			SoundFontPresetZone[] zones =
+					new SoundFontPresetZone[meta.getInt(pos + 16)];
+			for (int i = 0; i < zones.length; i++) {
+				zones[i] = readPresetZone(first + i);
+			}
+			preset.setZones(zones);
+			presets[index] = preset;
+		}
+		return preset;
+	}
+
+	/**
+	 * @return the preset with the given record index, or null if it is not
+	 *         created yet
+	 */
+	synchronized SoundFontPreset getCreatedPreset(int index) {
+		return presets[index];
+	}
+
+	private SoundFontPresetZone readPresetZone(int index) {
+		int pos = record(SECTION_PRESET_ZONES, index);
+		int inst = meta.getInt(pos);
+		SoundFontPresetZone zone = new SoundFontPresetZone(readGenerators(
+				meta.getInt(pos + 20), meta.getInt(pos + 24)), readModulators(
+				meta.getInt(pos + 28), meta.getInt(pos + 32)),
+				(inst >= 0) ? getInstrument(inst) : null);
+		readRanges(zone, pos + 4);
+		return zone;
+	}
+
+	private synchronized SoundFontInstrument getInstrument(int index) {
+		SoundFontInstrument inst = instruments[index];
+		if (inst == null) {
+			int pos = record(SECTION_INSTRUMENTS, index);
+			inst = new SoundFontInstrument(getString(meta.getInt(pos)));
+			int first = meta.getInt(pos + 4);
+			SoundFontInstrumentZone[] zones =
+					new SoundFontInstrumentZone[meta.getInt(pos + 8)];
+			for (int i = 0; i < zones.length; i++) {
+				zones[i] = getInstrumentZone(first + i);
+			}
+			inst.setZones(zones);
+			instruments[index] = inst;
+		}
+		return inst;
+	}
+
+	private synchronized SoundFontInstrumentZone getInstrumentZone(int index) {
+		SoundFontInstrumentZone zone = instrumentZones[index];
+		if (zone == null) {
+			int pos = record(SECTION_INSTRUMENT_ZONES, index);
+			int sample = meta.getInt(pos);
+			zone = new SoundFontInstrumentZone(readGenerators(
+					meta.getInt(pos + 28), meta.getInt(pos + 32)),
+					readModulators(meta.getInt(pos + 36),
+							meta.getInt(pos + 40)),
+					(sample >= 0) ? getSample(sample) : null);
+			readRanges(zone, pos + 4);
+			// register before resolving the link, which refers back
+			instrumentZones[index] = zone;
+			int link = meta.getInt(pos + 20);
+			if (link >= 0) {
+				SoundFontInstrumentZone linked = getInstrumentZone(link);
+				if (meta.getInt(pos + 24) != 0) {
+					zone.setMasterZone(linked);
+				}
+			}
+		}
+		return zone;
+	}
+
+	private void readRanges(SoundFontZone zone, int pos) {
+		// the stored ranges include invalidated zones
+		zone.keyMin = meta.getInt(pos);
+		zone.keyMax = meta.getInt(pos + 4);
+		zone.velMin = meta.getInt(pos + 8);
+		zone.velMax = meta.getInt(pos + 12);
+	}
+
+	private synchronized SoundFontSample getSample(int index) {
+		SoundFontSample sample = samples[index];
+		if (sample == null) {
+			int pos = record(SECTION_SAMPLES, index);
+			sample = new SoundFontSample(getString(meta.getInt(pos)),
+					meta.getInt(pos + 4), meta.getInt(pos + 8),
+					meta.getInt(pos + 12), meta.getInt(pos + 16),
+					meta.getDouble(pos + 20), meta.getInt(pos + 28),
+					meta.getInt(pos + 32), meta.getInt(pos + 36),
+					meta.getInt(pos + 40));
+			samples[index] = sample;
+		}
+		return sample;
+	}
+
+	private SoundFontGenerator[] readGenerators(int first, int count) {
+		SoundFontGenerator[] gens = new SoundFontGenerator[count];
+		for (int i = 0; i < count; i++) {
+			int pos = record(SECTION_GENERATORS, first + i);
+			gens[i] = new SoundFontGenerator(meta.getShort(pos) & 0xFFFF,
+					meta.getShort(pos + 2));
+		}
+		return gens;
+	}
+
+	private SoundFontModulator[] readModulators(int first, int count) {
+		SoundFontModulator[] mods = new SoundFontModulator[count];
+		for (int i = 0; i < count; i++) {
+			int pos = record(SECTION_MODULATORS, first + i);
+			mods[i] = new SoundFontModulator(meta.getInt(pos),
+					meta.getInt(pos + 4), (short) meta.getInt(pos + 16),
+					meta.getInt(pos + 8), meta.getInt(pos + 12));
+		}
+		return mods;
+	}
+
+	/**
+	 * A bank of a loaded snapshot: the presets are read when they are first
+	 * used.
+	 */
+	private static class SnapshotBank extends SoundFontBank {
+		private final SoundFontSnapshot snapshot;
+
+		/**
+		 * The preset record for every program, or -1
+		 */
+		private final int[] presetIndexes;
+
+		SnapshotBank(SoundFontSnapshot snapshot, int bank, int[] presetIndexes) {
+			super(bank);
+			this.snapshot = snapshot;
+			this.presetIndexes = presetIndexes;
+		}
+
+		public SoundFontPreset getPreset(int index) {
+			int preset = presetIndexes[index];
+			if (preset < 0) {
+				return super.getPresets()[index];
+			}
+			return snapshot.getPreset(preset);
+		}
+
+		public void setPreset(int index, SoundFontPreset preset) {
+			presetIndexes[index] = -1;
+			super.setPreset(index, preset);
+		}
+
+		/**
+		 * Return the presets that are created already, without creating the
+		 * others.
+		 */
+		public SoundFontPreset[] getPresets() {
+			SoundFontPreset[] result = super.getPresets();
+			for (int i = 0; i < result.length; i++) {
+				if (presetIndexes[i] >= 0) {
+					result[i] = snapshot.getCreatedPreset(presetIndexes[i]);
+				}
+			}
+			return result;
+		}
+
+		public SoundFontPreset[] getAllPresets() {
+			SoundFontPreset[] result = super.getPresets();
+			for (int i = 0; i < result.length; i++) {
+				if (presetIndexes[i] >= 0) {
+					result[i] = snapshot.getPreset(presetIndexes[i]);
+				}
+			}
+			return result;
+		}
+	}
+
+	// ------------------------------ writing
+
+	/**
+	 * Write a snapshot of the soundbank to a file. The file can be loaded
+	 * with load(). Only the instruments and sample headers used by the
+	 * presets are written, but the sample data is copied as a whole, so that
+	 * the sample positions remain valid.
+	 *
+	 * @param soundbank the soundbank to compile
+	 * @param file the snapshot file to write
+	 * @throws IOException if writing fails
+	 */
+	public static void write(SoundFontSoundbank soundbank, File file)
+			throws IOException {
+		long startTime = DEBUG_SNAPSHOT ? System.nanoTime() : 0;
+		Compiler c = new Compiler();
+		c.compile(soundbank);
+		ByteBuffer meta = c.toBuffer();
+		long dataOffset = meta.limit();
+		long dataLength = soundbank.getSampleData().getLongSampleCount() * 2;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			while (meta.hasRemaining()) {
+				channel.write(meta, meta.position());
+			}
+			long written = soundbank.getSampleData().writeTo(channel,
+					dataOffset);
+			if (written != dataLength) {
+				throw new IOException("could only write " + written + " of "
+						+ dataLength + " bytes of sample data");
+			}
+		} finally {
+			raf.close();
+		}
+		if (DEBUG_SNAPSHOT) {
+			debug("SoundFontSnapshot: wrote " + file + " in "
+					+ ((System.nanoTime() - startTime) / 1000000.0) + "ms: "
+					+ c.samples.size() + " samples, " + c.instruments.size()
+					+ " instruments, " + c.presets.size() + " presets");
+		}
+	}
+
+	/**
+	 * Collects the objects of a soundbank and writes the sections.
+	 */
+	private static class Compiler {
+		final Map<String, Integer> stringIndexes =
+				new HashMap<String, Integer>();
+		final ByteArrayOutputStream stringData = new ByteArrayOutputStream();
+
+		final List<int[]> stringRecords = new ArrayList<int[]>();
+
+		final List<SoundFontSample> samples = new ArrayList<SoundFontSample>();
+		final Map<SoundFontSample, Integer> sampleIndexes =
+				new IdentityHashMap<SoundFontSample, Integer>();
+
+		final List<SoundFontInstrument> instruments =
+				new ArrayList<SoundFontInstrument>();
+		final Map<SoundFontInstrument, Integer> instrumentIndexes =
+				new IdentityHashMap<SoundFontInstrument, Integer>();
+
+		final List<SoundFontInstrumentZone> instrumentZones =
+				new ArrayList<SoundFontInstrumentZone>();
+		final Map<SoundFontInstrumentZone, Integer> instrumentZoneIndexes =
+				new IdentityHashMap<SoundFontInstrumentZone, Integer>();
+
+		final List<SoundFontPreset> presets = new ArrayList<SoundFontPreset>();
+		final Map<SoundFontPreset, Integer> presetIndexes =
+				new IdentityHashMap<SoundFontPreset, Integer>();
+
+		final List<SoundFontPresetZone> presetZones =
+				new ArrayList<SoundFontPresetZone>();
+
+		int generatorCount = 0;
+		int modulatorCount = 0;
+
+		List<SoundFontBank> banks = new ArrayList<SoundFontBank>();
+
+		SoundFontInfo info;
+
+		long sampleCount;
+
+		void compile(SoundFontSoundbank soundbank) {
+			info = soundbank.getInfo();
+			sampleCount = soundbank.getSampleData().getLongSampleCount();
+			if (sampleCount > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException(
+						"sample data too large for a snapshot");
+			}
+			for (Soundbank.Bank b : soundbank.getBanks()) {
+				SoundFontBank bank = (SoundFontBank) b;
+				banks.add(bank);
+				for (SoundFontPreset preset : bank.getAllPresets()) {
+					if (preset != null && !presetIndexes.containsKey(preset)) {
+						addPreset(preset);
+					}
+				}
+			}
+			// the zone links may refer to zones of instruments that are not
+			// used by any preset
+			for (int i = 0; i < instrumentZones.size(); i++) {
+				SoundFontInstrumentZone link =
+						instrumentZones.get(i).getZoneLink();
+				if (link != null && !instrumentZoneIndexes.containsKey(link)) {
+					addInstrumentZone(link);
+				}
+			}
+		}
+
+		void addPreset(SoundFontPreset preset) {
+			presetIndexes.put(preset, presets.size());
+			presets.add(preset);
+			for (SoundFontPresetZone zone : preset.getZones()) {
+				presetZones.add(zone);
+				generatorCount += zone.getGenerators().length;
+				modulatorCount += zone.getModulators().length;
+				SoundFontInstrument inst = zone.getInstrument();
+				if (inst != null && !instrumentIndexes.containsKey(inst)) {
+					addInstrument(inst);
+				}
+			}
+		}
+
+		void addInstrument(SoundFontInstrument inst) {
+			instrumentIndexes.put(inst, instruments.size());
+			instruments.add(inst);
+			for (SoundFontInstrumentZone zone : inst.getZones()) {
+				addInstrumentZone(zone);
+			}
+		}
+
+		void addInstrumentZone(SoundFontInstrumentZone zone) {
+			// zones are only shared if they are linked
+			if (instrumentZoneIndexes.containsKey(zone)) {
+				return;
+			}
+			instrumentZoneIndexes.put(zone, instrumentZones.size());
+			instrumentZones.add(zone);
+			generatorCount += zone.getGenerators().length;
+			modulatorCount += zone.getModulators().length;
+			SoundFontSample sample = zone.getSample();
+			if (sample != null && !sampleIndexes.containsKey(sample)) {
+				sampleIndexes.put(sample, samples.size());
+				samples.add(sample);
+			}
+		}
+
+		int string(String s) {
+			if (s == null) {
+				return -1;
+			}
+			Integer index = stringIndexes.get(s);
+			if (index == null) {
+				byte[] bytes;
+				try {
+					bytes = s.getBytes(CHARSET);
+				} catch (UnsupportedEncodingException uee) {
+					throw new IllegalStateException(uee);
+				}
+				index = stringRecords.size();
+				stringRecords.add(new int[] {
+						stringData.size(), bytes.length
+				});
+				stringData.write(bytes, 0, bytes.length);
+				stringIndexes.put(s, index);
+			}
+			return index;
+		}
+
+		/**
+		 * @return the header and all sections except the sample data,
+		 *         padded to the page size
+		 */
+		ByteBuffer toBuffer() {
+			// first intern all strings, so that the string sections are
+			// complete
+			string(info.getName());
+			string(info.getSoundEngine());
+			string(info.getRomName());
+			string(info.getCreationDate());
+			string(info.getEngineer());
+			string(info.getProduct());
+			string(info.getCopyright());
+			string(info.getComment());
+			string(info.getSoftware());
+			for (SoundFontSample sample : samples) {
+				string(sample.getName());
+			}
+			for (SoundFontInstrument inst : instruments) {
+				string(inst.getName());
+			}
+			for (SoundFontPreset preset : presets) {
+				string(preset.getName());
+			}
+
+			int[] counts = new int[SECTION_COUNT];
+			counts[SECTION_STRINGS] = stringRecords.size();
+			counts[SECTION_STRING_DATA] = stringData.size();
+			counts[SECTION_INFO] = 1;
+			counts[SECTION_SAMPLES] = samples.size();
+			counts[SECTION_INSTRUMENTS] = instruments.size();
+			counts[SECTION_INSTRUMENT_ZONES] = instrumentZones.size();
+			counts[SECTION_PRESETS] = presets.size();
+			counts[SECTION_PRESET_ZONES] = presetZones.size();
+			counts[SECTION_GENERATORS] = generatorCount;
+			counts[SECTION_MODULATORS] = modulatorCount;
+			counts[SECTION_BANKS] = banks.size();
+			counts[SECTION_SAMPLE_DATA] = (int) sampleCount;
+
+			long[] offsets = new long[SECTION_COUNT];
+			long pos = HEADER_SIZE + SECTION_COUNT * DIRECTORY_ENTRY_SIZE;
+			for (int i = 0; i < SECTION_COUNT; i++) {
+				if (i == SECTION_SAMPLE_DATA) {
+					pos = (pos + PAGE_SIZE - 1) & ~((long) PAGE_SIZE - 1);
+				} else {
+					pos = (pos + 7) & ~7L;
+				}
+				offsets[i] = pos;
+				if (i != SECTION_SAMPLE_DATA) {
+					pos += ((long) counts[i]) * RECORD_SIZES[i];
+				}
+			}
+			if (offsets[SECTION_SAMPLE_DATA] > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException(
+						"soundbank too large for a snapshot");
+			}
+			ByteBuffer b = ByteBuffer.allocate((int) offsets[SECTION_SAMPLE_DATA]);
+			b.order(ByteOrder.LITTLE_ENDIAN);
+
+			b.putInt(MAGIC).putInt(VERSION).putInt(SECTION_COUNT).putInt(0);
+			for (int i = 0; i < SECTION_COUNT; i++) {
+				b.putLong(offsets[i]).putInt(counts[i]).putInt(RECORD_SIZES[i]);
+			}
+
+			b.position((int) offsets[SECTION_STRINGS]);
+			for (int[] rec : stringRecords) {
+				b.putInt(rec[0]).putInt(rec[1]);
+			}
+			b.position((int) offsets[SECTION_STRING_DATA]);
+			b.put(stringData.toByteArray());
+
+			b.position((int) offsets[SECTION_INFO]);
+			b.putInt(info.getVersionMajor()).putInt(info.getVersionMinor());
+			b.putInt(info.getROMVersionMajor()).putInt(
+					info.getROMVersionMinor());
+			b.putInt(string(info.getName()));
+			b.putInt(string(info.getSoundEngine()));
+			b.putInt(string(info.getRomName()));
+			b.putInt(string(info.getCreationDate()));
+			b.putInt(string(info.getEngineer()));
+			b.putInt(string(info.getProduct()));
+			b.putInt(string(info.getCopyright()));
+			b.putInt(string(info.getComment()));
+			b.putInt(string(info.getSoftware()));
+
+			b.position((int) offsets[SECTION_SAMPLES]);
+			for (SoundFontSample s : samples) {
+				b.putInt(string(s.getName()));
+				b.putInt(s.getStart()).putInt(s.getEnd());
+				b.putInt(s.getStartLoop()).putInt(s.getEndLoop());
+				b.putDouble(s.getSampleRate());
+				b.putInt(s.getOriginalPitch()).putInt(s.getPitchCorrection());
+				b.putInt(s.getSampleLinkIndex()).putInt(s.getSampleType());
+			}
+
+			b.position((int) offsets[SECTION_INSTRUMENTS]);
+			for (SoundFontInstrument inst : instruments) {
+				SoundFontInstrumentZone[] zones = inst.getZones();
+				b.putInt(string(inst.getName()));
+				b.putInt((zones.length > 0)
+						? instrumentZoneIndexes.get(zones[0]) : 0);
+				b.putInt(zones.length);
+			}
+
+			int gen = 0;
+			int mod = 0;
+			ByteBuffer gens = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			gens.position((int) offsets[SECTION_GENERATORS]);
+			ByteBuffer mods = b.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			mods.position((int) offsets[SECTION_MODULATORS]);
+
+			b.position((int) offsets[SECTION_INSTRUMENT_ZONES]);
+			for (SoundFontInstrumentZone zone : instrumentZones) {
+				SoundFontSample sample = zone.getSample();
+				b.putInt((sample != null) ? sampleIndexes.get(sample) : -1);
+				putRanges(b, zone);
+				SoundFontInstrumentZone link = zone.getZoneLink();
+				if (link != null) {
+					b.putInt(instrumentZoneIndexes.get(link));
+					b.putInt(isMaster(zone, link) ? 1 : 0);
+				} else {
+					b.putInt(-1).putInt(0);
+				}
+				b.putInt(gen).putInt(zone.getGenerators().length);
+				b.putInt(mod).putInt(zone.getModulators().length);
+				gen += putGenerators(gens, zone);
+				mod += putModulators(mods, zone);
+			}
+
+			b.position((int) offsets[SECTION_PRESETS]);
+			int zoneIndex = 0;
+			for (SoundFontPreset preset : presets) {
+				b.putInt(string(preset.getName()));
+				b.putInt(preset.getMidiNumber()).putInt(preset.getBank());
+				b.putInt(zoneIndex).putInt(preset.getZones().length);
+				zoneIndex += preset.getZones().length;
+			}
+
+			b.position((int) offsets[SECTION_PRESET_ZONES]);
+			for (SoundFontPresetZone zone : presetZones) {
+				SoundFontInstrument inst = zone.getInstrument();
+				b.putInt((inst != null) ? instrumentIndexes.get(inst) : -1);
+				putRanges(b, zone);
+				b.putInt(gen).putInt(zone.getGenerators().length);
+				b.putInt(mod).putInt(zone.getModulators().length);
+				gen += putGenerators(gens, zone);
+				mod += putModulators(mods, zone);
+			}
+
+			b.position((int) offsets[SECTION_BANKS]);
+			for (SoundFontBank bank : banks) {
+				b.putInt(bank.getMidiNumber());
+				SoundFontPreset[] ps = bank.getAllPresets();
+				for (int p = 0; p < 128; p++) {
+					b.putInt((ps[p] != null) ? presetIndexes.get(ps[p]) : -1);
+				}
+			}
+			b.clear();
+			return b;
+		}
+
+		/**
+		 * @return true if zone is the master of a linked pair: the slave is
+		 *         made inaccessible by setMasterZone().
+		 */
+		boolean isMaster(SoundFontInstrumentZone zone,
+				SoundFontInstrumentZone link) {
+			if ((zone.keyMin < 0) != (link.keyMin < 0)) {
+				return zone.keyMin >= 0;
+			}
+			return instrumentZoneIndexes.get(zone).intValue() < instrumentZoneIndexes.get(
+					link).intValue();
+		}
+
+		void putRanges(ByteBuffer b, SoundFontZone zone) {
+			b.putInt(zone.keyMin).putInt(zone.keyMax);
+			b.putInt(zone.velMin).putInt(zone.velMax);
+		}
+
+		int putGenerators(ByteBuffer b, SoundFontZone zone) {
+			for (SoundFontGenerator g : zone.getGenerators()) {
+				b.putShort((short) g.getOp()).putShort(g.getAmount());
+			}
+			return zone.getGenerators().length;
+		}
+
+		int putModulators(ByteBuffer b, SoundFontZone zone) {
+			for (SoundFontModulator m : zone.getModulators()) {
+				b.putInt(m.getSourceOp()).putInt(m.getDestOp());
+				b.putInt(m.getSourceOpAmount()).putInt(m.getTransform());
+				b.putInt(m.getAmount());
+			}
+			return zone.getModulators().length;
+		}
+	}
+}
@@ -21,6 +21,35 @@ public class SoundFontSoundbank implements Soundbank {
 
 	public static boolean TRACE_SB2SB = false;
 
+	/**
+	 * If true, NoteInput instances are taken from a pool of pre-allocated
+	 * voices rather than allocated for every note.
+	 */
+	public static boolean USE_VOICE_POOL = true;
+
+	/**
+	 * If true, SoundFont files are loaded with MappedParser, which
+	 * memory-maps the file rather than reading it as a stream.
+	 */
+	public static boolean USE_MAPPED_PARSER = true;
+
+	/**
+	 * If true, the half and quarter rate copies of all samples are created
+	 * when a SoundFont file is loaded.
+	 * 
+	 * @see #createSamplePyramids()
+	 */
+	public static boolean CREATE_SAMPLE_PYRAMIDS = false;
+
+	/**
+	 * If true, the voice templates of all presets are compiled when a
+	 * SoundFont file is loaded, rather than at the first note on that uses
+	 * them.
+	 * 
+	 * @see #compileVoiceTemplates()
+	 */
+	public static boolean COMPILE_VOICE_TEMPLATES = true;
+
 	/**
 	 * The audio sample data
 	 */
@@ -36,6 +65,26 @@ public class SoundFontSoundbank implements Soundbank {
 	 */
 	private List<SoundFontBank> banks;
 
+	/**
+	 * The banks indexed by bank number, null for missing banks
+	 */
+	private SoundFontBank[] bankTable;
+
+	/**
+	 * The pool of pre-allocated voices, or null if not using a pool
+	 */
+	private VoicePool voicePool;
+
+	/**
+	 * The cache of decoded samples, or null
+	 */
+	private SoundFontSampleCache sampleCache;
+
+	/**
+	 * The streamer for long samples, or null
+	 */
+	private SoundFontSampleStreamer sampleStreamer;
+
 	/**
 	 * Create a new instance of SoundFont2Soundbank by parsing the specified
 	 * file.
@@ -46,11 +95,27 @@ public class SoundFontSoundbank implements Soundbank {
 	 */
 	public SoundFontSoundbank(File inputFile) throws IOException,
 			Parser.SoundFont2ParserException {
-		Parser parser = new Parser();
-		parser.load(new FileInputStream(inputFile));
-		sampleData = parser.getSampleData();
-		info = parser.getInfo();
-		banks = parser.getPresetBanks();
+		if (USE_MAPPED_PARSER) {
+			MappedParser parser = new MappedParser();
+			parser.load(inputFile);
+			sampleData = parser.getSampleData();
+			info = parser.getInfo();
+			banks = parser.getPresetBanks();
+		} else {
+			Parser parser = new Parser();
+			parser.load(new FileInputStream(inputFile));
+			sampleData = parser.getSampleData();
+			info = parser.getInfo();
+			banks = parser.getPresetBanks();
+		}
+		initBankTable();
+		initVoicePool();
+		if (CREATE_SAMPLE_PYRAMIDS) {
+			createSamplePyramids();
+		}
+		if (COMPILE_VOICE_TEMPLATES) {
+			compileVoiceTemplates();
+		}
 	}
 	
 	/**
@@ -64,6 +129,86 @@ public class SoundFontSoundbank implements Soundbank {
 		this.sampleData = sampleData;
 		this.info = info;
 		this.banks = banks;
+		initBankTable();
+		initVoicePool();
+	}
+
+	private final void initBankTable() {
+		int size = 0;
+		for (SoundFontBank bank : banks) {
+			size = Math.max(size, bank.getMidiNumber() + 1);
+		}
+		bankTable = new SoundFontBank[size];
+		for (SoundFontBank bank : banks) {
+			if (bank.getMidiNumber() >= 0) {
+				bankTable[bank.getMidiNumber()] = bank;
+			}
+		}
+	}
+
+	/**
+	 * @return the bank with the given number, or null if it does not exist
+	 */
+	public SoundFontBank getBank(int bank) {
+		if (bank < 0 || bank >= bankTable.length) {
+			return null;
+		}
+		return bankTable[bank];
+	}
+
+	private final void initVoicePool() {
+		if (USE_VOICE_POOL) {
+			voicePool = new SoundFontVoicePool(VoicePool.DEFAULT_POLYPHONY);
+		}
+	}
+
+	/**
+	 * @return the pool of voices used by this soundbank, or null if this
+	 *         soundbank does not use a pool. Use its setPolyphony() method to
+	 *         change the number of pre-allocated voices.
+	 */
+	public VoicePool getVoicePool() {
+		return voicePool;
+	}
+
+	/**
+	 * @return the cache of decoded samples, or null if samples are decoded
+	 *         while rendering
+	 */
+	public SoundFontSampleCache getSampleCache() {
+		return sampleCache;
+	}
+
+	/**
+	 * Set the cache of decoded samples used for new notes. The cache may be
+	 * shared with other soundbanks.
+	 * 
+	 * @param sampleCache the cache, or null to decode samples while rendering
+	 */
+	public void setSampleCache(SoundFontSampleCache sampleCache) {
+		this.sampleCache = sampleCache;
+	}
+
+	/**
+	 * @return the streamer for long samples, or null if all samples are read
+	 *         from the sample data
+	 */
+	public SoundFontSampleStreamer getSampleStreamer() {
+		return sampleStreamer;
+	}
+
+	/**
+	 * Set the streamer used by new notes to play long samples from disk. The
+	 * streamer must be created for the file of this soundbank, and only the
+	 * samples preloaded by the streamer are streamed. Streamed samples are
+	 * not put in the sample cache.
+	 * 
+	 * @param sampleStreamer the streamer, or null to read all samples from
+	 *            the sample data
+	 * @see SoundFontSampleStreamer#preload(SoundFontSoundbank)
+	 */
+	public void setSampleStreamer(SoundFontSampleStreamer sampleStreamer) {
+		this.sampleStreamer = sampleStreamer;
 	}
 
 
@@ -71,6 +216,110 @@ public class SoundFontSoundbank implements Soundbank {
 		return info.getName();
 	}
 
+	/**
+	 * @return the SoundFont's info data
+	 */
+	public SoundFontInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * @return the audio sample data
+	 */
+	public SoundFontSampleData getSampleData() {
+		return sampleData;
+	}
+
+	/**
+	 * Compile the voice templates of all presets, so that no template is
+	 * compiled at note on. Otherwise, the templates are compiled when they
+	 * are first used. Note that for a soundbank loaded from a snapshot, this
+	 * method reads all presets.
+	 */
+	public void compileVoiceTemplates() {
+		long startTime = TRACE_SB2SB ? System.nanoTime() : 0;
+		int count = 0;
+		for (SoundFontBank bank : banks) {
+			for (SoundFontPreset preset : bank.getAllPresets()) {
+				if (preset == null || preset.getZones() == null) {
+					continue;
+				}
+				SoundFontPresetZone pZoneGlobal = preset.getGlobalZone();
+				for (SoundFontPresetZone pZone : preset.getZones()) {
+					SoundFontInstrument inst = pZone.getInstrument();
+					if (inst == null || inst.getZones() == null) {
+						continue;
+					}
+					for (SoundFontInstrumentZone iZone : inst.getZones()) {
+						if (iZone.getSample() != null) {
+							pZone.getVoiceTemplate(pZoneGlobal, iZone);
+							count++;
+						}
+					}
+				}
+			}
+		}
+		if (TRACE_SB2SB) {
+			debug("compiled " + count + " voice templates in "
+					+ format3((System.nanoTime() - startTime) / 1000000.0)
+					+ "ms");
+		}
+	}
+
+	/**
+	 * Create the band-limited half and quarter rate copies of all samples
+	 * that are used by the presets. Notes that are transposed up by an
+	 * octave or more then read the copies, which reduces aliasing and the
+	 * amount of data read per output sample. The copies take 1.5 times the
+	 * size of the sample data. Samples that are streamed by the current
+	 * sample streamer are skipped.
+	 * 
+	 * @return the number of bytes used by the new copies
+	 */
+	public long createSamplePyramids() {
+		long startTime = TRACE_SB2SB ? System.nanoTime() : 0;
+		long bytes = 0;
+		Set<SoundFontSample> done = new HashSet<SoundFontSample>();
+		for (SoundFontBank bank : banks) {
+			for (SoundFontPreset preset : bank.getAllPresets()) {
+				if (preset == null || preset.getZones() == null) {
+					continue;
+				}
+				for (SoundFontPresetZone pZone : preset.getZones()) {
+					SoundFontInstrument inst = pZone.getInstrument();
+					if (inst == null || inst.getZones() == null) {
+						continue;
+					}
+					for (SoundFontInstrumentZone iZone : inst.getZones()) {
+						SoundFontSample sample = iZone.getSample();
+						if (sample == null || !done.add(sample)
+								|| sample.getPyramid() != null) {
+							continue;
+						}
+						if (sampleStreamer != null
+								&& sampleStreamer.isStreamable(sample)) {
+							continue;
+						}
+						SoundFontSamplePyramid pyramid =
+								SoundFontSamplePyramid.create(sample,
+										sampleData);
+						if (pyramid != null) {
+							sample.setPyramid(pyramid);
+							bytes += pyramid.getByteCount();
+						}
+					}
+				}
+			}
+		}
+		if (TRACE_SB2SB) {
+			debug("created pyramids of " + done.size() + " samples ("
+					+ bytes + " bytes) in "
+					+ format3((System.nanoTime() - startTime) / 1000000.0)
+					+ "ms");
+		}
+		return bytes;
+	}
+
 	public List<Soundbank.Bank> getBanks() {
 		return new ArrayList<Soundbank.Bank>(banks);
 	}
@@ -84,66 +333,59 @@ public class SoundFontSoundbank implements Soundbank {
 		NoteInput result = null;
 
 		// first find a fitting bank
-		int index = SoundFontBank.findBank(banks, channel.getBank());
-		if (index >= 0) {
-			SoundFontBank bank = banks.get(index);
+		SoundFontBank bank = getBank(channel.getBank());
+		if (bank != null) {
 			SoundFontPreset preset = bank.getPreset(channel.getProgram());
 			if (preset != null) {
 				// we found a preset! now find a fitting zone
 				if (TRACE_SB2SB) {
 					debug("-matching preset: " + preset);
 				}
-				List<SoundFontPresetZone> pZones = preset.getZones(note, vel);
-				if (pZones != null) {
-					for (SoundFontPresetZone pZone : pZones) {
-						if (TRACE_SB2SB) {
-							debug(" -matching preset zone: " + pZone);
-						}
-						SoundFontPresetZone pZoneGlobal =
-								preset.getGlobalZone();
-						if (TRACE_SB2SB) {
-							if (pZoneGlobal != null) {
-								debug(" -matching global preset zone: "
-										+ pZoneGlobal);
-							}
+				SoundFontPresetZone[] pZones = preset.findZones(note, vel);
+				for (SoundFontPresetZone pZone : pZones) {
+					if (TRACE_SB2SB) {
+						debug(" -matching preset zone: " + pZone);
+					}
+					SoundFontPresetZone pZoneGlobal = preset.getGlobalZone();
+					if (TRACE_SB2SB) {
+						if (pZoneGlobal != null) {
+							debug(" -matching global preset zone: "
+									+ pZoneGlobal);
 						}
+					}
 
-						SoundFontInstrument inst = pZone.getInstrument();
+					SoundFontInstrument inst = pZone.getInstrument();
+					if (TRACE_SB2SB) {
+						debug("  -matching inst: " + inst);
+					}
+					SoundFontInstrumentZone[] iZones =
+							inst.findZones(note, vel);
+					for (SoundFontInstrumentZone iZone : iZones) {
 						if (TRACE_SB2SB) {
-							debug("  -matching inst: " + inst);
+							debug("   -matching inst Zone: " + iZone);
 						}
-						List<SoundFontInstrumentZone> iZones =
-								inst.getZones(note, vel);
-						if (iZones != null) {
-							for (SoundFontInstrumentZone iZone : iZones) {
+						NoteInput ni =
+								createNoteInput(params, time, channel, note,
+										vel, preset, pZone, pZoneGlobal,
+										inst, iZone);
+						result = addNoteInputToResult(result, ni);
+						if (ni != null) {
+							// do we need to set up a linked sample?
+							SoundFontInstrumentZone iZoneLink =
+									iZone.getZoneLink();
+							if (iZoneLink != null) {
 								if (TRACE_SB2SB) {
-									debug("   -matching inst Zone: " + iZone);
-								}
-								NoteInput ni =
-										createNoteInput(params, time, channel,
-												note, vel, preset, pZone,
-												pZoneGlobal, inst, iZone);
-								result = addNoteInputToResult(result, ni);
-								if (ni != null) {
-									// do we need to set up a linked sample?
-									SoundFontInstrumentZone iZoneLink =
-											iZone.getZoneLink();
-									if (iZoneLink != null) {
-										if (TRACE_SB2SB) {
-											debug("    -creating phase-locked NoteInput with "
-													+ "inst Zone: " + iZoneLink);
-										}
-										NoteInput linkedNI =
-												createNoteInput(params, time,
-														channel, note, vel,
-														preset, pZone,
-														pZoneGlobal, inst,
-														iZoneLink);
-										result =
-												addNoteInputToResult(result,
-														linkedNI);
-									}
+									debug("    -creating phase-locked NoteInput with "
+											+ "inst Zone: " + iZoneLink);
 								}
+								NoteInput linkedNI =
+										createNoteInput(params, time,
+												channel, note, vel, preset,
+												pZone, pZoneGlobal, inst,
+												iZoneLink);
+								result =
+										addNoteInputToResult(result,
+												linkedNI);
 							}
 						}
 					}
@@ -174,6 +416,8 @@ public class SoundFontSoundbank implements Soundbank {
 					thisNoteInput = thisNoteInput.getLinkedNoteInput();
 				}
 				thisNoteInput.setLinkedNoteInput(newNoteInput);
+				// close the ring, as described in NoteInput
+				newNoteInput.setLinkedNoteInput(prevResult);
 				if (TRACE_SB2SB) {
 					debug("   -added linked NoteInput " + newNoteInput);
 				}
@@ -199,51 +443,59 @@ public class SoundFontSoundbank implements Soundbank {
 		if (TRACE_SB2SB) {
 			debug("     -matching sample: " + sample);
 		}
-		SoundFontPatch patch =
-				new SoundFontPatch(note, vel, channel.getBank(),
-						channel.getProgram(), sample);
-		SoundFontArticulation art =
-				new SoundFontArticulation(time, patch, channel);
-		art.setName(preset.getName() + "." + inst.getName());
-		SoundFontOscillator osc = new SoundFontOscillator(sample, sampleData);
+		// the cache and the streamer depend on the timing of their threads
+		SoundFontSampleCache cache = null;
+		SoundFontSampleStreamer streamer = null;
+		if (!params.isReproducible()) {
+			cache = sampleCache;
+			streamer = sampleStreamer;
+		}
+		NoteInput ni = null;
+		SoundFontPatch patch;
+		SoundFontArticulation art;
+		SoundFontOscillator osc;
+		if (voicePool != null) {
+			// reuse a pre-allocated voice
+			ni = voicePool.obtain();
+			patch = (SoundFontPatch) ni.getPatch();
+			patch.init(note, vel, channel.getBank(), channel.getProgram(),
+					sample);
+			art = (SoundFontArticulation) ni.getArticulation();
+			art.init(time, patch, channel);
+			osc = (SoundFontOscillator) ni.getOscillator();
+			osc.init(sample, sampleData, cache, streamer);
+		} else {
+			patch = new SoundFontPatch(note, vel, channel.getBank(),
+					channel.getProgram(), sample);
+			art = new SoundFontArticulation(time, patch, channel);
+			osc = new SoundFontOscillator(sample, sampleData, cache, streamer);
+		}
+		// the name is only used for debug output, so prevent the string
+		// allocations if not needed
+		if (TRACE_SB2SB || SoundFontArticulation.DEBUG_ART
+				|| SoundFontArticulation.DEBUG_ART_VOLUME
+				|| SoundFontEnvelope.DEBUG_EG || SoundFontLFO.DEBUG_LFO) {
+			art.setName(preset.getName() + "." + inst.getName());
+		}
 
 		// GENERATORS
 
 		// the generators may change the values in Patch, also the note!
 
-		// first parse the instrument zone for absolute values
-		if (iZoneGlobal != null) {
-			// don't need to specify a forbidden list, since the global values
-			// will be overriden anyway by the local zone
-			iZoneGlobal.parseZone(false, patch, art, osc, null);
-		}
-		iZone.parseZone(false, patch, art, osc, null);
-
-		// then parse the preset zone for relative values
-		if (pZoneGlobal != null) {
-			pZoneGlobal.parseZone(true, patch, art, osc, pZone);
-		}
-		pZone.parseZone(true, patch, art, osc, null);
+		// execute the generators of the instrument zones (absolute values)
+		// and of the preset zones (relative values), as compiled in the
+		// template
+		pZone.getVoiceTemplate(pZoneGlobal, iZone).apply(patch, art, osc);
 
 		// MODULATORS
 
 		// use "patch.getNote()", because the generators may change the note in Patch.
 		note = patch.getNote();
 		vel = patch.getVelocity();
-		// first parse the instrument zone for absolute values
-		if (iZoneGlobal != null) {
-			iZoneGlobal.parseModulators(note, vel, channel, art, iZone);
-		}
-		iZone.parseModulators(note, vel, channel, art, null);
 
-		// then parse the preset zone's modulators
-		if (pZoneGlobal != null) {
-			pZoneGlobal.parseModulators(note, vel, channel, art, pZone);
-		}
-		pZone.parseModulators(note, vel, channel, art, null);
-		
-		// eventually, execute the default modulators (if not overriden by 
-		// zone modulators)
+		// the zone modulators are not supported yet (see
+		// SoundFontZone.parseModulators()), so only execute the default
+		// modulators
 		executeDefaultModulators(note, vel, channel, art);
 
 		// add sample's pitch correction
@@ -254,24 +506,52 @@ public class SoundFontSoundbank implements Soundbank {
 		}
 
 		// initialize the oscillator
+		if (params != null) {
+			osc.setInterpolation(params.getInterpolation(channel));
+		}
 		osc.init();
 
+		if (ni != null) {
+			ni.init(params, time, channel, patch, osc, art, note, vel);
+			return ni;
+		}
 		return new NoteInput(params, time, channel, patch, osc, art, note, vel);
 	}
 
+	/**
+	 * The linear attenuation of the velocity to attenuation default
+	 * modulator, for every velocity
+	 */
+	private static final double[] VELOCITY_ATTENUATION = new double[128];
+
+	static {
+		for (int vel = 0; vel < VELOCITY_ATTENUATION.length; vel++) {
+			VELOCITY_ATTENUATION[vel] = velocityAttenuation(vel);
+		}
+	}
+
+	private static double velocityDecibel(int vel) {
+		return SoundFontUtils.transform(vel / 127.0, true, true, false) * -96.0;
+	}
+
+	private static double velocityAttenuation(int vel) {
+		return FastMath.decibel2linear(velocityDecibel(vel));
+	}
+
 	private final void executeDefaultModulators(int note, int vel, 
 			MidiChannel channel, SoundFontArticulation art) {
 
 		// 8.4.1: velocity to attenuation: negative concave unipolar transform
-		double velDB =
-				SoundFontUtils.transform(vel / 127.0, true,
-						true, false)
-						* -96.0;
-		double linear = AudioUtils.decibel2linear(velDB);
+		double linear;
+		if (vel >= 0 && vel < VELOCITY_ATTENUATION.length) {
+			linear = VELOCITY_ATTENUATION[vel];
+		} else {
+			linear = velocityAttenuation(vel);
+		}
 		art.addLinearInitialAttenuation(linear);
 		if (TRACE_SB2SB) {
-			debug("      -velocity " + vel
-					+ " is mapped to attenuation=" + format3(velDB) + "dB");
+			debug("      -velocity " + vel + " is mapped to attenuation="
+					+ format3(velocityDecibel(vel)) + "dB");
 		}
 		
 		// 8.4.2: key number to filter cutoff
@@ -4,10 +4,13 @@
 package com.ibm.realtime.synth.soundfont2;
 
 import java.io.*;
-import com.ibm.realtime.synth.utils.AudioUtils;
+import com.ibm.realtime.synth.utils.FastMath;
 
 /**
  * A class with utility methods for the SoundFont synth.
+ * <p>
+ * The conversions used during rendering are calculated with the lookup
+ * tables of FastMath, unless FastMath.USE_TABLES is false.
  * 
  * @author florian
  */
@@ -31,7 +34,6 @@ public class SoundFontUtils {
 	 */
 	public static final double transform(double value, boolean negative,
 			boolean unipolar, boolean convex) {
-		// TODO: use a table
 		double factor;
 		double sig;
 		if (!unipolar) {
@@ -59,7 +61,7 @@ public class SoundFontUtils {
 				value = sig - value;
 			}
 		}
-		double ret = factor * Math.log10((value * value));
+		double ret = factor * FastMath.log10((value * value));
 		if (convex) {
 			ret = sig - ret;
 		}
@@ -88,8 +90,7 @@ public class SoundFontUtils {
 		if (timecents <= -32768) {
 			return 0.0;
 		}
-		// TODO: use a table
-		return Math.pow(2.0, timecents / 1200.0);
+		return FastMath.exp2(timecents / 1200.0);
 	}
 
 	/**
@@ -113,8 +114,7 @@ public class SoundFontUtils {
 	 * @return the converted frequency, in Hz
 	 */
 	public static final double cents2hertzLFO(int cents) {
-		// TODO: use a table
-		return Math.pow(2.0, cents / 1200.0) * 8.176;
+		return FastMath.exp2(cents / 1200.0) * 8.176;
 	}
 
 	/**
@@ -124,8 +124,7 @@ public class SoundFontUtils {
 	 * @return the converted frequency, in Hz
 	 */
 	public static final double cents2hertzCutoff(int cents) {
-		// TODO: use a table
-		return Math.pow(2.0, (cents - 6900) / 1200.0) * 440.0;
+		return FastMath.exp2((cents - 6900) / 1200.0) * 440.0;
 	}
 
 	/**
@@ -145,7 +144,7 @@ public class SoundFontUtils {
 		}
 		//return Math.pow(10.0, attenuation / -531.509);
 		// 0.037628713718864591192246979825365 =  (20.0/-531.509)
-		return AudioUtils.decibel2linear(attenuation * 0.037628713718864591);
+		return FastMath.decibel2linear(attenuation * 0.037628713718864591);
 	}
 
 	/**
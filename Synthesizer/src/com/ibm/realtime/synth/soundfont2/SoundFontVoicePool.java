@@ -0,0 +1,28 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import com.ibm.realtime.synth.engine.*;
+
+/**
+ * The voice pool for SoundFont voices: every pooled NoteInput owns a
+ * SoundFontPatch, a SoundFontArticulation, and a SoundFontOscillator, which
+ * are re-initialized by SoundFontSoundbank for every new note.
+ */
+class SoundFontVoicePool extends VoicePool {
+
+	/**
+	 * Create a voice pool and pre-allocate the given number of voices.
+	 */
+	SoundFontVoicePool(int polyphony) {
+		setPolyphony(polyphony);
+	}
+
+	protected NoteInput createVoice() {
+		SoundFontPatch patch = new SoundFontPatch();
+		SoundFontArticulation art =
+				new SoundFontArticulation(new AudioTime(0), patch, null);
+		return new NoteInput(patch, new SoundFontOscillator(), art);
+	}
+}
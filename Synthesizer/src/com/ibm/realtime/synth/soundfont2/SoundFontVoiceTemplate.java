@@ -0,0 +1,241 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import static com.ibm.realtime.synth.soundfont2.SoundFontGenerator.*;
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+/**
+ * The generators of one pair of preset zone and instrument zone, resolved
+ * into a flat list. Instantiating a voice from the template has the same
+ * result as parsing the global instrument zone, the instrument zone, the
+ * global preset zone, and the preset zone, but the template is compiled only
+ * once:
+ * <ul>
+ * <li>generators of a global zone that are overridden by the local zone are
+ * removed, so there is no lookup in forbidden lists anymore</li>
+ * <li>absolute generators that are overridden by a later absolute generator
+ * are removed</li>
+ * <li>generators that have no effect at the respective level, and the range
+ * and index generators, are removed</li>
+ * </ul>
+ * The key and velocity dependent terms (the KEYNUM_TO_* generators, and the
+ * default modulators) are not part of the template, they are evaluated by
+ * the envelopes and SoundFontSoundbank for every note.
+ * <p>
+ * A template is immutable. It is created on first use by
+ * SoundFontPresetZone.getVoiceTemplate().
+ */
+final class SoundFontVoiceTemplate {
+
+	public static boolean DEBUG_TEMPLATE = false;
+
+	/**
+	 * The generator operators, first the absolute ones, then the relative
+	 * ones
+	 */
+	private final int[] ops;
+
+	/**
+	 * The generator amounts
+	 */
+	private final int[] amounts;
+
+	/**
+	 * The number of absolute (instrument level) generators at the beginning
+	 * of ops
+	 */
+	private final int absoluteCount;
+
+	/**
+	 * Compile the template for a preset zone and an instrument zone.
+	 *
+	 * @param pZoneGlobal the global zone of the preset, or null
+	 * @param pZone the preset zone
+	 * @param iZoneGlobal the global zone of the instrument, or null
+	 * @param iZone the instrument zone
+	 */
+	SoundFontVoiceTemplate(SoundFontPresetZone pZoneGlobal,
+			SoundFontPresetZone pZone, SoundFontInstrumentZone iZoneGlobal,
+			SoundFontInstrumentZone iZone) {
+		int maxCount = iZone.getGenerators().length
+				+ pZone.getGenerators().length;
+		if (iZoneGlobal != null) {
+			maxCount += iZoneGlobal.getGenerators().length;
+		}
+		if (pZoneGlobal != null) {
+			maxCount += pZoneGlobal.getGenerators().length;
+		}
+		int[] o = new int[maxCount];
+		int[] a = new int[maxCount];
+		int count = 0;
+
+		// the instrument level: the global zone is not filtered, since its
+		// absolute values are overridden by the local zone
+		if (iZoneGlobal != null) {
+			count = addAbsolute(iZoneGlobal.getGenerators(), o, a, count);
+		}
+		count = addAbsolute(iZone.getGenerators(), o, a, count);
+		int absolute = count;
+
+		// the preset level: the global zone's generators are ignored if the
+		// local zone has the same generator
+		if (pZoneGlobal != null) {
+			count = addRelative(pZoneGlobal.getGenerators(),
+					pZone.getGenerators(), o, a, count);
+		}
+		count = addRelative(pZone.getGenerators(), null, o, a, count);
+
+		ops = new int[count];
+		amounts = new int[count];
+		System.arraycopy(o, 0, ops, 0, count);
+		System.arraycopy(a, 0, amounts, 0, count);
+		absoluteCount = absolute;
+		if (DEBUG_TEMPLATE) {
+			debug("SoundFontVoiceTemplate: " + maxCount + " generators -> "
+					+ absoluteCount + " absolute, " + (count - absoluteCount)
+					+ " relative");
+		}
+	}
+
+	/**
+	 * Append the absolute generators. A previous absolute generator with the
+	 * same operator is removed if the new one overrides it.
+	 */
+	private static int addAbsolute(SoundFontGenerator[] gens, int[] ops,
+			int[] amounts, int count) {
+		for (SoundFontGenerator gen : gens) {
+			int op = gen.getOp();
+			if (isIgnored(op)) {
+				continue;
+			}
+			if (isOverriding(op)) {
+				for (int i = 0; i < count; i++) {
+					if (ops[i] == op) {
+						// remove the overridden generator, keep the order
+						System.arraycopy(ops, i + 1, ops, i, count - i - 1);
+						System.arraycopy(amounts, i + 1, amounts, i, count
+								- i - 1);
+						count--;
+						break;
+					}
+				}
+			}
+			ops[count] = op;
+			amounts[count] = gen.getAmount();
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Append the relative generators that are not in the forbidden list and
+	 * that have an effect on preset level.
+	 */
+	private static int addRelative(SoundFontGenerator[] gens,
+			SoundFontGenerator[] forbidden, int[] ops, int[] amounts, int count) {
+		for (SoundFontGenerator gen : gens) {
+			int op = gen.getOp();
+			if (isIgnored(op) || isInstrumentOnly(op)
+					|| contains(forbidden, op)) {
+				continue;
+			}
+			ops[count] = op;
+			amounts[count] = gen.getAmount();
+			count++;
+		}
+		return count;
+	}
+
+	private static boolean contains(SoundFontGenerator[] gens, int op) {
+		if (gens != null) {
+			for (SoundFontGenerator gen : gens) {
+				if (gen.getOp() == op) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the generator is not executed at all
+	 */
+	private static boolean isIgnored(int op) {
+		switch (op) {
+		case KEY_RANGE:
+		case VEL_RANGE:
+		case INSTRUMENT:
+		case SAMPLE_ID:
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if executeGenerator() ignores the generator on preset
+	 *         level
+	 */
+	private static boolean isInstrumentOnly(int op) {
+		switch (op) {
+		case START_ADDRS_OFFSET:
+		case END_ADDRS_OFFSET:
+		case START_LOOP_ADDRS_OFFSET:
+		case END_LOOP_ADDRS_OFFSET:
+		case START_ADDRS_COARSE_OFFSET:
+		case ENDADDRSCOARSE_OFFSET:
+		case START_LOOP_ADDRS_COARSE_OFFSET:
+		case END_LOOP_ADDRS_COARSE_OFFSET:
+		case KEYNUM:
+		case VELOCITY:
+		case SAMPLE_MODES:
+		case SCALE_TUNING:
+		case EXCLUSIVE_CLASS:
+		case OVERRIDING_ROOTKEY:
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if executing the generator as absolute generator replaces
+	 *         the value of a previous execution. The address offsets are
+	 *         added, and an out of range root key is ignored.
+	 */
+	private static boolean isOverriding(int op) {
+		switch (op) {
+		case START_ADDRS_OFFSET:
+		case END_ADDRS_OFFSET:
+		case START_LOOP_ADDRS_OFFSET:
+		case END_LOOP_ADDRS_OFFSET:
+		case START_ADDRS_COARSE_OFFSET:
+		case ENDADDRSCOARSE_OFFSET:
+		case START_LOOP_ADDRS_COARSE_OFFSET:
+		case END_LOOP_ADDRS_COARSE_OFFSET:
+		case OVERRIDING_ROOTKEY:
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Apply the generators to a new voice.
+	 *
+	 * @param patch the voice's patch
+	 * @param art the voice's articulation
+	 * @param osc the voice's oscillator
+	 */
+	void apply(SoundFontPatch patch, SoundFontArticulation art,
+			SoundFontOscillator osc) {
+		int count = ops.length;
+		for (int i = 0; i < absoluteCount; i++) {
+			SoundFontZone.executeGenerator(ops[i], amounts[i], false, art,
+					osc, patch);
+		}
+		for (int i = absoluteCount; i < count; i++) {
+			SoundFontZone.executeGenerator(ops[i], amounts[i], true, art,
+					osc, patch);
+		}
+	}
+}
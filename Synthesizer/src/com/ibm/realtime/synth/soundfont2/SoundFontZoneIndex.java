@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.soundfont2;
+
+import java.util.*;
+
+/**
+ * A lookup table from key and velocity to the matching zones of a preset or
+ * an instrument. The key and velocity axes are range-compressed: the zone
+ * boundaries split each axis in cells, so that all keys (velocities) in one
+ * cell are matched by the same zones. For every key cell and velocity cell,
+ * the table holds a preallocated array of the matching zones. Cells with the
+ * same zones share one array.
+ * <p>
+ * The index is immutable, a lookup is two array accesses and does not
+ * allocate. It is built from the key and velocity ranges at construction
+ * time, so it must be rebuilt if the zones change.
+ *
+ * @param <Z> the type of the zones
+ */
+final class SoundFontZoneIndex<Z extends SoundFontZone> {
+
+	/**
+	 * The number of keys and velocities
+	 */
+	private static final int SIZE = 128;
+
+	/**
+	 * For every key, the index of its row in the table
+	 */
+	private final int[] keyCells = new int[SIZE];
+
+	/**
+	 * For every velocity, the index of its column in the table
+	 */
+	private final int[] velCells = new int[SIZE];
+
+	/**
+	 * The number of velocity cells, i.e. the length of a row
+	 */
+	private final int velCellCount;
+
+	/**
+	 * The matching zones for every cell, row by row
+	 */
+	private final Z[][] table;
+
+	/**
+	 * The empty result
+	 */
+	private final Z[] empty;
+
+	/**
+	 * Create an index of the given zones.
+	 *
+	 * @param zones the zones to index, only the zones that are usable at
+	 *            note on
+	 * @param empty an empty array of the zone type
+	 */
+	@SuppressWarnings("unchecked")
+	SoundFontZoneIndex(Z[] zones, Z[] empty) {
+		this.empty = empty;
+		boolean[] keyStarts = new boolean[SIZE + 1];
+		boolean[] velStarts = new boolean[SIZE + 1];
+		keyStarts[0] = true;
+		velStarts[0] = true;
+		for (Z zone : zones) {
+			markRange(keyStarts, zone.keyMin, zone.keyMax);
+			markRange(velStarts, zone.velMin, zone.velMax);
+		}
+		int[] keyFirst = cells(keyStarts, keyCells);
+		int[] velFirst = cells(velStarts, velCells);
+		velCellCount = velFirst.length;
+		table = (Z[][]) new SoundFontZone[keyFirst.length * velCellCount][];
+
+		// fill the cells by matching their first key and velocity
+		Map<List<Z>, Z[]> shared = new HashMap<List<Z>, Z[]>();
+		List<Z> matching = new ArrayList<Z>();
+		for (int k = 0; k < keyFirst.length; k++) {
+			for (int v = 0; v < velCellCount; v++) {
+				matching.clear();
+				for (Z zone : zones) {
+					if (zone.matches(keyFirst[k], velFirst[v])) {
+						matching.add(zone);
+					}
+				}
+				Z[] cell = shared.get(matching);
+				if (cell == null) {
+					cell = matching.toArray(Arrays.copyOf(empty,
+							matching.size()));
+					shared.put(new ArrayList<Z>(matching), cell);
+				}
+				table[k * velCellCount + v] = cell;
+			}
+		}
+	}
+
+	/**
+	 * Mark the start of the range and the first value after it.
+	 */
+	private static void markRange(boolean[] starts, int min, int max) {
+		if (min >= 0 && min < SIZE && max >= min) {
+			starts[min] = true;
+			starts[Math.min(max + 1, SIZE)] = true;
+		}
+	}
+
+	/**
+	 * Assign every value its cell index.
+	 *
+	 * @return the first value of every cell
+	 */
+	private static int[] cells(boolean[] starts, int[] cellOfValue) {
+		int count = 0;
+		for (int i = 0; i < SIZE; i++) {
+			if (starts[i]) {
+				count++;
+			}
+			cellOfValue[i] = count - 1;
+		}
+		int[] first = new int[count];
+		for (int i = 0, cell = 0; i < SIZE; i++) {
+			if (starts[i]) {
+				first[cell++] = i;
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * @return the zones matching key and velocity, in the order of the
+	 *         zones, or an empty array. The returned array must not be
+	 *         modified.
+	 */
+	Z[] get(int note, int vel) {
+		if (((note | vel) & ~(SIZE - 1)) != 0) {
+			return empty;
+		}
+		return table[keyCells[note] * velCellCount + velCells[vel]];
+	}
+}
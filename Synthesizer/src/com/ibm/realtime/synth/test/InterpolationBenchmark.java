@@ -0,0 +1,83 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.test;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import com.ibm.realtime.synth.engine.Interpolation;
+
+/**
+ * Test program to measure the cost per output sample of the interpolation
+ * tiers, and their error when resampling a sine wave.
+ */
+public class InterpolationBenchmark {
+
+	private static final int INPUT_SIZE = 1 << 16;
+
+	private static final int BLOCK_SIZE = 512;
+
+	private static final int RUNS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		// the read position step, e.g. 0.9 for slightly pitched down notes
+		double delta = 0.9;
+		if (args.length > 0) {
+			delta = Double.parseDouble(args[0]);
+		}
+		float[] in = new float[INPUT_SIZE];
+		// a sine wave at 1/20 of the sample rate
+		double freq = 2.0 * Math.PI / 20.0;
+		for (int i = 0; i < in.length; i++) {
+			in[i] = (float) Math.sin(i * freq);
+		}
+		float[] out = new float[BLOCK_SIZE];
+		// first warm up, then measure
+		for (int pass = 0; pass < 2; pass++) {
+			if (pass == 1) {
+				out("step " + delta + ", " + BLOCK_SIZE + " samples per block:");
+			}
+			for (int quality = -1; quality <= Interpolation.SINC; quality++) {
+				// quality -1 measures the copy path
+				double step = (quality < 0) ? 1.0 : delta;
+				int q = (quality < 0) ? Interpolation.LINEAR : quality;
+				long startTime = System.nanoTime();
+				double pos = 16.0;
+				for (int run = 0; run < RUNS; run++) {
+					Interpolation.interpolate(q, in, 0, pos, step, out, null, 0,
+							BLOCK_SIZE);
+					pos += BLOCK_SIZE * step;
+					if (pos + BLOCK_SIZE * step + 16 >= INPUT_SIZE) {
+						pos = (quality < 0) ? 16.0 : 16.25;
+					}
+				}
+				double nanos = ((double) (System.nanoTime() - startTime))
+						/ (((double) RUNS) * BLOCK_SIZE);
+				if (pass == 1) {
+					String name = (quality < 0) ? "copy" : Interpolation
+							.toString(quality);
+					out("  " + name + ": " + format3(nanos)
+							+ " ns per sample, max. error "
+							+ format3(maxError(q, in, step, freq)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the maximum absolute difference to the exact sine
+	 */
+	private static double maxError(int quality, float[] in, double step,
+			double freq) {
+		float[] out = new float[BLOCK_SIZE];
+		double pos = 100.3;
+		Interpolation.interpolate(quality, in, 0, pos, step, out, null, 0,
+				BLOCK_SIZE);
+		double error = 0;
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			double exact = Math.sin((pos + i * step) * freq);
+			error = Math.max(error, Math.abs(out[i] - exact));
+		}
+		return error;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.test;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import java.io.*;
+import java.util.*;
+
+import com.ibm.realtime.synth.modules.*;
+import com.ibm.realtime.synth.soundfont2.*;
+
+/**
+ * Test program to render a list of MIDI files to .wav files with the
+ * BatchRenderService, loading the soundbank only once. Each MIDI file
+ * <i>name</i>.mid is written to <i>name</i>.wav in the output directory.
+ */
+public class SoundFont2BatchRenderer {
+
+	public static void main(String[] args) throws Exception {
+		String soundbankFile = SoundFont2FileRenderer.SF_FILENAME;
+		String outputDir = ".";
+		double sampleRate = 44100.0;
+		double gain = 1.0;
+		int workers = Runtime.getRuntime().availableProcessors();
+		List<File> midiFiles = new ArrayList<File>();
+
+		// parse arguments
+		int argi = 0;
+		while (argi < args.length) {
+			String arg = args[argi];
+			if (arg.equals("-h")) {
+				printUsageAndExit();
+			} else if (arg.equals("-sb")) {
+				argi++;
+				if (argi >= args.length) {
+					printUsageAndExit();
+				}
+				soundbankFile = args[argi];
+			} else if (arg.equals("-od")) {
+				argi++;
+				if (argi >= args.length) {
+					printUsageAndExit();
+				}
+				outputDir = args[argi];
+			} else if (arg.equals("-r")) {
+				argi++;
+				if (argi >= args.length) {
+					printUsageAndExit();
+				}
+				sampleRate = Double.parseDouble(args[argi]);
+			} else if (arg.equals("-g")) {
+				argi++;
+				if (argi >= args.length) {
+					printUsageAndExit();
+				}
+				gain = Double.parseDouble(args[argi]);
+			} else if (arg.equals("-w")) {
+				argi++;
+				if (argi >= args.length) {
+					printUsageAndExit();
+				}
+				workers = Integer.parseInt(args[argi]);
+			} else if (arg.startsWith("-")) {
+				printUsageAndExit();
+			} else {
+				midiFiles.add(new File(arg));
+			}
+			argi++;
+		}
+		if (midiFiles.size() == 0) {
+			printUsageAndExit();
+		}
+
+		long startTime = System.nanoTime();
+		debug("Loading soundbank " + soundbankFile + "...");
+		SoundFontSoundbank sb = new SoundFontSoundbank(new File(soundbankFile));
+		out("Loaded soundbank in "
+				+ format3((System.nanoTime() - startTime) / 1000000000.0) + "s.");
+
+		startTime = System.nanoTime();
+		BatchRenderService service = new BatchRenderService(sb, workers,
+				midiFiles.size());
+		List<RenderJob> jobs = new ArrayList<RenderJob>();
+		for (File midiFile : midiFiles) {
+			String name = midiFile.getName();
+			int dot = name.lastIndexOf('.');
+			if (dot > 0) {
+				name = name.substring(0, dot);
+			}
+			File wavFile = new File(outputDir, name + ".wav");
+			jobs.add(service.submit(new RenderJob(midiFile, wavFile,
+					sampleRate, gain)));
+		}
+		for (RenderJob job : jobs) {
+			if (job.waitFor()) {
+				out(job.getMidiFile().getName() + ": "
+						+ format3(job.getRenderedSeconds()) + "s in "
+						+ format3(job.getWallSeconds()) + "s ("
+						+ format3(job.getThroughput()) + "x real time)");
+			} else {
+				out(job.getMidiFile().getName() + ": failed: "
+						+ job.getException());
+			}
+		}
+		service.close();
+		double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
+		out("Rendered " + service.getCompletedCount() + " files, "
+				+ format3(service.getRenderedSeconds()) + "s in "
+				+ format3(elapsed) + "s with " + workers + " workers ("
+				+ format3(service.getRenderedSeconds() / elapsed)
+				+ "x real time).");
+	}
+
+	private static void printUsageAndExit() {
+		out("Usage:");
+		out("java SoundFont2BatchRenderer [options] <.mid file> [<.mid file> ...]");
+		out("-sb: specify the soundbank in .sf2 format to be used");
+		out("-od <dir> : write the .wav files to <dir>");
+		out("-r <rate> : the sample rate");
+		out("-g <gain> : the gain, linear, 1.0 is 0dB");
+		out("-w <n> : the number of jobs rendered concurrently");
+
+		System.exit(1);
+	}
+}
@@ -46,6 +46,9 @@ public class SoundFont2Benchmark {
 	protected static NullSink sink;
 	protected static DiskWriterSink waveSink = null;
 	protected static int asynchronousRenderThreads = 0;
+	protected static boolean floatRendering = false;
+	protected static int interpolation = Interpolation.DEFAULT;
+	protected static boolean samplePyramids = false;
 
 	/**
 	 * @param args
@@ -108,6 +111,16 @@ public class SoundFont2Benchmark {
 				asynchronousRenderThreads = Integer.parseInt(args[argi]);
 			} else if (arg.equals("-polyphony")) {
 				polyphonyTest = true;
+			} else if (arg.equals("-float")) {
+				floatRendering = true;
+			} else if (arg.equals("-interpolation")) {
+				argi++;
+				if (argi >= args.length) {
+					printUsageAndExit();
+				}
+				interpolation = parseInterpolation(args[argi]);
+			} else if (arg.equals("-pyramids")) {
+				samplePyramids = true;
 			} else {
 				printUsageAndExit();
 			}
@@ -193,8 +206,13 @@ public class SoundFont2Benchmark {
 
 		try {
 			SoundFontSoundbank sb = new SoundFontSoundbank(sbFile);
+			if (samplePyramids) {
+				long bytes = sb.createSamplePyramids();
+				out("Created sample pyramids: " + (bytes / 1024) + "KB");
+			}
 			sink = new NullSink();
-			synth = new Synthesizer(sb);
+			synth = new Synthesizer(sb, new AudioMixer(), floatRendering);
+			synth.getParams().setInterpolation(interpolation);
 			synth.setFixedDelayNanos(2 * latencyInMillis * 1000000L);
 			synth.setRenderThreadCount(asynchronousRenderThreads);
 			synth.start();
@@ -428,12 +446,23 @@ public class SoundFont2Benchmark {
 				+ " voices simultaneously.");
 	}
 
+	private static int parseInterpolation(String name) {
+		for (int i = Interpolation.NEAREST; i <= Interpolation.SINC; i++) {
+			if (Interpolation.toString(i).equals(name)) {
+				return i;
+			}
+		}
+		printUsageAndExit();
+		return Interpolation.DEFAULT;
+	}
+
 	private static void printUsageAndExit() {
 		out("SoundFont2Benchmark: Render a MIDI file and measure the execution time.");
 		out("Usage:");
 		out("java SoundFont2Benchmark [-if <MIDI file>] [-s <slice time>]");
 		out("                     [-sb <soundbank>] [-of output_wave] [-profile] ");
-		out("                     [-polyphony] [-debug] [-p N][-h]");
+		out("                     [-polyphony] [-debug] [-p N] [-float]");
+		out("                     [-interpolation <tier>] [-pyramids] [-h]");
 		out("-if: specify the MIDI file to be rendered");
 		out("-s: specify the quantum time in milliseconds (quantum time < buffer size)");
 		out("-sb: specify the soundbank in .sf2 format to be used");
@@ -443,6 +472,9 @@ public class SoundFont2Benchmark {
 		out("-p N: use asynchronous rendering using N threads (default: not asynchronous)");
 		out("-polyphony: iteratively find out the maximum polypony of one instrument.");
 		out("            -if and -of are ignored.");
+		out("-float: render with 32-bit float precision (default: double precision)");
+		out("-interpolation: nearest, linear (default), cubic, or sinc");
+		out("-pyramids: create half and quarter rate copies of the samples");
 		out("");
 		out("Results can only be compared if there is no DEBUG output!");
 		out("This is a single-thread benchmark with the goal of improving");
@@ -41,6 +41,9 @@ public class SoundFont2FileRenderer {
 		AudioFormat format = new AudioFormat((float) sampleRate, 16, 2, true,
 				false);
 		double timeOut = -1; // seconds 
+		boolean offline = false;
+		int parallelThreads = -1;
+		boolean segments = false;
 
 		// parse arguments
 		int argi = 0;
@@ -78,6 +81,23 @@ public class SoundFont2FileRenderer {
 					printUsageAndExit();
 				}
 				timeOut = Double.parseDouble(args[argi]);
+			} else if (arg.equals("-offline")) {
+				offline = true;
+			} else if (arg.equals("-parallel")) {
+				argi++;
+				if (argi >= args.length) {
+					printUsageAndExit();
+				}
+				offline = true;
+				parallelThreads = Integer.parseInt(args[argi]);
+			} else if (arg.equals("-segments")) {
+				argi++;
+				if (argi >= args.length) {
+					printUsageAndExit();
+				}
+				offline = true;
+				segments = true;
+				parallelThreads = Integer.parseInt(args[argi]);
 			} else {
 				printUsageAndExit();
 			}
@@ -124,6 +144,10 @@ public class SoundFont2FileRenderer {
 		// open the sink and connect it with the mixer
 		sink.open(wavFile, format);
 		try {
+			if (offline && mFile != null) {
+				renderOffline(sb, mixer, mFile, sink, parallelThreads, segments);
+				return;
+			}
 
 			// set up Synthesizer
 			debug("creating Synthesizer...");
@@ -205,6 +229,70 @@ public class SoundFont2FileRenderer {
 		out("SoundFont2FileRenderer exit.");
 	}
 
+	/**
+	 * Render the MIDI file as fast as possible, without pull thread.
+	 * 
+	 * @param parallelThreads if not negative, render the MIDI channels in
+	 *            parallel with this number of worker threads
+	 * @param segments if true, render time segments in parallel instead of
+	 *            MIDI channels
+	 */
+	private static void renderOffline(SoundFontSoundbank sb, AudioMixer mixer,
+			File mFile, DiskWriterSink sink, int parallelThreads,
+			boolean segments) throws Exception {
+		Synthesizer synth = null;
+		OfflineRenderer renderer = null;
+		ChannelParallelRenderer parallelRenderer = null;
+		SegmentParallelRenderer segmentRenderer = null;
+		if (segments) {
+			debug("creating SegmentParallelRenderer with " + parallelThreads
+					+ " worker threads...");
+			segmentRenderer = new SegmentParallelRenderer(sb,
+					sink.getSampleRate(), sink.getChannels(), parallelThreads,
+					false);
+		} else if (parallelThreads >= 0) {
+			debug("creating ChannelParallelRenderer with " + parallelThreads
+					+ " worker threads...");
+			parallelRenderer = new ChannelParallelRenderer(sb,
+					sink.getSampleRate(), sink.getChannels(), parallelThreads,
+					false);
+		} else {
+			debug("creating Synthesizer...");
+			synth = new Synthesizer(sb, mixer);
+			renderer = new OfflineRenderer(synth, sink.getSampleRate(),
+					sink.getChannels());
+		}
+		try {
+			outNoNewLine("Rendering MIDI File offline: " + mFile.getName());
+			SMFEventList events = SMFParser.parse(mFile);
+			long startTime = System.nanoTime();
+			long samples;
+			if (segmentRenderer != null) {
+				samples = segmentRenderer.render(events, sink);
+			} else if (parallelRenderer != null) {
+				samples = parallelRenderer.render(events, sink);
+			} else {
+				samples = renderer.render(events, sink);
+			}
+			double elapsed = (System.nanoTime() - startTime) / 1000000000.0;
+			double duration = samples / sink.getSampleRate();
+			out(", duration:" + format3(duration) + "s, " + events.getEventCount()
+					+ " events, rendered in " + format3(elapsed) + "s ("
+					+ format3(duration / elapsed) + "x real time).");
+		} finally {
+			if (segmentRenderer != null) {
+				segmentRenderer.close();
+			}
+			if (parallelRenderer != null) {
+				parallelRenderer.close();
+			}
+			if (synth != null) {
+				synth.close();
+			}
+		}
+		out("SoundFont2FileRenderer exit.");
+	}
+
 	private static void printUsageAndExit() {
 		out("Usage:");
 		out("java SoundFont2FileRenderer [options]");
@@ -213,6 +301,9 @@ public class SoundFont2FileRenderer {
 		out("-sb: specify the soundbank in .sf2 format to be used");
 		out("-s: specify the quantum time in milliseconds");
 		out("-duration <sec> : render only <sec> seconds");
+		out("-offline : render the MIDI file as fast as possible");
+		out("-parallel <n> : render offline, MIDI channels in parallel with <n> threads");
+		out("-segments <n> : render offline, time segments in parallel with <n> threads");
 
 		System.exit(1);
 	}
@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.test;
+
+import static com.ibm.realtime.synth.utils.Debug.*;
+
+import java.io.*;
+
+import com.ibm.realtime.synth.soundfont2.*;
+
+/**
+ * Test program to compile a SoundFont 2 file to a soundbank snapshot, and to
+ * measure how long it takes to load the snapshot.
+ */
+public class SoundFont2SnapshotCompiler {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			printUsageAndExit();
+		}
+		File sf2File = new File(args[0]);
+		File snapshotFile = new File(args[1]);
+
+		long startTime = System.nanoTime();
+		SoundFontSoundbank sb = new SoundFontSoundbank(sf2File);
+		out("Parsed " + sf2File + " in "
+				+ format3((System.nanoTime() - startTime) / 1000000.0) + "ms.");
+
+		startTime = System.nanoTime();
+		SoundFontSnapshot.write(sb, snapshotFile);
+		out("Wrote " + snapshotFile + " (" + snapshotFile.length()
+				+ " bytes) in "
+				+ format3((System.nanoTime() - startTime) / 1000000.0) + "ms.");
+
+		startTime = System.nanoTime();
+		sb = SoundFontSnapshot.load(snapshotFile);
+		out("Loaded snapshot '" + sb.getName() + "' in "
+				+ format3((System.nanoTime() - startTime) / 1000000.0) + "ms.");
+	}
+
+	private static void printUsageAndExit() {
+		out("Usage:");
+		out("java SoundFont2SnapshotCompiler <.sf2 file> <snapshot file>");
+		System.exit(1);
+	}
+}
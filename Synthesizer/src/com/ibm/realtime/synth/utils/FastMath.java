@@ -0,0 +1,144 @@
+/*
+ * (C) Copyright IBM Corp. 2005, 2008. All Rights Reserved
+ */
+package com.ibm.realtime.synth.utils;
+
+/**
+ * Table based versions of the exponential and logarithmic functions used
+ * for pitch, time cent and level conversions in the rendering path. The
+ * functions use linearly interpolated lookup tables with 1024 intervals
+ * instead of calling Math.pow() and Math.log10().
+ * <p>
+ * Error bounds of the table lookups, over the entire double range:
+ * <ul>
+ * <li>exp2(), decibel2linear(): relative error below 6E-8, i.e. less than
+ * 0.0001 cents for pitch, and less than 0.000001 dB for levels</li>
+ * <li>log2(): absolute error below 2E-7; log10() below 6E-8</li>
+ * </ul>
+ * For comparison and verification, set USE_TABLES to false: then all
+ * functions use exact math.
+ */
+public class FastMath {
+
+	/**
+	 * If true, use the lookup tables. Otherwise, use exact math.
+	 */
+	public static boolean USE_TABLES = true;
+
+	/**
+	 * The number of table intervals for the interval [0...1) of exp2(), and
+	 * for the mantissa range [1...2) of log2().
+	 */
+	private static final int TABLE_SIZE = 1024;
+
+	/**
+	 * log2(10)
+	 */
+	private static final double LOG2_10 = 3.3219280948873623;
+
+	/**
+	 * log10(2)
+	 */
+	private static final double LOG10_2 = 0.3010299956639812;
+
+	/**
+	 * 1 / ln(2)
+	 */
+	private static final double INV_LN2 = 1.4426950408889634;
+
+	/**
+	 * 2^(i/TABLE_SIZE) for i in [0...TABLE_SIZE]
+	 */
+	private static final double[] EXP2_TABLE = new double[TABLE_SIZE + 1];
+
+	/**
+	 * log2(1 + i/TABLE_SIZE) for i in [0...TABLE_SIZE]
+	 */
+	private static final double[] LOG2_TABLE = new double[TABLE_SIZE + 1];
+
+	static {
+		for (int i = 0; i <= TABLE_SIZE; i++) {
+			EXP2_TABLE[i] = Math.pow(2.0, ((double) i) / TABLE_SIZE);
+			LOG2_TABLE[i] = Math.log(1.0 + ((double) i) / TABLE_SIZE) * INV_LN2;
+		}
+	}
+
+	private FastMath() {
+		// no instances
+	}
+
+	/**
+	 * @return 2 raised to the power of x
+	 */
+	public static final double exp2(double x) {
+		if (!USE_TABLES) {
+			return Math.pow(2.0, x);
+		}
+		if (x < Double.MIN_EXPONENT || x > Double.MAX_EXPONENT || x != x) {
+			// out of the table range: rare, use exact math
+			return Math.pow(2.0, x);
+		}
+		double floor = Math.floor(x);
+		double pos = (x - floor) * TABLE_SIZE;
+		int index = (int) pos;
+		if (index >= TABLE_SIZE) {
+			// x - floor may round up to 1.0 for tiny negative x
+			index = TABLE_SIZE - 1;
+		}
+		double lower = EXP2_TABLE[index];
+		double mantissa = lower + (EXP2_TABLE[index + 1] - lower) * (pos - index);
+		return Math.scalb(mantissa, (int) floor);
+	}
+
+	/**
+	 * @return the base 2 logarithm of x
+	 */
+	public static final double log2(double x) {
+		if (!USE_TABLES || !(x >= Double.MIN_NORMAL)
+				|| x > Double.MAX_VALUE) {
+			// includes 0, negative values, NaN, infinity, and subnormals
+			return Math.log(x) * INV_LN2;
+		}
+		int exponent = Math.getExponent(x);
+		double pos = (Math.scalb(x, -exponent) - 1.0) * TABLE_SIZE;
+		int index = (int) pos;
+		double lower = LOG2_TABLE[index];
+		return exponent + lower + (LOG2_TABLE[index + 1] - lower)
+				* (pos - index);
+	}
+
+	/**
+	 * @return the base 10 logarithm of x
+	 */
+	public static final double log10(double x) {
+		if (!USE_TABLES) {
+			return Math.log10(x);
+		}
+		return log2(x) * LOG10_2;
+	}
+
+	/**
+	 * Convert a level in decibels to a linear factor.
+	 *
+	 * @param decibels the level in decibels, 0 dB is unity gain
+	 * @return the linear factor
+	 */
+	public static final double decibel2linear(double decibels) {
+		if (!USE_TABLES) {
+			return Math.pow(10.0, decibels / 20.0);
+		}
+		return exp2(decibels * (LOG2_10 / 20.0));
+	}
+
+	/**
+	 * Calculate the factor by which the sample rate needs to be multiplied to
+	 * play a note relativeNote semitones above the root key.
+	 *
+	 * @param relativeNote the number of semitones, may be fractional and/or
+	 *            negative
+	 * @return the sample rate factor
+	 */
+	public static final double semitones2factor(double relativeNote) {
+		return exp2(relativeNote / 12.0);
+	}
+}